@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.orange.ngsi2.model.*;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Fixtures shared by the benchmarks
+ */
+public class BenchmarkData {
+
+    /**
+     * Size of the entities used by the benchmarks
+     */
+    public enum EntitySize {
+        SMALL(3, 0), TYPICAL(20, 2), LARGE(500, 2);
+
+        private final int attributes;
+
+        private final int metadata;
+
+        EntitySize(int attributes, int metadata) {
+            this.attributes = attributes;
+            this.metadata = metadata;
+        }
+
+        public int getAttributes() {
+            return attributes;
+        }
+
+        public int getMetadata() {
+            return metadata;
+        }
+    }
+
+    /**
+     * Same configuration as the one injected by Ngsi2Client
+     */
+    public static ObjectMapper objectMapper() {
+        return new ObjectMapper().registerModule(new Jdk8Module())
+                .registerModule(new JavaTimeModule())
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+    }
+
+    /**
+     * Build an entity mixing number, string, boolean and structured attribute values
+     * @param id the entity ID
+     * @param size the number of attributes and metadata per attribute
+     * @return the entity
+     */
+    public static Entity entity(String id, EntitySize size) {
+        Map<String, Attribute> attributes = new HashMap<>();
+        for (int i = 0; i < size.getAttributes(); i++) {
+            Attribute attribute = attribute(i);
+            for (int j = 0; j < size.getMetadata(); j++) {
+                attribute.addMetadata("metadata" + j, new Metadata("string", "value" + j));
+            }
+            attributes.put("attribute" + i, attribute);
+        }
+        return new Entity(id, "Room", attributes);
+    }
+
+    /**
+     * Build a list of entities
+     * @param count the number of entities
+     * @param size the size of each entity
+     * @return the entities
+     */
+    public static List<Entity> entities(int count, EntitySize size) {
+        List<Entity> entities = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entities.add(entity("Room" + i, size));
+        }
+        return entities;
+    }
+
+    /**
+     * Build a subscription with an active notification on the given attributes
+     * @param attributes the number of watched attributes
+     * @return the subscription
+     */
+    public static Subscription subscription(int attributes) {
+        SubjectEntity subjectEntity = new SubjectEntity(Optional.of("Bcn_Welt"));
+        subjectEntity.setType(Optional.of("Room"));
+        Condition condition = new Condition();
+        condition.setAttributes(attributeNames(attributes));
+        condition.setExpression("q", "temperature>40");
+        SubjectSubscription subjectSubscription = new SubjectSubscription(Collections.singletonList(subjectEntity), condition);
+        Subscription subscription = new Subscription("abcdefg", subjectSubscription, notification(attributes),
+                Instant.parse("2016-04-05T14:00:00.20Z"), Subscription.Status.active);
+        return subscription;
+    }
+
+    /**
+     * Build a notification on the given attributes
+     * @param attributes the number of notified attributes
+     * @return the notification
+     */
+    public static Notification notification(int attributes) {
+        Notification notification;
+        try {
+            notification = new Notification(attributeNames(attributes), new URL("http://localhost:1234"));
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+        notification.setHeader("X-MyHeader", "foo");
+        notification.setQuery("authToken", "bar");
+        notification.setAttrsFormat(Optional.of(Notification.Format.keyValues));
+        notification.setThrottling(Optional.of(new Long(5)));
+        notification.setTimesSent(12);
+        notification.setLastNotification(Instant.parse("2015-10-05T16:00:00.10Z"));
+        return notification;
+    }
+
+    /**
+     * Build a list of attribute names
+     * @param count the number of names
+     * @return attribute0, attribute1, ...
+     */
+    public static List<String> attributeNames(int count) {
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add("attribute" + i);
+        }
+        return names;
+    }
+
+    private static Attribute attribute(int i) {
+        Attribute attribute;
+        switch (i % 4) {
+            case 0:
+                attribute = new Attribute(21.5 + i);
+                attribute.setType(Optional.of("Float"));
+                break;
+            case 1:
+                attribute = new Attribute("value" + i);
+                attribute.setType(Optional.of("String"));
+                break;
+            case 2:
+                attribute = new Attribute(i % 3 == 0);
+                attribute.setType(Optional.of("Boolean"));
+                break;
+            default:
+                Map<String, Object> structured = new HashMap<>();
+                structured.put("floor", i);
+                structured.put("label", "room " + i);
+                attribute = new Attribute(structured);
+                attribute.setType(Optional.of("StructuredValue"));
+        }
+        return attribute;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.orange.ngsi2.benchmarks;
+
+import com.orange.ngsi2.client.Ngsi2Client;
+import com.orange.ngsi2.model.Coordinate;
+import com.orange.ngsi2.model.GeoQuery;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.AsyncRestTemplate;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side cost of a request (URI building, headers and response adaptation) without any I/O:
+ * the HTTP exchange is replaced by an already completed future.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClientRequestBenchmark {
+
+    /**
+     * Ngsi2Client completing all requests with an empty body
+     */
+    static class NoNetworkNgsi2Client extends Ngsi2Client {
+
+        String lastUri;
+
+        NoNetworkNgsi2Client(String baseURL) {
+            super(new AsyncRestTemplate(), baseURL);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected <T, U> ListenableFuture<ResponseEntity<T>> request(HttpMethod method, String uri, HttpHeaders httpHeaders, U body, Class<T> responseType) {
+            lastUri = uri;
+            T responseBody = null;
+            if (responseType.isArray()) {
+                responseBody = (T) Array.newInstance(responseType.getComponentType(), 0);
+            }
+            SettableListenableFuture<ResponseEntity<T>> future = new SettableListenableFuture<>();
+            future.set(new ResponseEntity<>(responseBody, HttpStatus.OK));
+            return future;
+        }
+    }
+
+    private NoNetworkNgsi2Client client;
+
+    private Collection<String> ids = Arrays.asList("room1", "house1");
+
+    private Collection<String> types = Arrays.asList("Room", "House");
+
+    private Collection<String> attrs = Arrays.asList("temp", "pressure", "humidity");
+
+    private Collection<String> orderBy = Arrays.asList("temp", "!humidity");
+
+    private GeoQuery geoQuery;
+
+    @Setup
+    public void setup() {
+        client = new NoNetworkNgsi2Client("http://localhost:1026/");
+        List<Coordinate> coords = Arrays.asList(new Coordinate(-10.5d, 30.5d), new Coordinate(-15.5d, 35.5d));
+        geoQuery = new GeoQuery(GeoQuery.Modifier.maxDistance, 1000f, GeoQuery.Geometry.point, coords);
+    }
+
+    @Benchmark
+    public String getEntitiesDefaults() throws ExecutionException, InterruptedException {
+        client.getEntities(null, null, null, null, 0, 0, false).get();
+        return client.lastUri;
+    }
+
+    @Benchmark
+    public String getEntitiesAllParams() throws ExecutionException, InterruptedException {
+        client.getEntities(ids, null, types, attrs, "temp>10", geoQuery, orderBy, 20, 100, true).get();
+        return client.lastUri;
+    }
+
+    @Benchmark
+    public String getEntity() throws ExecutionException, InterruptedException {
+        client.getEntity("DC_S1-D41", "Room", attrs).get();
+        return client.lastUri;
+    }
+
+    @Benchmark
+    public String getAttributeValue() throws ExecutionException, InterruptedException {
+        client.getAttributeValue("DC_S1-D41", "Room", "temperature").get();
+        return client.lastUri;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.orange.ngsi2.benchmarks;
+
+import com.orange.ngsi2.model.Entity;
+import com.orange.ngsi2.model.GeoQuery;
+import com.orange.ngsi2.model.Paginated;
+import com.orange.ngsi2.server.Ngsi2BaseController;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.ResponseEntity;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request validation done by Ngsi2BaseController before delegating to the implementation:
+ * syntax checks of ids, types, attributes and metadata, and parsing of geo queries.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ControllerValidationBenchmark {
+
+    /**
+     * Controller doing nothing else than the validation
+     */
+    static class NoOpController extends Ngsi2BaseController {
+
+        private final Paginated<Entity> empty = new Paginated<>(Collections.emptyList(), 0, 0, 0);
+
+        @Override
+        protected Paginated<Entity> listEntities(Optional<String> ids, Optional<String> types, Optional<String> idPattern,
+                Optional<Integer> limit, Optional<Integer> offset, Optional<String> attrs, Optional<String> query,
+                Optional<GeoQuery> geoQuery, Optional<Collection<String>> orderBy) throws Exception {
+            return empty;
+        }
+
+        @Override
+        protected void createEntity(Entity entity) {
+        }
+    }
+
+    @Param({"SMALL", "TYPICAL", "LARGE"})
+    public BenchmarkData.EntitySize size;
+
+    private NoOpController controller;
+
+    private Entity entity;
+
+    private Optional<String> attrs;
+
+    private final Optional<String> none = Optional.empty();
+
+    private final Optional<Integer> noInt = Optional.empty();
+
+    private final Optional<Collection<String>> noOrder = Optional.empty();
+
+    private final Optional<String> ids = Optional.of("Bcn-Welt,Bcn-Gracia,Bcn-Sants");
+
+    private final Optional<String> types = Optional.of("Room,House");
+
+    private final Optional<String> near = Optional.of("near;maxDistance:1000");
+
+    private final Optional<String> point = Optional.of("point");
+
+    private final Optional<String> coords = Optional.of("41.390205,2.154007;48.8566,2.3522");
+
+    @Setup
+    public void setup() {
+        controller = new NoOpController();
+        entity = BenchmarkData.entity("Bcn-Welt", size);
+        attrs = Optional.of(String.join(",", BenchmarkData.attributeNames(size.getAttributes())));
+    }
+
+    @Benchmark
+    public ResponseEntity createEntity() {
+        return controller.createEntityEndpoint(entity);
+    }
+
+    @Benchmark
+    public ResponseEntity listEntities() throws Exception {
+        return controller.listEntitiesEndpoint(ids, types, none, noInt, noInt, attrs, none, none, none, none, noOrder, none);
+    }
+
+    @Benchmark
+    public ResponseEntity listEntitiesGeoQuery() throws Exception {
+        return controller.listEntitiesEndpoint(ids, types, none, noInt, noInt, none, none, near, point, coords, noOrder, none);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.orange.ngsi2.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orange.ngsi2.model.Attribute;
+import com.orange.ngsi2.model.Entity;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jackson round-trips of Entity, Attribute and Metadata: the attribute map goes through
+ * the @JsonAnyGetter/@JsonAnySetter of Entity and the attribute type through Optional&lt;String&gt;
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ModelSerializationBenchmark {
+
+    @Param({"SMALL", "TYPICAL", "LARGE"})
+    public BenchmarkData.EntitySize size;
+
+    private ObjectMapper objectMapper;
+
+    private Entity entity;
+
+    private byte[] entityJson;
+
+    private Attribute attribute;
+
+    private byte[] attributeJson;
+
+    @Setup
+    public void setup() throws IOException {
+        objectMapper = BenchmarkData.objectMapper();
+        entity = BenchmarkData.entity("Bcn-Welt", size);
+        entityJson = objectMapper.writeValueAsBytes(entity);
+        attribute = entity.getAttributes().values().iterator().next();
+        attributeJson = objectMapper.writeValueAsBytes(attribute);
+    }
+
+    @Benchmark
+    public byte[] serializeEntity() throws IOException {
+        return objectMapper.writeValueAsBytes(entity);
+    }
+
+    @Benchmark
+    public Entity deserializeEntity() throws IOException {
+        return objectMapper.readValue(entityJson, Entity.class);
+    }
+
+    @Benchmark
+    public byte[] serializeAttribute() throws IOException {
+        return objectMapper.writeValueAsBytes(attribute);
+    }
+
+    @Benchmark
+    public Attribute deserializeAttribute() throws IOException {
+        return objectMapper.readValue(attributeJson, Attribute.class);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.orange.ngsi2.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orange.ngsi2.model.Notification;
+import com.orange.ngsi2.model.Subscription;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jackson round-trips of Subscription and Notification, relying on the jdk8 (Optional)
+ * and jsr310 (Instant) modules
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SubscriptionSerializationBenchmark {
+
+    @Param({"SMALL", "TYPICAL", "LARGE"})
+    public BenchmarkData.EntitySize size;
+
+    private ObjectMapper objectMapper;
+
+    private Subscription subscription;
+
+    private byte[] subscriptionJson;
+
+    private Notification notification;
+
+    private byte[] notificationJson;
+
+    @Setup
+    public void setup() throws IOException {
+        objectMapper = BenchmarkData.objectMapper();
+        subscription = BenchmarkData.subscription(size.getAttributes());
+        subscriptionJson = objectMapper.writeValueAsBytes(subscription);
+        notification = subscription.getNotification();
+        notificationJson = objectMapper.writeValueAsBytes(notification);
+    }
+
+    @Benchmark
+    public byte[] serializeSubscription() throws IOException {
+        return objectMapper.writeValueAsBytes(subscription);
+    }
+
+    @Benchmark
+    public Subscription deserializeSubscription() throws IOException {
+        return objectMapper.readValue(subscriptionJson, Subscription.class);
+    }
+
+    @Benchmark
+    public byte[] serializeNotification() throws IOException {
+        return objectMapper.writeValueAsBytes(notification);
+    }
+
+    @Benchmark
+    public Notification deserializeNotification() throws IOException {
+        return objectMapper.readValue(notificationJson, Notification.class);
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.model.Attribute;
+import com.orange.ngsi2.model.BulkUpdateRequest;
+import com.orange.ngsi2.model.Entity;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind batching of the attribute updates of a Ngsi2Client.
+ * The updates are collected for at most maxDelay, merged per entity (the last value of an attribute wins)
+ * and sent as a single bulkUpdate once the delay expires or maxEntities distinct entities are pending.
+ * The future returned to each caller completes with the result of the bulkUpdate carrying its update.
+ *
+ * updateAttribute is sent with the UPDATE action (the attribute must exist),
+ * updateEntity with the APPEND action (update or append) or APPEND_STRICT when append is true.
+ * An update with a different action than the pending ones flushes them first, but the batches are sent
+ * without waiting for the previous ones to complete.
+ */
+public class BatchingWriter implements AutoCloseable {
+
+    private final Ngsi2Client client;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final long maxDelayNanos;
+
+    private final int maxEntities;
+
+    /**
+     * Action of the pending updates
+     */
+    private BulkUpdateRequest.Action action;
+
+    /**
+     * Pending updates by entity, in arrival order
+     */
+    private Map<EntityKey, Map<String, Attribute>> pendingEntities = new LinkedHashMap<>();
+
+    /**
+     * Futures of the callers of the pending updates
+     */
+    private List<SettableListenableFuture<Void>> pendingFutures = new ArrayList<>();
+
+    private ScheduledFuture<?> scheduledFlush;
+
+    private final AtomicLong sentBatches = new AtomicLong();
+
+    private final AtomicLong batchedUpdates = new AtomicLong();
+
+    /**
+     * @param client the client sending the bulk updates
+     * @param scheduler the scheduler of the delayed flushes
+     * @param maxDelay the maximum time an update is kept before being sent
+     * @param maxEntities the maximum number of entities in a bulk update
+     */
+    public BatchingWriter(Ngsi2Client client, ScheduledExecutorService scheduler, Duration maxDelay, int maxEntities) {
+        if (maxEntities <= 0) {
+            throw new IllegalArgumentException("maxEntities must be positive");
+        }
+        this.client = client;
+        this.scheduler = scheduler;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.maxEntities = maxEntities;
+    }
+
+    /**
+     * Update the attribute of an entity in the next batch
+     * @param entityId the entity ID
+     * @param type optional entity type to avoid ambiguity when multiple entities have the same ID, null or zero-length for empty
+     * @param attributeName the attribute name
+     * @param attribute the new attribute
+     * @return the listener to notify of the completion of the batch
+     */
+    public ListenableFuture<Void> updateAttribute(String entityId, String type, String attributeName, Attribute attribute) {
+        return add(BulkUpdateRequest.Action.UPDATE, entityId, type, Collections.singletonMap(attributeName, attribute));
+    }
+
+    /**
+     * Update existing or append some attributes to an entity in the next batch
+     * @param entityId the entity ID
+     * @param type optional entity type to avoid ambiguity when multiple entities have the same ID, null or zero-length for empty
+     * @param attributes the attributes to update or to append
+     * @param append if true, will only allow to append new attributes
+     * @return the listener to notify of the completion of the batch
+     */
+    public ListenableFuture<Void> updateEntity(String entityId, String type, Map<String, Attribute> attributes, boolean append) {
+        return add(append ? BulkUpdateRequest.Action.APPEND_STRICT : BulkUpdateRequest.Action.APPEND, entityId, type, attributes);
+    }
+
+    /**
+     * Send the pending updates now
+     */
+    public void flush() {
+        Batch batch;
+        synchronized (this) {
+            batch = takePending();
+        }
+        send(batch);
+    }
+
+    /**
+     * Send the pending updates
+     */
+    @Override
+    public void close() {
+        flush();
+    }
+
+    /**
+     * @return the number of bulk updates sent
+     */
+    public long getSentBatches() {
+        return sentBatches.get();
+    }
+
+    /**
+     * @return the number of updates sent in the bulk updates
+     */
+    public long getBatchedUpdates() {
+        return batchedUpdates.get();
+    }
+
+    /**
+     * @return the number of updates waiting for the next batch
+     */
+    public synchronized int getPendingUpdates() {
+        return pendingFutures.size();
+    }
+
+    private ListenableFuture<Void> add(BulkUpdateRequest.Action action, String entityId, String type, Map<String, Attribute> attributes) {
+        SettableListenableFuture<Void> future = new SettableListenableFuture<>();
+        EntityKey key = new EntityKey(entityId, type);
+        Batch previous = null;
+        Batch full = null;
+        synchronized (this) {
+            if (this.action != action) {
+                previous = takePending();
+            }
+            this.action = action;
+            pendingEntities.computeIfAbsent(key, k -> new LinkedHashMap<>()).putAll(attributes);
+            pendingFutures.add(future);
+            batchedUpdates.incrementAndGet();
+            if (pendingEntities.size() >= maxEntities) {
+                full = takePending();
+            } else if (scheduledFlush == null) {
+                scheduledFlush = scheduler.schedule(this::flush, maxDelayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        // The requests are sent outside of the lock to not block the other writers
+        send(previous);
+        send(full);
+        return future;
+    }
+
+    /**
+     * Swap out the pending updates, called holding the lock
+     * @return the batch of the pending updates, null if none
+     */
+    private Batch takePending() {
+        if (pendingEntities.isEmpty()) {
+            return null;
+        }
+        List<Entity> entities = new ArrayList<>(pendingEntities.size());
+        pendingEntities.forEach((key, attributes) -> entities.add(new Entity(key.id, key.type, attributes)));
+        Batch batch = new Batch(new BulkUpdateRequest(action, entities), pendingFutures);
+        pendingEntities = new LinkedHashMap<>();
+        pendingFutures = new ArrayList<>();
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        return batch;
+    }
+
+    private void send(Batch batch) {
+        if (batch == null) {
+            return;
+        }
+        sentBatches.incrementAndGet();
+        ListenableFuture<Void> result;
+        try {
+            result = client.bulkUpdate(batch.request);
+        } catch (RuntimeException e) {
+            batch.futures.forEach(future -> future.setException(e));
+            return;
+        }
+        result.addCallback(r -> batch.futures.forEach(future -> future.set(null)),
+                ex -> batch.futures.forEach(future -> future.setException(ex)));
+    }
+
+    /**
+     * Bulk update swapped out of the pending updates, with the futures of its callers
+     */
+    private static class Batch {
+
+        private final BulkUpdateRequest request;
+
+        private final List<SettableListenableFuture<Void>> futures;
+
+        Batch(BulkUpdateRequest request, List<SettableListenableFuture<Void>> futures) {
+            this.request = request;
+            this.futures = futures;
+        }
+    }
+
+    /**
+     * Identity of an entity
+     */
+    private static class EntityKey {
+
+        private final String id;
+
+        private final String type;
+
+        EntityKey(String id, String type) {
+            this.id = id;
+            this.type = type == null || type.isEmpty() ? null : type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof EntityKey)) {
+                return false;
+            }
+            EntityKey entityKey = (EntityKey) o;
+            return id.equals(entityKey.id) && Objects.equals(type, entityKey.type);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * id.hashCode() + Objects.hashCode(type);
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orange.ngsi2.exception.Ngsi2Exception;
+import com.orange.ngsi2.model.BulkUpdateRequest;
+import com.orange.ngsi2.model.Entity;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Submit a large bulk update as a sequence of smaller bulk updates.
+ * The entities are split in chunks bounded by a number of entities and by the estimated size of the JSON body,
+ * and up to parallelism chunks are sent at the same time.
+ * The failures of the chunks are collected in a single {@link Result}, the failed chunks can optionally be sent again.
+ *
+ * Chunks are independent requests: a failure does not roll back the chunks already applied.
+ * Retrying is only safe for the actions which can be applied twice (APPEND, UPDATE, DELETE), not for APPEND_STRICT.
+ */
+public class BulkUpdateSubmitter {
+
+    /**
+     * Estimated size of the JSON envelope of a chunk: {"actionType":"APPEND_STRICT","entities":[]}
+     */
+    private final static int envelopeSize = 64;
+
+    private final Ngsi2Client client;
+
+    private final int maxEntities;
+
+    private final long maxBytes;
+
+    private final int parallelism;
+
+    private final ToLongFunction<Entity> sizer;
+
+    private int maxRetries;
+
+    private Predicate<Throwable> retryable = RetryPolicy::isRetryable;
+
+    /**
+     * @param client the client sending the chunks
+     * @param maxEntities the maximum number of entities in a chunk
+     * @param maxBytes the maximum serialized size of a chunk, an entity larger than this is sent alone
+     * @param parallelism the maximum number of chunks in flight
+     */
+    public BulkUpdateSubmitter(Ngsi2Client client, int maxEntities, long maxBytes, int parallelism) {
+        this(client, maxEntities, maxBytes, parallelism, serializedSize(client.getObjectMapper()));
+    }
+
+    /**
+     * @param client the client sending the chunks
+     * @param maxEntities the maximum number of entities in a chunk
+     * @param maxBytes the maximum serialized size of a chunk, an entity larger than this is sent alone
+     * @param parallelism the maximum number of chunks in flight
+     * @param sizer the estimated serialized size of an entity
+     */
+    public BulkUpdateSubmitter(Ngsi2Client client, int maxEntities, long maxBytes, int parallelism, ToLongFunction<Entity> sizer) {
+        if (maxEntities <= 0 || maxBytes <= 0 || parallelism <= 0) {
+            throw new IllegalArgumentException("maxEntities, maxBytes and parallelism must be positive");
+        }
+        this.client = client;
+        this.maxEntities = maxEntities;
+        this.maxBytes = maxBytes;
+        this.parallelism = parallelism;
+        this.sizer = sizer;
+    }
+
+    /**
+     * Send again the failed chunks (disabled by default)
+     * @param maxRetries the maximum number of times a chunk is sent again
+     * @param retryable true for the failures of a chunk worth retrying
+     */
+    public void setRetries(int maxRetries, Predicate<Throwable> retryable) {
+        this.maxRetries = maxRetries;
+        this.retryable = retryable;
+    }
+
+    /**
+     * Split a bulk update in chunks
+     * @param bulkUpdateRequest the bulk update
+     * @return the chunks, with the action of the bulk update and its entities in the same order
+     */
+    public List<BulkUpdateRequest> split(BulkUpdateRequest bulkUpdateRequest) {
+        List<BulkUpdateRequest> chunks = new ArrayList<>();
+        if (bulkUpdateRequest.getEntities() == null) {
+            return chunks;
+        }
+        List<Entity> entities = new ArrayList<>();
+        long bytes = envelopeSize;
+        for (Entity entity : bulkUpdateRequest.getEntities()) {
+            // One more byte for the separator
+            long size = sizer.applyAsLong(entity) + 1;
+            if (!entities.isEmpty() && (entities.size() >= maxEntities || bytes + size > maxBytes)) {
+                chunks.add(new BulkUpdateRequest(bulkUpdateRequest.getActionType(), entities));
+                entities = new ArrayList<>();
+                bytes = envelopeSize;
+            }
+            entities.add(entity);
+            bytes += size;
+        }
+        if (!entities.isEmpty()) {
+            chunks.add(new BulkUpdateRequest(bulkUpdateRequest.getActionType(), entities));
+        }
+        return chunks;
+    }
+
+    /**
+     * Split a bulk update in chunks and send them
+     * @param bulkUpdateRequest the bulk update
+     * @return the result, completed when all the chunks succeeded or failed. Cancelling it cancels the chunks in flight.
+     */
+    public ListenableFuture<Result> submit(BulkUpdateRequest bulkUpdateRequest) {
+        Submission submission = new Submission(split(bulkUpdateRequest));
+        submission.drain();
+        return submission.result;
+    }
+
+    /**
+     * Serialized size of the entities, computed by writing them to a counting stream
+     * @param objectMapper the ObjectMapper serializing the requests
+     * @return the size in bytes of the JSON of an entity
+     */
+    public static ToLongFunction<Entity> serializedSize(ObjectMapper objectMapper) {
+        return entity -> {
+            CountingOutputStream out = new CountingOutputStream();
+            try {
+                objectMapper.writeValue(out, entity);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return out.count;
+        };
+    }
+
+    /**
+     * Aggregated result of the chunks of a bulk update
+     */
+    public static class Result {
+
+        private final int chunks;
+
+        private final int retries;
+
+        private final List<BulkUpdateRequest> failedChunks;
+
+        private final List<Throwable> failures;
+
+        private final Collection<String> affectedItems;
+
+        Result(int chunks, int retries, List<BulkUpdateRequest> failedChunks, List<Throwable> failures, Collection<String> affectedItems) {
+            this.chunks = chunks;
+            this.retries = retries;
+            this.failedChunks = failedChunks;
+            this.failures = failures;
+            this.affectedItems = affectedItems;
+        }
+
+        /**
+         * @return true if all the chunks succeeded
+         */
+        public boolean isSuccess() {
+            return failedChunks.isEmpty();
+        }
+
+        /**
+         * @return the number of chunks
+         */
+        public int getChunks() {
+            return chunks;
+        }
+
+        /**
+         * @return the number of times a failed chunk was sent again
+         */
+        public int getRetries() {
+            return retries;
+        }
+
+        /**
+         * @return the chunks which finally failed, e.g. to submit them later
+         */
+        public List<BulkUpdateRequest> getFailedChunks() {
+            return failedChunks;
+        }
+
+        /**
+         * @return the last failure of each failed chunk, in the order of getFailedChunks()
+         */
+        public List<Throwable> getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return the affectedItems of the errors of the failed chunks,
+         * or the IDs of all the entities of a chunk when its error does not give them
+         */
+        public Collection<String> getAffectedItems() {
+            return affectedItems;
+        }
+    }
+
+    /**
+     * Chunk to send, with the number of times it was sent
+     */
+    private static class Chunk {
+
+        private final BulkUpdateRequest request;
+
+        private int attempts;
+
+        Chunk(BulkUpdateRequest request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * Chunks of a single bulk update
+     */
+    private class Submission {
+
+        private final SettableListenableFuture<Result> result = new SettableListenableFuture<>();
+
+        private final Deque<Chunk> queue = new ArrayDeque<>();
+
+        private final Set<ListenableFuture<Void>> inFlight = new HashSet<>();
+
+        private final int chunks;
+
+        private final List<BulkUpdateRequest> failedChunks = new ArrayList<>();
+
+        private final List<Throwable> failures = new ArrayList<>();
+
+        private final Set<String> affectedItems = new LinkedHashSet<>();
+
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private int pending;
+
+        private int retries;
+
+        Submission(List<BulkUpdateRequest> requests) {
+            requests.forEach(request -> queue.add(new Chunk(request)));
+            chunks = requests.size();
+            // Cancelling the result cancels the chunks in flight
+            result.addCallback(r -> {}, ex -> {
+                if (result.isCancelled()) {
+                    List<ListenableFuture<Void>> futures;
+                    synchronized (this) {
+                        futures = new ArrayList<>(inFlight);
+                        inFlight.clear();
+                    }
+                    futures.forEach(f -> f.cancel(true));
+                }
+            });
+        }
+
+        /**
+         * Send the queued chunks allowed by the parallelism, without recursion when the chunks complete synchronously
+         */
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                while (true) {
+                    Chunk chunk;
+                    synchronized (this) {
+                        if (result.isDone() || pending >= parallelism) {
+                            break;
+                        }
+                        chunk = queue.poll();
+                        if (chunk == null) {
+                            break;
+                        }
+                        pending++;
+                        chunk.attempts++;
+                    }
+                    send(chunk);
+                }
+                boolean completed;
+                synchronized (this) {
+                    completed = pending == 0 && queue.isEmpty();
+                }
+                if (completed) {
+                    result.set(new Result(chunks, retries, failedChunks, failures, affectedItems));
+                }
+            } while (wip.decrementAndGet() != 0);
+        }
+
+        private void send(Chunk chunk) {
+            ListenableFuture<Void> future;
+            try {
+                future = client.bulkUpdate(chunk.request);
+            } catch (RuntimeException e) {
+                onComplete(chunk, null, e);
+                return;
+            }
+            synchronized (this) {
+                inFlight.add(future);
+            }
+            future.addCallback(r -> onComplete(chunk, future, null), ex -> onComplete(chunk, future, ex));
+        }
+
+        private void onComplete(Chunk chunk, ListenableFuture<Void> future, Throwable failure) {
+            synchronized (this) {
+                inFlight.remove(future);
+                pending--;
+                if (failure != null) {
+                    if (chunk.attempts <= maxRetries && retryable.test(failure)) {
+                        retries++;
+                        queue.add(chunk);
+                    } else {
+                        failedChunks.add(chunk.request);
+                        failures.add(failure);
+                        addAffectedItems(chunk.request, failure);
+                    }
+                }
+            }
+            drain();
+        }
+
+        private void addAffectedItems(BulkUpdateRequest request, Throwable failure) {
+            if (failure instanceof Ngsi2Exception) {
+                Optional<Collection<String>> items = ((Ngsi2Exception) failure).getError().getAffectedItems();
+                if (items.isPresent() && !items.get().isEmpty()) {
+                    affectedItems.addAll(items.get());
+                    return;
+                }
+            }
+            request.getEntities().forEach(entity -> affectedItems.add(entity.getId()));
+        }
+    }
+
+    /**
+     * Count the bytes written
+     */
+    private static class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
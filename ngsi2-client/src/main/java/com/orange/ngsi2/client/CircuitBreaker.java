@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.exception.CircuitBreakerOpenException;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Fail fast the requests to an endpoint which is down.
+ * A circuit is kept per base URL (or per base URL and operation), with the outcomes of its last windowSize requests.
+ * The circuit opens when the failure rate or the slow call rate of the window exceeds its threshold:
+ * the requests then fail immediately with a {@link CircuitBreakerOpenException} during openDuration.
+ * After that, a few probe requests are let through (half-open): the circuit closes if they all succeed, or opens again.
+ */
+public class CircuitBreaker {
+
+    /**
+     * State of a circuit
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Notified of the state transitions of the circuits, outside of their locks
+     */
+    public interface Listener {
+
+        /**
+         * @param circuit the key of the circuit
+         * @param from the previous state
+         * @param to the new state
+         */
+        void onStateChange(String circuit, State from, State to);
+    }
+
+    private final int windowSize;
+
+    private final int minimumCalls;
+
+    private final double failureRateThreshold;
+
+    private final long openNanos;
+
+    private long slowCallNanos = Long.MAX_VALUE;
+
+    private double slowCallRateThreshold = 1;
+
+    private int halfOpenCalls = 1;
+
+    private boolean perOperation;
+
+    private Predicate<Throwable> failure = ConcurrencyLimiter::isOverload;
+
+    private Listener listener;
+
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    private final AtomicLong opened = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param windowSize the number of last requests used to compute the rates
+     * @param minimumCalls the minimum number of requests in the window before the circuit can open
+     * @param failureRateThreshold the failure rate opening the circuit, between 0 and 1
+     * @param openDuration the time during which the requests fail fast before probing the endpoint
+     */
+    public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, Duration openDuration) {
+        if (windowSize <= 0 || minimumCalls <= 0 || minimumCalls > windowSize) {
+            throw new IllegalArgumentException("windowSize and minimumCalls must verify 0 < minimumCalls <= windowSize");
+        }
+        if (failureRateThreshold <= 0 || failureRateThreshold > 1) {
+            throw new IllegalArgumentException("failureRateThreshold must be between 0 and 1");
+        }
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.openNanos = openDuration.toNanos();
+    }
+
+    /**
+     * Also open the circuit when too many requests are slow (disabled by default)
+     * @param slowCallDuration the latency above which a request is slow
+     * @param slowCallRateThreshold the slow call rate opening the circuit, between 0 and 1
+     */
+    public void setSlowCalls(Duration slowCallDuration, double slowCallRateThreshold) {
+        this.slowCallNanos = slowCallDuration.toNanos();
+        this.slowCallRateThreshold = slowCallRateThreshold;
+    }
+
+    /**
+     * @param halfOpenCalls the number of probe requests which must succeed to close the circuit (1 by default)
+     */
+    public void setHalfOpenCalls(int halfOpenCalls) {
+        if (halfOpenCalls <= 0) {
+            throw new IllegalArgumentException("halfOpenCalls must be positive");
+        }
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    /**
+     * @param perOperation true to keep a circuit per operation of each base URL, instead of one per base URL
+     */
+    public void setPerOperation(boolean perOperation) {
+        this.perOperation = perOperation;
+    }
+
+    /**
+     * @param failure true for the failures counted by the circuit (5xx, I/O errors and timeouts by default)
+     */
+    public void setFailurePredicate(Predicate<Throwable> failure) {
+        this.failure = failure;
+    }
+
+    /**
+     * @param listener notified of the state transitions, null for none
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Send the request if the circuit of its endpoint allows it
+     * @param endpoint the base URL of the request
+     * @param operation the operation of the request
+     * @param request sends the request
+     * @return the response, or a CircuitBreakerOpenException if the circuit is open
+     */
+    public <T> ListenableFuture<T> execute(String endpoint, String operation, Supplier<ListenableFuture<T>> request) {
+        return execute(endpoint, operation, request, true);
+    }
+
+    /**
+     * Send a request whose duration depends on its consumer (e.g. a streamed response) if the circuit of its endpoint allows it:
+     * its failures are recorded, but it is never a slow call
+     * @param endpoint the base URL of the request
+     * @param operation the operation of the request
+     * @param request sends the request
+     * @return the response, or a CircuitBreakerOpenException if the circuit is open
+     */
+    public <T> ListenableFuture<T> executeUntimed(String endpoint, String operation, Supplier<ListenableFuture<T>> request) {
+        return execute(endpoint, operation, request, false);
+    }
+
+    private <T> ListenableFuture<T> execute(String endpoint, String operation, Supplier<ListenableFuture<T>> request, boolean timed) {
+        String key = perOperation ? endpoint + ' ' + operation : endpoint;
+        Circuit circuit = circuits.computeIfAbsent(key, Circuit::new);
+        long generation = circuit.acquire();
+        if (generation < 0) {
+            rejected.incrementAndGet();
+            SettableListenableFuture<T> future = new SettableListenableFuture<>();
+            future.setException(new CircuitBreakerOpenException(key));
+            return future;
+        }
+        long start = timed ? System.nanoTime() : 0;
+        ListenableFuture<T> future;
+        try {
+            future = request.get();
+        } catch (RuntimeException e) {
+            circuit.onComplete(generation, elapsed(start, timed), e, false);
+            throw e;
+        }
+        future.addCallback(result -> circuit.onComplete(generation, elapsed(start, timed), null, false),
+                ex -> circuit.onComplete(generation, elapsed(start, timed), ex, future.isCancelled()));
+        return future;
+    }
+
+    /**
+     * @param circuit the key of a circuit
+     * @return its state, CLOSED if it was never used
+     */
+    public State getState(String circuit) {
+        Circuit c = circuits.get(circuit);
+        return c == null ? State.CLOSED : c.state();
+    }
+
+    /**
+     * @return the state of all the circuits, by key
+     */
+    public Map<String, State> getStates() {
+        Map<String, State> states = new TreeMap<>();
+        circuits.forEach((key, circuit) -> states.put(key, circuit.state()));
+        return states;
+    }
+
+    /**
+     * @return the number of times a circuit opened
+     */
+    public long getOpened() {
+        return opened.get();
+    }
+
+    /**
+     * @return the number of requests failed fast
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    private static long elapsed(long start, boolean timed) {
+        return timed ? System.nanoTime() - start : 0;
+    }
+
+    private void stateChanged(String circuit, State from, State to) {
+        if (to == State.OPEN) {
+            opened.incrementAndGet();
+        }
+        Listener listener = this.listener;
+        if (listener != null && from != to) {
+            listener.onStateChange(circuit, from, to);
+        }
+    }
+
+    /**
+     * Circuit of an endpoint
+     */
+    private class Circuit {
+
+        private final String key;
+
+        /**
+         * Outcomes of the last requests: bit 0 for a failure, bit 1 for a slow call
+         */
+        private final byte[] outcomes = new byte[windowSize];
+
+        private State state = State.CLOSED;
+
+        /**
+         * Incremented on each transition, to ignore the requests sent in a previous state
+         */
+        private long generation;
+
+        private int index;
+
+        private int calls;
+
+        private int failures;
+
+        private int slowCalls;
+
+        private long openedAt;
+
+        private int probes;
+
+        private int succeededProbes;
+
+        Circuit(String key) {
+            this.key = key;
+        }
+
+        synchronized State state() {
+            return state;
+        }
+
+        /**
+         * @return the generation of the request, or -1 if it must fail fast
+         */
+        long acquire() {
+            boolean halfOpened = false;
+            long acquired;
+            synchronized (this) {
+                if (state == State.OPEN) {
+                    if (System.nanoTime() - openedAt < openNanos) {
+                        return -1;
+                    }
+                    transition(State.HALF_OPEN);
+                    halfOpened = true;
+                }
+                if (state == State.HALF_OPEN) {
+                    if (probes >= halfOpenCalls) {
+                        return -1;
+                    }
+                    probes++;
+                }
+                acquired = generation;
+            }
+            if (halfOpened) {
+                stateChanged(key, State.OPEN, State.HALF_OPEN);
+            }
+            return acquired;
+        }
+
+        void onComplete(long requestGeneration, long latencyNanos, Throwable throwable, boolean cancelled) {
+            State from;
+            State to;
+            synchronized (this) {
+                if (requestGeneration != generation) {
+                    return;
+                }
+                from = state;
+                boolean failed = throwable != null && !cancelled && failure.test(throwable);
+                boolean slow = !cancelled && latencyNanos > slowCallNanos;
+                if (state == State.CLOSED) {
+                    if (cancelled) {
+                        return;
+                    }
+                    record(failed, slow);
+                    if (calls >= minimumCalls && (failures >= failureRateThreshold * calls || slowCalls >= slowCallRateThreshold * calls)) {
+                        transition(State.OPEN);
+                    }
+                } else if (state == State.HALF_OPEN) {
+                    if (cancelled) {
+                        // Let another probe through
+                        probes--;
+                        return;
+                    }
+                    if (failed || slow) {
+                        transition(State.OPEN);
+                    } else if (++succeededProbes >= halfOpenCalls) {
+                        transition(State.CLOSED);
+                    }
+                }
+                to = state;
+            }
+            if (from != to) {
+                stateChanged(key, from, to);
+            }
+        }
+
+        private void record(boolean failed, boolean slow) {
+            if (calls == windowSize) {
+                byte evicted = outcomes[index];
+                failures -= evicted & 1;
+                slowCalls -= (evicted >> 1) & 1;
+            } else {
+                calls++;
+            }
+            outcomes[index] = (byte) ((failed ? 1 : 0) | (slow ? 2 : 0));
+            failures += failed ? 1 : 0;
+            slowCalls += slow ? 1 : 0;
+            index = (index + 1) % windowSize;
+        }
+
+        private void transition(State to) {
+            state = to;
+            generation++;
+            probes = 0;
+            succeededProbes = 0;
+            if (to == State.OPEN) {
+                openedAt = System.nanoTime();
+            } else if (to == State.CLOSED) {
+                calls = 0;
+                failures = 0;
+                slowCalls = 0;
+                index = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+/**
+ * Receives the metrics of the operations of a Ngsi2Client (getEntities, bulkUpdate, addSubscription...).
+ * Implementations are called from the threads sending the requests and receiving the responses,
+ * and must then be thread-safe and fast.
+ *
+ * @see InMemoryClientMetrics
+ */
+public interface ClientMetrics {
+
+    /**
+     * Called when the request of an operation is sent
+     * @param operation the operation name, the name of the Ngsi2Client method
+     */
+    void requestStarted(String operation);
+
+    /**
+     * Called when the response of an operation is received
+     * @param operation the operation name
+     * @param latencyNanos the time between the request and the response
+     * @param requestBytes the size of the request body
+     * @param responseBytes the size of the response body, -1 if unknown
+     */
+    void requestCompleted(String operation, long latencyNanos, long requestBytes, long responseBytes);
+
+    /**
+     * Called when an operation fails
+     * @param operation the operation name
+     * @param latencyNanos the time between the request and the failure
+     * @param requestBytes the size of the request body, -1 if unknown
+     * @param failure the failure, a Ngsi2Exception for the error responses
+     */
+    void requestFailed(String operation, long latencyNanos, long requestBytes, Throwable failure);
+}
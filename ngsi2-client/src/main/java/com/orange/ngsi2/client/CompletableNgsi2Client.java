@@ -0,0 +1,509 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.model.*;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * NGSIv2 API returning CompletableFuture instead of ListenableFuture,
+ * to compose the requests with thenCompose, thenCombine or allOf.
+ * The requests are sent by a Ngsi2Client and use its headers, cache, coalescer, retry policy, concurrency limiter and metrics.
+ * The response of each request is bridged once to the returned future,
+ * and the body, X-Total-Count and Location headers are extracted when it completes.
+ * Errors are reported by completing the future exceptionally, never thrown by the methods.
+ */
+public class CompletableNgsi2Client {
+
+    private final Ngsi2Client client;
+
+    /**
+     * @param client the client sending the requests
+     */
+    public CompletableNgsi2Client(Ngsi2Client client) {
+        this.client = client;
+    }
+
+    /**
+     * @return the client sending the requests
+     */
+    public Ngsi2Client getClient() {
+        return client;
+    }
+
+    /**
+     * @return the list of supported operations under /v2
+     */
+    public CompletableFuture<Map<String, String>> getV2() {
+        return bridge(client::getV2Response, Ngsi2Client::extractServices);
+    }
+
+    /*
+     * Entities requests
+     */
+
+    /**
+     * Retrieve a list of Entities (simplified)
+     * @param ids an optional list of entity IDs (cannot be used with idPatterns)
+     * @param idPattern an optional pattern of entity IDs (cannot be used with ids)
+     * @param types an optional list of types of entity
+     * @param attrs an optional list of attributes to return for all entities
+     * @param offset an optional offset (0 for none)
+     * @param limit an optional limit (0 for none)
+     * @param count true to return the total number of matching entities
+     * @return a pagined list of Entities
+     */
+    public CompletableFuture<Paginated<Entity>> getEntities(Collection<String> ids, String idPattern,
+            Collection<String> types, Collection<String> attrs,
+            int offset, int limit, boolean count) {
+        return getEntities(ids, idPattern, types, attrs, null, null, null, offset, limit, count);
+    }
+
+    /**
+     * Retrieve a list of Entities
+     * @param ids an optional list of entity IDs (cannot be used with idPatterns)
+     * @param idPattern an optional pattern of entity IDs (cannot be used with ids)
+     * @param types an optional list of types of entity
+     * @param attrs an optional list of attributes to return for all entities
+     * @param query an optional Simple Query Language query
+     * @param geoQuery an optional Geo query
+     * @param orderBy an option list of attributes to difine the order of entities
+     * @param offset an optional offset (0 for none)
+     * @param limit an optional limit (0 for none)
+     * @param count true to return the total number of matching entities
+     * @return a pagined list of Entities
+     */
+    public CompletableFuture<Paginated<Entity>> getEntities(Collection<String> ids, String idPattern,
+                                                            Collection<String> types, Collection<String> attrs,
+                                                            String query, GeoQuery geoQuery,
+                                                            Collection<String> orderBy,
+                                                            int offset, int limit, boolean count) {
+        return bridgePaginated(() -> client.getEntitiesResponse(ids, idPattern, types, attrs, query, geoQuery, orderBy, offset, limit, count), offset, limit);
+    }
+
+    /**
+     * Retrieve a list of Entities, handing each entity to the consumer as soon as it is decoded
+     * @param ids an optional list of entity IDs (cannot be used with idPatterns)
+     * @param idPattern an optional pattern of entity IDs (cannot be used with ids)
+     * @param types an optional list of types of entity
+     * @param attrs an optional list of attributes to return for all entities
+     * @param query an optional Simple Query Language query
+     * @param geoQuery an optional Geo query
+     * @param orderBy an option list of attributes to difine the order of entities
+     * @param offset an optional offset (0 for none)
+     * @param limit an optional limit (0 for none)
+     * @param consumer receives the entities in order
+     * @return the number of entities received
+     * @see Ngsi2Client#streamEntities
+     */
+    public CompletableFuture<Integer> streamEntities(Collection<String> ids, String idPattern,
+                                                     Collection<String> types, Collection<String> attrs,
+                                                     String query, GeoQuery geoQuery,
+                                                     Collection<String> orderBy,
+                                                     int offset, int limit, Consumer<? super Entity> consumer) {
+        return bridge(() -> client.streamEntities(ids, idPattern, types, attrs, query, geoQuery, orderBy, offset, limit, consumer), Function.identity());
+    }
+
+    /**
+     * Create a new entity
+     * @param entity the Entity to add
+     * @return the future completed when the entity is created
+     */
+    public CompletableFuture<Void> addEntity(Entity entity) {
+        return bridgeBody(() -> client.addEntityResponse(entity));
+    }
+
+    /**
+     * Get an entity
+     * @param entityId the entity ID
+     * @param type optional entity type to avoid ambiguity when multiple entities have the same ID, null or zero-length for empty
+     * @param attrs the list of attributes to retreive for this entity, null or empty means all attributes
+     * @return the entity
+     */
+    public CompletableFuture<Entity> getEntity(String entityId, String type, Collection<String> attrs) {
+        if (client.getEntityCache() != null) {
+            return bridge(() -> client.getEntity(entityId, type, attrs), Function.identity());
+        }
+        return bridgeBody(() -> client.call("getEntity", HttpMethod.GET, client.getEntityUri(entityId, type, attrs), null, Entity.class));
+    }
+
+    /**
+     * Update existing or append some attributes to an entity
+     * @param entityId the entity ID
+     * @param type optional entity type to avoid ambiguity when multiple entities have the same ID, null or zero-length for empty
+     * @param attributes the attributes to update or to append
+     * @param append if true, will only allow to append new attributes
+     * @return the future completed when the entity is updated
+     */
+    public CompletableFuture<Void> updateEntity(String entityId, String type, Map<String, Attribute> attributes, boolean append) {
+        return bridgeBody(() -> client.updateEntityResponse(entityId, type, attributes, append));
+    }
+
+    /**
+     * Replace all the existing attributes of an entity with a new set of attributes
+     * @param entityId the entity ID
+     * @param type optional entity type to avoid ambiguity when multiple entities have the same ID, null or zero-length for empty
+     * @param attributes the new set of attributes
+     * @return the future completed when the entity is replaced
+     */
+    public CompletableFuture<Void> replaceEntity(String entityId, String type, Map<String, Attribute> attributes) {
+        return bridgeBody(() -> client.replaceEntityResponse(entityId, type, attributes));
+    }
+
+    /**
+     * Delete an entity
+     * @param entityId the entity ID
+     * @param type optional entity type to avoid ambiguity when multiple entities have the same ID, null or zero-length for empty
+     * @return the future completed when the entity is deleted
+     */
+    public CompletableFuture<Void> deleteEntity(String entityId, String type) {
+        return bridgeBody(() -> client.deleteEntityResponse(entityId, type));
+    }
+
+    /*
+     * Attributes requests
+     */
+
+    /**
+     * Retrieve the attribute of an entity
+     * @param entityId the entity ID
+     * @param type optional entity type to avoid ambiguity when multiple entities have the same ID, null or zero-length for empty
+     * @param attributeName the attribute name
+     * @return the attribute
+     */
+    public CompletableFuture<Attribute> getAttribute(String entityId, String type, String attributeName) {
+        if (client.getEntityCache() != null) {
+            return bridge(() -> client.getAttribute(entityId, type, attributeName), Function.identity());
+        }
+        return bridgeBody(() -> client.call("getAttribute", HttpMethod.GET, client.getAttributeUri(entityId, type, attributeName), null, Attribute.class));
+    }
+
+    /**
+     * Update the attribute of an entity
+     * @param entityId the entity ID
+     * @param type optional entity type to avoid ambiguity when multiple entities have the same ID, null or zero-length for empty
+     * @param attributeName the attribute name
+     * @param attribute the new attribute
+     * @return the future completed when the attribute is updated
+     */
+    public CompletableFuture<Void> updateAttribute(String entityId, String type, String attributeName, Attribute attribute) {
+        return bridgeBody(() -> client.updateAttributeResponse(entityId, type, attributeName, attribute));
+    }
+
+    /**
+     * Delete the attribute of an entity
+     * @param entityId the entity ID
+     * @param type optional entity type to avoid ambiguity when multiple entities have the same ID, null or zero-length for empty
+     * @param attributeName the attribute name
+     * @return the deleted attribute
+     */
+    public CompletableFuture<Attribute> deleteAttribute(String entityId, String type, String attributeName) {
+        return bridgeBody(() -> client.deleteAttributeResponse(entityId, type, attributeName));
+    }
+
+    /*
+     * Attribute values requests
+     */
+
+    /**
+     * Retrieve the attribute value of an entity
+     * @param entityId the entity ID
+     * @param type optional entity type to avoid ambiguity when multiple entities have the same ID, null or zero-length for empty
+     * @param attributeName the attribute name
+     * @return the value
+     */
+    public CompletableFuture<Object> getAttributeValue(String entityId, String type, String attributeName) {
+        if (client.getEntityCache() != null) {
+            return bridge(() -> client.getAttributeValue(entityId, type, attributeName), Function.identity());
+        }
+        return bridgeBody(() -> client.call("getAttributeValue", HttpMethod.GET, client.getAttributeValueUri(entityId, type, attributeName), null, Object.class));
+    }
+
+    /**
+     * Retrieve the attribute value of an entity as a String
+     * @param entityId the entity ID
+     * @param type optional entity type to avoid ambiguity when multiple entities have the same ID, null or zero-length for empty
+     * @param attributeName the attribute name
+     * @return the value as a String
+     */
+    public CompletableFuture<String> getAttributeValueAsString(String entityId, String type, String attributeName) {
+        return bridgeBody(() -> client.getAttributeValueAsStringResponse(entityId, type, attributeName));
+    }
+
+    /*
+     * Entity Type requests
+     */
+
+    /**
+     * Retrieve a list of entity types
+     * @param offset an optional offset (0 for none)
+     * @param limit an optional limit (0 for none)
+     * @param count true to return the total number of matching entities
+     * @return a pagined list of entity types
+     */
+    public CompletableFuture<Paginated<EntityType>> getEntityTypes(int offset, int limit, boolean count) {
+        return bridgePaginated(() -> client.getEntityTypesResponse(offset, limit, count), offset, limit);
+    }
+
+    /**
+     * Retrieve an entity type
+     * @param entityType the entityType to retrieve
+     * @return an entity type
+     */
+    public CompletableFuture<EntityType> getEntityType(String entityType) {
+        if (client.getEntityCache() != null) {
+            return bridge(() -> client.getEntityType(entityType), Function.identity());
+        }
+        return bridgeBody(() -> client.call("getEntityType", HttpMethod.GET, client.getEntityTypeUri(entityType), null, EntityType.class));
+    }
+
+    /*
+     * Registrations requests
+     */
+
+    /**
+     * Retrieve the list of all Registrations
+     * @return a list of registrations
+     */
+    public CompletableFuture<List<Registration>> getRegistrations() {
+        return bridge(client::getRegistrationsResponse, result -> new ArrayList<>(Arrays.asList(result.getBody())));
+    }
+
+    /**
+     * Create a new registration
+     * @param registration the Registration to add
+     * @return the future completed when the registration is created
+     */
+    public CompletableFuture<Void> addRegistration(Registration registration) {
+        return bridgeBody(() -> client.addRegistrationResponse(registration));
+    }
+
+    /**
+     * Retrieve the registration by registration ID
+     * @param registrationId the registration ID
+     * @return registration
+     */
+    public CompletableFuture<Registration> getRegistration(String registrationId) {
+        return bridgeBody(() -> client.getRegistrationResponse(registrationId));
+    }
+
+    /**
+     * Update the registration by registration ID
+     * @param registrationId the registration ID
+     * @param registration the updated registration
+     * @return the future completed when the registration is updated
+     */
+    public CompletableFuture<Void> updateRegistration(String registrationId, Registration registration) {
+        return bridgeBody(() -> client.updateRegistrationResponse(registrationId, registration));
+    }
+
+    /**
+     * Delete the registration by registration ID
+     * @param registrationId the registration ID
+     * @return the future completed when the registration is deleted
+     */
+    public CompletableFuture<Void> deleteRegistration(String registrationId) {
+        return bridgeBody(() -> client.deleteRegistrationResponse(registrationId));
+    }
+
+    /*
+     * Subscriptions requests
+     */
+
+    /**
+     * Retrieve the list of all Subscriptions present in the system
+     * @param offset an optional offset (0 for none)
+     * @param limit an optional limit (0 for none)
+     * @param count true to return the total number of matching entities
+     * @return a pagined list of Subscriptions
+     */
+    public CompletableFuture<Paginated<Subscription>> getSubscriptions(int offset, int limit, boolean count) {
+        return bridgePaginated(() -> client.getSubscriptionsResponse(offset, limit, count), offset, limit);
+    }
+
+    /**
+     * Create a new subscription
+     * @param subscription the Subscription to add
+     * @return subscription Id
+     */
+    public CompletableFuture<String> addSubscription(Subscription subscription) {
+        return bridge(() -> client.addSubscriptionResponse(subscription), Ngsi2Client::extractId);
+    }
+
+    /**
+     * Get a Subscription by subscription ID
+     * @param subscriptionId the subscription ID
+     * @return the subscription
+     */
+    public CompletableFuture<Subscription> getSubscription(String subscriptionId) {
+        return bridgeBody(() -> client.getSubscriptionResponse(subscriptionId));
+    }
+
+    /**
+     * Update the subscription by subscription ID
+     * @param subscriptionId the subscription ID
+     * @param subscription the updated subscription
+     * @return the future completed when the subscription is updated
+     */
+    public CompletableFuture<Void> updateSubscription(String subscriptionId, Subscription subscription) {
+        return bridgeBody(() -> client.updateSubscriptionResponse(subscriptionId, subscription));
+    }
+
+    /**
+     * Delete the subscription by subscription ID
+     * @param subscriptionId the subscription ID
+     * @return the future completed when the subscription is deleted
+     */
+    public CompletableFuture<Void> deleteSubscription(String subscriptionId) {
+        return bridgeBody(() -> client.deleteSubscriptionResponse(subscriptionId));
+    }
+
+    /*
+     * POJ RPC "bulk" Operations
+     */
+
+    /**
+     * Update, append or delete multiple entities in a single operation
+     * @param bulkUpdateRequest a BulkUpdateRequest with an actionType and a list of entities to update
+     * @return the future completed when the entities are updated
+     */
+    public CompletableFuture<Void> bulkUpdate(BulkUpdateRequest bulkUpdateRequest) {
+        return bridgeBody(() -> client.bulkUpdateResponse(bulkUpdateRequest));
+    }
+
+    /**
+     * Query multiple entities in a single operation
+     * @param bulkQueryRequest defines the list of entities, attributes and scopes to match entities
+     * @param orderBy an optional list of attributes to order the entities (null or empty for none)
+     * @param offset an optional offset (0 for none)
+     * @param limit an optional limit (0 for none)
+     * @param count true to return the total number of matching entities
+     * @return a paginated list of entities
+     */
+    public CompletableFuture<Paginated<Entity>> bulkQuery(BulkQueryRequest bulkQueryRequest, Collection<String> orderBy, int offset, int limit, boolean count) {
+        return bridgePaginated(() -> client.bulkQueryResponse(bulkQueryRequest, orderBy, offset, limit, count), offset, limit);
+    }
+
+    /**
+     * Query multiple entities in a single operation, handing each entity to the consumer as soon as it is decoded
+     * @param bulkQueryRequest defines the list of entities, attributes and scopes to match entities
+     * @param orderBy an optional list of attributes to order the entities (null or empty for none)
+     * @param offset an optional offset (0 for none)
+     * @param limit an optional limit (0 for none)
+     * @param consumer receives the entities in order
+     * @return the number of entities received
+     */
+    public CompletableFuture<Integer> streamBulkQuery(BulkQueryRequest bulkQueryRequest, Collection<String> orderBy, int offset, int limit, Consumer<? super Entity> consumer) {
+        return bridge(() -> client.streamBulkQuery(bulkQueryRequest, orderBy, offset, limit, consumer), Function.identity());
+    }
+
+    /**
+     * Create, update or delete registrations to multiple entities in a single operation
+     * @param bulkRegisterRequest defines the list of entities to register
+     * @return a list of registration ids
+     */
+    public CompletableFuture<String[]> bulkRegister(BulkRegisterRequest bulkRegisterRequest) {
+        return bridgeBody(() -> client.bulkRegisterResponse(bulkRegisterRequest));
+    }
+
+    /**
+     * Discover registration matching entities and their attributes
+     * @param bulkQueryRequest defines the list of entities, attributes and scopes to match registrations
+     * @param offset an optional offset (0 for none)
+     * @param limit an optional limit (0 for none)
+     * @param count true to return the total number of matching entities
+     * @return a paginated list of registration
+     */
+    public CompletableFuture<Paginated<Registration>> bulkDiscover(BulkQueryRequest bulkQueryRequest, int offset, int limit, boolean count) {
+        return bridgePaginated(() -> client.bulkDiscoverResponse(bulkQueryRequest, offset, limit, count), offset, limit);
+    }
+
+    private static <T> CompletableFuture<T> bridgeBody(Supplier<ListenableFuture<ResponseEntity<T>>> request) {
+        return bridge(request, ResponseEntity::getBody);
+    }
+
+    private static <T> CompletableFuture<Paginated<T>> bridgePaginated(Supplier<ListenableFuture<ResponseEntity<T[]>>> request, int offset, int limit) {
+        return bridge(request, result -> new Paginated<>(Arrays.asList(result.getBody()), offset, limit, Ngsi2Client.extractTotalCount(result)));
+    }
+
+    /**
+     * Send the request and complete the returned future with the extracted response
+     */
+    private static <S, T> CompletableFuture<T> bridge(Supplier<ListenableFuture<S>> request, Function<? super S, ? extends T> extractor) {
+        Bridge<S, T> bridge = new Bridge<>(extractor);
+        try {
+            bridge.source = request.get();
+        } catch (RuntimeException e) {
+            bridge.completeExceptionally(e);
+            return bridge;
+        }
+        bridge.source.addCallback(bridge);
+        return bridge;
+    }
+
+    /**
+     * Future completed by the callback of the request, cancelling it cancels the request
+     */
+    private static class Bridge<S, T> extends CompletableFuture<T> implements ListenableFutureCallback<S> {
+
+        private final Function<? super S, ? extends T> extractor;
+
+        private volatile ListenableFuture<S> source;
+
+        Bridge(Function<? super S, ? extends T> extractor) {
+            this.extractor = extractor;
+        }
+
+        @Override
+        public void onSuccess(S result) {
+            T value;
+            try {
+                value = extractor.apply(result);
+            } catch (RuntimeException e) {
+                completeExceptionally(e);
+                return;
+            }
+            complete(value);
+        }
+
+        @Override
+        public void onFailure(Throwable ex) {
+            completeExceptionally(ex);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            ListenableFuture<S> source = this.source;
+            if (cancelled && source != null) {
+                source.cancel(mayInterruptIfRunning);
+            }
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.exception.Ngsi2Exception;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Limit the number of requests in flight to the NGSIv2 service.
+ * The limit is adjusted by a {@link Limit} algorithm from the latency and the failures of the completed requests.
+ * Requests beyond the limit are queued, and rejected with a RejectedExecutionException when the queue is full.
+ */
+public class ConcurrencyLimiter {
+
+    /**
+     * Algorithm adjusting the concurrency limit, always called under the lock of the limiter
+     */
+    public interface Limit {
+
+        /**
+         * @return the current limit
+         */
+        int getLimit();
+
+        /**
+         * Adjust the limit after the completion of a request
+         * @param rttNanos the latency of the request
+         * @param inFlight the number of requests in flight when the request was sent
+         * @param dropped true if the request failed because the service is overloaded (5xx, timeout)
+         */
+        void onSample(long rttNanos, int inFlight, boolean dropped);
+    }
+
+    /**
+     * Additive increase, multiplicative decrease:
+     * the limit grows by one after each successful request when at least half of it is used,
+     * and is multiplied by the backoff ratio after a dropped request or a request slower than the latency threshold.
+     */
+    public static class AimdLimit implements Limit {
+
+        private final int minLimit;
+
+        private final int maxLimit;
+
+        private final double backoffRatio;
+
+        private final long latencyThresholdNanos;
+
+        private double limit;
+
+        /**
+         * @param initialLimit the initial limit
+         * @param minLimit the minimum limit
+         * @param maxLimit the maximum limit
+         * @param backoffRatio the ratio applied to the limit on overload, between 0 and 1
+         * @param latencyThreshold the latency above which the service is considered overloaded, null for none
+         */
+        public AimdLimit(int initialLimit, int minLimit, int maxLimit, double backoffRatio, Duration latencyThreshold) {
+            if (minLimit <= 0 || minLimit > initialLimit || initialLimit > maxLimit) {
+                throw new IllegalArgumentException("limits must verify 0 < minLimit <= initialLimit <= maxLimit");
+            }
+            if (backoffRatio <= 0 || backoffRatio >= 1) {
+                throw new IllegalArgumentException("backoffRatio must be between 0 and 1");
+            }
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.backoffRatio = backoffRatio;
+            this.latencyThresholdNanos = latencyThreshold == null ? Long.MAX_VALUE : latencyThreshold.toNanos();
+            this.limit = initialLimit;
+        }
+
+        @Override
+        public int getLimit() {
+            return (int) limit;
+        }
+
+        @Override
+        public void onSample(long rttNanos, int inFlight, boolean dropped) {
+            if (dropped || rttNanos > latencyThresholdNanos) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+            } else if (inFlight * 2 >= limit) {
+                limit = Math.min(maxLimit, limit + 1);
+            }
+        }
+    }
+
+    private final Limit limit;
+
+    private final int maxQueueSize;
+
+    private final Predicate<Throwable> overload;
+
+    private final Deque<Pending<?>> queue = new ArrayDeque<>();
+
+    private int inFlight;
+
+    private long rejected;
+
+    /**
+     * @param limit the algorithm adjusting the limit
+     * @param maxQueueSize the maximum number of requests waiting for a slot (0 to reject immediately)
+     */
+    public ConcurrencyLimiter(Limit limit, int maxQueueSize) {
+        this(limit, maxQueueSize, ConcurrencyLimiter::isOverload);
+    }
+
+    /**
+     * @param limit the algorithm adjusting the limit
+     * @param maxQueueSize the maximum number of requests waiting for a slot (0 to reject immediately)
+     * @param overload true for the failures caused by an overloaded service
+     */
+    public ConcurrencyLimiter(Limit limit, int maxQueueSize, Predicate<Throwable> overload) {
+        this.limit = limit;
+        this.maxQueueSize = maxQueueSize;
+        this.overload = overload;
+    }
+
+    /**
+     * Send the request when the limit allows it
+     * @param request sends the request
+     * @return the response, or a RejectedExecutionException if the queue is full
+     */
+    public <T> ListenableFuture<T> execute(Supplier<ListenableFuture<T>> request) {
+        Pending<T> pending = new Pending<>(request);
+        synchronized (this) {
+            if (inFlight < limit.getLimit()) {
+                inFlight++;
+            } else if (queue.size() < maxQueueSize) {
+                queue.add(pending);
+                return pending.future;
+            } else {
+                rejected++;
+                pending.future.setException(new RejectedExecutionException("Too many requests in flight"));
+                return pending.future;
+            }
+        }
+        pending.start();
+        return pending.future;
+    }
+
+    /**
+     * @return the current limit
+     */
+    public synchronized int getLimit() {
+        return limit.getLimit();
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return the number of requests waiting for a slot
+     */
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of requests rejected because the queue was full
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Default classification of the failures: 5xx responses, I/O errors and timeouts
+     * @param throwable the failure
+     * @return true if the failure is caused by an overloaded service
+     */
+    public static boolean isOverload(Throwable throwable) {
+        for (Throwable t = throwable; t != null; t = t.getCause()) {
+            if (t instanceof Ngsi2Exception) {
+                return ((Ngsi2Exception) t).getStatusCode() >= 500;
+            }
+            if (t instanceof ResourceAccessException || t instanceof TimeoutException || t instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Release the slot of a completed request and start the queued requests allowed by the new limit
+     */
+    private void release(long startTime, int inFlightAtStart, Throwable failure) {
+        long rtt = System.nanoTime() - startTime;
+        boolean dropped = failure != null && overload.test(failure);
+        synchronized (this) {
+            inFlight--;
+            limit.onSample(rtt, inFlightAtStart, dropped);
+        }
+        startQueued();
+    }
+
+    private void startQueued() {
+        while (true) {
+            Pending<?> next;
+            synchronized (this) {
+                if (inFlight >= limit.getLimit()) {
+                    return;
+                }
+                do {
+                    next = queue.poll();
+                } while (next != null && next.future.isCancelled());
+                if (next == null) {
+                    return;
+                }
+                inFlight++;
+            }
+            next.start();
+        }
+    }
+
+    /**
+     * Request waiting for a slot
+     */
+    private class Pending<T> {
+
+        private final Supplier<ListenableFuture<T>> request;
+
+        private final SettableListenableFuture<T> future = new SettableListenableFuture<>();
+
+        Pending(Supplier<ListenableFuture<T>> request) {
+            this.request = request;
+        }
+
+        void start() {
+            long startTime = System.nanoTime();
+            int inFlightAtStart = getInFlight();
+            ListenableFuture<T> response;
+            try {
+                response = request.get();
+            } catch (RuntimeException e) {
+                release(startTime, inFlightAtStart, e);
+                future.setException(e);
+                return;
+            }
+            response.addCallback(result -> {
+                release(startTime, inFlightAtStart, null);
+                future.set(result);
+            }, ex -> {
+                release(startTime, inFlightAtStart, ex);
+                future.setException(ex);
+            });
+            // Cancelling the caller future cancels the request
+            future.addCallback(result -> {}, ex -> {
+                if (future.isCancelled()) {
+                    response.cancel(true);
+                }
+            });
+        }
+    }
+}
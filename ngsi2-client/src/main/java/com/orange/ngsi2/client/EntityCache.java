@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.model.*;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Cache of the entities, attributes, attribute values and entity types read by a Ngsi2Client.
+ * Entries expire after a fixed time to live, and the entries not used recently are evicted
+ * when the total weight (an estimation of the memory used by the entries) exceeds the maximum.
+ * The recency is approximated by a clock: a hit only marks its entry as referenced, without any lock,
+ * and a referenced entry gets a second chance when the clock reaches it.
+ * The writes made through the same client invalidate the entries of the modified entities and of their types.
+ * Cached instances are shared by all the callers and must then be treated as read-only.
+ */
+public class EntityCache {
+
+    /**
+     * Number of stripes of invalidation epochs
+     */
+    private final static int stripes = 256;
+
+    private final long ttlNanos;
+
+    private final long maxWeight;
+
+    private final ToLongFunction<Object> weigher;
+
+    /**
+     * Entries by request URI, read without lock and modified holding the monitor of the cache
+     */
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Entries by request URI, in the order of the clock: the eviction candidate first
+     */
+    private final LinkedHashMap<String, Entry> clock = new LinkedHashMap<>();
+
+    /**
+     * URIs of the entries by entity ID
+     */
+    private final Map<String, Set<String>> entityIndex = new HashMap<>();
+
+    /**
+     * URIs of the entries by entity type
+     */
+    private final Map<String, Set<String>> typeIndex = new HashMap<>();
+
+    /**
+     * Incremented on each invalidation, a response is not cached if its stripe was invalidated while it was in flight
+     */
+    private final long[] epochs = new long[stripes];
+
+    private long totalWeight;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param ttl the time to live of the entries
+     * @param maxWeight the maximum total weight of the entries, in estimated bytes
+     */
+    public EntityCache(Duration ttl, long maxWeight) {
+        this(ttl, maxWeight, EntityCache::estimateWeight);
+    }
+
+    /**
+     * @param ttl the time to live of the entries
+     * @param maxWeight the maximum total weight of the entries
+     * @param weigher the weight of a cached value
+     */
+    public EntityCache(Duration ttl, long maxWeight, ToLongFunction<Object> weigher) {
+        this.ttlNanos = ttl.toNanos();
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Get an entity, an attribute or an attribute value from the cache or load it
+     * @param uri the request URI
+     * @param entityId the entity ID
+     * @param loader request the value on a cache miss
+     * @return the value
+     */
+    public <T> ListenableFuture<T> getEntity(String uri, String entityId, Supplier<ListenableFuture<T>> loader) {
+        return get(uri, entityId, null, loader);
+    }
+
+    /**
+     * Get an entity type from the cache or load it
+     * @param uri the request URI
+     * @param entityType the entity type
+     * @param loader request the value on a cache miss
+     * @return the value
+     */
+    public <T> ListenableFuture<T> getEntityType(String uri, String entityType, Supplier<ListenableFuture<T>> loader) {
+        return get(uri, null, entityType, loader);
+    }
+
+    /**
+     * Invalidate all the entries of an entity and of its type
+     * @param entityId the entity ID
+     * @param type the entity type, null or empty if unknown to invalidate all the entity types
+     */
+    public synchronized void invalidateEntity(String entityId, String type) {
+        invalidations.incrementAndGet();
+        epochs[stripe(entityId)]++;
+        removeAll(entityIndex.remove(entityId));
+        if (type == null || type.isEmpty()) {
+            for (int i = 0; i < stripes; i++) {
+                epochs[i]++;
+            }
+            new ArrayList<>(typeIndex.keySet()).forEach(t -> removeAll(typeIndex.remove(t)));
+        } else {
+            epochs[stripe(type)]++;
+            removeAll(typeIndex.remove(type));
+        }
+    }
+
+    /**
+     * Invalidate all the entries
+     */
+    public synchronized void invalidateAll() {
+        invalidations.incrementAndGet();
+        for (int i = 0; i < stripes; i++) {
+            epochs[i]++;
+        }
+        entries.clear();
+        clock.clear();
+        entityIndex.clear();
+        typeIndex.clear();
+        totalWeight = 0;
+    }
+
+    /**
+     * @return the number of values served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of values requested to the server
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of entries evicted to respect the maximum weight
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of invalidations
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total weight of the entries
+     */
+    public synchronized long getWeight() {
+        return totalWeight;
+    }
+
+    /**
+     * Estimate the memory used by a value returned by the NGSIv2 API
+     * @param value the value
+     * @return an estimation in bytes
+     */
+    public static long estimateWeight(Object value) {
+        if (value == null) {
+            return 8;
+        } else if (value instanceof String) {
+            return 40 + 2 * ((String) value).length();
+        } else if (value instanceof Number || value instanceof Boolean) {
+            return 16;
+        } else if (value instanceof Entity) {
+            Entity entity = (Entity) value;
+            return 24 + estimateWeight(entity.getId()) + estimateWeight(entity.getType()) + estimateWeight(entity.getAttributes());
+        } else if (value instanceof Attribute) {
+            Attribute attribute = (Attribute) value;
+            long weight = 32 + estimateWeight(attribute.getValue()) + estimateWeight(attribute.getMetadata());
+            if (attribute.getType() != null && attribute.getType().isPresent()) {
+                weight += estimateWeight(attribute.getType().get());
+            }
+            return weight;
+        } else if (value instanceof Metadata) {
+            Metadata metadata = (Metadata) value;
+            return 24 + estimateWeight(metadata.getType()) + estimateWeight(metadata.getValue());
+        } else if (value instanceof EntityType) {
+            EntityType entityType = (EntityType) value;
+            return 32 + estimateWeight(entityType.getType()) + estimateWeight(entityType.getAttrs());
+        } else if (value instanceof AttributeType) {
+            return 24 + estimateWeight(((AttributeType) value).getType());
+        } else if (value instanceof Map) {
+            long weight = 48;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                weight += 32 + estimateWeight(entry.getKey()) + estimateWeight(entry.getValue());
+            }
+            return weight;
+        } else if (value instanceof Collection) {
+            long weight = 40;
+            for (Object item : (Collection<?>) value) {
+                weight += 8 + estimateWeight(item);
+            }
+            return weight;
+        }
+        return 64;
+    }
+
+    private <T> ListenableFuture<T> get(String uri, String entityId, String entityType, Supplier<ListenableFuture<T>> loader) {
+        Entry entry = entries.get(uri);
+        if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+            hits.incrementAndGet();
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            @SuppressWarnings("unchecked")
+            T value = (T) entry.value;
+            SettableListenableFuture<T> future = new SettableListenableFuture<>();
+            future.set(value);
+            return future;
+        }
+        long epoch;
+        synchronized (this) {
+            if (entry != null && entries.get(uri) == entry) {
+                remove(uri);
+            }
+            epoch = epochs[stripe(entityId != null ? entityId : entityType)];
+        }
+        misses.incrementAndGet();
+        ListenableFuture<T> future = loader.get();
+        future.addCallback(value -> put(uri, entityId, entityType, value, epoch), ex -> {});
+        return future;
+    }
+
+    private synchronized void put(String uri, String entityId, String entityType, Object value, long epoch) {
+        String key = entityId != null ? entityId : entityType;
+        if (value == null || epochs[stripe(key)] != epoch) {
+            return;
+        }
+        long weight = weigher.applyAsLong(value);
+        if (weight > maxWeight) {
+            return;
+        }
+        remove(uri);
+        Entry entry = new Entry(value, entityId, entityType, weight, System.nanoTime() + ttlNanos);
+        entries.put(uri, entry);
+        clock.put(uri, entry);
+        (entityId != null ? entityIndex : typeIndex).computeIfAbsent(key, k -> new HashSet<>()).add(uri);
+        totalWeight += weight;
+
+        // Evict the entries not referenced since the last pass of the clock
+        while (totalWeight > maxWeight && !clock.isEmpty()) {
+            Map.Entry<String, Entry> candidate = clock.entrySet().iterator().next();
+            Entry evicted = candidate.getValue();
+            if (evicted.referenced) {
+                evicted.referenced = false;
+                clock.remove(candidate.getKey());
+                clock.put(candidate.getKey(), evicted);
+            } else {
+                remove(candidate.getKey());
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void removeAll(Set<String> uris) {
+        if (uris != null) {
+            uris.forEach(this::remove);
+        }
+    }
+
+    private void remove(String uri) {
+        Entry entry = entries.remove(uri);
+        if (entry != null) {
+            clock.remove(uri);
+            unindex(uri, entry);
+        }
+    }
+
+    private void unindex(String uri, Entry entry) {
+        totalWeight -= entry.weight;
+        Map<String, Set<String>> index = entry.entityId != null ? entityIndex : typeIndex;
+        String key = entry.entityId != null ? entry.entityId : entry.entityType;
+        Set<String> uris = index.get(key);
+        if (uris != null) {
+            uris.remove(uri);
+            if (uris.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static int stripe(String key) {
+        return key == null ? 0 : (key.hashCode() & 0x7fffffff) % stripes;
+    }
+
+    /**
+     * Cached value
+     */
+    private static class Entry {
+
+        final Object value;
+
+        final String entityId;
+
+        final String entityType;
+
+        final long weight;
+
+        final long expiresAt;
+
+        /**
+         * Set by the hits, cleared when the clock gives the entry a second chance
+         */
+        volatile boolean referenced;
+
+        Entry(Object value, String entityId, String entityType, long weight, long expiresAt) {
+            this.value = value;
+            this.entityId = entityId;
+            this.entityType = entityType;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.orange.ngsi2.client;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.AbstractClientHttpResponse;
+import org.springframework.http.client.AsyncClientHttpRequest;
+import org.springframework.http.client.AsyncClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureAdapter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.URI;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Decorate a transport to compress the request bodies and to accept compressed responses.
+ * Request bodies of at least minRequestSize bytes are sent with Content-Encoding: gzip:
+ * only their first minRequestSize bytes are buffered, the rest is compressed into the body of the delegate while it is written,
+ * by the thread serializing the request, never by the I/O threads.
+ * Requests advertise Accept-Encoding: gzip, and gzip responses are decoded while they are read.
+ */
+public class GzipClientHttpRequestFactory implements AsyncClientHttpRequestFactory {
+
+    private final static String gzip = "gzip";
+
+    private final AsyncClientHttpRequestFactory delegate;
+
+    private final int minRequestSize;
+
+    /**
+     * @param delegate the transport sending the requests
+     * @param minRequestSize the minimum size of the request bodies to compress, -1 to never compress them
+     */
+    public GzipClientHttpRequestFactory(AsyncClientHttpRequestFactory delegate, int minRequestSize) {
+        this.delegate = delegate;
+        this.minRequestSize = minRequestSize;
+    }
+
+    /**
+     * @return the transport sending the requests
+     */
+    public AsyncClientHttpRequestFactory getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public AsyncClientHttpRequest createAsyncRequest(URI uri, HttpMethod httpMethod) throws IOException {
+        return new GzipClientHttpRequest(delegate.createAsyncRequest(uri, httpMethod));
+    }
+
+    /**
+     * Request buffering the start of its body until it knows whether to compress it
+     */
+    private class GzipClientHttpRequest implements AsyncClientHttpRequest {
+
+        private final AsyncClientHttpRequest request;
+
+        private final HttpHeaders headers = new HttpHeaders();
+
+        private final GzipBody body = new GzipBody();
+
+        private boolean headersCopied;
+
+        GzipClientHttpRequest(AsyncClientHttpRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public HttpMethod getMethod() {
+            return request.getMethod();
+        }
+
+        @Override
+        public URI getURI() {
+            return request.getURI();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        @Override
+        public OutputStream getBody() throws IOException {
+            return body;
+        }
+
+        @Override
+        public ListenableFuture<ClientHttpResponse> executeAsync() throws IOException {
+            body.finish();
+            copyHeaders();
+            return new ListenableFutureAdapter<ClientHttpResponse, ClientHttpResponse>(request.executeAsync()) {
+                @Override
+                protected ClientHttpResponse adapt(ClientHttpResponse response) throws ExecutionException {
+                    String encoding = response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING);
+                    return gzip.equalsIgnoreCase(encoding) ? new GzipClientHttpResponse(response) : response;
+                }
+            };
+        }
+
+        /**
+         * Copy the headers before the body of the delegate is opened, a streaming delegate sending them at that time
+         */
+        private void copyHeaders() {
+            if (headersCopied) {
+                return;
+            }
+            headersCopied = true;
+            request.getHeaders().putAll(headers);
+            if (!request.getHeaders().containsKey(HttpHeaders.ACCEPT_ENCODING)) {
+                request.getHeaders().set(HttpHeaders.ACCEPT_ENCODING, gzip);
+            }
+        }
+
+        /**
+         * Body buffered until minRequestSize bytes are written, then compressed into the body of the delegate
+         */
+        private class GzipBody extends OutputStream {
+
+            private ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+
+            private GZIPOutputStream gzipOut;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (gzipOut != null) {
+                    gzipOut.write(b, off, len);
+                    return;
+                }
+                buffer.write(b, off, len);
+                if (minRequestSize >= 0 && buffer.size() > 0 && buffer.size() >= minRequestSize
+                        && !headers.containsKey(HttpHeaders.CONTENT_ENCODING)) {
+                    // The length of the compressed body is unknown
+                    headers.set(HttpHeaders.CONTENT_ENCODING, gzip);
+                    headers.remove(HttpHeaders.CONTENT_LENGTH);
+                    copyHeaders();
+                    gzipOut = new GZIPOutputStream(request.getBody(), 8192);
+                    buffer.writeTo(gzipOut);
+                    buffer = null;
+                }
+            }
+
+            /**
+             * Complete the body of the delegate, leaving it open for the delegate to send it
+             */
+            void finish() throws IOException {
+                if (gzipOut != null) {
+                    gzipOut.finish();
+                } else if (buffer.size() > 0) {
+                    copyHeaders();
+                    buffer.writeTo(request.getBody());
+                }
+            }
+        }
+    }
+
+    /**
+     * Response decoding its gzip body
+     */
+    private static class GzipClientHttpResponse extends AbstractClientHttpResponse {
+
+        private final ClientHttpResponse response;
+
+        private InputStream body;
+
+        GzipClientHttpResponse(ClientHttpResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public int getRawStatusCode() throws IOException {
+            return response.getRawStatusCode();
+        }
+
+        @Override
+        public String getStatusText() throws IOException {
+            return response.getStatusText();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return response.getHeaders();
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (body == null && response.getBody() != null) {
+                // An empty body, as the one of an error without content, is not a valid gzip stream
+                PushbackInputStream in = new PushbackInputStream(response.getBody(), 1);
+                int first = in.read();
+                if (first == -1) {
+                    body = in;
+                } else {
+                    in.unread(first);
+                    body = new GZIPInputStream(in);
+                }
+            }
+            return body;
+        }
+
+        @Override
+        public void close() {
+            response.close();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Default ClientMetrics keeping the metrics of each operation in memory, to be read (scraped) by the application.
+ * Latencies are recorded in histograms with a precision better than 1% (see {@link #getOperation(String)}).
+ */
+public class InMemoryClientMetrics implements ClientMetrics {
+
+    /**
+     * Metrics of a single operation
+     */
+    public static class OperationMetrics {
+
+        private final LatencyHistogram latencies = new LatencyHistogram();
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private final AtomicLong requestBytes = new AtomicLong();
+
+        private final AtomicLong responseBytes = new AtomicLong();
+
+        private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+
+        /**
+         * @return the number of completed requests, successful or not
+         */
+        public long getCount() {
+            return latencies.getCount();
+        }
+
+        /**
+         * @return the number of requests in flight
+         */
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        /**
+         * @return the total size of the request bodies
+         */
+        public long getRequestBytes() {
+            return requestBytes.get();
+        }
+
+        /**
+         * @return the total size of the response bodies, when known
+         */
+        public long getResponseBytes() {
+            return responseBytes.get();
+        }
+
+        /**
+         * @param percentile the percentile, between 0 and 100
+         * @return the latency at the given percentile
+         */
+        public Duration getLatency(double percentile) {
+            return Duration.ofNanos(latencies.getPercentile(percentile));
+        }
+
+        /**
+         * @return the median latency
+         */
+        public Duration getLatencyP50() {
+            return getLatency(50);
+        }
+
+        /**
+         * @return the 99th percentile of the latency
+         */
+        public Duration getLatencyP99() {
+            return getLatency(99);
+        }
+
+        /**
+         * @return the 99.9th percentile of the latency
+         */
+        public Duration getLatencyP999() {
+            return getLatency(99.9);
+        }
+
+        /**
+         * @return the number of failures by exception type (simple class name, e.g. ConflictingEntitiesException)
+         */
+        public Map<String, Long> getErrors() {
+            Map<String, Long> snapshot = new HashMap<>();
+            errors.forEach((type, count) -> snapshot.put(type, count.get()));
+            return snapshot;
+        }
+    }
+
+    private final ConcurrentMap<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+
+    @Override
+    public void requestStarted(String operation) {
+        metrics(operation).inFlight.incrementAndGet();
+    }
+
+    @Override
+    public void requestCompleted(String operation, long latencyNanos, long requestBytes, long responseBytes) {
+        OperationMetrics metrics = completed(operation, latencyNanos, requestBytes);
+        if (responseBytes > 0) {
+            metrics.responseBytes.addAndGet(responseBytes);
+        }
+    }
+
+    @Override
+    public void requestFailed(String operation, long latencyNanos, long requestBytes, Throwable failure) {
+        OperationMetrics metrics = completed(operation, latencyNanos, requestBytes);
+        Throwable cause = failure;
+        while (cause instanceof ExecutionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        String type = cause instanceof CancellationException ? "Cancelled" : cause.getClass().getSimpleName();
+        metrics.errors.computeIfAbsent(type, t -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * @param operation the operation name, the name of the Ngsi2Client method
+     * @return the metrics of the operation, or null if it was never called
+     */
+    public OperationMetrics getOperation(String operation) {
+        return operations.get(operation);
+    }
+
+    /**
+     * @return the metrics of all the called operations, by operation name
+     */
+    public Map<String, OperationMetrics> getOperations() {
+        return Collections.unmodifiableMap(operations);
+    }
+
+    private OperationMetrics metrics(String operation) {
+        OperationMetrics metrics = operations.get(operation);
+        if (metrics == null) {
+            metrics = operations.computeIfAbsent(operation, o -> new OperationMetrics());
+        }
+        return metrics;
+    }
+
+    private OperationMetrics completed(String operation, long latencyNanos, long requestBytes) {
+        OperationMetrics metrics = metrics(operation);
+        metrics.inFlight.decrementAndGet();
+        metrics.latencies.record(latencyNanos);
+        if (requestBytes > 0) {
+            metrics.requestBytes.addAndGet(requestBytes);
+        }
+        return metrics;
+    }
+}
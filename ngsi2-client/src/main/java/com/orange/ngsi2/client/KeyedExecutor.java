@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor running the tasks of a same key one at a time, in their submission order, on the threads of an underlying executor.
+ * Each key has its own lane, submitted to the underlying executor only while it has tasks: the tasks of different keys run in parallel.
+ * At most capacity tasks wait to be run, whatever their key.
+ */
+class KeyedExecutor {
+
+    private final Executor executor;
+
+    private final int capacity;
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    /**
+     * @param executor the executor running the lanes
+     * @param capacity the maximum number of tasks waiting to be run
+     */
+    KeyedExecutor(Executor executor, int capacity) {
+        this.executor = executor;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param key the key of the task, null to run it without any ordering
+     * @param task the task, a failure does not prevent the following tasks of its key from running
+     * @throws RejectedExecutionException if capacity tasks are already waiting, or if the underlying executor rejects the lane
+     */
+    void execute(String key, Runnable task) {
+        if (queued.incrementAndGet() > capacity) {
+            queued.decrementAndGet();
+            throw new RejectedExecutionException("too many queued tasks");
+        }
+        try {
+            if (key == null) {
+                executor.execute(() -> {
+                    queued.decrementAndGet();
+                    task.run();
+                });
+                return;
+            }
+            // A lane removed concurrently by its last task cannot be reused, retry with a new one
+            while (!lanes.computeIfAbsent(key, Lane::new).offer(task)) {
+                Thread.yield();
+            }
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting to be run
+     */
+    int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return the number of keys having tasks queued or running
+     */
+    int getLanes() {
+        return lanes.size();
+    }
+
+    /**
+     * Tasks of a key, run by a single thread of the underlying executor at a time
+     */
+    private class Lane implements Runnable {
+
+        private final String key;
+
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        private boolean running;
+
+        private boolean removed;
+
+        Lane(String key) {
+            this.key = key;
+        }
+
+        synchronized boolean offer(Runnable task) {
+            if (removed) {
+                return false;
+            }
+            tasks.add(task);
+            if (!running) {
+                running = true;
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // The lane was idle: the task was its only one
+                    tasks.clear();
+                    running = false;
+                    remove();
+                    throw e;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        remove();
+                        return;
+                    }
+                }
+                queued.decrementAndGet();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // the task is responsible for its failures
+                }
+            }
+        }
+
+        private void remove() {
+            removed = true;
+            lanes.remove(key, this);
+        }
+    }
+}
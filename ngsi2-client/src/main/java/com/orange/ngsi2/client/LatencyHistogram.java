@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in microseconds with a relative precision better than 1%,
+ * using the same log-linear bucket layout as HdrHistogram with 2 significant digits:
+ * a bucket covers at most 1/128 of its values, and a percentile reports the highest value of its bucket.
+ * Latencies above about 19 hours are recorded in the last bucket.
+ */
+class LatencyHistogram {
+
+    /**
+     * Each power of 2 is divided in 128 linear sub-buckets
+     */
+    private final static int subBucketHalfCountMagnitude = 7;
+
+    private final static int subBucketHalfCount = 1 << subBucketHalfCountMagnitude;
+
+    private final static long subBucketMask = (subBucketHalfCount << 1) - 1;
+
+    /**
+     * Highest trackable value: 2^36 microseconds
+     */
+    private final static int bucketCount = 36 - subBucketHalfCountMagnitude;
+
+    private final AtomicLongArray counts = new AtomicLongArray((bucketCount + 1) * subBucketHalfCount);
+
+    /**
+     * @param latencyNanos the latency to record
+     */
+    void record(long latencyNanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+        counts.incrementAndGet(Math.min(index(micros), counts.length() - 1));
+    }
+
+    /**
+     * @return the number of recorded latencies
+     */
+    long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency in nanoseconds at the given percentile, 0 if no latency was recorded
+     */
+    long getPercentile(double percentile) {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return TimeUnit.MICROSECONDS.toNanos(highestEquivalentValue(i));
+            }
+        }
+        return TimeUnit.MICROSECONDS.toNanos(highestEquivalentValue(snapshot.length - 1));
+    }
+
+    private static int index(long value) {
+        int bucketIndex = Math.max(0, 63 - Long.numberOfLeadingZeros(value | subBucketMask) - subBucketHalfCountMagnitude);
+        int subBucketIndex = (int) (value >>> bucketIndex);
+        return (bucketIndex + 1) * subBucketHalfCount + subBucketIndex - subBucketHalfCount;
+    }
+
+    private static long highestEquivalentValue(int index) {
+        int bucketIndex = index / subBucketHalfCount - 1;
+        int subBucketIndex = index % subBucketHalfCount + subBucketHalfCount;
+        if (bucketIndex < 0) {
+            bucketIndex = 0;
+            subBucketIndex -= subBucketHalfCount;
+        }
+        return ((long) (subBucketIndex + 1) << bucketIndex) - 1;
+    }
+}
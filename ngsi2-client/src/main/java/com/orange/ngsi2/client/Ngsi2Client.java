@@ -17,21 +17,32 @@
 
 package com.orange.ngsi2.client;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.orange.ngsi2.model.*;
 import org.springframework.http.*;
+import org.springframework.http.client.AsyncClientHttpRequestFactory;
 import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotWritableException;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.util.concurrent.ListenableFuture;
 import org.springframework.util.concurrent.ListenableFutureAdapter;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.AsyncRequestCallback;
 import org.springframework.web.client.AsyncRestTemplate;
-import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.client.RestTemplate;
 
+import java.lang.reflect.Array;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -41,12 +52,74 @@ public class Ngsi2Client {
 
     private final static Map<String, ?> noParams = Collections.emptyMap();
 
+    /**
+     * Classes (de)serialized by the client, whose (de)serializers are built by {@link #warmUp(int)}
+     */
+    private final static Class<?>[] modelClasses = { Entity.class, Entity[].class, Attribute.class, Metadata.class,
+            EntityType.class, EntityType[].class, Subscription.class, Subscription[].class, Notification.class,
+            Registration.class, Registration[].class, BulkUpdateRequest.class, BulkQueryRequest.class,
+            BulkRegisterRequest.class, String[].class, com.orange.ngsi2.model.Error.class, JsonNode.class };
+
+    /**
+     * Path segments followed by an identifier in the request URIs
+     */
+    private final static Set<String> identifiedSegments = new HashSet<>(Arrays.asList("entities", "attrs", "types", "subscriptions", "registrations"));
+
     private AsyncRestTemplate asyncRestTemplate;
 
     private HttpHeaders httpHeaders;
 
+    /**
+     * Read-only headers accepting text/plain, precomputed by the tenant views
+     */
+    private HttpHeaders textHttpHeaders;
+
     private String baseURL;
 
+    private RequestCoalescer requestCoalescer;
+
+    private EntityCache entityCache;
+
+    private ConcurrencyLimiter concurrencyLimiter;
+
+    private RetryPolicy retryPolicy;
+
+    private ClientMetrics metrics;
+
+    private CircuitBreaker circuitBreaker;
+
+    /*
+     * URI templates of the operations, built once from the base URL
+     */
+
+    private Ngsi2UriTemplate entitiesUri;
+
+    private Ngsi2UriTemplate entityUri;
+
+    private Ngsi2UriTemplate attributeUri;
+
+    private Ngsi2UriTemplate attributeValueUri;
+
+    private Ngsi2UriTemplate typesUri;
+
+    private Ngsi2UriTemplate typeUri;
+
+    private Ngsi2UriTemplate registrationsUri;
+
+    private Ngsi2UriTemplate registrationUri;
+
+    private Ngsi2UriTemplate subscriptionsUri;
+
+    private Ngsi2UriTemplate subscriptionUri;
+
+    private Ngsi2UriTemplate bulkUpdateUri;
+
+    private Ngsi2UriTemplate bulkQueryUri;
+
+    private Ngsi2UriTemplate bulkRegisterUri;
+
+    private Ngsi2UriTemplate bulkDiscoverUri;
+
     private Ngsi2Client() {
         // set default headers for Content-Type and Accept to application/JSON
         httpHeaders = new HttpHeaders();
@@ -64,22 +137,102 @@ public class Ngsi2Client {
         this.asyncRestTemplate = asyncRestTemplate;
         this.baseURL = baseURL;
 
+        entitiesUri = new Ngsi2UriTemplate(baseURL, "v2/entities");
+        entityUri = new Ngsi2UriTemplate(baseURL, "v2/entities/{entityId}");
+        attributeUri = new Ngsi2UriTemplate(baseURL, "v2/entities/{entityId}/attrs/{attributeName}");
+        attributeValueUri = new Ngsi2UriTemplate(baseURL, "v2/entities/{entityId}/attrs/{attributeName}/value");
+        typesUri = new Ngsi2UriTemplate(baseURL, "v2/types");
+        typeUri = new Ngsi2UriTemplate(baseURL, "v2/types/{entityType}");
+        registrationsUri = new Ngsi2UriTemplate(baseURL, "v2/registrations");
+        registrationUri = new Ngsi2UriTemplate(baseURL, "v2/registrations/{registrationId}");
+        subscriptionsUri = new Ngsi2UriTemplate(baseURL, "v2/subscriptions");
+        subscriptionUri = new Ngsi2UriTemplate(baseURL, "v2/subscriptions/{subscriptionId}");
+        bulkUpdateUri = new Ngsi2UriTemplate(baseURL, "v2/op/update");
+        bulkQueryUri = new Ngsi2UriTemplate(baseURL, "v2/op/query");
+        bulkRegisterUri = new Ngsi2UriTemplate(baseURL, "v2/op/register");
+        bulkDiscoverUri = new Ngsi2UriTemplate(baseURL, "v2/op/discover");
+
         // Inject NGSI2 error handler and Java 8 support
         injectNgsi2ErrorHandler();
         injectJava8ObjectMapper();
     }
 
+    /**
+     * Use a custom transport, for example a NioClientHttpRequestFactory.
+     * The NioClientHttpRequestFactory only supports http base URLs: a broker behind TLS needs another transport.
+     * @param requestFactory the transport sending the requests
+     * @param baseURL base URL for the NGSIv2 service
+     */
+    public Ngsi2Client(AsyncClientHttpRequestFactory requestFactory, String baseURL) {
+        this(new AsyncRestTemplate(requestFactory, new RestTemplate()), baseURL);
+    }
+
+    /**
+     * Tenant view sharing the transport, the settings and the URI templates of a root client
+     */
+    private Ngsi2Client(Ngsi2Client root, HttpHeaders httpHeaders) {
+        this.asyncRestTemplate = root.asyncRestTemplate;
+        this.baseURL = root.baseURL;
+        this.httpHeaders = HttpHeaders.readOnlyHttpHeaders(httpHeaders);
+        HttpHeaders textHttpHeaders = new HttpHeaders();
+        textHttpHeaders.putAll(httpHeaders);
+        textHttpHeaders.setAccept(Collections.singletonList(MediaType.TEXT_PLAIN));
+        this.textHttpHeaders = HttpHeaders.readOnlyHttpHeaders(textHttpHeaders);
+
+        requestCoalescer = root.requestCoalescer;
+        entityCache = root.entityCache;
+        concurrencyLimiter = root.concurrencyLimiter;
+        retryPolicy = root.retryPolicy;
+        metrics = root.metrics;
+        circuitBreaker = root.circuitBreaker;
+
+        entitiesUri = root.entitiesUri;
+        entityUri = root.entityUri;
+        attributeUri = root.attributeUri;
+        attributeValueUri = root.attributeValueUri;
+        typesUri = root.typesUri;
+        typeUri = root.typeUri;
+        registrationsUri = root.registrationsUri;
+        registrationUri = root.registrationUri;
+        subscriptionsUri = root.subscriptionsUri;
+        subscriptionUri = root.subscriptionUri;
+        bulkUpdateUri = root.bulkUpdateUri;
+        bulkQueryUri = root.bulkQueryUri;
+        bulkRegisterUri = root.bulkRegisterUri;
+        bulkDiscoverUri = root.bulkDiscoverUri;
+    }
+
+    /**
+     * Create a lightweight view of this client for a tenant.
+     * The view shares the AsyncRestTemplate (transport, connection pool, ObjectMapper, error handler),
+     * the URI templates and the cache, limiter, retry policy, coalescer and metrics set on this client when it is created.
+     * Its headers are precomputed once and read-only: modifying getHttpHeaders() of a view throws an UnsupportedOperationException.
+     * @param service the Fiware-Service header, null for none
+     * @param servicePath the Fiware-ServicePath header, null for none
+     * @return the tenant view
+     */
+    public Ngsi2Client forTenant(String service, String servicePath) {
+        HttpHeaders tenantHeaders = new HttpHeaders();
+        tenantHeaders.putAll(getHttpHeaders());
+        tenantHeaders.remove("Fiware-Service");
+        tenantHeaders.remove("Fiware-ServicePath");
+        if (service != null) {
+            tenantHeaders.set("Fiware-Service", service);
+        }
+        if (servicePath != null) {
+            tenantHeaders.set("Fiware-ServicePath", servicePath);
+        }
+        return new Ngsi2Client(this, tenantHeaders);
+    }
+
     /**
      * @return the list of supported operations under /v2
      */
     public ListenableFuture<Map<String, String>> getV2() {
-        ListenableFuture<ResponseEntity<JsonNode>> responseFuture = request(HttpMethod.GET, baseURL + "v2", null, JsonNode.class);
-        return new ListenableFutureAdapter<Map<String, String>, ResponseEntity<JsonNode>>(responseFuture) {
+        return new ListenableFutureAdapter<Map<String, String>, ResponseEntity<JsonNode>>(getV2Response()) {
             @Override
             protected Map<String, String> adapt(ResponseEntity<JsonNode> result) throws ExecutionException {
-                Map<String, String> services = new HashMap<>();
-                result.getBody().fields().forEachRemaining(entry -> services.put(entry.getKey(), entry.getValue().textValue()));
-                return services;
+                return extractServices(result);
             }
         };
     }
@@ -125,22 +278,131 @@ public class Ngsi2Client {
                                                            String query, GeoQuery geoQuery,
                                                            Collection<String> orderBy,
                                                            int offset, int limit, boolean count) {
+        return adaptPaginated(getEntitiesResponse(ids, idPattern, types, attrs, query, geoQuery, orderBy, offset, limit, count), offset, limit);
+    }
 
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/entities");
-        addParam(builder, "id", ids);
-        addParam(builder, "idPattern", idPattern);
-        addParam(builder, "type", types);
-        addParam(builder, "attrs", attrs);
-        addParam(builder, "query", query);
-        addGeoQueryParams(builder, geoQuery);
-        addParam(builder, "orderBy", orderBy);
-        addPaginationParams(builder, offset, limit);
-        if (count) {
-            addParam(builder, "options", "count");
-        }
+    /**
+     * Retrieve a list of Entities in the keyValues representation, decoded directly into instances of a class:
+     * the id, type and attribute values are bound to the properties of the same name, unknown attributes are ignored
+     * @param entityClass the class of the entities
+     * @param ids an optional list of entity IDs (cannot be used with idPatterns)
+     * @param idPattern an optional pattern of entity IDs (cannot be used with ids)
+     * @param types an optional list of types of entity
+     * @param attrs an optional list of attributes to return for all entities
+     * @param query an optional Simple Query Language query
+     * @param geoQuery an optional Geo query
+     * @param orderBy an option list of attributes to difine the order of entities
+     * @param offset an optional offset (0 for none)
+     * @param limit an optional limit (0 for none)
+     * @param count true to return the total number of matching entities
+     * @return a pagined list of entities
+     */
+    public <T> ListenableFuture<Paginated<T>> getEntities(Class<T> entityClass,
+                                                          Collection<String> ids, String idPattern,
+                                                          Collection<String> types, Collection<String> attrs,
+                                                          String query, GeoQuery geoQuery,
+                                                          Collection<String> orderBy,
+                                                          int offset, int limit, boolean count) {
+        Ngsi2UriTemplate.Builder builder = entitiesQuery(ids, idPattern, types, attrs, query, geoQuery, orderBy, offset, limit);
+        addParam(builder, "options", count ? "keyValues,count" : "keyValues");
+        return adaptPaginated(call("getEntities", HttpMethod.GET, builder.toUriString(), null, arrayType(entityClass)), offset, limit);
+    }
+
+    /**
+     * Retrieve a list of Entities, handing each entity to the consumer as soon as it is decoded
+     * so that the whole response is never held in memory.
+     * The consumer is called from the thread reading the response, and can block to slow down the reading
+     * (for example by putting the entities in a bounded queue).
+     * @param ids an optional list of entity IDs (cannot be used with idPatterns)
+     * @param idPattern an optional pattern of entity IDs (cannot be used with ids)
+     * @param types an optional list of types of entity
+     * @param attrs an optional list of attributes to return for all entities
+     * @param query an optional Simple Query Language query
+     * @param geoQuery an optional Geo query
+     * @param orderBy an option list of attributes to difine the order of entities
+     * @param offset an optional offset (0 for none)
+     * @param limit an optional limit (0 for none)
+     * @param consumer receives the entities in order
+     * @return the number of entities received
+     */
+    public ListenableFuture<Integer> streamEntities(Collection<String> ids, String idPattern,
+                                                    Collection<String> types, Collection<String> attrs,
+                                                    String query, GeoQuery geoQuery,
+                                                    Collection<String> orderBy,
+                                                    int offset, int limit, Consumer<? super Entity> consumer) {
+
+        Ngsi2UriTemplate.Builder builder = entitiesQuery(ids, idPattern, types, attrs, query, geoQuery, orderBy, offset, limit);
+        return stream("streamEntities", HttpMethod.GET, builder.toUriString(), null, Entity.class, consumer);
+    }
+
+    /**
+     * Iterate over all the Entities, requesting the next pages while the current one is consumed
+     * @param ids an optional list of entity IDs (cannot be used with idPatterns)
+     * @param idPattern an optional pattern of entity IDs (cannot be used with ids)
+     * @param types an optional list of types of entity
+     * @param attrs an optional list of attributes to return for all entities
+     * @param query an optional Simple Query Language query
+     * @param geoQuery an optional Geo query
+     * @param orderBy an option list of attributes to difine the order of entities
+     * @param pageSize the number of entities requested per page
+     * @param prefetch the number of pages requested in advance (0 for none)
+     * @return an iterator over all the Entities
+     */
+    public PaginatedIterator<Entity> getAllEntities(Collection<String> ids, String idPattern,
+                                                    Collection<String> types, Collection<String> attrs,
+                                                    String query, GeoQuery geoQuery,
+                                                    Collection<String> orderBy,
+                                                    int pageSize, int prefetch) {
+        return new PaginatedIterator<>((offset, limit, count) ->
+                getEntities(ids, idPattern, types, attrs, query, geoQuery, orderBy, offset, limit, count), 0, pageSize, prefetch);
+    }
+
+    /**
+     * Publish all the Entities, requesting the pages on demand of the subscriber
+     * @param ids an optional list of entity IDs (cannot be used with idPatterns)
+     * @param idPattern an optional pattern of entity IDs (cannot be used with ids)
+     * @param types an optional list of types of entity
+     * @param attrs an optional list of attributes to return for all entities
+     * @param query an optional Simple Query Language query
+     * @param geoQuery an optional Geo query
+     * @param orderBy an option list of attributes to difine the order of entities
+     * @param minPageSize the minimum number of entities requested per page
+     * @param maxPageSize the maximum number of entities requested per page
+     * @return a publisher of all the Entities
+     */
+    public PaginatedPublisher<Entity> publishEntities(Collection<String> ids, String idPattern,
+                                                      Collection<String> types, Collection<String> attrs,
+                                                      String query, GeoQuery geoQuery,
+                                                      Collection<String> orderBy,
+                                                      int minPageSize, int maxPageSize) {
+        return new PaginatedPublisher<>((offset, limit, count) ->
+                getEntities(ids, idPattern, types, attrs, query, geoQuery, orderBy, offset, limit, count), 0, minPageSize, maxPageSize);
+    }
 
-        return adaptPaginated(request(HttpMethod.GET, builder.toUriString(), null, Entity[].class), offset, limit);
+    /**
+     * Fetch all the Entities with concurrent page requests, see {@link ParallelPageFetcher} for the handling
+     * of the entities added or removed during the scan
+     * @param ids an optional list of entity IDs (cannot be used with idPatterns)
+     * @param idPattern an optional pattern of entity IDs (cannot be used with ids)
+     * @param types an optional list of types of entity
+     * @param attrs an optional list of attributes to return for all entities
+     * @param query an optional Simple Query Language query
+     * @param geoQuery an optional Geo query
+     * @param orderBy an option list of attributes to difine the order of entities
+     * @param pageSize the number of entities requested per page
+     * @param parallelism the maximum number of pages requested at the same time
+     * @param ordered true to receive the entities in order, false to receive them as soon as their page is received
+     * @param consumer receives the entities, never called concurrently
+     * @return the number of entities received
+     */
+    public ListenableFuture<Integer> fetchEntities(Collection<String> ids, String idPattern,
+                                                   Collection<String> types, Collection<String> attrs,
+                                                   String query, GeoQuery geoQuery,
+                                                   Collection<String> orderBy,
+                                                   int pageSize, int parallelism, boolean ordered, Consumer<? super Entity> consumer) {
+        return new ParallelPageFetcher<Entity>((offset, limit, count) ->
+                getEntities(ids, idPattern, types, attrs, query, geoQuery, orderBy, offset, limit, count), 0, pageSize, parallelism)
+                .fetch(ordered, consumer);
     }
 
     /**
@@ -149,7 +411,7 @@ public class Ngsi2Client {
      * @return the listener to notify of completion
      */
     public ListenableFuture<Void> addEntity(Entity entity) {
-        return adapt(request(HttpMethod.POST, UriComponentsBuilder.fromHttpUrl(baseURL).path("v2/entities").toUriString(), entity, Void.class));
+        return adapt(addEntityResponse(entity));
     }
 
     /**
@@ -160,11 +422,24 @@ public class Ngsi2Client {
      * @return the entity
      */
     public ListenableFuture<Entity> getEntity(String entityId, String type, Collection<String> attrs) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/entities/{entityId}");
+        return getCachedEntity("getEntity", entityId, getEntityUri(entityId, type, attrs), Entity.class);
+    }
+
+    /**
+     * Get an entity in the keyValues representation, decoded directly into an instance of a class
+     * (not cached, see {@link #getEntities(Class, Collection, String, Collection, Collection, String, GeoQuery, Collection, int, int, boolean)})
+     * @param entityClass the class of the entity
+     * @param entityId the entity ID
+     * @param type optional entity type to avoid ambiguity when multiple entities have the same ID, null or zero-length for empty
+     * @param attrs the list of attributes to retreive for this entity, null or empty means all attributes
+     * @return the entity
+     */
+    public <T> ListenableFuture<T> getEntity(Class<T> entityClass, String entityId, String type, Collection<String> attrs) {
+        Ngsi2UriTemplate.Builder builder = entityUri.expand(entityId);
         addParam(builder, "type", type);
         addParam(builder, "attrs", attrs);
-        return adapt(request(HttpMethod.GET, builder.buildAndExpand(entityId).toUriString(), null, Entity.class));
+        addParam(builder, "options", "keyValues");
+        return adapt(call("getEntity", HttpMethod.GET, builder.toUriString(), null, entityClass));
     }
 
     /**
@@ -176,13 +451,7 @@ public class Ngsi2Client {
      * @return the listener to notify of completion
      */
     public ListenableFuture<Void> updateEntity(String entityId, String type, Map<String, Attribute> attributes, boolean append) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/entities/{entityId}");
-        addParam(builder, "type", type);
-        if (append) {
-            addParam(builder, "options", "append");
-        }
-        return adapt(request(HttpMethod.POST, builder.buildAndExpand(entityId).toUriString(), attributes, Void.class));
+        return adapt(updateEntityResponse(entityId, type, attributes, append));
     }
 
     /**
@@ -193,10 +462,7 @@ public class Ngsi2Client {
      * @return the listener to notify of completion
      */
     public ListenableFuture<Void> replaceEntity(String entityId, String type, Map<String, Attribute> attributes) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/entities/{entityId}");
-        addParam(builder, "type", type);
-        return adapt(request(HttpMethod.PUT, builder.buildAndExpand(entityId).toUriString(), attributes, Void.class));
+        return adapt(replaceEntityResponse(entityId, type, attributes));
     }
 
     /**
@@ -206,10 +472,7 @@ public class Ngsi2Client {
      * @return the listener to notify of completion
      */
     public ListenableFuture<Void> deleteEntity(String entityId, String type) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/entities/{entityId}");
-        addParam(builder, "type", type);
-        return adapt(request(HttpMethod.DELETE, builder.buildAndExpand(entityId).toUriString(), null, Void.class));
+        return adapt(deleteEntityResponse(entityId, type));
     }
 
     /*
@@ -224,10 +487,7 @@ public class Ngsi2Client {
      * @return
      */
     public ListenableFuture<Attribute> getAttribute(String entityId, String type, String attributeName) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/entities/{entityId}/attrs/{attributeName}");
-        addParam(builder, "type", type);
-        return adapt(request(HttpMethod.GET, builder.buildAndExpand(entityId, attributeName).toUriString(), null, Attribute.class));
+        return getCachedEntity("getAttribute", entityId, getAttributeUri(entityId, type, attributeName), Attribute.class);
     }
 
     /**
@@ -238,10 +498,7 @@ public class Ngsi2Client {
      * @return
      */
     public ListenableFuture<Void> updateAttribute(String entityId, String type, String attributeName, Attribute attribute) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/entities/{entityId}/attrs/{attributeName}");
-        addParam(builder, "type", type);
-        return adapt(request(HttpMethod.PUT, builder.buildAndExpand(entityId, attributeName).toUriString(), attribute, Void.class));
+        return adapt(updateAttributeResponse(entityId, type, attributeName, attribute));
     }
 
     /**
@@ -252,10 +509,7 @@ public class Ngsi2Client {
      * @return
      */
     public ListenableFuture<Attribute> deleteAttribute(String entityId, String type, String attributeName) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/entities/{entityId}/attrs/{attributeName}");
-        addParam(builder, "type", type);
-        return adapt(request(HttpMethod.DELETE, builder.buildAndExpand(entityId, attributeName).toUriString(), null, Attribute.class));
+        return adapt(deleteAttributeResponse(entityId, type, attributeName));
     }
 
     /*
@@ -270,10 +524,7 @@ public class Ngsi2Client {
      * @return
      */
     public ListenableFuture<Object> getAttributeValue(String entityId, String type, String attributeName) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/entities/{entityId}/attrs/{attributeName}/value");
-        addParam(builder, "type", type);
-        return adapt(request(HttpMethod.GET, builder.buildAndExpand(entityId, attributeName).toUriString(), null, Object.class));
+        return getCachedEntity("getAttributeValue", entityId, getAttributeValueUri(entityId, type, attributeName), Object.class);
     }
 
     /**
@@ -284,12 +535,7 @@ public class Ngsi2Client {
      * @return
      */
     public ListenableFuture<String> getAttributeValueAsString(String entityId, String type, String attributeName) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/entities/{entityId}/attrs/{attributeName}/value");
-        addParam(builder, "type", type);
-        HttpHeaders httpHeaders = cloneHttpHeaders();
-        httpHeaders.setAccept(Collections.singletonList(MediaType.TEXT_PLAIN));
-        return adapt(request(HttpMethod.GET, builder.buildAndExpand(entityId, attributeName).toUriString(), httpHeaders, null, String.class));
+        return adapt(getAttributeValueAsStringResponse(entityId, type, attributeName));
     }
 
     /*
@@ -304,13 +550,17 @@ public class Ngsi2Client {
      * @return a pagined list of entity types
      */
     public ListenableFuture<Paginated<EntityType>> getEntityTypes(int offset, int limit, boolean count) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/types");
-        addPaginationParams(builder, offset, limit);
-        if (count) {
-            addParam(builder, "options", "count");
-        }
-        return adaptPaginated(request(HttpMethod.GET, builder.toUriString(), null, EntityType[].class), offset, limit);
+        return adaptPaginated(getEntityTypesResponse(offset, limit, count), offset, limit);
+    }
+
+    /**
+     * Iterate over all the entity types, requesting the next pages while the current one is consumed
+     * @param pageSize the number of entity types requested per page
+     * @param prefetch the number of pages requested in advance (0 for none)
+     * @return an iterator over all the entity types
+     */
+    public PaginatedIterator<EntityType> getAllEntityTypes(int pageSize, int prefetch) {
+        return new PaginatedIterator<>(this::getEntityTypes, 0, pageSize, prefetch);
     }
 
     /**
@@ -319,9 +569,12 @@ public class Ngsi2Client {
      * @return an entity type
      */
     public ListenableFuture<EntityType> getEntityType(String entityType) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/types/{entityType}");
-        return adapt(request(HttpMethod.GET, builder.buildAndExpand(entityType).toUriString(), null, EntityType.class));
+        String uri = getEntityTypeUri(entityType);
+        EntityCache entityCache = this.entityCache;
+        if (entityCache == null) {
+            return adapt(call("getEntityType", HttpMethod.GET, uri, null, EntityType.class));
+        }
+        return entityCache.getEntityType(cacheKey(uri), entityType, () -> adapt(call("getEntityType", HttpMethod.GET, uri, null, EntityType.class)));
     }
 
     /*
@@ -334,11 +587,7 @@ public class Ngsi2Client {
      */
     public ListenableFuture<List<Registration>> getRegistrations() {
 
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/registrations");
-
-        ListenableFuture<ResponseEntity<Registration[]>> e = request(HttpMethod.GET, builder.toUriString(), null, Registration[].class);
-        return new ListenableFutureAdapter<List<Registration>, ResponseEntity<Registration[]>>(e) {
+        return new ListenableFutureAdapter<List<Registration>, ResponseEntity<Registration[]>>(getRegistrationsResponse()) {
             @Override
             protected List<Registration> adapt(ResponseEntity<Registration[]> result) throws ExecutionException {
                 return new ArrayList<>(Arrays.asList(result.getBody()));
@@ -352,7 +601,7 @@ public class Ngsi2Client {
      * @return the listener to notify of completion
      */
     public ListenableFuture<Void> addRegistration(Registration registration) {
-        return adapt(request(HttpMethod.POST, UriComponentsBuilder.fromHttpUrl(baseURL).path("v2/registrations").toUriString(), registration, Void.class));
+        return adapt(addRegistrationResponse(registration));
     }
 
     /**
@@ -361,9 +610,7 @@ public class Ngsi2Client {
      * @return registration
      */
     public ListenableFuture<Registration> getRegistration(String registrationId) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/registrations/{registrationId}");
-        return adapt(request(HttpMethod.GET, builder.buildAndExpand(registrationId).toUriString(), null, Registration.class));
+        return adapt(getRegistrationResponse(registrationId));
     }
 
     /**
@@ -372,9 +619,7 @@ public class Ngsi2Client {
      * @return
      */
     public ListenableFuture<Void> updateRegistration(String registrationId, Registration registration) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/registrations/{registrationId}");
-        return adapt(request(HttpMethod.PATCH, builder.buildAndExpand(registrationId).toUriString(), registration, Void.class));
+        return adapt(updateRegistrationResponse(registrationId, registration));
     }
 
     /**
@@ -383,9 +628,7 @@ public class Ngsi2Client {
      * @return
      */
     public ListenableFuture<Void> deleteRegistration(String registrationId) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/registrations/{registrationId}");
-        return adapt(request(HttpMethod.DELETE, builder.buildAndExpand(registrationId).toUriString(), null, Void.class));
+        return adapt(deleteRegistrationResponse(registrationId));
     }
 
     /*
@@ -400,14 +643,27 @@ public class Ngsi2Client {
      * @return a pagined list of Subscriptions
      */
     public ListenableFuture<Paginated<Subscription>> getSubscriptions(int offset, int limit, boolean count) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/subscriptions");
-        addPaginationParams(builder, offset, limit);
-        if (count) {
-            addParam(builder, "options", "count");
-        }
+        return adaptPaginated(getSubscriptionsResponse(offset, limit, count), offset, limit);
+    }
 
-        return adaptPaginated(request(HttpMethod.GET, builder.toUriString(), null, Subscription[].class), offset, limit);
+    /**
+     * Iterate over all the Subscriptions, requesting the next pages while the current one is consumed
+     * @param pageSize the number of subscriptions requested per page
+     * @param prefetch the number of pages requested in advance (0 for none)
+     * @return an iterator over all the Subscriptions
+     */
+    public PaginatedIterator<Subscription> getAllSubscriptions(int pageSize, int prefetch) {
+        return new PaginatedIterator<>(this::getSubscriptions, 0, pageSize, prefetch);
+    }
+
+    /**
+     * Publish all the Subscriptions, requesting the pages on demand of the subscriber
+     * @param minPageSize the minimum number of subscriptions requested per page
+     * @param maxPageSize the maximum number of subscriptions requested per page
+     * @return a publisher of all the Subscriptions
+     */
+    public PaginatedPublisher<Subscription> publishSubscriptions(int minPageSize, int maxPageSize) {
+        return new PaginatedPublisher<>(this::getSubscriptions, 0, minPageSize, maxPageSize);
     }
 
     /**
@@ -416,8 +672,7 @@ public class Ngsi2Client {
      * @return subscription Id
      */
     public ListenableFuture<String> addSubscription(Subscription subscription) {
-        ListenableFuture<ResponseEntity<Void>> s = request(HttpMethod.POST, UriComponentsBuilder.fromHttpUrl(baseURL).path("v2/subscriptions").toUriString(), subscription, Void.class);
-        return new ListenableFutureAdapter<String, ResponseEntity<Void>>(s) {
+        return new ListenableFutureAdapter<String, ResponseEntity<Void>>(addSubscriptionResponse(subscription)) {
             @Override
             protected String adapt(ResponseEntity<Void> result) throws ExecutionException {
                 return extractId(result);
@@ -431,9 +686,7 @@ public class Ngsi2Client {
      * @return the subscription
      */
     public ListenableFuture<Subscription> getSubscription(String subscriptionId) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/subscriptions/{subscriptionId}");
-        return adapt(request(HttpMethod.GET, builder.buildAndExpand(subscriptionId).toUriString(), null, Subscription.class));
+        return adapt(getSubscriptionResponse(subscriptionId));
     }
 
     /**
@@ -442,9 +695,7 @@ public class Ngsi2Client {
      * @return
      */
     public ListenableFuture<Void> updateSubscription(String subscriptionId, Subscription subscription) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/subscriptions/{subscriptionId}");
-        return adapt(request(HttpMethod.PATCH, builder.buildAndExpand(subscriptionId).toUriString(), subscription, Void.class));
+        return adapt(updateSubscriptionResponse(subscriptionId, subscription));
     }
 
     /**
@@ -453,9 +704,7 @@ public class Ngsi2Client {
      * @return
      */
     public ListenableFuture<Void> deleteSubscription(String subscriptionId) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/subscriptions/{subscriptionId}");
-        return adapt(request(HttpMethod.DELETE, builder.buildAndExpand(subscriptionId).toUriString(), null, Void.class));
+        return adapt(deleteSubscriptionResponse(subscriptionId));
     }
 
     /*
@@ -468,9 +717,7 @@ public class Ngsi2Client {
      * @return Nothing on success
      */
     public ListenableFuture<Void> bulkUpdate(BulkUpdateRequest bulkUpdateRequest) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/op/update");
-        return adapt(request(HttpMethod.POST, builder.toUriString(), bulkUpdateRequest, Void.class));
+        return adapt(bulkUpdateResponse(bulkUpdateRequest));
     }
 
     /**
@@ -483,14 +730,75 @@ public class Ngsi2Client {
      * @return a paginated list of entities
      */
     public ListenableFuture<Paginated<Entity>> bulkQuery(BulkQueryRequest bulkQueryRequest, Collection<String> orderBy, int offset, int limit, boolean count) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/op/query");
+        return adaptPaginated(bulkQueryResponse(bulkQueryRequest, orderBy, offset, limit, count), offset, limit);
+    }
+
+    /**
+     * Query multiple entities in a single operation, decoded directly into instances of a class
+     * (see {@link #getEntities(Class, Collection, String, Collection, Collection, String, GeoQuery, Collection, int, int, boolean)})
+     * @param entityClass the class of the entities
+     * @param bulkQueryRequest defines the list of entities, attributes and scopes to match entities
+     * @param orderBy an optional list of attributes to order the entities (null or empty for none)
+     * @param offset an optional offset (0 for none)
+     * @param limit an optional limit (0 for none)
+     * @param count true to return the total number of matching entities
+     * @return a paginated list of entities
+     */
+    public <T> ListenableFuture<Paginated<T>> bulkQuery(Class<T> entityClass, BulkQueryRequest bulkQueryRequest, Collection<String> orderBy, int offset, int limit, boolean count) {
+        Ngsi2UriTemplate.Builder builder = bulkQueryUri.builder();
         addPaginationParams(builder, offset, limit);
         addParam(builder, "orderBy", orderBy);
-        if (count) {
-            addParam(builder, "options", "count");
-        }
-        return adaptPaginated(request(HttpMethod.POST, builder.toUriString(), bulkQueryRequest, Entity[].class), offset, limit);
+        addParam(builder, "options", count ? "keyValues,count" : "keyValues");
+        return adaptPaginated(call("bulkQuery", HttpMethod.POST, builder.toUriString(), bulkQueryRequest, arrayType(entityClass)), offset, limit);
+    }
+
+    /**
+     * Query multiple entities in a single operation, handing each entity to the consumer as soon as it is decoded
+     * so that the whole response is never held in memory.
+     * The consumer is called from the thread reading the response, and can block to slow down the reading.
+     * @param bulkQueryRequest defines the list of entities, attributes and scopes to match entities
+     * @param orderBy an optional list of attributes to order the entities (null or empty for none)
+     * @param offset an optional offset (0 for none)
+     * @param limit an optional limit (0 for none)
+     * @param consumer receives the entities in order
+     * @return the number of entities received
+     */
+    public ListenableFuture<Integer> streamBulkQuery(BulkQueryRequest bulkQueryRequest, Collection<String> orderBy, int offset, int limit, Consumer<? super Entity> consumer) {
+        Ngsi2UriTemplate.Builder builder = bulkQueryUri.builder();
+        addPaginationParams(builder, offset, limit);
+        addParam(builder, "orderBy", orderBy);
+        return stream("streamBulkQuery", HttpMethod.POST, builder.toUriString(), bulkQueryRequest, Entity.class, consumer);
+    }
+
+    /**
+     * Publish all the entities matching a bulk query, requesting the pages on demand of the subscriber
+     * @param bulkQueryRequest defines the list of entities, attributes and scopes to match entities
+     * @param orderBy an optional list of attributes to order the entities (null or empty for none)
+     * @param minPageSize the minimum number of entities requested per page
+     * @param maxPageSize the maximum number of entities requested per page
+     * @return a publisher of all the matching entities
+     */
+    public PaginatedPublisher<Entity> publishBulkQuery(BulkQueryRequest bulkQueryRequest, Collection<String> orderBy, int minPageSize, int maxPageSize) {
+        return new PaginatedPublisher<>((offset, limit, count) ->
+                bulkQuery(bulkQueryRequest, orderBy, offset, limit, count), 0, minPageSize, maxPageSize);
+    }
+
+    /**
+     * Fetch all the entities matching a bulk query with concurrent page requests,
+     * see {@link ParallelPageFetcher} for the handling of the entities added or removed during the scan
+     * @param bulkQueryRequest defines the list of entities, attributes and scopes to match entities
+     * @param orderBy an optional list of attributes to order the entities (null or empty for none)
+     * @param pageSize the number of entities requested per page
+     * @param parallelism the maximum number of pages requested at the same time
+     * @param ordered true to receive the entities in order, false to receive them as soon as their page is received
+     * @param consumer receives the entities, never called concurrently
+     * @return the number of entities received
+     */
+    public ListenableFuture<Integer> fetchBulkQuery(BulkQueryRequest bulkQueryRequest, Collection<String> orderBy,
+                                                    int pageSize, int parallelism, boolean ordered, Consumer<? super Entity> consumer) {
+        return new ParallelPageFetcher<Entity>((offset, limit, count) ->
+                bulkQuery(bulkQueryRequest, orderBy, offset, limit, count), 0, pageSize, parallelism)
+                .fetch(ordered, consumer);
     }
 
     /**
@@ -499,7 +807,7 @@ public class Ngsi2Client {
      * @return a list of registration ids
      */
     public ListenableFuture<String[]> bulkRegister(BulkRegisterRequest bulkRegisterRequest) {
-        return adapt(request(HttpMethod.POST, UriComponentsBuilder.fromHttpUrl(baseURL).path("v2/op/register").toUriString(), bulkRegisterRequest, String[].class));
+        return adapt(bulkRegisterResponse(bulkRegisterRequest));
     }
 
     /**
@@ -511,13 +819,186 @@ public class Ngsi2Client {
      * @return a paginated list of registration
      */
     public ListenableFuture<Paginated<Registration>> bulkDiscover(BulkQueryRequest bulkQueryRequest, int offset, int limit, boolean count) {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseURL);
-        builder.path("v2/op/discover");
+        return adaptPaginated(bulkDiscoverResponse(bulkQueryRequest, offset, limit, count), offset, limit);
+    }
+
+    /*
+     * Requests and URIs shared by the ListenableFuture API and CompletableNgsi2Client,
+     * the responses are not adapted yet
+     */
+
+    ListenableFuture<ResponseEntity<JsonNode>> getV2Response() {
+        return call("getV2", HttpMethod.GET, baseURL + "v2", null, JsonNode.class);
+    }
+
+    String getEntityUri(String entityId, String type, Collection<String> attrs) {
+        Ngsi2UriTemplate.Builder builder = entityUri.expand(entityId);
+        addParam(builder, "type", type);
+        addParam(builder, "attrs", attrs);
+        return builder.toUriString();
+    }
+
+    String getAttributeUri(String entityId, String type, String attributeName) {
+        Ngsi2UriTemplate.Builder builder = attributeUri.expand(entityId, attributeName);
+        addParam(builder, "type", type);
+        return builder.toUriString();
+    }
+
+    String getAttributeValueUri(String entityId, String type, String attributeName) {
+        Ngsi2UriTemplate.Builder builder = attributeValueUri.expand(entityId, attributeName);
+        addParam(builder, "type", type);
+        return builder.toUriString();
+    }
+
+    String getEntityTypeUri(String entityType) {
+        return typeUri.expand(entityType).toUriString();
+    }
+
+    ListenableFuture<ResponseEntity<Registration[]>> getRegistrationsResponse() {
+        return call("getRegistrations", HttpMethod.GET, registrationsUri.toUriString(), null, Registration[].class);
+    }
+
+    ListenableFuture<ResponseEntity<Void>> addSubscriptionResponse(Subscription subscription) {
+        return call("addSubscription", HttpMethod.POST, subscriptionsUri.toUriString(), subscription, Void.class);
+    }
+
+    ListenableFuture<ResponseEntity<Void>> bulkUpdateResponse(BulkUpdateRequest bulkUpdateRequest) {
+        ListenableFuture<ResponseEntity<Void>> future = call("bulkUpdate", HttpMethod.POST, bulkUpdateUri.toUriString(), bulkUpdateRequest, Void.class);
+        if (entityCache != null && bulkUpdateRequest.getEntities() != null) {
+            for (Entity entity : bulkUpdateRequest.getEntities()) {
+                invalidating(entity.getId(), entity.getType(), future);
+            }
+        }
+        return future;
+    }
+
+    ListenableFuture<ResponseEntity<Void>> addEntityResponse(Entity entity) {
+        return call("addEntity", HttpMethod.POST, entitiesUri.toUriString(), entity, Void.class);
+    }
+
+    ListenableFuture<ResponseEntity<Void>> updateEntityResponse(String entityId, String type, Map<String, Attribute> attributes, boolean append) {
+        Ngsi2UriTemplate.Builder builder = entityUri.expand(entityId);
+        addParam(builder, "type", type);
+        if (append) {
+            addParam(builder, "options", "append");
+        }
+        return invalidating(entityId, type, call("updateEntity", HttpMethod.POST, builder.toUriString(), attributes, Void.class));
+    }
+
+    ListenableFuture<ResponseEntity<Void>> replaceEntityResponse(String entityId, String type, Map<String, Attribute> attributes) {
+        Ngsi2UriTemplate.Builder builder = entityUri.expand(entityId);
+        addParam(builder, "type", type);
+        return invalidating(entityId, type, call("replaceEntity", HttpMethod.PUT, builder.toUriString(), attributes, Void.class));
+    }
+
+    ListenableFuture<ResponseEntity<Void>> deleteEntityResponse(String entityId, String type) {
+        Ngsi2UriTemplate.Builder builder = entityUri.expand(entityId);
+        addParam(builder, "type", type);
+        return invalidating(entityId, type, call("deleteEntity", HttpMethod.DELETE, builder.toUriString(), null, Void.class));
+    }
+
+    ListenableFuture<ResponseEntity<Void>> updateAttributeResponse(String entityId, String type, String attributeName, Attribute attribute) {
+        Ngsi2UriTemplate.Builder builder = attributeUri.expand(entityId, attributeName);
+        addParam(builder, "type", type);
+        return invalidating(entityId, type, call("updateAttribute", HttpMethod.PUT, builder.toUriString(), attribute, Void.class));
+    }
+
+    ListenableFuture<ResponseEntity<Attribute>> deleteAttributeResponse(String entityId, String type, String attributeName) {
+        Ngsi2UriTemplate.Builder builder = attributeUri.expand(entityId, attributeName);
+        addParam(builder, "type", type);
+        return invalidating(entityId, type, call("deleteAttribute", HttpMethod.DELETE, builder.toUriString(), null, Attribute.class));
+    }
+
+    ListenableFuture<ResponseEntity<String>> getAttributeValueAsStringResponse(String entityId, String type, String attributeName) {
+        Ngsi2UriTemplate.Builder builder = attributeValueUri.expand(entityId, attributeName);
+        addParam(builder, "type", type);
+        HttpHeaders httpHeaders = textHttpHeaders;
+        if (httpHeaders == null) {
+            httpHeaders = cloneHttpHeaders();
+            httpHeaders.setAccept(Collections.singletonList(MediaType.TEXT_PLAIN));
+        }
+        return call("getAttributeValueAsString", HttpMethod.GET, builder.toUriString(), httpHeaders, null, String.class);
+    }
+
+    ListenableFuture<ResponseEntity<EntityType[]>> getEntityTypesResponse(int offset, int limit, boolean count) {
+        Ngsi2UriTemplate.Builder builder = typesUri.builder();
+        addPaginationParams(builder, offset, limit);
+        if (count) {
+            addParam(builder, "options", "count");
+        }
+        return call("getEntityTypes", HttpMethod.GET, builder.toUriString(), null, EntityType[].class);
+    }
+
+    ListenableFuture<ResponseEntity<Void>> addRegistrationResponse(Registration registration) {
+        return call("addRegistration", HttpMethod.POST, registrationsUri.toUriString(), registration, Void.class);
+    }
+
+    ListenableFuture<ResponseEntity<Registration>> getRegistrationResponse(String registrationId) {
+        return call("getRegistration", HttpMethod.GET, registrationUri.expand(registrationId).toUriString(), null, Registration.class);
+    }
+
+    ListenableFuture<ResponseEntity<Void>> updateRegistrationResponse(String registrationId, Registration registration) {
+        return call("updateRegistration", HttpMethod.PATCH, registrationUri.expand(registrationId).toUriString(), registration, Void.class);
+    }
+
+    ListenableFuture<ResponseEntity<Void>> deleteRegistrationResponse(String registrationId) {
+        return call("deleteRegistration", HttpMethod.DELETE, registrationUri.expand(registrationId).toUriString(), null, Void.class);
+    }
+
+    ListenableFuture<ResponseEntity<Subscription[]>> getSubscriptionsResponse(int offset, int limit, boolean count) {
+        Ngsi2UriTemplate.Builder builder = subscriptionsUri.builder();
         addPaginationParams(builder, offset, limit);
         if (count) {
             addParam(builder, "options", "count");
         }
-        return adaptPaginated(request(HttpMethod.POST, builder.toUriString(), bulkQueryRequest, Registration[].class), offset, limit);
+        return call("getSubscriptions", HttpMethod.GET, builder.toUriString(), null, Subscription[].class);
+    }
+
+    ListenableFuture<ResponseEntity<Subscription>> getSubscriptionResponse(String subscriptionId) {
+        return call("getSubscription", HttpMethod.GET, subscriptionUri.expand(subscriptionId).toUriString(), null, Subscription.class);
+    }
+
+    ListenableFuture<ResponseEntity<Void>> updateSubscriptionResponse(String subscriptionId, Subscription subscription) {
+        return call("updateSubscription", HttpMethod.PATCH, subscriptionUri.expand(subscriptionId).toUriString(), subscription, Void.class);
+    }
+
+    ListenableFuture<ResponseEntity<Void>> deleteSubscriptionResponse(String subscriptionId) {
+        return call("deleteSubscription", HttpMethod.DELETE, subscriptionUri.expand(subscriptionId).toUriString(), null, Void.class);
+    }
+
+    ListenableFuture<ResponseEntity<Entity[]>> bulkQueryResponse(BulkQueryRequest bulkQueryRequest, Collection<String> orderBy, int offset, int limit, boolean count) {
+        Ngsi2UriTemplate.Builder builder = bulkQueryUri.builder();
+        addPaginationParams(builder, offset, limit);
+        addParam(builder, "orderBy", orderBy);
+        if (count) {
+            addParam(builder, "options", "count");
+        }
+        return call("bulkQuery", HttpMethod.POST, builder.toUriString(), bulkQueryRequest, Entity[].class);
+    }
+
+    ListenableFuture<ResponseEntity<String[]>> bulkRegisterResponse(BulkRegisterRequest bulkRegisterRequest) {
+        return call("bulkRegister", HttpMethod.POST, bulkRegisterUri.toUriString(), bulkRegisterRequest, String[].class);
+    }
+
+    ListenableFuture<ResponseEntity<Registration[]>> bulkDiscoverResponse(BulkQueryRequest bulkQueryRequest, int offset, int limit, boolean count) {
+        Ngsi2UriTemplate.Builder builder = bulkDiscoverUri.builder();
+        addPaginationParams(builder, offset, limit);
+        if (count) {
+            addParam(builder, "options", "count");
+        }
+        return call("bulkDiscover", HttpMethod.POST, builder.toUriString(), bulkQueryRequest, Registration[].class);
+    }
+
+    ListenableFuture<ResponseEntity<Entity[]>> getEntitiesResponse(Collection<String> ids, String idPattern,
+                                                                Collection<String> types, Collection<String> attrs,
+                                                                String query, GeoQuery geoQuery,
+                                                                Collection<String> orderBy,
+                                                                int offset, int limit, boolean count) {
+        Ngsi2UriTemplate.Builder builder = entitiesQuery(ids, idPattern, types, attrs, query, geoQuery, orderBy, offset, limit);
+        if (count) {
+            addParam(builder, "options", "count");
+        }
+        return call("getEntities", HttpMethod.GET, builder.toUriString(), null, Entity[].class);
     }
 
     /**
@@ -528,6 +1009,150 @@ public class Ngsi2Client {
         return httpHeaders;
     }
 
+    /**
+     * @return the coalescer of identical concurrent GET requests, null if disabled
+     */
+    public RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    /**
+     * Enable the coalescing of identical concurrent GET requests (disabled by default).
+     * Concurrent callers then share the same response instance.
+     * @param requestCoalescer the coalescer, null to disable
+     */
+    public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    /**
+     * @return the cache of entities, attributes and entity types, null if disabled
+     */
+    public EntityCache getEntityCache() {
+        return entityCache;
+    }
+
+    /**
+     * Enable the caching of getEntity, getAttribute, getAttributeValue and getEntityType (disabled by default).
+     * The writes made through this client invalidate the cached values they affect,
+     * but the changes made by other clients are only seen once the cached values expire.
+     * @param entityCache the cache, null to disable
+     */
+    public void setEntityCache(EntityCache entityCache) {
+        this.entityCache = entityCache;
+    }
+
+    /**
+     * @return the limiter of the requests in flight, null if disabled
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Limit the number of requests in flight (unlimited by default).
+     * The requests beyond the limit are queued or fail with a RejectedExecutionException.
+     * @param concurrencyLimiter the limiter, null to disable
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    /**
+     * @return the retry policy, null if disabled
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Retry the idempotent requests failing with a retryable error (disabled by default)
+     * @param retryPolicy the retry policy, null to disable
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * @return the metrics of the operations, null if disabled
+     */
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Record the latency, the sizes and the errors of each operation (disabled by default).
+     * When enabled, request bodies are serialized before being handed to {@link #request} to measure their size.
+     * @param metrics the metrics, null to disable
+     */
+    public void setMetrics(ClientMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the circuit breaker, null if disabled
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Fail fast the operations while the NGSIv2 service is down (disabled by default).
+     * The circuits are keyed by the base URL of this client, so a breaker can be shared by several clients.
+     * @param circuitBreaker the circuit breaker, null to disable
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Compress the large request bodies (e.g. bulkUpdate, bulkRegister) and accept compressed responses
+     * (e.g. getEntities, bulkQuery), by decorating the transport of the AsyncRestTemplate
+     * with a GzipClientHttpRequestFactory. Must be called after any change of the transport.
+     * @param minRequestSize the minimum size of the request bodies to compress, -1 to only accept compressed responses
+     */
+    public void enableCompression(int minRequestSize) {
+        AsyncClientHttpRequestFactory requestFactory = asyncRestTemplate.getAsyncRequestFactory();
+        if (requestFactory instanceof GzipClientHttpRequestFactory) {
+            requestFactory = ((GzipClientHttpRequestFactory) requestFactory).getDelegate();
+        }
+        asyncRestTemplate.setAsyncRequestFactory(new GzipClientHttpRequestFactory(requestFactory, minRequestSize));
+    }
+
+    /**
+     * Prepare the client for its first requests: build the (de)serializers of all the model classes,
+     * then open connections to the server with concurrent GET /v2/ requests (the API entry point).
+     * Requests are only sent after the serializers are built, so that the warm-up can be awaited before serving traffic.
+     * The warm-up requests go through the retry policy and the concurrency limiter only: they are not coalesced,
+     * not recorded in the metrics, and bypass the circuit breaker, so their failures neither open it nor are rejected by it.
+     * @param connections the number of concurrent requests opening connections, 0 for none
+     * @return the duration of the warm-up, failed if one of the requests failed
+     */
+    public ListenableFuture<Duration> warmUp(int connections) {
+        long start = System.nanoTime();
+        ObjectMapper objectMapper = getObjectMapper();
+        for (Class<?> modelClass : modelClasses) {
+            objectMapper.canSerialize(modelClass);
+            objectMapper.canDeserialize(objectMapper.constructType(modelClass));
+        }
+        SettableListenableFuture<Duration> warmedUp = new SettableListenableFuture<>();
+        if (connections <= 0) {
+            warmedUp.set(Duration.ofNanos(System.nanoTime() - start));
+            return warmedUp;
+        }
+        AtomicInteger remaining = new AtomicInteger(connections);
+        String uri = baseURL + "v2/";
+        HttpHeaders httpHeaders = getHttpHeaders();
+        for (int i = 0; i < connections; i++) {
+            send(HttpMethod.GET, uri, httpHeaders, null, JsonNode.class).addCallback(response -> {
+                if (remaining.decrementAndGet() == 0) {
+                    warmedUp.set(Duration.ofNanos(System.nanoTime() - start));
+                }
+            }, warmedUp::setException);
+        }
+        return warmedUp;
+    }
+
     /**
      * Make an HTTP request with default headers
      */
@@ -539,10 +1164,194 @@ public class Ngsi2Client {
      * Make an HTTP request with custom headers
      */
     protected <T,U> ListenableFuture<ResponseEntity<T>> request(HttpMethod method, String uri, HttpHeaders httpHeaders, U body, Class<T> responseType) {
+        RequestCoalescer requestCoalescer = this.requestCoalescer;
+        if (requestCoalescer != null && body == null) {
+            return requestCoalescer.request(method, uri, httpHeaders, responseType, () -> send(method, uri, httpHeaders, body, responseType));
+        }
+        return send(method, uri, httpHeaders, body, responseType);
+    }
+
+    private <T,U> ListenableFuture<ResponseEntity<T>> send(HttpMethod method, String uri, HttpHeaders httpHeaders, U body, Class<T> responseType) {
+        RetryPolicy retryPolicy = this.retryPolicy;
+        if (retryPolicy != null) {
+            return retryPolicy.execute(resourcePath(uri), method, () -> exchange(method, uri, httpHeaders, body, responseType));
+        }
+        return exchange(method, uri, httpHeaders, body, responseType);
+    }
+
+    /**
+     * Path of a request URI with the identifiers replaced by {}, e.g. /v2/entities/{}/attrs/{}/value,
+     * identifying the operation below the protected request method
+     */
+    static String resourcePath(String uri) {
+        int start = uri.indexOf("://");
+        start = uri.indexOf('/', start < 0 ? 0 : start + 3);
+        if (start < 0) {
+            return "/";
+        }
+        int end = uri.indexOf('?', start);
+        String[] segments = uri.substring(start, end < 0 ? uri.length() : end).split("/", -1);
+        StringBuilder path = new StringBuilder();
+        for (int i = 1; i < segments.length; i++) {
+            path.append('/');
+            path.append(identifiedSegments.contains(segments[i - 1]) && !segments[i].isEmpty() ? "{}" : segments[i]);
+        }
+        return path.toString();
+    }
+
+    private <T,U> ListenableFuture<ResponseEntity<T>> exchange(HttpMethod method, String uri, HttpHeaders httpHeaders, U body, Class<T> responseType) {
         HttpEntity<U> requestEntity = new HttpEntity<>(body, httpHeaders);
+        ConcurrencyLimiter concurrencyLimiter = this.concurrencyLimiter;
+        if (concurrencyLimiter != null) {
+            return concurrencyLimiter.execute(() -> asyncRestTemplate.exchange(uri, method, requestEntity, responseType));
+        }
         return asyncRestTemplate.exchange(uri, method, requestEntity, responseType);
     }
 
+    private <T> ListenableFuture<T> getCachedEntity(String operation, String entityId, String uri, Class<T> responseType) {
+        EntityCache entityCache = this.entityCache;
+        if (entityCache == null) {
+            return adapt(call(operation, HttpMethod.GET, uri, null, responseType));
+        }
+        return entityCache.getEntity(cacheKey(uri), entityId, () -> adapt(call(operation, HttpMethod.GET, uri, null, responseType)));
+    }
+
+    /**
+     * Invalidate the cached values of an entity when the write is sent and again once it completes,
+     * to drop the values read while the write was in flight
+     */
+    private <T> ListenableFuture<T> invalidating(String entityId, String type, ListenableFuture<T> future) {
+        EntityCache entityCache = this.entityCache;
+        if (entityCache != null) {
+            entityCache.invalidateEntity(entityId, type);
+            future.addCallback(result -> entityCache.invalidateEntity(entityId, type), ex -> entityCache.invalidateEntity(entityId, type));
+        }
+        return future;
+    }
+
+    /**
+     * The cached values depend on the tenant (Fiware-Service and Fiware-ServicePath headers)
+     */
+    private String cacheKey(String uri) {
+        HttpHeaders httpHeaders = getHttpHeaders();
+        String service = httpHeaders.getFirst("Fiware-Service");
+        String servicePath = httpHeaders.getFirst("Fiware-ServicePath");
+        if (service == null && servicePath == null) {
+            return uri;
+        }
+        return uri + '\n' + service + '\n' + servicePath;
+    }
+
+    private Ngsi2UriTemplate.Builder entitiesQuery(Collection<String> ids, String idPattern,
+                                                   Collection<String> types, Collection<String> attrs,
+                                                   String query, GeoQuery geoQuery, Collection<String> orderBy,
+                                                   int offset, int limit) {
+        Ngsi2UriTemplate.Builder builder = entitiesUri.builder();
+        addParam(builder, "id", ids);
+        addParam(builder, "idPattern", idPattern);
+        addParam(builder, "type", types);
+        addParam(builder, "attrs", attrs);
+        addParam(builder, "query", query);
+        addGeoQueryParams(builder, geoQuery);
+        addParam(builder, "orderBy", orderBy);
+        addPaginationParams(builder, offset, limit);
+        return builder;
+    }
+
+    /**
+     * Make an HTTP request returning a JSON array decoded item by item.
+     * The request is not coalesced nor retried, as the items may already be consumed when it fails,
+     * but it goes through the circuit breaker, where its duration (that of the consumer) is not a slow call.
+     */
+    private <T,U> ListenableFuture<Integer> stream(String operation, HttpMethod method, String uri, U body, Class<T> itemType, Consumer<? super T> consumer) {
+        ObjectMapper objectMapper = getMappingJackson2HttpMessageConverter().getObjectMapper();
+        HttpHeaders httpHeaders = getHttpHeaders();
+        AsyncRequestCallback requestCallback = request -> {
+            request.getHeaders().putAll(httpHeaders);
+            if (body != null) {
+                objectMapper.writeValue(request.getBody(), body);
+            }
+        };
+        StreamingArrayExtractor<T> extractor = new StreamingArrayExtractor<>(objectMapper, itemType, consumer);
+        ListenableFuture<Integer> future;
+        ClientMetrics metrics = this.metrics;
+        long start = metrics != null ? started(metrics, operation) : 0;
+        ConcurrencyLimiter concurrencyLimiter = this.concurrencyLimiter;
+        Supplier<ListenableFuture<Integer>> request;
+        if (concurrencyLimiter != null) {
+            request = () -> concurrencyLimiter.execute(() -> asyncRestTemplate.execute(uri, method, requestCallback, extractor));
+        } else {
+            request = () -> asyncRestTemplate.execute(uri, method, requestCallback, extractor);
+        }
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        future = circuitBreaker != null ? circuitBreaker.executeUntimed(baseURL, operation, request) : request.get();
+        if (metrics != null) {
+            future.addCallback(result -> metrics.requestCompleted(operation, System.nanoTime() - start, -1, -1),
+                    ex -> metrics.requestFailed(operation, System.nanoTime() - start, -1, ex));
+        }
+        return future;
+    }
+
+    /**
+     * Make an HTTP request with default headers for a given operation, recording its metrics
+     */
+    <T,U> ListenableFuture<ResponseEntity<T>> call(String operation, HttpMethod method, String uri, U body, Class<T> responseType) {
+        return call(operation, method, uri, getHttpHeaders(), body, responseType);
+    }
+
+    /**
+     * Make an HTTP request with custom headers for a given operation, recording its metrics
+     */
+    private <T,U> ListenableFuture<ResponseEntity<T>> call(String operation, HttpMethod method, String uri, HttpHeaders httpHeaders, U body, Class<T> responseType) {
+        ClientMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return guarded(operation, method, uri, httpHeaders, body, responseType);
+        }
+        // Serialize the body once to measure its size, it is sent as is by the ByteArrayHttpMessageConverter
+        long requestBytes = 0;
+        Object requestBody = body;
+        if (body != null) {
+            try {
+                byte[] bytes = getMappingJackson2HttpMessageConverter().getObjectMapper().writeValueAsBytes(body);
+                requestBytes = bytes.length;
+                requestBody = bytes;
+            } catch (JsonProcessingException e) {
+                SettableListenableFuture<ResponseEntity<T>> future = new SettableListenableFuture<>();
+                future.setException(new HttpMessageNotWritableException("Could not write JSON: " + e.getMessage(), e));
+                return future;
+            }
+        }
+        long start = started(metrics, operation);
+        long sentBytes = requestBytes;
+        ListenableFuture<ResponseEntity<T>> future;
+        try {
+            future = guarded(operation, method, uri, httpHeaders, requestBody, responseType);
+        } catch (RuntimeException e) {
+            metrics.requestFailed(operation, System.nanoTime() - start, sentBytes, e);
+            throw e;
+        }
+        future.addCallback(response -> metrics.requestCompleted(operation, System.nanoTime() - start, sentBytes,
+                response == null ? -1 : response.getHeaders().getContentLength()),
+                ex -> metrics.requestFailed(operation, System.nanoTime() - start, sentBytes, ex));
+        return future;
+    }
+
+    /**
+     * Make an HTTP request through the circuit breaker
+     */
+    private <T,U> ListenableFuture<ResponseEntity<T>> guarded(String operation, HttpMethod method, String uri, HttpHeaders httpHeaders, U body, Class<T> responseType) {
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        if (circuitBreaker == null) {
+            return request(method, uri, httpHeaders, body, responseType);
+        }
+        return circuitBreaker.execute(baseURL, operation, () -> request(method, uri, httpHeaders, body, responseType));
+    }
+
+    private long started(ClientMetrics metrics, String operation) {
+        metrics.requestStarted(operation);
+        return System.nanoTime();
+    }
+
     private <T> ListenableFuture<T> adapt(ListenableFuture<ResponseEntity<T>> responseEntityListenableFuture) {
         return new ListenableFutureAdapter<T, ResponseEntity<T>>(responseEntityListenableFuture) {
             @Override
@@ -561,7 +1370,12 @@ public class Ngsi2Client {
         };
     }
 
-    private void addPaginationParams(UriComponentsBuilder builder, int offset, int limit) {
+    @SuppressWarnings("unchecked")
+    private static <T> Class<T[]> arrayType(Class<T> type) {
+        return (Class<T[]>) Array.newInstance(type, 0).getClass();
+    }
+
+    private void addPaginationParams(Ngsi2UriTemplate.Builder builder, int offset, int limit) {
         if (offset > 0) {
             builder.queryParam("offset", offset);
         }
@@ -570,19 +1384,19 @@ public class Ngsi2Client {
         }
     }
 
-    private void addParam(UriComponentsBuilder builder, String key, String value) {
+    private void addParam(Ngsi2UriTemplate.Builder builder, String key, String value) {
         if (!nullOrEmpty(value)) {
             builder.queryParam(key, value);
         }
     }
 
-    private void addParam(UriComponentsBuilder builder, String key, Collection<? extends CharSequence> value) {
+    private void addParam(Ngsi2UriTemplate.Builder builder, String key, Collection<? extends CharSequence> value) {
         if (!nullOrEmpty(value)) {
             builder.queryParam(key, String.join(",", value));
         }
     }
 
-    private void addGeoQueryParams(UriComponentsBuilder builder, GeoQuery geoQuery) {
+    private void addGeoQueryParams(Ngsi2UriTemplate.Builder builder, GeoQuery geoQuery) {
         if (geoQuery != null) {
             StringBuilder georel = new StringBuilder(geoQuery.getRelation().name());
             if (geoQuery.getRelation() == GeoQuery.Relation.near) {
@@ -603,7 +1417,13 @@ public class Ngsi2Client {
         return i == null || i.isEmpty();
     }
 
-    private int extractTotalCount(ResponseEntity responseEntity) {
+    static Map<String, String> extractServices(ResponseEntity<JsonNode> responseEntity) {
+        Map<String, String> services = new HashMap<>();
+        responseEntity.getBody().fields().forEachRemaining(entry -> services.put(entry.getKey(), entry.getValue().textValue()));
+        return services;
+    }
+
+    static int extractTotalCount(ResponseEntity responseEntity) {
         String total = responseEntity.getHeaders().getFirst("X-Total-Count");
         try {
             return Integer.parseInt(total);
@@ -612,7 +1432,7 @@ public class Ngsi2Client {
         }
     }
 
-    private String extractId(ResponseEntity responseEntity) {
+    static String extractId(ResponseEntity responseEntity) {
         String location = responseEntity.getHeaders().getFirst("Location");
         String paths[] = location.split("/");
         if (paths != null && paths.length > 0) {
@@ -655,6 +1475,14 @@ public class Ngsi2Client {
         }
     }
 
+    /**
+     * @return the ObjectMapper serializing the request bodies
+     */
+    ObjectMapper getObjectMapper() {
+        MappingJackson2HttpMessageConverter converter = getMappingJackson2HttpMessageConverter();
+        return converter != null ? converter.getObjectMapper() : new ObjectMapper();
+    }
+
     private MappingJackson2HttpMessageConverter getMappingJackson2HttpMessageConverter() {
         for(HttpMessageConverter httpMessageConverter : asyncRestTemplate.getMessageConverters()) {
             if (httpMessageConverter instanceof MappingJackson2HttpMessageConverter) {
@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.model.*;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureAdapter;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory replica of the entities selected by a subscription, answering the reads without a request.
+ * The replica creates the subscription, loads the matching entities with a bulk query (the entities of the subject
+ * of the subscription and the attributes of its notification), then applies the notifications to its entities.
+ *
+ * The notifications lost (e.g. rejected by a busy NotificationReceiver) are detected by comparing the timesSent counter
+ * of the subscription to the number of notifications received: when some are still missing after a check period,
+ * the entities are loaded again. The deleted entities are not notified: only a load removes them, so the replica is
+ * eventually consistent only when a loadPeriod is given to start().
+ *
+ * Each entity keeps the sequence (see NotificationReceiver.getSequence()) of the last notification applied to it,
+ * or of the request of the page it was loaded from. A notification read by the receiver before that is older than the
+ * replicated entity and is dropped, whether it is applied as it is received or replayed on top of a load.
+ *
+ * The notifications must be in the normalized format. The entities returned are shared and must be treated as read-only.
+ */
+public class Ngsi2LocalReplica implements AutoCloseable {
+
+    private final Ngsi2Client client;
+
+    private final NotificationReceiver receiver;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Subscription subscription;
+
+    private final BulkQueryRequest query;
+
+    private int pageSize = 100;
+
+    private int parallelism = 4;
+
+    private volatile Snapshot entities = new Snapshot(0);
+
+    /**
+     * Taken for reading to apply a notification, for writing to swap the entities after a load
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Entities notified during the current load, null when not loading
+     */
+    private Queue<Versioned> notifiedDuringLoad;
+
+    private final AtomicBoolean loading = new AtomicBoolean();
+
+    private final List<ScheduledFuture<?>> tasks = new ArrayList<>();
+
+    private volatile String subscriptionId;
+
+    private volatile Instant lastLoad;
+
+    private final AtomicLong notifications = new AtomicLong();
+
+    private final AtomicLong loads = new AtomicLong();
+
+    private final AtomicLong stale = new AtomicLong();
+
+    /**
+     * Notifications missing at the previous check, and already recovered by a load
+     */
+    private long missingAtLastCheck;
+
+    private long recovered;
+
+    /**
+     * @param client the client loading the entities and managing the subscription
+     * @param receiver the receiver of the notifications, whose port is the callback of the subscription
+     * @param scheduler the scheduler of the checks and periodic loads
+     * @param subscription the subscription to create, selecting the replicated entities and attributes
+     */
+    public Ngsi2LocalReplica(Ngsi2Client client, NotificationReceiver receiver, ScheduledExecutorService scheduler, Subscription subscription) {
+        Notification notification = subscription.getNotification();
+        if (notification.getAttrsFormat() != null && notification.getAttrsFormat().isPresent()
+                && notification.getAttrsFormat().get() != Notification.Format.normalized) {
+            throw new IllegalArgumentException("the notifications must be in the normalized format");
+        }
+        this.client = client;
+        this.receiver = receiver;
+        this.scheduler = scheduler;
+        this.subscription = subscription;
+        List<String> attributes = notification.getAttributes();
+        this.query = new BulkQueryRequest(subscription.getSubject().getEntities(),
+                attributes == null || attributes.isEmpty() ? null : attributes, null);
+    }
+
+    /**
+     * @param pageSize the number of entities per page of the loads (100 by default)
+     * @param parallelism the number of pages requested at the same time by the loads (4 by default)
+     */
+    public void setLoadPaging(int pageSize, int parallelism) {
+        this.pageSize = pageSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Create the subscription and load the entities
+     * @param checkPeriod the period of the checks of the lost notifications, null for none
+     * @param loadPeriod the period of the full loads, null for none
+     * @return completed once the entities are loaded
+     */
+    public ListenableFuture<Void> start(Duration checkPeriod, Duration loadPeriod) {
+        SettableListenableFuture<Void> started = new SettableListenableFuture<>();
+        client.addSubscription(subscription).addCallback(id -> {
+            subscriptionId = id;
+            receiver.register(id, this::onNotification);
+            synchronized (tasks) {
+                if (checkPeriod != null) {
+                    long period = checkPeriod.toNanos();
+                    tasks.add(scheduler.scheduleWithFixedDelay(this::check, period, period, TimeUnit.NANOSECONDS));
+                }
+                if (loadPeriod != null) {
+                    long period = loadPeriod.toNanos();
+                    tasks.add(scheduler.scheduleWithFixedDelay(this::load, period, period, TimeUnit.NANOSECONDS));
+                }
+            }
+            load().addCallback(started::set, started::setException);
+        }, started::setException);
+        return started;
+    }
+
+    /**
+     * Load all the entities again, unless a load is in progress
+     * @return completed once the entities are loaded
+     */
+    public ListenableFuture<Void> load() {
+        SettableListenableFuture<Void> loaded = new SettableListenableFuture<>();
+        if (!loading.compareAndSet(false, true)) {
+            loaded.set(null);
+            return loaded;
+        }
+        lock.writeLock().lock();
+        try {
+            notifiedDuringLoad = new ConcurrentLinkedQueue<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        Snapshot snapshot = new Snapshot(receiver.getSequence());
+        ListenableFuture<Integer> fetch;
+        try {
+            fetch = new ParallelPageFetcher<Versioned>((offset, limit, count) -> {
+                // The notifications read before the page is requested are older than its entities
+                long requested = receiver.getSequence();
+                return new ListenableFutureAdapter<Paginated<Versioned>, Paginated<Entity>>(client.bulkQuery(query, null, offset, limit, count)) {
+                    @Override
+                    protected Paginated<Versioned> adapt(Paginated<Entity> page) {
+                        List<Versioned> items = new ArrayList<>(page.getItems().size());
+                        page.getItems().forEach(entity -> items.add(new Versioned(entity, requested)));
+                        return new Paginated<>(items, page.getOffset(), page.getLimit(), page.getTotal());
+                    }
+                };
+            }, 0, pageSize, parallelism).fetch(false, snapshot::put);
+        } catch (RuntimeException e) {
+            endLoad(null);
+            loaded.setException(e);
+            return loaded;
+        }
+        fetch.addCallback(count -> {
+            endLoad(snapshot);
+            loads.incrementAndGet();
+            lastLoad = Instant.now();
+            loaded.set(null);
+        }, ex -> {
+            endLoad(null);
+            loaded.setException(ex);
+        });
+        return loaded;
+    }
+
+    /**
+     * Stop updating the replica and delete the subscription
+     */
+    @Override
+    public void close() {
+        synchronized (tasks) {
+            tasks.forEach(task -> task.cancel(false));
+            tasks.clear();
+        }
+        String id = subscriptionId;
+        if (id != null) {
+            receiver.unregister(id);
+            client.deleteSubscription(id);
+        }
+    }
+
+    /**
+     * @param entityId the entity ID
+     * @param type the entity type, null if the ID is not ambiguous
+     * @return the entity, null if not replicated
+     */
+    public Entity getEntity(String entityId, String type) {
+        Map<String, Versioned> byType = entities.byId.get(entityId);
+        if (byType == null) {
+            return null;
+        }
+        Versioned versioned;
+        if (type == null || type.isEmpty()) {
+            Iterator<Versioned> iterator = byType.values().iterator();
+            versioned = iterator.hasNext() ? iterator.next() : null;
+        } else {
+            versioned = byType.get(type);
+        }
+        return versioned == null ? null : versioned.entity;
+    }
+
+    /**
+     * @param entityId the entity ID
+     * @param type the entity type, null if the ID is not ambiguous
+     * @param attributeName the attribute name
+     * @return the attribute, null if not replicated
+     */
+    public Attribute getAttribute(String entityId, String type, String attributeName) {
+        Entity entity = getEntity(entityId, type);
+        return entity == null || entity.getAttributes() == null ? null : entity.getAttributes().get(attributeName);
+    }
+
+    /**
+     * @param entityId the entity ID
+     * @param type the entity type, null if the ID is not ambiguous
+     * @param attributeName the attribute name
+     * @return the attribute value, null if not replicated
+     */
+    public Object getAttributeValue(String entityId, String type, String attributeName) {
+        Attribute attribute = getAttribute(entityId, type, attributeName);
+        return attribute == null ? null : attribute.getValue();
+    }
+
+    /**
+     * @return all the replicated entities
+     */
+    public List<Entity> getEntities() {
+        List<Entity> all = new ArrayList<>();
+        entities.byId.values().forEach(byType -> byType.values().forEach(versioned -> all.add(versioned.entity)));
+        return all;
+    }
+
+    /**
+     * @return the number of replicated entities
+     */
+    public int size() {
+        int size = 0;
+        for (Map<String, Versioned> byType : entities.byId.values()) {
+            size += byType.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the ID of the subscription, null until it is created
+     */
+    public String getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    /**
+     * @return the number of notifications received
+     */
+    public long getNotifications() {
+        return notifications.get();
+    }
+
+    /**
+     * @return the number of completed loads
+     */
+    public long getLoads() {
+        return loads.get();
+    }
+
+    /**
+     * @return the number of notified entities dropped because older than the replicated ones
+     */
+    public long getStale() {
+        return stale.get();
+    }
+
+    /**
+     * @return the end of the last load, null until the first one completes
+     */
+    public Instant getLastLoad() {
+        return lastLoad;
+    }
+
+    void onNotification(NotificationReceiver.Message message) {
+        notifications.incrementAndGet();
+        List<Entity> notified = message.getEntities();
+        lock.readLock().lock();
+        try {
+            Snapshot current = entities;
+            for (Entity entity : notified) {
+                Versioned versioned = new Versioned(entity, message.getSequence());
+                if (!current.merge(versioned)) {
+                    stale.incrementAndGet();
+                }
+                if (notifiedDuringLoad != null) {
+                    notifiedDuringLoad.add(versioned);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Load the entities again when notifications are still missing since the previous check
+     */
+    void check() {
+        String id = subscriptionId;
+        if (id == null) {
+            return;
+        }
+        client.getSubscription(id).addCallback(current -> {
+            long missing;
+            synchronized (this) {
+                missing = current.getNotification().getTimesSent() - notifications.get() - recovered;
+                if (missing <= 0 || missingAtLastCheck <= 0) {
+                    missingAtLastCheck = missing;
+                    return;
+                }
+                recovered += missing;
+                missingAtLastCheck = 0;
+            }
+            load();
+        }, ex -> {});
+    }
+
+    private void endLoad(Snapshot snapshot) {
+        lock.writeLock().lock();
+        try {
+            if (snapshot != null) {
+                notifiedDuringLoad.forEach(snapshot::merge);
+                entities = snapshot;
+            }
+            notifiedDuringLoad = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        loading.set(false);
+    }
+
+    private static String typeKey(String type) {
+        return type == null ? "" : type;
+    }
+
+    /**
+     * Replicated entity, with the sequence of the last notification applied or of the request of its page
+     */
+    private static class Versioned {
+
+        final Entity entity;
+
+        final long sequence;
+
+        Versioned(Entity entity, long sequence) {
+            this.entity = entity;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Entities by ID then by type, loaded from pages requested after the notification of sequence loadedAt
+     */
+    private static class Snapshot {
+
+        final Map<String, Map<String, Versioned>> byId = new ConcurrentHashMap<>();
+
+        final long loadedAt;
+
+        Snapshot(long loadedAt) {
+            this.loadedAt = loadedAt;
+        }
+
+        /**
+         * Add a loaded entity, keeping the most recent page when an entity is returned twice
+         */
+        void put(Versioned loaded) {
+            byId.computeIfAbsent(loaded.entity.getId(), id -> new ConcurrentHashMap<>(2)).merge(typeKey(loaded.entity.getType()), loaded,
+                    (previous, entity) -> entity.sequence >= previous.sequence ? entity : previous);
+        }
+
+        /**
+         * Update the notified attributes of an entity, without modifying the shared instance
+         * @return false if the notification is older than the entity, or than the load for an entity not loaded (e.g. deleted)
+         */
+        boolean merge(Versioned notified) {
+            boolean[] applied = new boolean[1];
+            byId.compute(notified.entity.getId(), (id, byType) -> {
+                Map<String, Versioned> updated = byType == null ? new ConcurrentHashMap<>(2) : byType;
+                updated.compute(typeKey(notified.entity.getType()), (type, previous) -> {
+                    if (notified.sequence <= (previous == null ? loadedAt : previous.sequence)) {
+                        return previous;
+                    }
+                    applied[0] = true;
+                    if (previous == null) {
+                        return notified;
+                    }
+                    Map<String, Attribute> attributes = new LinkedHashMap<>();
+                    if (previous.entity.getAttributes() != null) {
+                        attributes.putAll(previous.entity.getAttributes());
+                    }
+                    if (notified.entity.getAttributes() != null) {
+                        attributes.putAll(notified.entity.getAttributes());
+                    }
+                    return new Versioned(new Entity(notified.entity.getId(), notified.entity.getType(), attributes), notified.sequence);
+                });
+                return updated.isEmpty() ? null : updated;
+            });
+            return applied[0];
+        }
+    }
+}
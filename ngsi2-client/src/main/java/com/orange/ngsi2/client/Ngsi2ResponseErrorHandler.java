@@ -4,9 +4,12 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.orange.ngsi2.exception.Ngsi2Exception;
 import com.orange.ngsi2.model.Error;
 import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.client.ResponseErrorHandler;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
 
 /**
  * Error responses should contain an Error json structure.
@@ -25,14 +28,23 @@ class Ngsi2ResponseErrorHandler implements ResponseErrorHandler {
         return response.getStatusCode().is4xxClientError() || response.getStatusCode().is5xxServerError();
     }
 
+    /**
+     * Throw a stackless Ngsi2Exception, the error body being decoded only if the caller reads the error
+     */
     @Override
     public void handleError(ClientHttpResponse response) throws IOException {
-        Ngsi2Exception ex;
-        try {
-            ex = Ngsi2Exception.fromError(response.getStatusCode().value(), objectMapper.readValue(response.getBody(), Error.class));
-        } catch (Exception e) {
-            ex = new Ngsi2Exception(response.getStatusCode().toString(), response.getStatusText(), null);
-        }
+        int statusCode = response.getRawStatusCode();
+        String statusText = response.getStatusText();
+        InputStream stream = response.getBody();
+        byte[] body = stream == null ? new byte[0] : StreamUtils.copyToByteArray(stream);
+        Ngsi2Exception ex = Ngsi2Exception.fromResponse(statusCode, () -> {
+            try {
+                return objectMapper.readValue(body, Error.class);
+            } catch (Exception e) {
+                return new Error(String.valueOf(statusCode), Optional.ofNullable(statusText), Optional.empty());
+            }
+        });
+        ex.setRetryAfter(response.getHeaders().getFirst("Retry-After"));
         throw ex;
     }
 }
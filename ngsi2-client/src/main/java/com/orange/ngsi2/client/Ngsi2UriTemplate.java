@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.util.UriUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * URI of an operation, parsed once from the base URL and the operation path.
+ * Produces the same URIs as UriComponentsBuilder.fromHttpUrl(baseURL).path(path) followed either by
+ * toUriString() (encoded, see {@link #builder()}) or by buildAndExpand(...).toUriString() (not encoded, see {@link #expand(Object...)}).
+ */
+class Ngsi2UriTemplate {
+
+    private final static String encoding = "UTF-8";
+
+    /**
+     * Encoded URI, for operations without path variables
+     */
+    private final String encodedUri;
+
+    /**
+     * Literal parts of the URI around the path variables: there is always one more literal than variables
+     */
+    private final String[] literals;
+
+    /**
+     * True if the base URL already has a query
+     */
+    private final boolean hasQuery;
+
+    /**
+     * @param baseURL base URL for the NGSIv2 service
+     * @param path the operation path, relative to the base URL, with optional {variables}
+     */
+    Ngsi2UriTemplate(String baseURL, String path) {
+        encodedUri = UriComponentsBuilder.fromHttpUrl(baseURL).path(path).toUriString();
+        literals = split(UriComponentsBuilder.fromHttpUrl(baseURL).path(path).build().toUriString());
+        hasQuery = UriComponentsBuilder.fromHttpUrl(baseURL).build().getQuery() != null;
+    }
+
+    /**
+     * @return the encoded URI, without query parameters
+     */
+    String toUriString() {
+        return encodedUri;
+    }
+
+    /**
+     * @return a builder for an encoded URI
+     */
+    Builder builder() {
+        return new Builder(new StringBuilder(encodedUri.length() + 64).append(encodedUri), true, hasQuery);
+    }
+
+    /**
+     * @param uriVariables the values of the path variables in order, they are not encoded
+     * @return a builder for a not encoded URI
+     */
+    Builder expand(Object... uriVariables) {
+        if (uriVariables.length < literals.length - 1) {
+            throw new IllegalArgumentException("Not enough variable values available to expand the URI");
+        }
+        StringBuilder uri = new StringBuilder(literals[0].length() + 64).append(literals[0]);
+        for (int i = 1; i < literals.length; i++) {
+            if (uriVariables[i - 1] != null) {
+                uri.append(uriVariables[i - 1].toString());
+            }
+            uri.append(literals[i]);
+        }
+        return new Builder(uri, false, hasQuery);
+    }
+
+    private static String[] split(String uri) {
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        int open;
+        while ((open = uri.indexOf('{', start)) != -1) {
+            int close = uri.indexOf('}', open);
+            if (close == -1) {
+                break;
+            }
+            parts.add(uri.substring(start, open));
+            start = close + 1;
+        }
+        parts.add(uri.substring(start));
+        return parts.toArray(new String[parts.size()]);
+    }
+
+    /**
+     * Appends the query parameters to the URI of an operation
+     */
+    static class Builder {
+
+        private final StringBuilder uri;
+
+        private final boolean encode;
+
+        private boolean hasQuery;
+
+        private Builder(StringBuilder uri, boolean encode, boolean hasQuery) {
+            this.uri = uri;
+            this.encode = encode;
+            this.hasQuery = hasQuery;
+        }
+
+        /**
+         * Append a query parameter
+         * @param name the parameter name
+         * @param value the parameter value
+         * @return this builder
+         */
+        Builder queryParam(String name, Object value) {
+            uri.append(hasQuery ? '&' : '?');
+            hasQuery = true;
+            uri.append(encode(name)).append('=').append(encode(String.valueOf(value)));
+            return this;
+        }
+
+        /**
+         * @return the URI as a string
+         */
+        String toUriString() {
+            return uri.toString();
+        }
+
+        private String encode(String value) {
+            if (!encode) {
+                return value;
+            }
+            try {
+                return UriUtils.encodeQueryParam(value, encoding);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
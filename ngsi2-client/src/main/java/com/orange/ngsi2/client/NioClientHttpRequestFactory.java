@@ -0,0 +1,1217 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.orange.ngsi2.client;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.AbstractClientHttpResponse;
+import org.springframework.http.client.AsyncClientHttpRequest;
+import org.springframework.http.client.AsyncClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking HTTP/1.1 transport for the AsyncRestTemplate of a Ngsi2Client.
+ * A single event loop thread sends all the requests over a bounded pool of keep-alive connections per host,
+ * instead of blocking a thread per request as the default SimpleClientHttpRequestFactory does.
+ * The requests beyond the pool size wait for a connection of their host to be released.
+ *
+ * The future of a response completes once its headers are received, and its body is streamed:
+ * the connection stops reading when 256 KB of the body are waiting to be read, and resumes once half of them are read.
+ * The body of a response must then be read or closed, otherwise its connection is never released.
+ * The futures are completed, and the bodies decoded, by a callback executor, never by the event loop thread.
+ * The default callback executor has as many threads as maxConnectionsPerHost and queues the other callbacks:
+ * the callbacks must then not block waiting for other responses, or a dedicated executor must be given.
+ *
+ * Only cleartext HTTP/1.1 is supported: the https scheme is rejected, so this transport cannot reach a broker behind TLS,
+ * and HTTP/2 (including cleartext h2c) is out of scope, the requests of a host being spread over its connections instead
+ * of multiplexed. The request bodies are buffered in memory.
+ */
+public class NioClientHttpRequestFactory implements AsyncClientHttpRequestFactory, AutoCloseable {
+
+    private final static AtomicInteger threadCount = new AtomicInteger();
+
+    private final static int maxHeaderSize = 64 * 1024;
+
+    /**
+     * Bytes of a response body waiting to be read beyond which its connection stops reading
+     */
+    private final static int maxBufferedBody = 256 * 1024;
+
+    private final static Set<HttpMethod> idempotentMethods = EnumSet.of(HttpMethod.GET, HttpMethod.HEAD,
+            HttpMethod.PUT, HttpMethod.DELETE, HttpMethod.OPTIONS);
+
+    private final int maxConnectionsPerHost;
+
+    private volatile long keepAliveNanos = TimeUnit.SECONDS.toNanos(60);
+
+    private volatile long connectTimeoutNanos = TimeUnit.SECONDS.toNanos(10);
+
+    private volatile long readTimeoutNanos;
+
+    private final ExecutorService defaultCallbackExecutor;
+
+    private volatile Executor callbackExecutor;
+
+    private final Selector selector;
+
+    private final Thread eventLoop;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /*
+     * State of the event loop, only accessed by its thread
+     */
+
+    private final Map<String, HostPool> pools = new HashMap<>();
+
+    private final Set<Connection> connections = new HashSet<>();
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+
+    /*
+     * Statistics, only written by the event loop
+     */
+
+    private volatile int openConnections;
+
+    private volatile int idleConnections;
+
+    private volatile int pendingRequests;
+
+    private volatile long reusedConnections;
+
+    private volatile boolean closed;
+
+    /**
+     * @param maxConnectionsPerHost the maximum number of connections opened to each host, and of threads of the default callback executor
+     */
+    public NioClientHttpRequestFactory(int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost <= 0) {
+            throw new IllegalArgumentException("maxConnectionsPerHost must be positive");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        String name = "ngsi2-nio-" + threadCount.incrementAndGet();
+        AtomicInteger callbackThreadCount = new AtomicInteger();
+        ThreadPoolExecutor callbackPool = new ThreadPoolExecutor(maxConnectionsPerHost, maxConnectionsPerHost, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, name + "-callback-" + callbackThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        callbackPool.allowCoreThreadTimeOut(true);
+        defaultCallbackExecutor = callbackPool;
+        callbackExecutor = defaultCallbackExecutor;
+        eventLoop = new Thread(this::run, name);
+        eventLoop.setDaemon(true);
+        eventLoop.start();
+    }
+
+    /**
+     * @param keepAlive the time an idle connection is kept open for the next requests (60s by default), zero to disable the reuse of the connections
+     */
+    public void setKeepAlive(Duration keepAlive) {
+        this.keepAliveNanos = keepAlive.toNanos();
+    }
+
+    /**
+     * @param connectTimeout the maximum time to open a connection (10s by default)
+     */
+    public void setConnectTimeout(Duration connectTimeout) {
+        this.connectTimeoutNanos = connectTimeout.toNanos();
+    }
+
+    /**
+     * @param readTimeout the maximum time without receiving data from the server once a request is sent, zero for none (the default)
+     */
+    public void setReadTimeout(Duration readTimeout) {
+        this.readTimeoutNanos = readTimeout.toNanos();
+    }
+
+    /**
+     * @param callbackExecutor the executor completing the futures of the responses, then reading their bodies.
+     *                         It must not run the tasks on the calling thread (the event loop), which cannot wait for the bodies.
+     */
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    @Override
+    public AsyncClientHttpRequest createAsyncRequest(URI uri, HttpMethod httpMethod) throws IOException {
+        if (!"http".equalsIgnoreCase(uri.getScheme())) {
+            throw new IOException("Unsupported scheme: " + uri.getScheme());
+        }
+        return new NioClientHttpRequest(uri, httpMethod);
+    }
+
+    /**
+     * Close all the connections and fail the requests in flight
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    /**
+     * @return the number of open connections, idle or not
+     */
+    public int getOpenConnections() {
+        return openConnections;
+    }
+
+    /**
+     * @return the number of idle connections kept open
+     */
+    public int getIdleConnections() {
+        return idleConnections;
+    }
+
+    /**
+     * @return the number of requests waiting for a connection
+     */
+    public int getPendingRequests() {
+        return pendingRequests;
+    }
+
+    /**
+     * @return the number of requests sent over an already open connection
+     */
+    public long getReusedConnections() {
+        return reusedConnections;
+    }
+
+    private ListenableFuture<ClientHttpResponse> execute(Exchange exchange) throws IOException {
+        if (closed) {
+            throw new IOException("Transport closed");
+        }
+        exchange.future.addCallback(result -> {}, ex -> {
+            if (exchange.future.isCancelled()) {
+                submit(() -> cancel(exchange));
+            }
+        });
+        submit(() -> dispatch(exchange));
+        return exchange.future;
+    }
+
+    private void submit(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select(selectTimeoutMillis());
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isConnectable()) {
+                            connection.finishConnect();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        connection.fail(e);
+                    }
+                }
+                expire(System.nanoTime());
+            }
+        } catch (IOException e) {
+            closed = true;
+        } finally {
+            shutdown();
+        }
+    }
+
+    private long selectTimeoutMillis() {
+        long now = System.nanoTime();
+        long timeout = Long.MAX_VALUE;
+        for (Connection connection : connections) {
+            if (connection.deadline != Long.MAX_VALUE) {
+                timeout = Math.min(timeout, connection.deadline - now);
+            }
+        }
+        if (timeout == Long.MAX_VALUE) {
+            return 0;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeout) + 1);
+    }
+
+    private void expire(long now) {
+        List<Connection> expired = null;
+        for (Connection connection : connections) {
+            if (connection.deadline != Long.MAX_VALUE && connection.deadline - now <= 0) {
+                if (expired == null) {
+                    expired = new ArrayList<>();
+                }
+                expired.add(connection);
+            }
+        }
+        if (expired != null) {
+            for (Connection connection : expired) {
+                if (connection.exchange == null) {
+                    connection.close();
+                } else {
+                    connection.fail(new SocketTimeoutException(connection.connected ? "Read timed out" : "Connect timed out"));
+                }
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // the task failed its own request, keep the event loop running
+            }
+        }
+    }
+
+    private void shutdown() {
+        runTasks();
+        IOException closedException = new IOException("Transport closed");
+        for (Connection connection : new ArrayList<>(connections)) {
+            connection.fail(closedException);
+        }
+        for (HostPool pool : pools.values()) {
+            Exchange exchange;
+            while ((exchange = pool.pending.poll()) != null) {
+                failed(exchange, closedException);
+            }
+        }
+        pendingRequests = 0;
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        // The failures already submitted are still completed
+        defaultCallbackExecutor.shutdown();
+    }
+
+    /**
+     * Send the request over an idle connection, a new connection, or queue it
+     */
+    private void dispatch(Exchange exchange) {
+        if (closed) {
+            failed(exchange, new IOException("Transport closed"));
+            return;
+        }
+        if (exchange.future.isDone()) {
+            return;
+        }
+        HostPool pool = pools.computeIfAbsent(exchange.hostKey, k -> new HostPool());
+        // Reuse the most recently used connection, the least likely to be closed by the server
+        Connection connection = pool.idle.pollLast();
+        if (connection != null) {
+            idleConnections--;
+            reusedConnections++;
+            connection.reused = true;
+            connection.start(exchange);
+        } else if (pool.open < maxConnectionsPerHost) {
+            open(pool, exchange);
+        } else {
+            pool.pending.add(exchange);
+            pendingRequests++;
+        }
+    }
+
+    private void open(HostPool pool, Exchange exchange) {
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open();
+        } catch (IOException e) {
+            failed(exchange, e);
+            return;
+        }
+        Connection connection = new Connection(pool, channel);
+        connection.exchange = exchange;
+        exchange.connection = connection;
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            connection.key = channel.register(selector, 0, connection);
+            connection.deadline = System.nanoTime() + connectTimeoutNanos;
+            if (channel.connect(exchange.address)) {
+                connection.connected();
+            } else {
+                connection.key.interestOps(SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException | RuntimeException e) {
+            connection.fail(e);
+        }
+    }
+
+    private void cancel(Exchange exchange) {
+        Connection connection = exchange.connection;
+        if (connection != null && connection.exchange == exchange) {
+            // The response cannot be skipped, the connection is not reusable
+            connection.exchange = null;
+            connection.close();
+        } else {
+            HostPool pool = pools.get(exchange.hostKey);
+            if (pool != null && pool.pending.remove(exchange)) {
+                pendingRequests--;
+            }
+        }
+    }
+
+    private void completed(Exchange exchange, ClientHttpResponse response) {
+        callbackExecutor.execute(() -> exchange.future.set(response));
+    }
+
+    private void failed(Exchange exchange, Throwable failure) {
+        callbackExecutor.execute(() -> exchange.future.setException(failure));
+    }
+
+    private static ByteBuffer encodeRequest(URI uri, HttpMethod method, HttpHeaders headers, byte[] body, boolean keepAlive) {
+        StringBuilder head = new StringBuilder(256);
+        String path = uri.getRawPath();
+        head.append(method.name()).append(' ').append(path == null || path.isEmpty() ? "/" : path);
+        if (uri.getRawQuery() != null) {
+            head.append('?').append(uri.getRawQuery());
+        }
+        head.append(" HTTP/1.1\r\nHost: ").append(uri.getHost());
+        if (uri.getPort() != -1) {
+            head.append(':').append(uri.getPort());
+        }
+        head.append("\r\n");
+        headers.forEach((name, values) -> {
+            if (!isTransportHeader(name)) {
+                values.forEach(value -> head.append(name).append(": ").append(value).append("\r\n"));
+            }
+        });
+        if (body.length > 0 || method == HttpMethod.POST || method == HttpMethod.PUT || method == HttpMethod.PATCH) {
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        if (!keepAlive) {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer buffer = ByteBuffer.allocate(headBytes.length + body.length);
+        buffer.put(headBytes).put(body);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Headers managed by the transport
+     */
+    private static boolean isTransportHeader(String name) {
+        return name.equalsIgnoreCase(HttpHeaders.HOST) || name.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH)
+                || name.equalsIgnoreCase(HttpHeaders.CONNECTION) || name.equalsIgnoreCase(HttpHeaders.TRANSFER_ENCODING);
+    }
+
+    /**
+     * Request buffering its body until it is executed
+     */
+    private class NioClientHttpRequest implements AsyncClientHttpRequest {
+
+        private final URI uri;
+
+        private final HttpMethod method;
+
+        private final HttpHeaders headers = new HttpHeaders();
+
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+
+        private boolean executed;
+
+        NioClientHttpRequest(URI uri, HttpMethod method) {
+            this.uri = uri;
+            this.method = method;
+        }
+
+        @Override
+        public HttpMethod getMethod() {
+            return method;
+        }
+
+        @Override
+        public URI getURI() {
+            return uri;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        @Override
+        public OutputStream getBody() throws IOException {
+            return body;
+        }
+
+        @Override
+        public ListenableFuture<ClientHttpResponse> executeAsync() throws IOException {
+            if (executed) {
+                throw new IllegalStateException("ClientHttpRequest already executed");
+            }
+            executed = true;
+            int port = uri.getPort() != -1 ? uri.getPort() : 80;
+            // The host name is resolved by the calling thread, not by the event loop
+            InetSocketAddress address = new InetSocketAddress(uri.getHost(), port);
+            if (address.isUnresolved()) {
+                throw new IOException("Unknown host: " + uri.getHost());
+            }
+            ByteBuffer request = encodeRequest(uri, method, headers, body.toByteArray(), keepAliveNanos > 0);
+            return execute(new Exchange(uri.getHost() + ':' + port, address, method, request));
+        }
+    }
+
+    /**
+     * A request and its response
+     */
+    private static class Exchange {
+
+        final String hostKey;
+
+        final InetSocketAddress address;
+
+        final HttpMethod method;
+
+        final ByteBuffer request;
+
+        final SettableListenableFuture<ClientHttpResponse> future = new SettableListenableFuture<>();
+
+        Connection connection;
+
+        /**
+         * Body of the response, created for each attempt
+         */
+        ResponseBody body;
+
+        /**
+         * True once the future is completed with the response headers
+         */
+        boolean delivered;
+
+        boolean retried;
+
+        Exchange(String hostKey, InetSocketAddress address, HttpMethod method, ByteBuffer request) {
+            this.hostKey = hostKey;
+            this.address = address;
+            this.method = method;
+            this.request = request;
+        }
+    }
+
+    /**
+     * Connections and waiting requests of a host
+     */
+    private static class HostPool {
+
+        final Deque<Connection> idle = new ArrayDeque<>();
+
+        final Deque<Exchange> pending = new ArrayDeque<>();
+
+        int open;
+    }
+
+    /**
+     * Connection sending one request at a time
+     */
+    private class Connection {
+
+        final HostPool pool;
+
+        final SocketChannel channel;
+
+        SelectionKey key;
+
+        Exchange exchange;
+
+        ResponseParser parser;
+
+        long deadline = Long.MAX_VALUE;
+
+        boolean connected;
+
+        boolean reused;
+
+        Connection(HostPool pool, SocketChannel channel) {
+            this.pool = pool;
+            this.channel = channel;
+            pool.open++;
+            openConnections++;
+            connections.add(this);
+        }
+
+        void finishConnect() throws IOException {
+            if (channel.finishConnect()) {
+                connected();
+            }
+        }
+
+        void connected() throws IOException {
+            connected = true;
+            send();
+        }
+
+        void start(Exchange exchange) {
+            this.exchange = exchange;
+            exchange.connection = this;
+            try {
+                send();
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        private void send() throws IOException {
+            exchange.request.rewind();
+            exchange.body = new ResponseBody(this, exchange);
+            parser = new ResponseParser(exchange.method == HttpMethod.HEAD);
+            deadline = readTimeoutNanos > 0 ? System.nanoTime() + readTimeoutNanos : Long.MAX_VALUE;
+            write();
+        }
+
+        void write() throws IOException {
+            if (exchange == null) {
+                return;
+            }
+            channel.write(exchange.request);
+            key.interestOps(exchange.request.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        void read() throws IOException {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                endOfStream();
+                return;
+            }
+            if (exchange == null) {
+                // Idle connections are not expected to receive data
+                close();
+                return;
+            }
+            readBuffer.flip();
+            parser.feed(readBuffer);
+            if (readTimeoutNanos > 0) {
+                deadline = System.nanoTime() + readTimeoutNanos;
+            }
+            if (!exchange.delivered && parser.hasHead()) {
+                exchange.delivered = true;
+                completed(exchange, parser.response(exchange.body));
+            }
+            if (parser.isComplete()) {
+                complete();
+                return;
+            }
+            boolean full = exchange.body.write(parser.takeChunks());
+            if (exchange.body.isAbandoned()) {
+                // The rest of the body is too large to be discarded
+                exchange = null;
+                close();
+            } else if (full) {
+                // Wait for the consumer to read the body
+                key.interestOps(0);
+                deadline = Long.MAX_VALUE;
+            }
+        }
+
+        /**
+         * Read again once the consumer has read or closed the body
+         */
+        void resume(Exchange resumed) {
+            if (exchange == resumed && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+                deadline = readTimeoutNanos > 0 ? System.nanoTime() + readTimeoutNanos : Long.MAX_VALUE;
+            }
+        }
+
+        private void endOfStream() {
+            Exchange current = exchange;
+            if (current == null) {
+                // Idle connection closed by the server
+                close();
+            } else if (parser.readsUntilClose()) {
+                parser.finish();
+                complete();
+            } else if (reused && !parser.hasReceived() && !current.retried && idempotentMethods.contains(current.method)) {
+                // The server closed the idle connection while the request was sent, send it again on a new connection
+                current.retried = true;
+                exchange = null;
+                close();
+                dispatch(current);
+            } else {
+                fail(new EOFException("Connection closed before the end of the response"));
+            }
+        }
+
+        private void complete() {
+            Exchange current = exchange;
+            exchange = null;
+            ResponseParser completed = parser;
+            // Released before the end of the body is visible, a consumer reading it to the end can reuse the connection
+            if (completed.isKeepAlive() && keepAliveNanos > 0 && !closed) {
+                release();
+            } else {
+                close();
+            }
+            current.body.write(completed.takeChunks());
+            current.body.end();
+            if (!current.delivered) {
+                current.delivered = true;
+                completed(current, completed.response(current.body));
+            }
+        }
+
+        /**
+         * Send the next waiting request, or keep the connection idle
+         */
+        private void release() {
+            Exchange next = pool.pending.poll();
+            if (next != null) {
+                pendingRequests--;
+                reusedConnections++;
+                reused = true;
+                start(next);
+            } else {
+                deadline = System.nanoTime() + keepAliveNanos;
+                key.interestOps(SelectionKey.OP_READ);
+                pool.idle.add(this);
+                idleConnections++;
+            }
+        }
+
+        void fail(Throwable failure) {
+            Exchange current = exchange;
+            exchange = null;
+            close();
+            if (current != null) {
+                if (current.delivered) {
+                    current.body.fail(failure);
+                } else {
+                    failed(current, failure);
+                }
+            }
+        }
+
+        /**
+         * Close the connection and give its slot to the next waiting request
+         */
+        void close() {
+            if (!connections.remove(this)) {
+                return;
+            }
+            pool.open--;
+            openConnections--;
+            if (pool.idle.remove(this)) {
+                idleConnections--;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            Exchange next = pool.pending.poll();
+            if (next != null) {
+                pendingRequests--;
+                dispatch(next);
+            }
+        }
+    }
+
+    /**
+     * Incremental parser of an HTTP/1.1 response
+     */
+    private static class ResponseParser {
+
+        private enum State { HEAD, LENGTH, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, UNTIL_CLOSE, DONE }
+
+        private final boolean headRequest;
+
+        /**
+         * Body bytes parsed since the last call to takeChunks
+         */
+        private List<byte[]> chunks = new ArrayList<>();
+
+        /**
+         * Bytes of the head and of the chunk delimiters not parsed yet
+         */
+        private byte[] buffer = new byte[8 * 1024];
+
+        private int length;
+
+        private int position;
+
+        private boolean received;
+
+        private State state = State.HEAD;
+
+        private int status;
+
+        private String reason;
+
+        private HttpHeaders headers;
+
+        private boolean keepAlive;
+
+        private long remaining;
+
+        ResponseParser(boolean headRequest) {
+            this.headRequest = headRequest;
+        }
+
+        void feed(ByteBuffer data) throws IOException {
+            received = true;
+            if (position == length) {
+                position = 0;
+                length = 0;
+                // The body bytes are copied once, from the read buffer to the chunks handed over to the ResponseBody
+                while (data.hasRemaining() && isBody()) {
+                    int count = state == State.UNTIL_CLOSE ? data.remaining() : (int) Math.min(remaining, data.remaining());
+                    byte[] chunk = new byte[count];
+                    data.get(chunk);
+                    body(chunk);
+                }
+                if (!data.hasRemaining()) {
+                    return;
+                }
+            }
+            if (length + data.remaining() > buffer.length) {
+                // Drop the parsed bytes before growing the buffer
+                System.arraycopy(buffer, position, buffer, 0, length - position);
+                length -= position;
+                position = 0;
+                if (length + data.remaining() > buffer.length) {
+                    buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + data.remaining()));
+                }
+            }
+            int read = data.remaining();
+            data.get(buffer, length, read);
+            length += read;
+            parse();
+        }
+
+        boolean hasReceived() {
+            return received;
+        }
+
+        /**
+         * @return true once the head of the final response is parsed
+         */
+        boolean hasHead() {
+            return state != State.HEAD;
+        }
+
+        boolean isComplete() {
+            return state == State.DONE;
+        }
+
+        /**
+         * @return the body bytes parsed since the last call
+         */
+        List<byte[]> takeChunks() {
+            if (chunks.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<byte[]> taken = chunks;
+            chunks = new ArrayList<>();
+            return taken;
+        }
+
+        boolean isKeepAlive() {
+            return keepAlive;
+        }
+
+        boolean readsUntilClose() {
+            return state == State.UNTIL_CLOSE;
+        }
+
+        void finish() {
+            state = State.DONE;
+        }
+
+        ClientHttpResponse response(ResponseBody body) {
+            return new NioClientHttpResponse(status, reason, headers, body);
+        }
+
+        private boolean isBody() {
+            return state == State.LENGTH || state == State.CHUNK_DATA || state == State.UNTIL_CLOSE;
+        }
+
+        private void body(byte[] chunk) {
+            if (state != State.UNTIL_CLOSE) {
+                remaining -= chunk.length;
+                if (remaining == 0) {
+                    state = state == State.LENGTH ? State.DONE : State.CHUNK_END;
+                }
+            }
+            chunks.add(chunk);
+        }
+
+        private void parse() throws IOException {
+            while (true) {
+                int end;
+                switch (state) {
+                    case HEAD:
+                        end = indexOf("\r\n\r\n", position);
+                        if (end < 0) {
+                            if (length - position > maxHeaderSize) {
+                                throw new IOException("Response headers too large");
+                            }
+                            return;
+                        }
+                        parseHead(new String(buffer, position, end - position, StandardCharsets.ISO_8859_1));
+                        position = end + 4;
+                        break;
+                    case LENGTH:
+                    case CHUNK_DATA:
+                    case UNTIL_CLOSE:
+                        int count = state == State.UNTIL_CLOSE ? length - position : (int) Math.min(remaining, length - position);
+                        if (count == 0) {
+                            return;
+                        }
+                        byte[] chunk = Arrays.copyOfRange(buffer, position, position + count);
+                        position += count;
+                        body(chunk);
+                        break;
+                    case CHUNK_SIZE:
+                        end = indexOf("\r\n", position);
+                        if (end < 0) {
+                            return;
+                        }
+                        String size = new String(buffer, position, end - position, StandardCharsets.ISO_8859_1);
+                        int extension = size.indexOf(';');
+                        remaining = parseLong(extension < 0 ? size : size.substring(0, extension), 16);
+                        position = end + 2;
+                        state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                        break;
+                    case CHUNK_END:
+                        if (length - position < 2) {
+                            return;
+                        }
+                        position += 2;
+                        state = State.CHUNK_SIZE;
+                        break;
+                    case TRAILERS:
+                        end = indexOf("\r\n", position);
+                        if (end < 0) {
+                            return;
+                        }
+                        if (end == position) {
+                            state = State.DONE;
+                        }
+                        position = end + 2;
+                        break;
+                    default:
+                        return;
+                }
+            }
+        }
+
+        private void parseHead(String head) throws IOException {
+            String[] lines = head.split("\r\n");
+            String[] statusLine = lines[0].split(" ", 3);
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid status line: " + lines[0]);
+            }
+            status = (int) parseLong(statusLine[1], 10);
+            reason = statusLine.length > 2 ? statusLine[2] : "";
+            headers = new HttpHeaders();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+                }
+            }
+            if (status >= 100 && status < 200) {
+                // Interim response, wait for the final one
+                return;
+            }
+            String connection = headers.getFirst(HttpHeaders.CONNECTION);
+            keepAlive = statusLine[0].equals("HTTP/1.0") ? "keep-alive".equalsIgnoreCase(connection) : !"close".equalsIgnoreCase(connection);
+            String transferEncoding = headers.getFirst(HttpHeaders.TRANSFER_ENCODING);
+            String contentLength = headers.getFirst(HttpHeaders.CONTENT_LENGTH);
+            if (headRequest || status == 204 || status == 304) {
+                state = State.DONE;
+            } else if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ROOT).contains("chunked")) {
+                state = State.CHUNK_SIZE;
+            } else if (contentLength != null) {
+                remaining = parseLong(contentLength.trim(), 10);
+                state = remaining == 0 ? State.DONE : State.LENGTH;
+            } else {
+                keepAlive = false;
+                state = State.UNTIL_CLOSE;
+            }
+        }
+
+        private int indexOf(String delimiter, int from) {
+            int last = length - delimiter.length();
+            for (int i = from; i <= last; i++) {
+                int j = 0;
+                while (j < delimiter.length() && buffer[i + j] == delimiter.charAt(j)) {
+                    j++;
+                }
+                if (j == delimiter.length()) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static long parseLong(String value, int radix) throws IOException {
+            try {
+                return Long.parseLong(value.trim(), radix);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid response: " + value, e);
+            }
+        }
+    }
+
+    /**
+     * Body of a response, written by the event loop and read by the consumer of the response
+     */
+    private class ResponseBody extends InputStream {
+
+        private final Connection connection;
+
+        private final Exchange exchange;
+
+        private final Deque<byte[]> chunks = new ArrayDeque<>();
+
+        /**
+         * Position in the first chunk
+         */
+        private int offset;
+
+        private int buffered;
+
+        private boolean paused;
+
+        private boolean ended;
+
+        private IOException failure;
+
+        private boolean closed;
+
+        /**
+         * Bytes received after the body was closed
+         */
+        private long discarded;
+
+        ResponseBody(Connection connection, Exchange exchange) {
+            this.connection = connection;
+            this.exchange = exchange;
+        }
+
+        /**
+         * Called by the event loop
+         * @return true if the connection must stop reading until the consumer reads the body
+         */
+        synchronized boolean write(List<byte[]> received) {
+            for (byte[] chunk : received) {
+                if (closed) {
+                    discarded += chunk.length;
+                } else {
+                    chunks.add(chunk);
+                    buffered += chunk.length;
+                }
+            }
+            if (closed || received.isEmpty()) {
+                return false;
+            }
+            notifyAll();
+            paused = buffered > maxBufferedBody;
+            return paused;
+        }
+
+        /**
+         * Called by the event loop
+         * @return true if the body was closed and too many bytes were discarded since
+         */
+        synchronized boolean isAbandoned() {
+            return discarded > maxBufferedBody;
+        }
+
+        /**
+         * Called by the event loop
+         */
+        synchronized void end() {
+            ended = true;
+            notifyAll();
+        }
+
+        /**
+         * Called by the event loop
+         */
+        synchronized void fail(Throwable throwable) {
+            failure = throwable instanceof IOException ? (IOException) throwable : new IOException(throwable);
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (chunks.isEmpty()) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (ended) {
+                    return -1;
+                }
+                if (Thread.currentThread() == eventLoop) {
+                    throw new IOException("The response body cannot be read by the event loop thread, set a callback executor");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            byte[] chunk = chunks.peek();
+            int count = Math.min(len, chunk.length - offset);
+            System.arraycopy(chunk, offset, b, off, count);
+            offset += count;
+            if (offset == chunk.length) {
+                chunks.poll();
+                offset = 0;
+            }
+            buffered -= count;
+            if (paused && buffered <= maxBufferedBody / 2) {
+                paused = false;
+                submit(() -> connection.resume(exchange));
+            }
+            return count;
+        }
+
+        @Override
+        public synchronized int available() {
+            return buffered;
+        }
+
+        /**
+         * Closing the body before its end discards the rest of the body (e.g. the end of a chunked JSON array),
+         * or closes the connection if more than 256 KB remain
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                chunks.clear();
+                buffered = 0;
+                notifyAll();
+                if (ended || failure != null) {
+                    return;
+                }
+            }
+            submit(() -> connection.resume(exchange));
+        }
+    }
+
+    /**
+     * Response with a streamed body
+     */
+    private static class NioClientHttpResponse extends AbstractClientHttpResponse {
+
+        private final int status;
+
+        private final String reason;
+
+        private final HttpHeaders headers;
+
+        private final ResponseBody body;
+
+        NioClientHttpResponse(int status, String reason, HttpHeaders headers, ResponseBody body) {
+            this.status = status;
+            this.reason = reason;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        @Override
+        public int getRawStatusCode() throws IOException {
+            return status;
+        }
+
+        @Override
+        public String getStatusText() throws IOException {
+            return reason;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return body;
+        }
+
+        @Override
+        public void close() {
+            body.close();
+        }
+    }
+}
@@ -0,0 +1,707 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orange.ngsi2.model.Entity;
+import com.orange.ngsi2.model.Notification;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embedded HTTP server receiving the notifications of the NGSIv2 subscriptions, without a servlet container.
+ * A single event loop thread accepts the connections and reads the requests, each notification is then
+ * decoded and handed to the handler of its subscription by a bounded pool of workers.
+ *
+ * The notifications of a subscription are handled one at a time, in the order the event loop reads them, while the
+ * notifications of different subscriptions are handled in parallel. Ordered dispatch can be disabled with setOrdered(false)
+ * when the handlers do not depend on the order, a single subscription then using all the workers.
+ *
+ * A notification is acknowledged (204) as soon as it is queued for a worker: the handlers failures are only counted.
+ * When the queue of the workers is full, the notification is rejected with 429 Too Many Requests and a Retry-After header,
+ * to slow down the sender.
+ */
+public class NotificationReceiver implements AutoCloseable {
+
+    /**
+     * Handler of the notifications of a subscription, called by the workers
+     */
+    public interface Handler {
+
+        /**
+         * @param message the notification
+         */
+        void onNotification(Message message);
+    }
+
+    /**
+     * Header giving the format of the entities of a notification
+     */
+    public final static String attrsFormatHeader = "Ngsiv2-AttrsFormat";
+
+    private final static AtomicInteger threadCount = new AtomicInteger();
+
+    private final static int maxHeaderSize = 64 * 1024;
+
+    private final static byte[] continueResponse = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final ObjectMapper objectMapper;
+
+    private final ServerSocketChannel serverChannel;
+
+    private final Selector selector;
+
+    private final ThreadPoolExecutor workers;
+
+    private final KeyedExecutor lanes;
+
+    private final Thread eventLoop;
+
+    private final ConcurrentMap<String, Handler> handlers = new ConcurrentHashMap<>();
+
+    private volatile Handler defaultHandler;
+
+    private volatile int maxRequestSize = 1024 * 1024;
+
+    private volatile boolean ordered = true;
+
+    private volatile boolean closed;
+
+    /*
+     * State of the event loop, only accessed by its thread
+     */
+
+    private final Set<Connection> connections = new HashSet<>();
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+
+    /*
+     * Statistics
+     */
+
+    private final AtomicLong received = new AtomicLong();
+
+    /**
+     * Sequence of the last notification read, only incremented by the event loop
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong unrouted = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param client the client whose ObjectMapper decodes the notifications
+     * @param address the local address to bind, port 0 for any free port
+     * @param workers the number of threads calling the handlers
+     * @param queueCapacity the maximum number of notifications waiting for a worker
+     * @throws IOException if the address cannot be bound
+     */
+    public NotificationReceiver(Ngsi2Client client, InetSocketAddress address, int workers, int queueCapacity) throws IOException {
+        this(client.getObjectMapper(), address, workers, queueCapacity);
+    }
+
+    /**
+     * @param objectMapper the ObjectMapper decoding the notifications, with the Jdk8Module to decode entities
+     * @param address the local address to bind, port 0 for any free port
+     * @param workers the number of threads calling the handlers
+     * @param queueCapacity the maximum number of notifications waiting for a worker
+     * @throws IOException if the address cannot be bound
+     */
+    public NotificationReceiver(ObjectMapper objectMapper, InetSocketAddress address, int workers, int queueCapacity) throws IOException {
+        if (workers <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("workers and queueCapacity must be positive");
+        }
+        this.objectMapper = objectMapper;
+        int id = threadCount.incrementAndGet();
+        AtomicInteger workerCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "ngsi2-notifications-" + id + "-worker-" + workerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.lanes = new KeyedExecutor(this.workers, queueCapacity);
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(address, 1024);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            this.workers.shutdown();
+            throw e;
+        }
+        eventLoop = new Thread(this::run, "ngsi2-notifications-" + id);
+        eventLoop.setDaemon(true);
+        eventLoop.start();
+    }
+
+    /**
+     * Route the notifications of a subscription to a handler
+     * @param subscriptionId the subscription ID, as returned by addSubscription
+     * @param handler the handler
+     */
+    public void register(String subscriptionId, Handler handler) {
+        handlers.put(subscriptionId, handler);
+    }
+
+    /**
+     * @param subscriptionId the subscription ID
+     */
+    public void unregister(String subscriptionId) {
+        handlers.remove(subscriptionId);
+    }
+
+    /**
+     * @param defaultHandler the handler of the notifications of the unregistered subscriptions, null to drop them
+     */
+    public void setDefaultHandler(Handler defaultHandler) {
+        this.defaultHandler = defaultHandler;
+    }
+
+    /**
+     * @param maxRequestSize the maximum size of a notification body (1MB by default), larger ones are rejected with 413
+     */
+    public void setMaxRequestSize(int maxRequestSize) {
+        this.maxRequestSize = maxRequestSize;
+    }
+
+    /**
+     * @param ordered true (by default) to handle the notifications of a subscription one at a time and in order,
+     *                false to handle them in parallel
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /**
+     * @return the bound port, to build the callback URL of the subscriptions
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stop accepting notifications, the queued ones are still handled
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        workers.shutdown();
+        try {
+            eventLoop.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of notifications accepted
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * @return the number of notifications rejected because the workers queue was full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of notifications dropped because no handler was registered for their subscription
+     */
+    public long getUnrouted() {
+        return unrouted.get();
+    }
+
+    /**
+     * @return the number of notifications which could not be decoded or whose handler failed
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the sequence of the last notification read by the event loop: the notifications read later,
+     *         whatever their subscription, have a greater sequence (see Message.getSequence)
+     */
+    public long getSequence() {
+        return sequence.get();
+    }
+
+    /**
+     * @return the number of notifications waiting for a worker
+     */
+    public int getQueueDepth() {
+        return lanes.getQueued();
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        connection.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            closed = true;
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+        }
+    }
+
+    private void shutdown() {
+        new ArrayList<>(connections).forEach(Connection::close);
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Decode a notification and call the handler of its subscription, on a worker thread
+     */
+    private void handle(Map<String, String> headers, byte[] body, long sequence) {
+        try {
+            JsonNode root = objectMapper.readTree(body);
+            String subscriptionId = root.path("subscriptionId").asText(null);
+            Handler handler = subscriptionId == null ? null : handlers.get(subscriptionId);
+            if (handler == null) {
+                handler = defaultHandler;
+            }
+            if (handler == null) {
+                unrouted.incrementAndGet();
+                return;
+            }
+            JsonNode data = root.path("data");
+            handler.onNotification(new Message(objectMapper, subscriptionId, format(headers.get(attrsFormatHeader.toLowerCase()), data), headers, data,
+                    sequence));
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Subscription ID of a notification, read on the event loop to choose its lane without decoding its entities
+     * @return the subscription ID, null if the body is not a notification
+     */
+    String subscriptionId(byte[] body) {
+        try (JsonParser parser = objectMapper.getFactory().createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("subscriptionId".equals(name)) {
+                    return value == JsonToken.VALUE_STRING ? parser.getText() : null;
+                }
+                parser.skipChildren();
+            }
+        } catch (IOException e) {
+            // decoding failure counted by the worker
+        }
+        return null;
+    }
+
+    /**
+     * Format given by the header of the notification, or guessed from its first entity
+     */
+    static Notification.Format format(String header, JsonNode data) {
+        if (header != null) {
+            try {
+                return Notification.Format.valueOf(header.trim());
+            } catch (IllegalArgumentException e) {
+                // unknown format, guess it
+            }
+        }
+        JsonNode first = data.path(0);
+        if (first.isArray()) {
+            return Notification.Format.values;
+        }
+        Iterator<Map.Entry<String, JsonNode>> fields = first.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            if (!"id".equals(field.getKey()) && !"type".equals(field.getKey())
+                    && !(field.getValue().isObject() && field.getValue().has("value"))) {
+                return Notification.Format.keyValues;
+            }
+        }
+        return Notification.Format.normalized;
+    }
+
+    /**
+     * Notification received for a subscription
+     */
+    public static class Message {
+
+        private final ObjectMapper objectMapper;
+
+        private final String subscriptionId;
+
+        private final Notification.Format format;
+
+        private final Map<String, String> headers;
+
+        private final JsonNode data;
+
+        private final long sequence;
+
+        Message(ObjectMapper objectMapper, String subscriptionId, Notification.Format format, Map<String, String> headers, JsonNode data,
+                long sequence) {
+            this.objectMapper = objectMapper;
+            this.subscriptionId = subscriptionId;
+            this.format = format;
+            this.headers = headers;
+            this.data = data;
+            this.sequence = sequence;
+        }
+
+        /**
+         * @return the subscription ID
+         */
+        public String getSubscriptionId() {
+            return subscriptionId;
+        }
+
+        /**
+         * @return the position of the notification in the order the event loop read them, starting at 1
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the format of the entities
+         */
+        public Notification.Format getFormat() {
+            return format;
+        }
+
+        /**
+         * @param name the name of a header, e.g. Fiware-Service
+         * @return the value of the header, null if absent
+         */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        /**
+         * @return the undecoded entities
+         */
+        public JsonNode getData() {
+            return data;
+        }
+
+        /**
+         * @return the entities of a notification in the normalized format
+         */
+        public List<Entity> getEntities() {
+            return getData(Entity.class);
+        }
+
+        /**
+         * @return the entities of a notification in the keyValues format, as maps of the attribute values by name
+         */
+        @SuppressWarnings("unchecked")
+        public List<Map<String, Object>> getKeyValues() {
+            return (List<Map<String, Object>>) (List<?>) getData(Map.class);
+        }
+
+        /**
+         * @return the entities of a notification in the values format, as lists of attribute values
+         */
+        @SuppressWarnings("unchecked")
+        public List<List<Object>> getValues() {
+            return (List<List<Object>>) (List<?>) getData(List.class);
+        }
+
+        /**
+         * Decode the entities into instances of a class, e.g. the class used with the keyValues getEntities
+         * @param type the class of the entities
+         * @return the entities
+         */
+        public <T> List<T> getData(Class<T> type) {
+            List<T> items = new ArrayList<>(data.size());
+            for (JsonNode item : data) {
+                items.add(objectMapper.convertValue(item, type));
+            }
+            return items;
+        }
+    }
+
+    /**
+     * Connection of a sender, reading its requests one after the other
+     */
+    private class Connection {
+
+        private final SocketChannel channel;
+
+        private SelectionKey key;
+
+        /**
+         * Bytes received and not consumed yet
+         */
+        private byte[] buffer = new byte[4096];
+
+        private int length;
+
+        private final Deque<ByteBuffer> output = new ArrayDeque<>();
+
+        /*
+         * Request whose body is expected, bodyStart < 0 while reading the headers
+         */
+
+        private int bodyStart = -1;
+
+        private int contentLength;
+
+        private boolean keepAlive;
+
+        private Map<String, String> headers;
+
+        private boolean closing;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            ensureCapacity(length + read);
+            readBuffer.get(buffer, length, read);
+            length += read;
+            parse();
+        }
+
+        private void parse() throws IOException {
+            while (!closing) {
+                if (bodyStart < 0) {
+                    int end = indexOfHeadersEnd();
+                    if (end < 0) {
+                        if (length > maxHeaderSize) {
+                            respond("431 Request Header Fields Too Large", null, false);
+                        }
+                        return;
+                    }
+                    if (!parseHeaders(end)) {
+                        return;
+                    }
+                }
+                if (length - bodyStart < contentLength) {
+                    return;
+                }
+                byte[] body = Arrays.copyOfRange(buffer, bodyStart, bodyStart + contentLength);
+                Map<String, String> requestHeaders = headers;
+                consume(bodyStart + contentLength);
+                bodyStart = -1;
+                dispatch(requestHeaders, body);
+            }
+        }
+
+        /**
+         * @return false if the request was rejected
+         */
+        private boolean parseHeaders(int end) throws IOException {
+            String[] lines = new String(buffer, 0, end, StandardCharsets.ISO_8859_1).split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3) {
+                respond("400 Bad Request", null, false);
+                return false;
+            }
+            headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+                }
+            }
+            String connection = headers.getOrDefault("connection", "");
+            keepAlive = "HTTP/1.1".equals(requestLine[2]) ? !"close".equalsIgnoreCase(connection) : "keep-alive".equalsIgnoreCase(connection);
+            bodyStart = end + 4;
+            if (!"POST".equals(requestLine[0])) {
+                respond("405 Method Not Allowed", "Allow: POST\r\n", false);
+                return false;
+            }
+            String contentLengthHeader = headers.get("content-length");
+            if (contentLengthHeader == null) {
+                respond("411 Length Required", null, false);
+                return false;
+            }
+            try {
+                contentLength = Integer.parseInt(contentLengthHeader);
+            } catch (NumberFormatException e) {
+                contentLength = -1;
+            }
+            if (contentLength < 0) {
+                respond("400 Bad Request", null, false);
+                return false;
+            }
+            if (contentLength > maxRequestSize) {
+                respond("413 Payload Too Large", null, false);
+                return false;
+            }
+            if ("100-continue".equalsIgnoreCase(headers.get("expect")) && length - bodyStart < contentLength) {
+                output.add(ByteBuffer.wrap(continueResponse));
+                write();
+            }
+            return true;
+        }
+
+        private void dispatch(Map<String, String> requestHeaders, byte[] body) throws IOException {
+            try {
+                long stamp = sequence.incrementAndGet();
+                lanes.execute(ordered ? subscriptionId(body) : null, () -> handle(requestHeaders, body, stamp));
+            } catch (RejectedExecutionException e) {
+                rejected.incrementAndGet();
+                respond("429 Too Many Requests", "Retry-After: 1\r\nContent-Length: 0\r\n", keepAlive);
+                return;
+            }
+            received.incrementAndGet();
+            respond("204 No Content", null, keepAlive);
+        }
+
+        private void respond(String status, String extraHeaders, boolean keepAlive) throws IOException {
+            StringBuilder response = new StringBuilder(96).append("HTTP/1.1 ").append(status).append("\r\n");
+            if (extraHeaders != null) {
+                response.append(extraHeaders);
+            } else if (!status.startsWith("204")) {
+                response.append("Content-Length: 0\r\n");
+            }
+            if (!keepAlive) {
+                response.append("Connection: close\r\n");
+                closing = true;
+            }
+            response.append("\r\n");
+            output.add(ByteBuffer.wrap(response.toString().getBytes(StandardCharsets.US_ASCII)));
+            write();
+        }
+
+        void write() throws IOException {
+            while (!output.isEmpty()) {
+                ByteBuffer head = output.peek();
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                output.poll();
+            }
+            if (closing) {
+                close();
+            } else if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private int indexOfHeadersEnd() {
+            for (int i = 0; i + 3 < length; i++) {
+                if (buffer[i] == '\r' && buffer[i + 1] == '\n' && buffer[i + 2] == '\r' && buffer[i + 3] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+            }
+        }
+
+        private void consume(int count) {
+            System.arraycopy(buffer, count, buffer, 0, length - count);
+            length -= count;
+        }
+
+        void close() {
+            connections.remove(this);
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.model.Paginated;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterator walking all the pages of a paginated request.
+ * The first page is requested on creation. While a page is consumed, the next pages (up to the prefetch depth)
+ * are already requested.
+ * The first request asks for the total count (X-Total-Count) so that no request is sent past the last page.
+ * If the server does not return the count, pages are requested until a page is not full.
+ *
+ * Pagination is based on offsets: entities added or removed while iterating can be missed or returned twice.
+ *
+ * @param <T> the type of the items
+ */
+public class PaginatedIterator<T> implements Iterator<T>, AutoCloseable {
+
+    /**
+     * Request a single page
+     * @param <T> the type of the items
+     */
+    @FunctionalInterface
+    public interface PageRequest<T> {
+        /**
+         * @param offset the offset of the page
+         * @param limit the size of the page
+         * @param count true to return the total number of items
+         * @return the page
+         */
+        ListenableFuture<Paginated<T>> request(int offset, int limit, boolean count);
+    }
+
+    private final PageRequest<T> pageRequest;
+
+    private final int pageSize;
+
+    private final int prefetch;
+
+    private final Deque<ListenableFuture<Paginated<T>>> pendingPages = new ArrayDeque<>();
+
+    private Iterator<T> currentPage = Collections.emptyIterator();
+
+    /**
+     * Offset of the next page to request
+     */
+    private int nextOffset;
+
+    /**
+     * Total number of items, -1 until the first page is received, 0 if not returned by the server
+     */
+    private int total = -1;
+
+    /**
+     * True once the last page was received
+     */
+    private boolean lastPage;
+
+    /**
+     * @param pageRequest the request of a single page
+     * @param offset the offset of the first item
+     * @param pageSize the number of items requested per page
+     * @param prefetch the number of pages requested in advance of the one being consumed (0 for none)
+     */
+    public PaginatedIterator(PageRequest<T> pageRequest, int offset, int pageSize, int prefetch) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive");
+        }
+        if (prefetch < 0) {
+            throw new IllegalArgumentException("prefetch must not be negative");
+        }
+        this.pageRequest = pageRequest;
+        this.nextOffset = offset;
+        this.pageSize = pageSize;
+        this.prefetch = prefetch;
+        requestPages(1);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!currentPage.hasNext()) {
+            requestPages(1);
+            if (pendingPages.isEmpty()) {
+                return false;
+            }
+            Paginated<T> page = waitFor(pendingPages.poll());
+            if (total == -1) {
+                total = page.getTotal();
+            }
+            if (page.getItems().size() < pageSize) {
+                lastPage = true;
+                cancelPendingPages();
+            }
+            currentPage = page.getItems().iterator();
+            requestPages(prefetch);
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return currentPage.next();
+    }
+
+    /**
+     * @return a sequential stream of the items, closing the stream cancels the pages requested in advance
+     */
+    public Stream<T> stream() {
+        Spliterator<T> spliterator = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(this::close);
+    }
+
+    /**
+     * Cancel the pages requested in advance
+     */
+    @Override
+    public void close() {
+        lastPage = true;
+        cancelPendingPages();
+    }
+
+    /**
+     * Request the next pages until the given number of pages is pending or the last page is reached
+     */
+    private void requestPages(int depth) {
+        while (!lastPage && pendingPages.size() < depth) {
+            if (total == -1) {
+                // Wait for the first page and its total count before requesting more
+                if (pendingPages.isEmpty()) {
+                    pendingPages.add(pageRequest.request(nextOffset, pageSize, true));
+                    nextOffset += pageSize;
+                }
+                return;
+            }
+            if (total > 0 && nextOffset >= total) {
+                return;
+            }
+            pendingPages.add(pageRequest.request(nextOffset, pageSize, false));
+            nextOffset += pageSize;
+        }
+    }
+
+    private void cancelPendingPages() {
+        ListenableFuture<Paginated<T>> future;
+        while ((future = pendingPages.poll()) != null) {
+            future.cancel(true);
+        }
+    }
+
+    private Paginated<T> waitFor(ListenableFuture<Paginated<T>> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IllegalStateException("Interrupted while waiting for a page", e);
+        } catch (ExecutionException e) {
+            close();
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.model.Paginated;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publisher of all the items of a paginated request, with back-pressure:
+ * the pages are requested one at a time, only when the subscriber demand is not covered by the received items,
+ * and the size of each page is the uncovered demand bounded by minPageSize and maxPageSize.
+ * A slow subscriber therefore slows down the requests, and at most one page is buffered.
+ *
+ * The Publisher, Subscriber and Subscription interfaces follow the Reactive Streams specification
+ * (org.reactivestreams), which is not a dependency of this library: {@link #as(Class)} adapts the publisher
+ * to org.reactivestreams.Publisher, or to any interface of the same shape, when it is on the classpath.
+ * Each subscriber receives its own sequence, starting with a request asking for the total count (X-Total-Count).
+ *
+ * Pagination is based on offsets: entities added or removed while iterating can be missed or returned twice.
+ *
+ * @param <T> the type of the items
+ */
+public class PaginatedPublisher<T> {
+
+    /**
+     * Receives the items
+     * @param <T> the type of the items
+     */
+    public interface Subscriber<T> {
+
+        /**
+         * Called once before any other method
+         * @param subscription requests the items or cancels
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * @param item the next item, never called beyond the requested demand
+         */
+        void onNext(T item);
+
+        /**
+         * Terminal failure
+         * @param throwable the failure
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * All the items were received
+         */
+        void onComplete();
+    }
+
+    /**
+     * Demand of a subscriber
+     */
+    public interface Subscription {
+
+        /**
+         * @param n the number of additional items the subscriber can receive, strictly positive
+         */
+        void request(long n);
+
+        /**
+         * Stop receiving items, a page in flight is cancelled
+         */
+        void cancel();
+    }
+
+    private final PaginatedIterator.PageRequest<T> pageRequest;
+
+    private final int offset;
+
+    private final int minPageSize;
+
+    private final int maxPageSize;
+
+    /**
+     * @param pageRequest the request of a single page
+     * @param offset the offset of the first item
+     * @param minPageSize the minimum number of items requested per page
+     * @param maxPageSize the maximum number of items requested per page
+     */
+    public PaginatedPublisher(PaginatedIterator.PageRequest<T> pageRequest, int offset, int minPageSize, int maxPageSize) {
+        if (minPageSize <= 0 || minPageSize > maxPageSize) {
+            throw new IllegalArgumentException("page sizes must verify 0 < minPageSize <= maxPageSize");
+        }
+        this.pageRequest = pageRequest;
+        this.offset = offset;
+        this.minPageSize = minPageSize;
+        this.maxPageSize = maxPageSize;
+    }
+
+    /**
+     * Start a new sequence of requests for the subscriber
+     * @param subscriber the subscriber
+     */
+    public void subscribe(Subscriber<? super T> subscriber) {
+        PageSubscription<T> subscription = new PageSubscription<>(this, subscriber);
+        subscriber.onSubscribe(subscription);
+        subscription.drain();
+    }
+
+    /**
+     * Adapt this publisher to a Reactive Streams publisher interface, resolved at runtime:
+     * <pre>org.reactivestreams.Publisher&lt;Entity&gt; publisher = paginatedPublisher.as(org.reactivestreams.Publisher.class);</pre>
+     * The subscriber and subscription interfaces are the parameter types of subscribe and of the subscriber onSubscribe.
+     * @param publisherType the publisher interface, having a subscribe method
+     * @param <P> the type of the publisher
+     * @return a publisher of that type, each subscriber receiving its own sequence
+     * @throws IllegalArgumentException if publisherType does not have the shape of a Reactive Streams publisher
+     */
+    @SuppressWarnings("unchecked")
+    public <P> P as(Class<P> publisherType) {
+        if (!publisherType.isInterface()) {
+            throw new IllegalArgumentException(publisherType.getName() + " is not an interface");
+        }
+        Method subscribe = method(publisherType, "subscribe", 1);
+        Class<?> subscriberType = subscribe.getParameterTypes()[0];
+        Method onSubscribe = method(subscriberType, "onSubscribe", 1);
+        Method onNext = method(subscriberType, "onNext", 1);
+        Method onError = method(subscriberType, "onError", 1);
+        Method onComplete = method(subscriberType, "onComplete", 0);
+        Class<?> subscriptionType = onSubscribe.getParameterTypes()[0];
+        Method request = method(subscriptionType, "request", 1);
+        Method cancel = method(subscriptionType, "cancel", 0);
+        return (P) Proxy.newProxyInstance(publisherType.getClassLoader(), new Class<?>[] { publisherType }, (proxy, method, args) -> {
+            if (!method.equals(subscribe)) {
+                return objectMethod(proxy, method, args);
+            }
+            Object target = args[0];
+            subscribe(new Subscriber<T>() {
+                @Override
+                public void onSubscribe(Subscription subscription) {
+                    Object adapted = Proxy.newProxyInstance(subscriptionType.getClassLoader(), new Class<?>[] { subscriptionType },
+                            (subscriptionProxy, subscriptionMethod, subscriptionArgs) -> {
+                                if (subscriptionMethod.equals(request)) {
+                                    subscription.request(((Number) subscriptionArgs[0]).longValue());
+                                    return null;
+                                } else if (subscriptionMethod.equals(cancel)) {
+                                    subscription.cancel();
+                                    return null;
+                                }
+                                return objectMethod(subscriptionProxy, subscriptionMethod, subscriptionArgs);
+                            });
+                    invoke(onSubscribe, target, adapted);
+                }
+
+                @Override
+                public void onNext(T item) {
+                    invoke(onNext, target, item);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    invoke(onError, target, throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                    invoke(onComplete, target);
+                }
+            });
+            return null;
+        });
+    }
+
+    private static Method method(Class<?> type, String name, int parameterCount) {
+        for (Method method : type.getMethods()) {
+            if (method.getName().equals(name) && method.getParameterCount() == parameterCount) {
+                return method;
+            }
+        }
+        throw new IllegalArgumentException(type.getName() + " has no method " + name + " with " + parameterCount + " parameter(s)");
+    }
+
+    private static void invoke(Method method, Object target, Object... args) {
+        try {
+            method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new UndeclaredThrowableException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Identity based equals, hashCode and toString of the proxies
+     */
+    private static Object objectMethod(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return proxy.getClass().getInterfaces()[0].getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+            default:
+                throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    /**
+     * Pages requested for a single subscriber.
+     * The subscriber is only called by the drain loop, entered by a single thread at a time.
+     */
+    private static class PageSubscription<T> implements Subscription {
+
+        private final PaginatedPublisher<T> publisher;
+
+        private final Subscriber<? super T> subscriber;
+
+        private final AtomicLong requested = new AtomicLong();
+
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private final Queue<T> items = new ConcurrentLinkedQueue<>();
+
+        private volatile boolean cancelled;
+
+        private volatile IllegalArgumentException invalidRequest;
+
+        private boolean terminated;
+
+        /*
+         * Written by the page callback before inFlight is cleared, read by the drain loop once it is cleared
+         */
+
+        private volatile boolean inFlight;
+
+        private volatile ListenableFuture<Paginated<T>> page;
+
+        private int nextOffset;
+
+        private int total = -1;
+
+        private boolean lastPage;
+
+        private Throwable error;
+
+        PageSubscription(PaginatedPublisher<T> publisher, Subscriber<? super T> subscriber) {
+            this.publisher = publisher;
+            this.subscriber = subscriber;
+            this.nextOffset = publisher.offset;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("request must be strictly positive (rule 3.9)");
+                cancel();
+            } else {
+                requested.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            ListenableFuture<Paginated<T>> page = this.page;
+            if (page != null) {
+                page.cancel(true);
+            }
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (terminated) {
+                    return;
+                }
+                long demand = requested.get();
+                long emitted = 0;
+                while (emitted != demand && !cancelled) {
+                    T item = items.poll();
+                    if (item == null) {
+                        break;
+                    }
+                    subscriber.onNext(item);
+                    emitted++;
+                }
+                if (emitted > 0 && demand != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+                if (cancelled) {
+                    items.clear();
+                    terminated = true;
+                    if (invalidRequest != null) {
+                        subscriber.onError(invalidRequest);
+                    }
+                    return;
+                }
+                if (!inFlight) {
+                    if (error != null) {
+                        terminated = true;
+                        items.clear();
+                        subscriber.onError(error);
+                        return;
+                    }
+                    if (items.isEmpty() && (lastPage || (total > 0 && nextOffset >= total))) {
+                        terminated = true;
+                        subscriber.onComplete();
+                        return;
+                    }
+                    long uncovered = requested.get() - items.size();
+                    if (uncovered > 0 && !lastPage && !(total > 0 && nextOffset >= total)) {
+                        requestPage((int) Math.max(publisher.minPageSize, Math.min(uncovered, publisher.maxPageSize)));
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void requestPage(int limit) {
+            int pageOffset = nextOffset;
+            nextOffset += limit;
+            inFlight = true;
+            ListenableFuture<Paginated<T>> future;
+            try {
+                future = publisher.pageRequest.request(pageOffset, limit, total == -1);
+            } catch (RuntimeException e) {
+                error = e;
+                inFlight = false;
+                // Run the drain loop again to report the error
+                wip.incrementAndGet();
+                return;
+            }
+            page = future;
+            future.addCallback(result -> {
+                if (total == -1) {
+                    total = result.getTotal();
+                }
+                items.addAll(result.getItems());
+                if (result.getItems().size() < limit) {
+                    lastPage = true;
+                }
+                inFlight = false;
+                drain();
+            }, ex -> {
+                error = ex;
+                inFlight = false;
+                drain();
+            });
+        }
+    }
+}
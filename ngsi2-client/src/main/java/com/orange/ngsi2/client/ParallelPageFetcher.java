@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.model.Paginated;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Fetch all the items of a paginated request with concurrent page requests.
+ * A first page asks for the total count (X-Total-Count), then the range [offset, total) is split into pages
+ * requested in parallel, up to the given parallelism.
+ * The items are handed to the consumer either in offset order (completed pages are buffered until the previous
+ * pages are delivered, and at most 2 * parallelism pages are requested or buffered) or in completion order.
+ * The consumer is never called concurrently, but from the threads completing the pages.
+ *
+ * The scan is based on offsets of a moving collection:
+ * <ul>
+ * <li>items added after the count are fetched as long as the last page is full: pages are then requested
+ * one at a time beyond the total until a page is not full,</li>
+ * <li>items added or removed before the offset of a page being fetched shift the following items,
+ * which can then be missed or delivered twice. An orderBy on a stable attribute (e.g. dateCreated) keeps
+ * the items added during the scan at the end.</li>
+ * </ul>
+ * If the server does not return the count, the pages are requested one at a time.
+ *
+ * @param <T> the type of the items
+ */
+public class ParallelPageFetcher<T> {
+
+    private final PaginatedIterator.PageRequest<T> pageRequest;
+
+    private final int offset;
+
+    private final int pageSize;
+
+    private final int parallelism;
+
+    /**
+     * @param pageRequest the request of a single page
+     * @param offset the offset of the first item
+     * @param pageSize the number of items requested per page
+     * @param parallelism the maximum number of pages requested at the same time
+     */
+    public ParallelPageFetcher(PaginatedIterator.PageRequest<T> pageRequest, int offset, int pageSize, int parallelism) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive");
+        }
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.pageRequest = pageRequest;
+        this.offset = offset;
+        this.pageSize = pageSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Fetch all the items
+     * @param ordered true to deliver the items in offset order, false to deliver them as soon as their page is received
+     * @param consumer receives the items
+     * @return the number of items delivered, cancelling it cancels the pages in flight
+     */
+    public ListenableFuture<Integer> fetch(boolean ordered, Consumer<? super T> consumer) {
+        Fetch fetch = new Fetch(ordered, consumer);
+        fetch.start();
+        return fetch.result;
+    }
+
+    /**
+     * State of a single scan, guarded by its lock
+     */
+    private class Fetch {
+
+        private final boolean ordered;
+
+        private final Consumer<? super T> consumer;
+
+        private final SettableListenableFuture<Integer> result = new SettableListenableFuture<>();
+
+        private final Map<Integer, ListenableFuture<Paginated<T>>> inFlight = new HashMap<>();
+
+        /**
+         * Completed pages waiting for the previous ones, in ordered mode
+         */
+        private final TreeMap<Integer, List<T>> buffered = new TreeMap<>();
+
+        /**
+         * Number of pages covering the total count, -1 until the first page is received
+         */
+        private int shards = -1;
+
+        private int nextPage;
+
+        private int nextDelivery;
+
+        /**
+         * True if the last page received beyond the total count was full
+         */
+        private boolean lastFull;
+
+        private int count;
+
+        private boolean scheduling;
+
+        private boolean done;
+
+        Fetch(boolean ordered, Consumer<? super T> consumer) {
+            this.ordered = ordered;
+            this.consumer = consumer;
+        }
+
+        synchronized void start() {
+            result.addCallback(r -> {}, ex -> {
+                if (result.isCancelled()) {
+                    fail(ex);
+                }
+            });
+            send(0, true);
+        }
+
+        private void send(int page, boolean withCount) {
+            nextPage = page + 1;
+            ListenableFuture<Paginated<T>> future;
+            try {
+                future = pageRequest.request(offset + page * pageSize, pageSize, withCount);
+            } catch (RuntimeException e) {
+                fail(e);
+                return;
+            }
+            inFlight.put(page, future);
+            future.addCallback(paginated -> onPage(page, paginated), this::fail);
+        }
+
+        private synchronized void onPage(int page, Paginated<T> paginated) {
+            if (done) {
+                return;
+            }
+            inFlight.remove(page);
+            List<T> items = paginated.getItems();
+            if (shards == -1) {
+                int total = paginated.getTotal();
+                shards = total > 0 ? (total + pageSize - 1) / pageSize : 1;
+            }
+            if (page >= shards - 1) {
+                lastFull = items.size() == pageSize;
+            }
+            try {
+                if (ordered) {
+                    buffered.put(page, items);
+                    List<T> next;
+                    while ((next = buffered.remove(nextDelivery)) != null) {
+                        deliver(next);
+                        nextDelivery++;
+                    }
+                } else {
+                    deliver(items);
+                }
+            } catch (RuntimeException e) {
+                fail(e);
+                return;
+            }
+            schedule();
+        }
+
+        private void deliver(List<T> items) {
+            items.forEach(consumer);
+            count += items.size();
+        }
+
+        /**
+         * Request the next pages allowed by the parallelism, or complete the scan
+         */
+        private void schedule() {
+            // Pages completed synchronously call schedule() again, let the outer loop request the next pages
+            if (scheduling) {
+                return;
+            }
+            scheduling = true;
+            try {
+                while (!done && shards != -1) {
+                    if (nextPage < shards && inFlight.size() < parallelism
+                            && (!ordered || nextPage - nextDelivery < 2 * parallelism)) {
+                        send(nextPage, false);
+                    } else if (nextPage >= shards && inFlight.isEmpty() && buffered.isEmpty()) {
+                        if (!lastFull) {
+                            done = true;
+                            result.set(count);
+                        } else {
+                            // Items were added after the count, read past the total one page at a time
+                            lastFull = false;
+                            send(nextPage, false);
+                            shards = nextPage;
+                        }
+                    } else {
+                        return;
+                    }
+                }
+            } finally {
+                scheduling = false;
+            }
+        }
+
+        private synchronized void fail(Throwable failure) {
+            if (done) {
+                return;
+            }
+            done = true;
+            List<ListenableFuture<Paginated<T>>> futures = new ArrayList<>(inFlight.values());
+            inFlight.clear();
+            buffered.clear();
+            futures.forEach(future -> future.cancel(true));
+            result.setException(failure);
+        }
+    }
+}
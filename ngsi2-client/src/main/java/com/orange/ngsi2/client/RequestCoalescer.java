@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Share a single in-flight request between the concurrent callers of the same GET request
+ * (same URI, headers and response type).
+ * All the callers receive the same response instance, which must then be treated as read-only.
+ * Cancelling the future of one caller does not cancel the request of the others.
+ */
+public class RequestCoalescer {
+
+    private final ConcurrentMap<Key, SettableListenableFuture<?>> inFlightRequests = new ConcurrentHashMap<>();
+
+    private final AtomicLong issuedRequests = new AtomicLong();
+
+    private final AtomicLong coalescedRequests = new AtomicLong();
+
+    /**
+     * Send the request, or join the identical request already in flight
+     * @param method the HTTP method, only GET requests are coalesced
+     * @param uri the request URI
+     * @param httpHeaders the request headers
+     * @param responseType the type of the response body
+     * @param request sends the request when no identical request is in flight
+     * @return the response
+     */
+    @SuppressWarnings("unchecked")
+    public <T> ListenableFuture<ResponseEntity<T>> request(HttpMethod method, String uri, HttpHeaders httpHeaders,
+            Class<T> responseType, Supplier<ListenableFuture<ResponseEntity<T>>> request) {
+        if (method != HttpMethod.GET) {
+            return request.get();
+        }
+
+        Key key = new Key(uri, httpHeaders, responseType);
+        SettableListenableFuture<ResponseEntity<T>> shared = new SettableListenableFuture<>();
+        SettableListenableFuture<ResponseEntity<T>> inFlight = (SettableListenableFuture<ResponseEntity<T>>) inFlightRequests.putIfAbsent(key, shared);
+        if (inFlight != null) {
+            coalescedRequests.incrementAndGet();
+            return forward(inFlight);
+        }
+
+        issuedRequests.incrementAndGet();
+        ListenableFuture<ResponseEntity<T>> response;
+        try {
+            response = request.get();
+        } catch (RuntimeException e) {
+            inFlightRequests.remove(key, shared);
+            shared.setException(e);
+            throw e;
+        }
+        // Forget the request before completing it, later callers will issue a new request
+        response.addCallback(result -> {
+            inFlightRequests.remove(key, shared);
+            shared.set(result);
+        }, ex -> {
+            inFlightRequests.remove(key, shared);
+            shared.setException(ex);
+        });
+        return forward(shared);
+    }
+
+    /**
+     * @return the number of requests actually sent
+     */
+    public long getIssuedRequests() {
+        return issuedRequests.get();
+    }
+
+    /**
+     * @return the number of requests served by joining an identical request in flight
+     */
+    public long getCoalescedRequests() {
+        return coalescedRequests.get();
+    }
+
+    /**
+     * @return the number of requests currently in flight
+     */
+    public int getInFlightRequests() {
+        return inFlightRequests.size();
+    }
+
+    private static <T> ListenableFuture<T> forward(ListenableFuture<T> source) {
+        SettableListenableFuture<T> future = new SettableListenableFuture<>();
+        source.addCallback(future::set, future::setException);
+        return future;
+    }
+
+    /**
+     * Identity of a request
+     */
+    private static class Key {
+
+        private final String uri;
+
+        private final HttpHeaders httpHeaders;
+
+        private final Class<?> responseType;
+
+        private final int hashCode;
+
+        Key(String uri, HttpHeaders httpHeaders, Class<?> responseType) {
+            this.uri = uri;
+            // Copy the headers: the default headers of the client can be modified while the request is in flight
+            this.httpHeaders = new HttpHeaders();
+            if (httpHeaders != null) {
+                httpHeaders.forEach((name, values) -> this.httpHeaders.put(name, new ArrayList<>(values)));
+            }
+            this.responseType = responseType;
+            this.hashCode = 31 * (31 * uri.hashCode() + this.httpHeaders.hashCode()) + responseType.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hashCode == key.hashCode && uri.equals(key.uri) && responseType.equals(key.responseType)
+                    && httpHeaders.equals(key.httpHeaders);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
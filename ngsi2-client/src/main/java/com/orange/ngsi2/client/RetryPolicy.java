@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.exception.Ngsi2Exception;
+import org.springframework.http.HttpMethod;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Retry the idempotent requests (GET, HEAD and PUT by default) failing with a retryable error,
+ * after an exponential backoff with full jitter, or after the delay given by the Retry-After header of the response.
+ * DELETE is not retried by default: when the response of a successful attempt is lost, the retry fails with a 404.
+ *
+ * With hedging enabled, a second copy of a GET request is sent when no response was received within
+ * the 95th percentile of the latency of the previous GET requests of the same operation, and the first response received is used.
+ */
+public class RetryPolicy {
+
+    /**
+     * Minimum number of latency samples before hedging
+     */
+    private final static int minSamples = 20;
+
+    private final static int maxSamples = 1024;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final int maxAttempts;
+
+    private final long baseBackoffNanos;
+
+    private final long maxBackoffNanos;
+
+    private Set<HttpMethod> retryableMethods = EnumSet.of(HttpMethod.GET, HttpMethod.HEAD, HttpMethod.PUT);
+
+    private boolean hedging;
+
+    private long minHedgeDelayNanos;
+
+    /**
+     * Latencies of the last GET requests by operation
+     */
+    private final ConcurrentMap<String, Latencies> latencies = new ConcurrentHashMap<>();
+
+    private final AtomicLong retries = new AtomicLong();
+
+    private final AtomicLong hedges = new AtomicLong();
+
+    /**
+     * @param scheduler the scheduler of the delayed retries and hedged requests
+     * @param maxAttempts the maximum number of attempts, including the first one
+     * @param baseBackoff the maximum backoff before the first retry, doubled on each retry
+     * @param maxBackoff the maximum backoff, a request with a longer Retry-After is not retried
+     */
+    public RetryPolicy(ScheduledExecutorService scheduler, int maxAttempts, Duration baseBackoff, Duration maxBackoff) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+        this.scheduler = scheduler;
+        this.maxAttempts = maxAttempts;
+        this.baseBackoffNanos = baseBackoff.toNanos();
+        this.maxBackoffNanos = maxBackoff.toNanos();
+    }
+
+    /**
+     * Send a request, retrying it on failure if allowed.
+     * All the requests of the same method share the latency used for hedging.
+     * @param method the HTTP method of the request
+     * @param request sends the request, called for each attempt
+     * @return the response
+     */
+    public <T> ListenableFuture<T> execute(HttpMethod method, Supplier<ListenableFuture<T>> request) {
+        return execute(method.name(), method, request);
+    }
+
+    /**
+     * Send a request, retrying it on failure if allowed
+     * @param operation the operation of the request, the latency used for hedging is measured per operation
+     * @param method the HTTP method of the request
+     * @param request sends the request, called for each attempt
+     * @return the response
+     */
+    public <T> ListenableFuture<T> execute(String operation, HttpMethod method, Supplier<ListenableFuture<T>> request) {
+        Latencies operationLatencies = method == HttpMethod.GET ? latencies.computeIfAbsent(operation, o -> new Latencies()) : null;
+        Execution<T> execution = new Execution<>(method, operationLatencies, request);
+        execution.send();
+        if (hedging && operationLatencies != null) {
+            long p95 = operationLatencies.p95Nanos;
+            if (p95 >= 0) {
+                execution.scheduleHedge(Math.max(p95, minHedgeDelayNanos));
+            }
+        }
+        return execution.result;
+    }
+
+    /**
+     * @param retryableMethods the HTTP methods considered idempotent, POST and PATCH should never be retried
+     */
+    public void setRetryableMethods(Set<HttpMethod> retryableMethods) {
+        this.retryableMethods = EnumSet.copyOf(retryableMethods);
+    }
+
+    /**
+     * Enable the hedging of GET requests (disabled by default)
+     * @param hedging true to enable hedging
+     * @param minHedgeDelay the minimum delay before sending a second copy of a request
+     */
+    public void setHedging(boolean hedging, Duration minHedgeDelay) {
+        this.hedging = hedging;
+        this.minHedgeDelayNanos = minHedgeDelay.toNanos();
+    }
+
+    /**
+     * @return the number of retried requests
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return the number of hedged requests
+     */
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * @param operation the operation
+     * @return the 95th percentile of the latency of the GET requests of the operation, or null if not enough requests completed
+     */
+    public Duration getLatencyP95(String operation) {
+        Latencies operationLatencies = latencies.get(operation);
+        long p95 = operationLatencies == null ? -1 : operationLatencies.p95Nanos;
+        return p95 < 0 ? null : Duration.ofNanos(p95);
+    }
+
+    /**
+     * Default classification of the failures:
+     * I/O errors, 408, 429 and 5xx responses except 501 are retryable, other NGSIv2 errors are not.
+     * The local rejections (e.g. by the ConcurrencyLimiter shedding load) are not retryable.
+     * @param throwable the failure
+     * @return true if the request can be sent again
+     */
+    public static boolean isRetryable(Throwable throwable) {
+        for (Throwable t = throwable; t != null; t = t.getCause()) {
+            if (t instanceof Ngsi2Exception) {
+                int statusCode = ((Ngsi2Exception) t).getStatusCode();
+                return statusCode == 408 || statusCode == 429 || (statusCode >= 500 && statusCode != 501);
+            }
+            if (t instanceof ResourceAccessException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param retryAfter the value of a Retry-After header
+     * @return the delay in nanoseconds, or -1 if the header is not valid
+     */
+    static long parseRetryAfter(String retryAfter) {
+        try {
+            return TimeUnit.SECONDS.toNanos(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            // not a delay in seconds, try an HTTP date
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, Duration.between(ZonedDateTime.now(date.getZone()), date).toNanos());
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private long retryDelay(int attempt, Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof Ngsi2Exception && ((Ngsi2Exception) t).getRetryAfter().isPresent()) {
+                long retryAfter = parseRetryAfter(((Ngsi2Exception) t).getRetryAfter().get());
+                if (retryAfter >= 0) {
+                    return retryAfter;
+                }
+            }
+        }
+        long backoff = Math.min(maxBackoffNanos, baseBackoffNanos << Math.min(attempt - 1, 30));
+        return ThreadLocalRandom.current().nextLong(backoff + 1);
+    }
+
+    /**
+     * Latencies of the last GET requests of an operation, in a ring buffer
+     */
+    private static class Latencies {
+
+        private final long[] samples = new long[maxSamples];
+
+        private int sampleCount;
+
+        private volatile long p95Nanos = -1;
+
+        synchronized void record(long latencyNanos) {
+            samples[sampleCount % maxSamples] = latencyNanos;
+            sampleCount++;
+            // Recompute the percentile periodically rather than on every sample
+            if (sampleCount >= minSamples && (sampleCount < maxSamples || sampleCount % 64 == 0)) {
+                int size = Math.min(sampleCount, maxSamples);
+                long[] sorted = Arrays.copyOf(samples, size);
+                Arrays.sort(sorted);
+                p95Nanos = sorted[(int) Math.ceil(size * 0.95) - 1];
+            }
+        }
+    }
+
+    /**
+     * All the attempts of a single request
+     */
+    private class Execution<T> {
+
+        private final HttpMethod method;
+
+        /**
+         * Latencies of the operation, null if not a GET request
+         */
+        private final Latencies latencies;
+
+        private final Supplier<ListenableFuture<T>> request;
+
+        private final SettableListenableFuture<T> result = new SettableListenableFuture<>();
+
+        private final List<ListenableFuture<T>> inFlight = new ArrayList<>(2);
+
+        private int attempt;
+
+        Execution(HttpMethod method, Latencies latencies, Supplier<ListenableFuture<T>> request) {
+            this.method = method;
+            this.latencies = latencies;
+            this.request = request;
+            // Cancelling the result cancels all the attempts in flight
+            result.addCallback(r -> {}, ex -> {
+                if (result.isCancelled()) {
+                    cancelInFlight();
+                }
+            });
+        }
+
+        void send() {
+            ListenableFuture<T> future;
+            synchronized (this) {
+                if (result.isDone()) {
+                    return;
+                }
+                attempt++;
+            }
+            long start = System.nanoTime();
+            try {
+                future = request.get();
+            } catch (RuntimeException e) {
+                onFailure(null, e);
+                return;
+            }
+            synchronized (this) {
+                inFlight.add(future);
+            }
+            future.addCallback(value -> {
+                if (latencies != null) {
+                    latencies.record(System.nanoTime() - start);
+                }
+                if (result.set(value)) {
+                    cancelInFlight();
+                }
+            }, ex -> onFailure(future, ex));
+        }
+
+        void scheduleHedge(long delayNanos) {
+            scheduler.schedule(() -> {
+                synchronized (this) {
+                    if (result.isDone() || inFlight.size() != 1 || attempt != 1) {
+                        return;
+                    }
+                }
+                hedges.incrementAndGet();
+                send();
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void onFailure(ListenableFuture<T> future, Throwable failure) {
+            int failedAttempt;
+            synchronized (this) {
+                inFlight.remove(future);
+                // Wait for the hedged copy still in flight
+                if (result.isDone() || !inFlight.isEmpty()) {
+                    return;
+                }
+                failedAttempt = attempt;
+            }
+            if (failedAttempt < maxAttempts && retryableMethods.contains(method) && isRetryable(failure)) {
+                long delay = retryDelay(failedAttempt, failure);
+                if (delay <= maxBackoffNanos) {
+                    retries.incrementAndGet();
+                    scheduler.schedule(this::send, delay, TimeUnit.NANOSECONDS);
+                    return;
+                }
+            }
+            result.setException(failure);
+        }
+
+        private void cancelInFlight() {
+            List<ListenableFuture<T>> futures;
+            synchronized (this) {
+                futures = new ArrayList<>(inFlight);
+                inFlight.clear();
+            }
+            futures.forEach(f -> f.cancel(true));
+        }
+    }
+}
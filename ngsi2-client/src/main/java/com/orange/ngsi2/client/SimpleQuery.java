@@ -0,0 +1,490 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Typed builder of Simple Query Language queries, the query parameter of the entity requests
+ * (e.g. {@link Ngsi2Client#getEntities(Collection, String, Collection, Collection, String, com.orange.ngsi2.model.GeoQuery, Collection, int, int, boolean)}).
+ *
+ * The statements are joined by a logical AND, and compiled to a canonical string whatever the order they were added in:
+ * statements sorted and deduplicated, values of lists sorted and deduplicated, numbers without exponent nor trailing zeros
+ * (20, 20L and 20.0 give the same query) and strings always quoted. Identical predicates then always give the same
+ * request URI, which increases the hit rates of the EntityCache, of the RequestCoalescer and of the caches of the server.
+ * The compiled queries are cached, and invalid attribute names or values are rejected by an IllegalArgumentException.
+ *
+ * Usage: {@code SimpleQuery.builder().greaterThan("temperature", 20).in("color", "red", "blue").exists("humidity").build()}
+ */
+public final class SimpleQuery {
+
+    /**
+     * Maximum number of compiled queries cached, the least recently used one being evicted when it is full
+     */
+    private final static int maxCachedQueries = 1024;
+
+    /**
+     * Compiled queries by sorted and deduplicated list of statements (builder) or by query string (parse), in access order
+     */
+    private final static Map<Object, String> compiled = Collections.synchronizedMap(new LinkedHashMap<Object, String>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, String> eldest) {
+            return size() > maxCachedQueries;
+        }
+    });
+
+    /**
+     * Characters allowed in attribute names: printable ASCII except the ones reserved by the NGSI v2 field syntax
+     * and by the query language. Dots separate the keys of compound attributes.
+     */
+    private final static Pattern attributePattern = Pattern.compile("[\\x21-\\x7E&&[^&?/#<>\"'=;(),!~]]+");
+
+    private final static Pattern numberPattern = Pattern.compile("-?[0-9]+(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+
+    private final static Pattern datePattern = Pattern.compile("[0-9]{4}-[0-9]{2}-[0-9]{2}[0-9A-Za-z:.+\\-]*");
+
+    private enum Operator {
+        exists(""), notExists("!"), equal("=="), notEqual("!="), greaterThan(">"), greaterOrEqual(">="), lessThan("<"), lessOrEqual("<=");
+
+        private final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+    }
+
+    /**
+     * A single statement, its values being already in canonical form
+     */
+    private final static class Statement implements Comparable<Statement> {
+
+        private final String attribute;
+
+        private final Operator operator;
+
+        private final String text;
+
+        Statement(String attribute, Operator operator, String values) {
+            this.attribute = attribute;
+            this.operator = operator;
+            this.text = operator == Operator.notExists ? "!" + attribute : attribute + operator.symbol + values;
+        }
+
+        @Override
+        public int compareTo(Statement other) {
+            int result = attribute.compareTo(other.attribute);
+            if (result == 0) {
+                result = operator.compareTo(other.operator);
+            }
+            return result != 0 ? result : text.compareTo(other.text);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Statement && text.equals(((Statement) o).text);
+        }
+
+        @Override
+        public int hashCode() {
+            return text.hashCode();
+        }
+    }
+
+    /**
+     * Builder of a query, not thread-safe
+     */
+    public static class Builder {
+
+        private final List<Statement> statements = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        /**
+         * @param attribute the attribute name
+         * @param value a String, Number, Boolean or Instant
+         * @return the builder, adding attribute==value
+         */
+        public Builder equal(String attribute, Object value) {
+            return add(attribute, Operator.equal, format(value));
+        }
+
+        /**
+         * @param attribute the attribute name
+         * @param value a String, Number, Boolean or Instant
+         * @return the builder, adding attribute!=value
+         */
+        public Builder notEqual(String attribute, Object value) {
+            return add(attribute, Operator.notEqual, format(value));
+        }
+
+        /**
+         * @param attribute the attribute name
+         * @param values the values, Strings, Numbers, Booleans or Instants
+         * @return the builder, adding attribute==value1,value2...
+         */
+        public Builder in(String attribute, Object... values) {
+            return add(attribute, Operator.equal, list(values));
+        }
+
+        /**
+         * @param attribute the attribute name
+         * @param values the values, Strings, Numbers, Booleans or Instants
+         * @return the builder, adding attribute!=value1,value2...
+         */
+        public Builder notIn(String attribute, Object... values) {
+            return add(attribute, Operator.notEqual, list(values));
+        }
+
+        /**
+         * @param attribute the attribute name
+         * @param min the minimum value included, a String, Number or Instant
+         * @param max the maximum value included, of the same type as the minimum
+         * @return the builder, adding attribute==min..max
+         */
+        public Builder between(String attribute, Object min, Object max) {
+            return add(attribute, Operator.equal, range(min, max));
+        }
+
+        /**
+         * @param attribute the attribute name
+         * @param min the minimum value, a String, Number or Instant
+         * @param max the maximum value, of the same type as the minimum
+         * @return the builder, adding attribute!=min..max
+         */
+        public Builder notBetween(String attribute, Object min, Object max) {
+            return add(attribute, Operator.notEqual, range(min, max));
+        }
+
+        /**
+         * @param attribute the attribute name
+         * @param value a String, Number or Instant
+         * @return the builder, adding attribute>value
+         */
+        public Builder greaterThan(String attribute, Object value) {
+            return add(attribute, Operator.greaterThan, format(value));
+        }
+
+        /**
+         * @param attribute the attribute name
+         * @param value a String, Number or Instant
+         * @return the builder, adding attribute>=value
+         */
+        public Builder greaterOrEqual(String attribute, Object value) {
+            return add(attribute, Operator.greaterOrEqual, format(value));
+        }
+
+        /**
+         * @param attribute the attribute name
+         * @param value a String, Number or Instant
+         * @return the builder, adding attribute<value
+         */
+        public Builder lessThan(String attribute, Object value) {
+            return add(attribute, Operator.lessThan, format(value));
+        }
+
+        /**
+         * @param attribute the attribute name
+         * @param value a String, Number or Instant
+         * @return the builder, adding attribute<=value
+         */
+        public Builder lessOrEqual(String attribute, Object value) {
+            return add(attribute, Operator.lessOrEqual, format(value));
+        }
+
+        /**
+         * @param attribute the attribute name
+         * @return the builder, adding a statement matching the entities having the attribute
+         */
+        public Builder exists(String attribute) {
+            return add(attribute, Operator.exists, "");
+        }
+
+        /**
+         * @param attribute the attribute name
+         * @return the builder, adding a statement matching the entities not having the attribute
+         */
+        public Builder notExists(String attribute) {
+            return add(attribute, Operator.notExists, "");
+        }
+
+        /**
+         * @return the canonical query, the same String instance being returned for the same statements while it is cached
+         * @throws IllegalArgumentException if no statement was added
+         */
+        public String build() {
+            if (statements.isEmpty()) {
+                throw new IllegalArgumentException("empty query");
+            }
+            // Statements added in another order, or twice, give the same key
+            List<Statement> key = new ArrayList<>(new TreeSet<>(statements));
+            String query = compiled.get(key);
+            if (query == null) {
+                query = cache(key, compile(key));
+            }
+            return query;
+        }
+
+        private Builder add(String attribute, Operator operator, String values) {
+            if (attribute == null || !attributePattern.matcher(attribute).matches()) {
+                throw new IllegalArgumentException("invalid attribute name: " + attribute);
+            }
+            statements.add(new Statement(attribute, operator, values));
+            return this;
+        }
+    }
+
+    private SimpleQuery() {
+    }
+
+    /**
+     * @return a new query builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Validate a query written by hand and put it in canonical form, e.g. "temperature>20.0;color==red" gives
+     * "color=='red';temperature>20". The unquoted values that are neither numbers, booleans nor dates are strings.
+     * @param query the query
+     * @return the canonical query
+     * @throws IllegalArgumentException if the query is malformed
+     */
+    public static String parse(String query) {
+        if (query == null) {
+            throw new IllegalArgumentException("null query");
+        }
+        String canonical = compiled.get(query);
+        if (canonical == null) {
+            Builder builder = new Builder();
+            for (String statement : split(query, ";")) {
+                parseStatement(builder, statement);
+            }
+            canonical = cache(query, builder.build());
+        }
+        return canonical;
+    }
+
+    private static String compile(List<Statement> statements) {
+        StringJoiner joiner = new StringJoiner(";");
+        statements.forEach(statement -> joiner.add(statement.text));
+        return joiner.toString();
+    }
+
+    private static String cache(Object key, String query) {
+        String previous = compiled.putIfAbsent(key, query);
+        return previous != null ? previous : query;
+    }
+
+    private static void parseStatement(Builder builder, String statement) {
+        if (statement.isEmpty()) {
+            throw new IllegalArgumentException("empty statement");
+        }
+        if (statement.charAt(0) == '!') {
+            builder.notExists(statement.substring(1));
+            return;
+        }
+        int start = indexOfAny(statement, "=!<>");
+        if (start < 0) {
+            builder.exists(statement);
+            return;
+        }
+        String attribute = statement.substring(0, start);
+        Operator operator = null;
+        for (Operator candidate : Operator.values()) {
+            String symbol = candidate.symbol;
+            if (!symbol.isEmpty() && statement.startsWith(symbol, start)
+                    && (operator == null || symbol.length() > operator.symbol.length())) {
+                operator = candidate;
+            }
+        }
+        if (operator == null) {
+            throw new IllegalArgumentException("invalid operator in statement: " + statement);
+        }
+        String values = statement.substring(start + operator.symbol.length());
+        if (operator == Operator.equal || operator == Operator.notEqual) {
+            List<String> bounds = split(values, "..");
+            if (bounds.size() == 2) {
+                builder.add(attribute, operator, checkedRange(parseValue(bounds.get(0)), parseValue(bounds.get(1))));
+            } else if (bounds.size() == 1) {
+                List<String> items = split(values, ",");
+                String[] tokens = new String[items.size()];
+                for (int i = 0; i < tokens.length; i++) {
+                    tokens[i] = parseValue(items.get(i));
+                }
+                builder.add(attribute, operator, join(tokens));
+            } else {
+                throw new IllegalArgumentException("invalid range in statement: " + statement);
+            }
+        } else {
+            builder.add(attribute, operator, parseValue(values));
+        }
+    }
+
+    /**
+     * @return the canonical form of a single value
+     */
+    private static String parseValue(String value) {
+        if (value.length() >= 2 && value.charAt(0) == '\'' && value.charAt(value.length() - 1) == '\'') {
+            return quote(value.substring(1, value.length() - 1));
+        }
+        if (value.isEmpty() || indexOfAny(value, "'=!<>,; \t") >= 0) {
+            throw new IllegalArgumentException("invalid value: " + value);
+        }
+        if (numberPattern.matcher(value).matches()) {
+            return canonicalNumber(new BigDecimal(value));
+        }
+        if (value.equals("true") || value.equals("false") || datePattern.matcher(value).matches()) {
+            return value;
+        }
+        return quote(value);
+    }
+
+    private static String format(Object value) {
+        if (value instanceof String) {
+            return quote((String) value);
+        }
+        if (value instanceof Boolean || value instanceof Instant) {
+            return value.toString();
+        }
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+                || value instanceof BigInteger) {
+            return value.toString();
+        }
+        if (value instanceof BigDecimal) {
+            return canonicalNumber((BigDecimal) value);
+        }
+        if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                throw new IllegalArgumentException("invalid number: " + value);
+            }
+            return canonicalNumber(new BigDecimal(value.toString()));
+        }
+        throw new IllegalArgumentException("unsupported value: " + value);
+    }
+
+    private static String canonicalNumber(BigDecimal number) {
+        if (number.signum() == 0) {
+            return "0";
+        }
+        return number.stripTrailingZeros().toPlainString();
+    }
+
+    private static String quote(String value) {
+        if (value.indexOf('\'') >= 0) {
+            throw new IllegalArgumentException("a string value cannot contain a single quote: " + value);
+        }
+        return "'" + value + "'";
+    }
+
+    private static String list(Object... values) {
+        if (values == null || values.length == 0) {
+            throw new IllegalArgumentException("empty list of values");
+        }
+        String[] tokens = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            tokens[i] = format(values[i]);
+        }
+        return join(tokens);
+    }
+
+    /**
+     * @return the values sorted and deduplicated, separated by commas
+     */
+    private static String join(String[] tokens) {
+        return String.join(",", new TreeSet<>(Arrays.asList(tokens)));
+    }
+
+    private static String range(Object min, Object max) {
+        boolean numbers = min instanceof Number && max instanceof Number;
+        boolean sameType = (min instanceof String || min instanceof Instant) && max != null && min.getClass() == max.getClass();
+        if (!numbers && !sameType) {
+            throw new IllegalArgumentException("invalid range: " + min + ".." + max);
+        }
+        return checkedRange(format(min), format(max));
+    }
+
+    /**
+     * @return the range of two canonical values, the minimum being lower than or equal to the maximum
+     */
+    private static String checkedRange(String min, String max) {
+        int comparison;
+        if (numberPattern.matcher(min).matches() && numberPattern.matcher(max).matches()) {
+            comparison = new BigDecimal(min).compareTo(new BigDecimal(max));
+        } else if (datePattern.matcher(min).matches() && datePattern.matcher(max).matches()) {
+            comparison = compareDates(min, max);
+        } else {
+            comparison = min.compareTo(max);
+        }
+        if (comparison > 0) {
+            throw new IllegalArgumentException("invalid range: " + min + ".." + max);
+        }
+        return min + ".." + max;
+    }
+
+    /**
+     * Compare two dates as instants when possible, their text being of variable length (e.g. optional fraction of second)
+     */
+    private static int compareDates(String min, String max) {
+        try {
+            return Instant.parse(min).compareTo(Instant.parse(max));
+        } catch (DateTimeParseException e) {
+            return min.compareTo(max);
+        }
+    }
+
+    /**
+     * Split around a separator, outside of the quoted strings
+     */
+    private static List<String> split(String text, String separator) {
+        List<String> parts = new ArrayList<>();
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted && text.startsWith(separator, i)) {
+                parts.add(text.substring(start, i));
+                i += separator.length() - 1;
+                start = i + 1;
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("unterminated string: " + text);
+        }
+        parts.add(text.substring(start));
+        return parts;
+    }
+
+    private static int indexOfAny(String text, String chars) {
+        for (int i = 0; i < text.length(); i++) {
+            if (chars.indexOf(text.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
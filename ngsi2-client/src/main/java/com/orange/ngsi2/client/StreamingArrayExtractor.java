@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.web.client.ResponseExtractor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+
+/**
+ * Decode a JSON array response item by item with the Jackson streaming parser,
+ * handing each item to a consumer as soon as it is parsed instead of building the whole array in memory.
+ * The consumer is called from the thread reading the response: while it blocks, the response is not read further.
+ * @param <T> the type of the items
+ */
+class StreamingArrayExtractor<T> implements ResponseExtractor<Integer> {
+
+    private final ObjectMapper objectMapper;
+
+    private final ObjectReader reader;
+
+    private final Consumer<? super T> consumer;
+
+    /**
+     * @param objectMapper the object mapper of the client
+     * @param type the type of the items
+     * @param consumer receives the items in order
+     */
+    StreamingArrayExtractor(ObjectMapper objectMapper, Class<T> type, Consumer<? super T> consumer) {
+        this.objectMapper = objectMapper;
+        this.reader = objectMapper.readerFor(type);
+        this.consumer = consumer;
+    }
+
+    /**
+     * @return the number of items received
+     */
+    @Override
+    public Integer extractData(ClientHttpResponse response) throws IOException {
+        InputStream body = response.getBody();
+        if (body == null) {
+            return 0;
+        }
+        try (JsonParser parser = objectMapper.getFactory().createParser(body)) {
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                return 0;
+            }
+            if (token != JsonToken.START_ARRAY) {
+                throw new HttpMessageNotReadableException("Expected a JSON array but got " + token);
+            }
+            int count = 0;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token != JsonToken.START_OBJECT) {
+                    throw new HttpMessageNotReadableException("Expected a JSON object in the array but got " + token);
+                }
+                consumer.accept(reader.readValue(parser));
+                count++;
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.exception;
+
+/**
+ * Request not sent because the circuit breaker of its endpoint is open (stackless, as it is thrown for each rejected request)
+ */
+public class CircuitBreakerOpenException extends Ngsi2Exception {
+
+    private final String circuit;
+
+    public CircuitBreakerOpenException(String circuit) {
+        super("CircuitBreakerOpen", "Circuit breaker open for " + circuit, null, false);
+        this.circuit = circuit;
+    }
+
+    /**
+     * @return the key of the open circuit (base URL, followed by the operation if the breaker is per operation)
+     */
+    public String getCircuit() {
+        return circuit;
+    }
+}
@@ -21,6 +21,7 @@ import com.orange.ngsi2.model.Error;
 
 import java.util.Collection;
 import java.util.Optional;
+import java.util.function.Supplier;
 
 /**
  * 409 TooManyResults
@@ -34,6 +35,10 @@ public class ConflictingEntitiesException extends Ngsi2Exception {
         super(error);
     }
 
+    ConflictingEntitiesException(int statusCode, Supplier<Error> errorDecoder) {
+        super(statusCode, errorDecoder);
+    }
+
     public ConflictingEntitiesException(String entityId, String url) {
         super("409", String.format(message, entityId, url), null);
     }
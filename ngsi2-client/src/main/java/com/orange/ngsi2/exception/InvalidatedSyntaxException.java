@@ -19,6 +19,8 @@ package com.orange.ngsi2.exception;
 
 import com.orange.ngsi2.model.Error;
 
+import java.util.function.Supplier;
+
 /**
  * 400 Invalid syntax
  */
@@ -30,6 +32,10 @@ public class InvalidatedSyntaxException extends Ngsi2Exception {
         super(error);
     }
 
+    InvalidatedSyntaxException(int statusCode, Supplier<Error> errorDecoder) {
+        super(statusCode, errorDecoder);
+    }
+
     public InvalidatedSyntaxException(String field) {
         super("400", String.format(message, field), null);
     }
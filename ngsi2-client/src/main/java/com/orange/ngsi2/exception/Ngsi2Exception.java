@@ -8,6 +8,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
 
 /**
  * Root exception for all NGSIv2 errors
@@ -16,6 +17,21 @@ public class Ngsi2Exception extends RuntimeException {
 
     private Error error = new Error();
 
+    /**
+     * Decodes the error on first access, null once decoded
+     */
+    private Supplier<Error> errorDecoder;
+
+    /**
+     * HTTP status code of the response carrying the error, 0 if unknown
+     */
+    private int statusCode;
+
+    /**
+     * Retry-After header of the response carrying the error
+     */
+    private String retryAfter;
+
     /**
      * Return specialized exception based on the HTTP status code and error
      * @param statusCode the response code
@@ -23,10 +39,27 @@ public class Ngsi2Exception extends RuntimeException {
      * @return the corresponding Ngsi2Exception
      */
     public static Ngsi2Exception fromError(int statusCode, Error error) {
+        Ngsi2Exception exception;
+        switch (statusCode) {
+            case 409: exception = new ConflictingEntitiesException(error); break;
+            case 400: exception = new InvalidatedSyntaxException(error); break;
+            default: exception = new Ngsi2Exception(error);
+        }
+        exception.statusCode = statusCode;
+        return exception;
+    }
+
+    /**
+     * Return a specialized stackless exception for an error response, its error body being decoded on first access
+     * @param statusCode the response code
+     * @param errorDecoder decodes the error of the response
+     * @return the corresponding Ngsi2Exception
+     */
+    public static Ngsi2Exception fromResponse(int statusCode, Supplier<Error> errorDecoder) {
         switch (statusCode) {
-            case 409: return new ConflictingEntitiesException(error);
-            case 400: return new InvalidatedSyntaxException(error);
-            default: return new Ngsi2Exception(error);
+            case 409: return new ConflictingEntitiesException(statusCode, errorDecoder);
+            case 400: return new InvalidatedSyntaxException(statusCode, errorDecoder);
+            default: return new Ngsi2Exception(statusCode, errorDecoder);
         }
     }
 
@@ -48,11 +81,62 @@ public class Ngsi2Exception extends RuntimeException {
         }
     }
 
-    public Error getError() {
+    public Ngsi2Exception(String error, String description, Collection<String> affectedItems, int statusCode) {
+        this(error, description, affectedItems);
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * Stackless exception whose error is decoded on first access, for the expected protocol errors
+     * @param statusCode the HTTP status code of the response carrying the error
+     * @param errorDecoder decodes the error
+     */
+    protected Ngsi2Exception(int statusCode, Supplier<Error> errorDecoder) {
+        super(null, null, false, false);
+        this.statusCode = statusCode;
+        this.errorDecoder = errorDecoder;
+    }
+
+    /**
+     * Stackless exception, for the expected failures whose stack trace is irrelevant
+     */
+    protected Ngsi2Exception(String error, String description, Collection<String> affectedItems, boolean writableStackTrace) {
+        super(null, null, false, writableStackTrace);
+        this.error.setError(error);
+        this.error.setDescription(Optional.ofNullable(description));
+        this.error.setAffectedItems(Optional.ofNullable(affectedItems));
+    }
+
+    public synchronized Error getError() {
+        if (errorDecoder != null) {
+            Error decoded = errorDecoder.get();
+            error.setError(decoded.getError());
+            error.setDescription(decoded.getDescription() != null ? decoded.getDescription() : Optional.empty());
+            error.setAffectedItems(decoded.getAffectedItems() != null ? decoded.getAffectedItems() : Optional.of(Collections.emptyList()));
+            errorDecoder = null;
+        }
         return error;
     }
 
+    /**
+     * @return the HTTP status code of the response carrying the error, 0 if unknown
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the Retry-After header of the response carrying the error (delay in seconds or HTTP date)
+     */
+    public Optional<String> getRetryAfter() {
+        return Optional.ofNullable(retryAfter);
+    }
+
+    public void setRetryAfter(String retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
     public String getMessage() {
-        return error.toString();
+        return getError().toString();
     }
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.model.Attribute;
+import com.orange.ngsi2.model.BulkUpdateRequest;
+import com.orange.ngsi2.model.Entity;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.AsyncRestTemplate;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for BatchingWriter
+ */
+public class BatchingWriterTest {
+
+    private final List<BulkUpdateRequest> requests = new CopyOnWriteArrayList<>();
+
+    private final List<SettableListenableFuture<Void>> results = new CopyOnWriteArrayList<>();
+
+    private final Ngsi2Client client = new Ngsi2Client(new AsyncRestTemplate(), "http://localhost:8080") {
+        @Override
+        public ListenableFuture<Void> bulkUpdate(BulkUpdateRequest bulkUpdateRequest) {
+            SettableListenableFuture<Void> result = new SettableListenableFuture<>();
+            requests.add(bulkUpdateRequest);
+            results.add(result);
+            return result;
+        }
+    };
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void mergePerEntityTest() throws ExecutionException, InterruptedException {
+        BatchingWriter writer = new BatchingWriter(client, scheduler, Duration.ofMinutes(1), 100);
+        ListenableFuture<Void> first = writer.updateAttribute("Room1", "Room", "temperature", new Attribute(20.0));
+        ListenableFuture<Void> second = writer.updateAttribute("Room1", "Room", "temperature", new Attribute(21.0));
+        ListenableFuture<Void> third = writer.updateAttribute("Room1", "Room", "pressure", new Attribute(720));
+        writer.updateAttribute("Room2", "Room", "temperature", new Attribute(19.0));
+        assertEquals(4, writer.getPendingUpdates());
+        assertTrue(requests.isEmpty());
+
+        writer.flush();
+        assertEquals(1, requests.size());
+        BulkUpdateRequest request = requests.get(0);
+        assertEquals(BulkUpdateRequest.Action.UPDATE, request.getActionType());
+        List<Entity> entities = new ArrayList<>(request.getEntities());
+        assertEquals(2, entities.size());
+        assertEquals("Room1", entities.get(0).getId());
+        assertEquals(21.0, entities.get(0).getAttributes().get("temperature").getValue());
+        assertEquals(720, entities.get(0).getAttributes().get("pressure").getValue());
+        assertEquals("Room2", entities.get(1).getId());
+
+        assertFalse(first.isDone());
+        results.get(0).set(null);
+        first.get();
+        second.get();
+        third.get();
+        assertEquals(1, writer.getSentBatches());
+        assertEquals(4, writer.getBatchedUpdates());
+        assertEquals(0, writer.getPendingUpdates());
+    }
+
+    @Test
+    public void maxEntitiesTest() {
+        BatchingWriter writer = new BatchingWriter(client, scheduler, Duration.ofMinutes(1), 2);
+        writer.updateAttribute("Room1", "Room", "temperature", new Attribute(20.0));
+        writer.updateAttribute("Room1", "Room", "pressure", new Attribute(720));
+        assertTrue(requests.isEmpty());
+        writer.updateAttribute("Room2", "Room", "temperature", new Attribute(19.0));
+        assertEquals(1, requests.size());
+        assertEquals(2, requests.get(0).getEntities().size());
+    }
+
+    @Test
+    public void maxDelayTest() throws InterruptedException, ExecutionException, TimeoutException {
+        BatchingWriter writer = new BatchingWriter(client, scheduler, Duration.ofMillis(10), 100);
+        ListenableFuture<Void> future = writer.updateAttribute("Room1", "Room", "temperature", new Attribute(20.0));
+        long deadline = System.currentTimeMillis() + 1000;
+        while (results.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, results.size());
+        results.get(0).set(null);
+        future.get(1, TimeUnit.SECONDS);
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void actionChangeFlushesTest() {
+        BatchingWriter writer = new BatchingWriter(client, scheduler, Duration.ofMinutes(1), 100);
+        writer.updateAttribute("Room1", "Room", "temperature", new Attribute(20.0));
+        writer.updateEntity("Room1", "Room", Collections.singletonMap("humidity", new Attribute(40)), false);
+        assertEquals(1, requests.size());
+        assertEquals(BulkUpdateRequest.Action.UPDATE, requests.get(0).getActionType());
+
+        writer.updateEntity("Room1", "Room", Collections.singletonMap("pressure", new Attribute(720)), true);
+        writer.close();
+        assertEquals(3, requests.size());
+        assertEquals(BulkUpdateRequest.Action.APPEND, requests.get(1).getActionType());
+        assertEquals(BulkUpdateRequest.Action.APPEND_STRICT, requests.get(2).getActionType());
+    }
+
+    @Test
+    public void sentOutsideOfLockTest() {
+        List<Boolean> lockHeld = new CopyOnWriteArrayList<>();
+        BatchingWriter[] writer = new BatchingWriter[1];
+        Ngsi2Client lockCheckingClient = new Ngsi2Client(new AsyncRestTemplate(), "http://localhost:8080") {
+            @Override
+            public ListenableFuture<Void> bulkUpdate(BulkUpdateRequest bulkUpdateRequest) {
+                lockHeld.add(Thread.holdsLock(writer[0]));
+                return new SettableListenableFuture<>();
+            }
+        };
+        writer[0] = new BatchingWriter(lockCheckingClient, scheduler, Duration.ofMinutes(1), 2);
+        writer[0].updateAttribute("Room1", "Room", "temperature", new Attribute(20.0));
+        // action change
+        writer[0].updateEntity("Room1", "Room", Collections.singletonMap("humidity", new Attribute(40)), false);
+        // full
+        writer[0].updateEntity("Room2", "Room", Collections.singletonMap("humidity", new Attribute(40)), false);
+        writer[0].updateEntity("Room3", "Room", Collections.singletonMap("humidity", new Attribute(40)), false);
+        writer[0].flush();
+        assertEquals(Arrays.asList(false, false, false), lockHeld);
+    }
+
+    @Test
+    public void failedBatchTest() throws InterruptedException {
+        BatchingWriter writer = new BatchingWriter(client, scheduler, Duration.ofMinutes(1), 100);
+        ListenableFuture<Void> first = writer.updateAttribute("Room1", "Room", "temperature", new Attribute(20.0));
+        ListenableFuture<Void> second = writer.updateAttribute("Room2", "Room", "temperature", new Attribute(20.0));
+        writer.flush();
+        results.get(0).setException(new IllegalStateException("failed"));
+        for (ListenableFuture<Void> future : Arrays.asList(first, second)) {
+            try {
+                future.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertEquals("failed", e.getCause().getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.exception.Ngsi2Exception;
+import com.orange.ngsi2.model.Attribute;
+import com.orange.ngsi2.model.BulkUpdateRequest;
+import com.orange.ngsi2.model.Entity;
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for BulkUpdateSubmitter
+ */
+public class BulkUpdateSubmitterTest {
+
+    private final List<BulkUpdateRequest> requests = new CopyOnWriteArrayList<>();
+
+    private final List<SettableListenableFuture<Void>> results = new CopyOnWriteArrayList<>();
+
+    private final Ngsi2Client client = new Ngsi2Client(new AsyncRestTemplate(), "http://localhost:8080") {
+        @Override
+        public ListenableFuture<Void> bulkUpdate(BulkUpdateRequest bulkUpdateRequest) {
+            SettableListenableFuture<Void> result = new SettableListenableFuture<>();
+            requests.add(bulkUpdateRequest);
+            results.add(result);
+            return result;
+        }
+    };
+
+    @Test
+    public void splitByCountTest() {
+        BulkUpdateSubmitter submitter = new BulkUpdateSubmitter(client, 4, Long.MAX_VALUE, 1);
+        List<BulkUpdateRequest> chunks = submitter.split(request(10));
+        assertEquals(3, chunks.size());
+        assertEquals(4, chunks.get(0).getEntities().size());
+        assertEquals(4, chunks.get(1).getEntities().size());
+        assertEquals(2, chunks.get(2).getEntities().size());
+        assertEquals(BulkUpdateRequest.Action.APPEND, chunks.get(2).getActionType());
+        assertEquals("Room8", chunks.get(2).getEntities().iterator().next().getId());
+    }
+
+    @Test
+    public void splitBySizeTest() {
+        long size = BulkUpdateSubmitter.serializedSize(client.getObjectMapper()).applyAsLong(entity(0));
+        assertTrue(size > 0);
+        // Room of the envelope and three entities
+        BulkUpdateSubmitter submitter = new BulkUpdateSubmitter(client, 100, 64 + 3 * (size + 1), 1);
+        List<BulkUpdateRequest> chunks = submitter.split(request(7));
+        assertEquals(3, chunks.size());
+        assertEquals(3, chunks.get(0).getEntities().size());
+        assertEquals(1, chunks.get(2).getEntities().size());
+
+        // An entity larger than the limit is sent alone
+        submitter = new BulkUpdateSubmitter(client, 100, 1, 1);
+        assertEquals(2, submitter.split(request(2)).size());
+    }
+
+    @Test
+    public void pipelinedTest() throws ExecutionException, InterruptedException {
+        BulkUpdateSubmitter submitter = new BulkUpdateSubmitter(client, 2, Long.MAX_VALUE, 2);
+        ListenableFuture<BulkUpdateSubmitter.Result> future = submitter.submit(request(7));
+        assertEquals(2, requests.size());
+
+        results.get(1).set(null);
+        assertEquals(3, requests.size());
+        results.get(0).set(null);
+        results.get(2).set(null);
+        assertEquals(4, requests.size());
+        assertFalse(future.isDone());
+        results.get(3).set(null);
+
+        BulkUpdateSubmitter.Result result = future.get();
+        assertTrue(result.isSuccess());
+        assertEquals(4, result.getChunks());
+        assertEquals(0, result.getRetries());
+    }
+
+    @Test
+    public void aggregateFailuresTest() throws ExecutionException, InterruptedException {
+        BulkUpdateSubmitter submitter = new BulkUpdateSubmitter(client, 2, Long.MAX_VALUE, 3);
+        ListenableFuture<BulkUpdateSubmitter.Result> future = submitter.submit(request(6));
+        assertEquals(3, requests.size());
+        results.get(0).set(null);
+        results.get(1).setException(new Ngsi2Exception("NotFound", "entity not found", Collections.singletonList("Room3"), 404));
+        results.get(2).setException(new ResourceAccessException("connection reset"));
+
+        BulkUpdateSubmitter.Result result = future.get();
+        assertFalse(result.isSuccess());
+        assertEquals(3, result.getChunks());
+        assertEquals(2, result.getFailedChunks().size());
+        assertEquals(2, result.getFailures().size());
+        assertEquals(Arrays.asList("Room3", "Room4", "Room5"), new ArrayList<>(result.getAffectedItems()));
+    }
+
+    @Test
+    public void retryFailedChunksTest() throws ExecutionException, InterruptedException {
+        BulkUpdateSubmitter submitter = new BulkUpdateSubmitter(client, 2, Long.MAX_VALUE, 2);
+        submitter.setRetries(1, RetryPolicy::isRetryable);
+        ListenableFuture<BulkUpdateSubmitter.Result> future = submitter.submit(request(4));
+        results.get(0).set(null);
+        results.get(1).setException(new Ngsi2Exception("ServiceUnavailable", "", null, 503));
+
+        // Only the failed chunk is sent again
+        assertEquals(3, requests.size());
+        assertSame(requests.get(1), requests.get(2));
+        results.get(2).set(null);
+
+        BulkUpdateSubmitter.Result result = future.get();
+        assertTrue(result.isSuccess());
+        assertEquals(1, result.getRetries());
+    }
+
+    @Test
+    public void cancelTest() {
+        BulkUpdateSubmitter submitter = new BulkUpdateSubmitter(client, 1, Long.MAX_VALUE, 2);
+        ListenableFuture<BulkUpdateSubmitter.Result> future = submitter.submit(request(5));
+        future.cancel(true);
+        assertTrue(results.get(0).isCancelled());
+        assertTrue(results.get(1).isCancelled());
+        assertEquals(2, requests.size());
+    }
+
+    private static BulkUpdateRequest request(int size) {
+        List<Entity> entities = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            entities.add(entity(i));
+        }
+        return new BulkUpdateRequest(BulkUpdateRequest.Action.APPEND, entities);
+    }
+
+    private static Entity entity(int i) {
+        return new Entity("Room" + i, "Room", Collections.singletonMap("temperature", new Attribute(20.0 + i)));
+    }
+}
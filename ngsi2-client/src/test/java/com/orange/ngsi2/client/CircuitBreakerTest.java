@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.exception.CircuitBreakerOpenException;
+import com.orange.ngsi2.exception.Ngsi2Exception;
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for CircuitBreaker
+ */
+public class CircuitBreakerTest {
+
+    private final static String endpoint = "http://localhost:8080/";
+
+    private final List<String> transitions = new ArrayList<>();
+
+    @Test
+    public void openOnFailureRateTest() {
+        CircuitBreaker breaker = breaker(Duration.ofMinutes(1));
+        succeed(breaker);
+        failWith(breaker, 404);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(endpoint));
+        failWith(breaker, 503);
+        failWith(breaker, 500);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(endpoint));
+        assertEquals(1, breaker.getOpened());
+
+        ListenableFuture<Void> rejected = breaker.execute(endpoint, "getEntity", () -> {
+            throw new AssertionError("request sent while open");
+        });
+        try {
+            rejected.get();
+            fail("expected CircuitBreakerOpenException");
+        } catch (ExecutionException | InterruptedException e) {
+            assertTrue(e.getCause() instanceof CircuitBreakerOpenException);
+        }
+        assertEquals(1, breaker.getRejected());
+        assertEquals("[CLOSED->OPEN]", transitions.toString());
+    }
+
+    @Test
+    public void halfOpenTest() throws InterruptedException {
+        CircuitBreaker breaker = breaker(Duration.ofMillis(20));
+        breaker.setHalfOpenCalls(2);
+        for (int i = 0; i < 4; i++) {
+            failWith(breaker, 500);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(endpoint));
+        Thread.sleep(30);
+
+        SettableListenableFuture<Void> probe1 = new SettableListenableFuture<>();
+        SettableListenableFuture<Void> probe2 = new SettableListenableFuture<>();
+        breaker.execute(endpoint, "getEntity", () -> probe1);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(endpoint));
+        breaker.execute(endpoint, "getEntity", () -> probe2);
+        // No more probes allowed
+        assertTrue(breaker.execute(endpoint, "getEntity", SettableListenableFuture::new).isDone());
+
+        probe1.set(null);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(endpoint));
+        probe2.set(null);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(endpoint));
+        assertEquals("[CLOSED->OPEN, OPEN->HALF_OPEN, HALF_OPEN->CLOSED]", transitions.toString());
+    }
+
+    @Test
+    public void failedProbeTest() throws InterruptedException {
+        CircuitBreaker breaker = breaker(Duration.ofMillis(20));
+        for (int i = 0; i < 4; i++) {
+            failWith(breaker, 500);
+        }
+        Thread.sleep(30);
+        failWith(breaker, 503);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(endpoint));
+        assertEquals(2, breaker.getOpened());
+    }
+
+    @Test
+    public void slowCallsTest() throws InterruptedException {
+        CircuitBreaker breaker = breaker(Duration.ofMinutes(1));
+        breaker.setSlowCalls(Duration.ofMillis(5), 0.5);
+        for (int i = 0; i < 4; i++) {
+            SettableListenableFuture<Void> future = new SettableListenableFuture<>();
+            breaker.execute(endpoint, "getEntity", () -> future);
+            Thread.sleep(10);
+            future.set(null);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(endpoint));
+    }
+
+    @Test
+    public void untimedNotSlowTest() throws InterruptedException {
+        CircuitBreaker breaker = breaker(Duration.ofMinutes(1));
+        breaker.setSlowCalls(Duration.ofMillis(5), 0.5);
+        for (int i = 0; i < 4; i++) {
+            SettableListenableFuture<Void> future = new SettableListenableFuture<>();
+            breaker.executeUntimed(endpoint, "streamEntities", () -> future);
+            Thread.sleep(10);
+            future.set(null);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(endpoint));
+        for (int i = 0; i < 4; i++) {
+            SettableListenableFuture<Void> future = new SettableListenableFuture<>();
+            breaker.executeUntimed(endpoint, "streamEntities", () -> future);
+            future.setException(new Ngsi2Exception("500", "error", null, 500));
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(endpoint));
+    }
+
+    @Test
+    public void perOperationTest() {
+        CircuitBreaker breaker = breaker(Duration.ofMinutes(1));
+        breaker.setPerOperation(true);
+        for (int i = 0; i < 4; i++) {
+            failWith(breaker, 500);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(endpoint + " getEntity"));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(endpoint + " getEntities"));
+        assertFalse(breaker.execute(endpoint, "getEntities", SettableListenableFuture::new).isDone());
+    }
+
+    private CircuitBreaker breaker(Duration openDuration) {
+        CircuitBreaker breaker = new CircuitBreaker(10, 4, 0.5, openDuration);
+        breaker.setListener((circuit, from, to) -> transitions.add(from + "->" + to));
+        return breaker;
+    }
+
+    private static void succeed(CircuitBreaker breaker) {
+        SettableListenableFuture<Void> future = new SettableListenableFuture<>();
+        future.set(null);
+        breaker.execute(endpoint, "getEntity", () -> future);
+    }
+
+    private static void failWith(CircuitBreaker breaker, int statusCode) {
+        SettableListenableFuture<Void> future = new SettableListenableFuture<>();
+        future.setException(new Ngsi2Exception("error", "", null, statusCode));
+        breaker.execute(endpoint, "getEntity", () -> future);
+    }
+}
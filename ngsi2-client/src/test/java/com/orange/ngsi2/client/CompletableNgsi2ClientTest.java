@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.Utils;
+import com.orange.ngsi2.exception.Ngsi2Exception;
+import com.orange.ngsi2.model.*;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.AsyncRestTemplate;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.*;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.*;
+
+/**
+ * Tests for CompletableNgsi2Client
+ */
+public class CompletableNgsi2ClientTest {
+
+    private final static String baseURL = "http://localhost:8080";
+
+    private MockRestServiceServer mockServer;
+
+    private CompletableNgsi2Client ngsiClient;
+
+    public CompletableNgsi2ClientTest() {
+        AsyncRestTemplate asyncRestTemplate = new AsyncRestTemplate();
+        ngsiClient = new CompletableNgsi2Client(new Ngsi2Client(asyncRestTemplate, baseURL));
+        mockServer = MockRestServiceServer.createServer(asyncRestTemplate);
+    }
+
+    @Test
+    public void testGetV2_OK() throws Exception {
+
+        mockServer.expect(requestTo(baseURL + "/v2"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withSuccess(Utils.loadResource("json/getV2Response.json"), MediaType.APPLICATION_JSON));
+
+        Map<String, String> endpoints = ngsiClient.getV2().get();
+        assertEquals(4, endpoints.size());
+        assertEquals("/v2/entities", endpoints.get("entities_url"));
+    }
+
+    @Test
+    public void testGetEntities_Paginated() throws Exception {
+
+        HttpHeaders responseHeader = new HttpHeaders();
+        responseHeader.add("X-Total-Count", "12");
+
+        mockServer.expect(requestTo(baseURL + "/v2/entities?offset=2&limit=10&options=count"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withSuccess(Utils.loadResource("json/getEntitiesResponse.json"), MediaType.APPLICATION_JSON)
+                        .headers(responseHeader));
+
+        Paginated<Entity> entities = ngsiClient.getEntities(null, null, null, null, 2, 10, true).get();
+        assertEquals(3, entities.getItems().size());
+        assertEquals(2, entities.getOffset());
+        assertEquals(10, entities.getLimit());
+        assertEquals(12, entities.getTotal());
+    }
+
+    @Test
+    public void testAddSubscription_Location() throws Exception {
+
+        HttpHeaders responseHeader = new HttpHeaders();
+        responseHeader.add("Location", "/v2/subscriptions/abcde98765");
+
+        mockServer.expect(requestTo(baseURL + "/v2/subscriptions"))
+                .andExpect(method(HttpMethod.POST))
+                .andRespond(withNoContent().headers(responseHeader));
+
+        assertEquals("abcde98765", ngsiClient.addSubscription(new Subscription()).get());
+    }
+
+    @Test
+    public void testGetEntity_ServerError() throws Exception {
+
+        mockServer.expect(requestTo(baseURL + "/v2/entities/room1"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withServerError().body(Utils.loadResource("json/error500Response.json")));
+
+        CompletableFuture<Entity> future = ngsiClient.getEntity("room1", null, null);
+        assertTrue(future.isCompletedExceptionally());
+        try {
+            future.get();
+            fail("expected an ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof Ngsi2Exception);
+            assertEquals(500, ((Ngsi2Exception) e.getCause()).getStatusCode());
+        }
+    }
+
+    @Test
+    public void testThenCombine() throws Exception {
+
+        mockServer.expect(requestTo(baseURL + "/v2/entities/Bcn-Welt"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withSuccess(Utils.loadResource("json/getEntityResponse.json"), MediaType.APPLICATION_JSON));
+        mockServer.expect(requestTo(baseURL + "/v2/types/Room"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withSuccess(Utils.loadResource("json/getEntityTypeResponse.json"), MediaType.APPLICATION_JSON));
+
+        CompletableFuture<Entity> entity = ngsiClient.getEntity("Bcn-Welt", null, null);
+        CompletableFuture<EntityType> entityType = ngsiClient.getEntityType("Room");
+        CompletableFuture.allOf(entity, entityType).get();
+        String result = entity.thenCombine(entityType, (e, t) -> e.getId() + ":" + t.getAttrs().size()).get();
+        assertEquals("DC_S1-D41:3", result);
+        mockServer.verify();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.exception.Ngsi2Exception;
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ConcurrencyLimiter
+ */
+public class ConcurrencyLimiterTest {
+
+    private final List<SettableListenableFuture<String>> sent = new ArrayList<>();
+
+    private ListenableFuture<String> execute(ConcurrencyLimiter limiter) {
+        return limiter.execute(() -> {
+            SettableListenableFuture<String> future = new SettableListenableFuture<>();
+            sent.add(future);
+            return future;
+        });
+    }
+
+    @Test
+    public void queueAndRejectTest() throws ExecutionException, InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(new ConcurrencyLimiter.AimdLimit(2, 1, 2, 0.5, null), 1);
+        ListenableFuture<String> first = execute(limiter);
+        execute(limiter);
+        ListenableFuture<String> queued = execute(limiter);
+        ListenableFuture<String> rejected = execute(limiter);
+        assertEquals(2, sent.size());
+        assertEquals(2, limiter.getInFlight());
+        assertEquals(1, limiter.getQueueDepth());
+        assertEquals(1, limiter.getRejected());
+        try {
+            rejected.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        // the completion of a request starts the queued one
+        sent.get(0).set("first");
+        assertEquals("first", first.get());
+        assertEquals(3, sent.size());
+        assertEquals(0, limiter.getQueueDepth());
+        sent.get(2).set("queued");
+        assertEquals("queued", queued.get());
+    }
+
+    @Test
+    public void cancelledWhileQueuedTest() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(new ConcurrencyLimiter.AimdLimit(1, 1, 1, 0.5, null), 10);
+        execute(limiter);
+        execute(limiter).cancel(true);
+        execute(limiter);
+        sent.get(0).set("first");
+        // the cancelled request is never sent
+        assertEquals(2, sent.size());
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    public void additiveIncreaseTest() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(new ConcurrencyLimiter.AimdLimit(2, 1, 3, 0.5, null), 0);
+        execute(limiter);
+        execute(limiter);
+        sent.get(0).set("ok");
+        assertEquals(3, limiter.getLimit());
+        sent.get(1).set("ok");
+        // bounded by maxLimit
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public void multiplicativeDecreaseTest() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(new ConcurrencyLimiter.AimdLimit(8, 2, 10, 0.5, null), 0);
+        execute(limiter);
+        execute(limiter);
+        execute(limiter);
+        sent.get(0).setException(new Ngsi2Exception("500", "Internal Server Error", null, 500));
+        assertEquals(4, limiter.getLimit());
+        // client errors are answers of a healthy service
+        sent.get(1).setException(new Ngsi2Exception("404", "Not Found", null, 404));
+        assertEquals(5, limiter.getLimit());
+        sent.get(2).setException(new Ngsi2Exception("503", "Service Unavailable", null, 503));
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void latencyThresholdTest() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(new ConcurrencyLimiter.AimdLimit(4, 1, 10, 0.5, Duration.ofMillis(1)), 0);
+        execute(limiter);
+        Thread.sleep(5);
+        sent.get(0).set("slow");
+        assertEquals(2, limiter.getLimit());
+    }
+}
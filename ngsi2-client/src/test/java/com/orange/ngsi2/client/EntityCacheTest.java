@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for EntityCache
+ */
+public class EntityCacheTest {
+
+    private final List<SettableListenableFuture<String>> sent = new ArrayList<>();
+
+    private ListenableFuture<String> getEntity(EntityCache cache, String entityId) {
+        return cache.getEntity("/v2/entities/" + entityId, entityId, this::load);
+    }
+
+    private ListenableFuture<String> getEntityType(EntityCache cache, String type) {
+        return cache.getEntityType("/v2/types/" + type, type, this::load);
+    }
+
+    private ListenableFuture<String> load() {
+        SettableListenableFuture<String> future = new SettableListenableFuture<>();
+        sent.add(future);
+        return future;
+    }
+
+    @Test
+    public void hitTest() throws ExecutionException, InterruptedException {
+        EntityCache cache = new EntityCache(Duration.ofMinutes(1), 10000);
+        getEntity(cache, "Room1");
+        sent.get(0).set("room1");
+
+        assertEquals("room1", getEntity(cache, "Room1").get());
+        assertEquals(1, sent.size());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void expirationTest() throws InterruptedException {
+        EntityCache cache = new EntityCache(Duration.ofMillis(1), 10000);
+        getEntity(cache, "Room1");
+        sent.get(0).set("room1");
+        Thread.sleep(5);
+
+        getEntity(cache, "Room1");
+        assertEquals(2, sent.size());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void failureNotCachedTest() {
+        EntityCache cache = new EntityCache(Duration.ofMinutes(1), 10000);
+        getEntity(cache, "Room1");
+        sent.get(0).setException(new IllegalStateException());
+
+        getEntity(cache, "Room1");
+        assertEquals(2, sent.size());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictionTest() {
+        EntityCache cache = new EntityCache(Duration.ofMinutes(1), 2, value -> 1);
+        for (String id : new String[] {"Room1", "Room2"}) {
+            getEntity(cache, id);
+            sent.get(sent.size() - 1).set(id);
+        }
+        // Room1 becomes the most recently used
+        getEntity(cache, "Room1");
+        getEntity(cache, "Room3");
+        sent.get(sent.size() - 1).set("Room3");
+
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getWeight());
+        assertEquals(1, cache.getEvictions());
+        getEntity(cache, "Room1");
+        assertEquals(3, sent.size());
+        getEntity(cache, "Room2");
+        assertEquals(4, sent.size());
+    }
+
+    @Test
+    public void secondChanceTest() {
+        EntityCache cache = new EntityCache(Duration.ofMinutes(1), 3, value -> 1);
+        for (String id : new String[] {"Room1", "Room2", "Room3"}) {
+            getEntity(cache, id);
+            sent.get(sent.size() - 1).set(id);
+        }
+        getEntity(cache, "Room1");
+        getEntity(cache, "Room2");
+        getEntity(cache, "Room4");
+        sent.get(sent.size() - 1).set("Room4");
+        getEntity(cache, "Room5");
+        sent.get(sent.size() - 1).set("Room5");
+
+        // Room3 then Room4, never read, are evicted first
+        assertEquals(2, cache.getEvictions());
+        assertEquals(5, sent.size());
+        getEntity(cache, "Room1");
+        getEntity(cache, "Room2");
+        getEntity(cache, "Room5");
+        assertEquals(5, sent.size());
+    }
+
+    @Test
+    public void lockFreeHitTest() throws Exception {
+        EntityCache cache = new EntityCache(Duration.ofMinutes(1), 10000);
+        getEntity(cache, "Room1");
+        sent.get(0).set("room1");
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            synchronized (cache) {
+                Future<ListenableFuture<String>> hit = executor.submit(() -> getEntity(cache, "Room1"));
+                assertEquals("room1", hit.get(5, TimeUnit.SECONDS).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void tooHeavyNotCachedTest() {
+        EntityCache cache = new EntityCache(Duration.ofMinutes(1), 10, value -> 11);
+        getEntity(cache, "Room1");
+        sent.get(0).set("room1");
+
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void invalidateEntityTest() {
+        EntityCache cache = new EntityCache(Duration.ofMinutes(1), 10000);
+        getEntity(cache, "Room1");
+        sent.get(0).set("room1");
+        getEntity(cache, "Room2");
+        sent.get(1).set("room2");
+        getEntityType(cache, "Room");
+        sent.get(2).set("room");
+        getEntityType(cache, "Car");
+        sent.get(3).set("car");
+
+        cache.invalidateEntity("Room1", "Room");
+        assertEquals(2, cache.size());
+        getEntity(cache, "Room2");
+        getEntityType(cache, "Car");
+        assertEquals(4, sent.size());
+
+        // Unknown type: all the entity types are invalidated
+        cache.invalidateEntity("Room2", null);
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.getInvalidations());
+    }
+
+    @Test
+    public void invalidatedWhileInFlightTest() {
+        EntityCache cache = new EntityCache(Duration.ofMinutes(1), 10000);
+        getEntity(cache, "Room1");
+        cache.invalidateEntity("Room1", "Room");
+        sent.get(0).set("stale");
+
+        assertEquals(0, cache.size());
+        getEntity(cache, "Room1");
+        assertEquals(2, sent.size());
+    }
+}
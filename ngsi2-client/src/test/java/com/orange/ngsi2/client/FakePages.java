@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.model.Paginated;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pages of integers from 0 to size, completed immediately or by the test
+ */
+class FakePages implements PaginatedIterator.PageRequest<Integer> {
+
+    /**
+     * Pages not completed yet, by offset
+     */
+    final Map<Integer, SettableListenableFuture<Paginated<Integer>>> pending = new LinkedHashMap<>();
+
+    /**
+     * All the pages returned, in request order
+     */
+    final List<SettableListenableFuture<Paginated<Integer>>> requested = new ArrayList<>();
+
+    final List<String> requests = new ArrayList<>();
+
+    int size;
+
+    final int total;
+
+    final boolean async;
+
+    /**
+     * @param size the number of items
+     * @param async true to leave the pages pending until completed by the test
+     */
+    FakePages(int size, boolean async) {
+        this(size, size, async);
+    }
+
+    /**
+     * @param size the number of items
+     * @param total the count returned when requested, 0 for a server not counting
+     * @param async true to leave the pages pending until completed by the test
+     */
+    FakePages(int size, int total, boolean async) {
+        this.size = size;
+        this.total = total;
+        this.async = async;
+    }
+
+    @Override
+    public ListenableFuture<Paginated<Integer>> request(int offset, int limit, boolean count) {
+        requests.add(offset + "/" + limit + (count ? "/count" : ""));
+        SettableListenableFuture<Paginated<Integer>> future = new SettableListenableFuture<>();
+        requested.add(future);
+        if (async) {
+            pending.put(offset, future);
+        } else {
+            future.set(page(offset, limit, count));
+        }
+        return future;
+    }
+
+    /**
+     * Complete a pending page with the items present now, and the count
+     */
+    void complete(int offset, int limit) {
+        pending.remove(offset).set(page(offset, limit, true));
+    }
+
+    Paginated<Integer> page(int offset, int limit, boolean count) {
+        List<Integer> items = new ArrayList<>();
+        for (int i = offset; i < Math.min(offset + limit, size); i++) {
+            items.add(i);
+        }
+        return new Paginated<>(items, offset, limit, count ? total : 0);
+    }
+}
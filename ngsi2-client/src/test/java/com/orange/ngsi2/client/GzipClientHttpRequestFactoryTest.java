@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.Utils;
+import com.orange.ngsi2.exception.Ngsi2Exception;
+import com.orange.ngsi2.model.*;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.AsyncRestTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for GzipClientHttpRequestFactory against an embedded HTTP server decoding and encoding gzip
+ */
+public class GzipClientHttpRequestFactoryTest {
+
+    private HttpServer server;
+
+    private Ngsi2Client ngsiClient;
+
+    private final AtomicReference<String> requestEncoding = new AtomicReference<>();
+
+    private final AtomicReference<String> acceptEncoding = new AtomicReference<>();
+
+    private final AtomicReference<String> requestBody = new AtomicReference<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.start();
+        ngsiClient = new Ngsi2Client(new AsyncRestTemplate(), "http://127.0.0.1:" + server.getAddress().getPort());
+        ngsiClient.enableCompression(1024);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testBulkUpdate_Compressed() throws Exception {
+        server.createContext("/v2/op/update", this::receive);
+
+        List<Entity> entities = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            entities.add(new Entity("room" + i, "Room", Collections.singletonMap("temperature", new Attribute(20 + i))));
+        }
+        ngsiClient.bulkUpdate(new BulkUpdateRequest(BulkUpdateRequest.Action.APPEND, entities)).get();
+
+        assertEquals("gzip", requestEncoding.get());
+        assertTrue(requestBody.get().contains("\"id\":\"room99\""));
+    }
+
+    @Test
+    public void testAddEntity_BelowThreshold() throws Exception {
+        server.createContext("/v2/entities", this::receive);
+
+        ngsiClient.addEntity(new Entity("room1", "Room", Collections.singletonMap("temperature", new Attribute(21)))).get();
+
+        assertNull(requestEncoding.get());
+        assertTrue(requestBody.get().contains("\"id\":\"room1\""));
+    }
+
+    @Test
+    public void testGetEntities_CompressedResponse() throws Exception {
+        String json = Utils.loadResource("json/getEntitiesResponse.json");
+        server.createContext("/v2/entities", exchange -> {
+            acceptEncoding.set(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            exchange.getResponseHeaders().add("X-Total-Count", "3");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = new GZIPOutputStream(exchange.getResponseBody())) {
+                out.write(json.getBytes(StandardCharsets.UTF_8));
+            }
+        });
+
+        Paginated<Entity> entities = ngsiClient.getEntities(null, null, null, null, 0, 0, true).get();
+        assertEquals("gzip", acceptEncoding.get());
+        assertEquals(3, entities.getItems().size());
+        assertEquals(3, entities.getTotal());
+    }
+
+    @Test
+    public void testGetEntity_EmptyCompressedError() throws Exception {
+        server.createContext("/v2/entities/room1", exchange -> {
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+        });
+
+        // HttpURLConnection fails on errors without a body, the NIO transport hands the empty body to the error handler
+        try (NioClientHttpRequestFactory requestFactory = new NioClientHttpRequestFactory(1)) {
+            Ngsi2Client client = new Ngsi2Client(requestFactory, "http://127.0.0.1:" + server.getAddress().getPort());
+            client.enableCompression(1024);
+            client.getEntity("room1", null, null).get();
+            fail("expected a Ngsi2Exception");
+        } catch (Ngsi2Exception e) {
+            assertEquals(503, e.getStatusCode());
+        }
+    }
+
+    /**
+     * Decode the request body as the broker would
+     */
+    private void receive(HttpExchange exchange) throws IOException {
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        requestEncoding.set(encoding);
+        InputStream in = "gzip".equals(encoding) ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody();
+        requestBody.set(StreamUtils.copyToString(in, StandardCharsets.UTF_8));
+        exchange.sendResponseHeaders(204, -1);
+        exchange.close();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.exception.ConflictingEntitiesException;
+import com.orange.ngsi2.model.Error;
+import org.junit.Test;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for InMemoryClientMetrics
+ */
+public class InMemoryClientMetricsTest {
+
+    private final InMemoryClientMetrics metrics = new InMemoryClientMetrics();
+
+    @Test
+    public void completedTest() {
+        metrics.requestStarted("addEntity");
+        metrics.requestStarted("addEntity");
+        assertEquals(2, metrics.getOperation("addEntity").getInFlight());
+
+        metrics.requestCompleted("addEntity", TimeUnit.MILLISECONDS.toNanos(10), 120, -1);
+        InMemoryClientMetrics.OperationMetrics addEntity = metrics.getOperation("addEntity");
+        assertEquals(1, addEntity.getInFlight());
+        assertEquals(1, addEntity.getCount());
+        assertEquals(120, addEntity.getRequestBytes());
+        assertEquals(0, addEntity.getResponseBytes());
+        assertEquals(10, addEntity.getLatencyP50().toMillis());
+        assertNull(metrics.getOperation("getEntity"));
+    }
+
+    @Test
+    public void failedTest() {
+        Error error = new Error("409", Optional.of("Conflict"), Optional.empty());
+        metrics.requestStarted("addEntity");
+        metrics.requestFailed("addEntity", 1000, 0, new ExecutionException(new ConflictingEntitiesException(error)));
+
+        InMemoryClientMetrics.OperationMetrics addEntity = metrics.getOperation("addEntity");
+        assertEquals(0, addEntity.getInFlight());
+        assertEquals(1, addEntity.getCount());
+        assertEquals(Long.valueOf(1), addEntity.getErrors().get("ConflictingEntitiesException"));
+    }
+}
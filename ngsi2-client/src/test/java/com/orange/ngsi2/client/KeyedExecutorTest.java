@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for KeyedExecutor
+ */
+public class KeyedExecutorTest {
+
+    private final ExecutorService threads = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        threads.shutdownNow();
+    }
+
+    @Test
+    public void orderedPerKeyTest() throws InterruptedException {
+        KeyedExecutor executor = new KeyedExecutor(threads, 10000);
+        List<Integer> a = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> b = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(2000);
+        for (int i = 0; i < 1000; i++) {
+            int n = i;
+            executor.execute("a", () -> {
+                if (running.incrementAndGet() > 1) {
+                    overlaps.incrementAndGet();
+                }
+                a.add(n);
+                running.decrementAndGet();
+                done.countDown();
+            });
+            executor.execute("b", () -> {
+                b.add(n);
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, (int) a.get(i));
+            assertEquals(i, (int) b.get(i));
+        }
+        assertEquals(0, executor.getQueued());
+    }
+
+    @Test
+    public void keysInParallelTest() throws InterruptedException {
+        KeyedExecutor executor = new KeyedExecutor(threads, 10);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        for (String key : new String[] { "a", "b" }) {
+            executor.execute(key, () -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        // Both keys run while the other one is blocked
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void capacityTest() throws InterruptedException {
+        KeyedExecutor executor = new KeyedExecutor(threads, 2);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute("a", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        executor.execute("a", () -> { });
+        executor.execute("a", () -> { });
+        try {
+            executor.execute("b", () -> { });
+            fail("expected RejectedExecutionException");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(2, executor.getQueued());
+        release.countDown();
+    }
+
+    @Test
+    public void failedTaskTest() throws InterruptedException {
+        KeyedExecutor executor = new KeyedExecutor(threads, 10);
+        CountDownLatch done = new CountDownLatch(1);
+        executor.execute("a", () -> {
+            throw new IllegalStateException();
+        });
+        executor.execute("a", done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void idleLanesRemovedTest() throws InterruptedException {
+        KeyedExecutor executor = new KeyedExecutor(threads, 10);
+        CountDownLatch done = new CountDownLatch(3);
+        executor.execute("a", done::countDown);
+        executor.execute("b", done::countDown);
+        executor.execute("c", done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (executor.getLanes() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, executor.getLanes());
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for LatencyHistogram
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyTest() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void percentilesTest() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertEquals(1000, histogram.getCount());
+        assertPrecision(TimeUnit.MILLISECONDS.toNanos(500), histogram.getPercentile(50));
+        assertPrecision(TimeUnit.MILLISECONDS.toNanos(990), histogram.getPercentile(99));
+        assertPrecision(TimeUnit.MILLISECONDS.toNanos(999), histogram.getPercentile(99.9));
+        assertPrecision(TimeUnit.MILLISECONDS.toNanos(1000), histogram.getPercentile(100));
+    }
+
+    @Test
+    public void smallAndLargeValuesTest() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(7));
+        histogram.record(TimeUnit.HOURS.toNanos(48));
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(7), histogram.getPercentile(50));
+        assertTrue(histogram.getPercentile(100) >= TimeUnit.HOURS.toNanos(19));
+    }
+
+    @Test
+    public void bucketBoundaryTest() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(8192));
+        assertPrecision(TimeUnit.MICROSECONDS.toNanos(8192), histogram.getPercentile(50));
+    }
+
+    @Test
+    public void worstCasePrecisionTest() {
+        // the first value of a bucket is reported as the highest value of the bucket
+        for (int magnitude = 8; magnitude < 36; magnitude++) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            long micros = 1L << magnitude;
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+            long reported = histogram.getPercentile(50);
+            assertTrue(reported >= TimeUnit.MICROSECONDS.toNanos(micros));
+            assertPrecision(TimeUnit.MICROSECONDS.toNanos(micros), reported);
+        }
+    }
+
+    private static void assertPrecision(long expected, long actual) {
+        assertEquals(expected, actual, expected / 100.0);
+    }
+}
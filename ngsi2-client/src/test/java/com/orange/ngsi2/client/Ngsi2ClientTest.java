@@ -18,6 +18,9 @@
 package com.orange.ngsi2.client;
 
 import com.orange.ngsi2.Utils;
+import com.orange.ngsi2.exception.CircuitBreakerOpenException;
+import com.orange.ngsi2.exception.ConflictingEntitiesException;
+import com.orange.ngsi2.exception.InvalidatedSyntaxException;
 import com.orange.ngsi2.exception.Ngsi2Exception;
 import com.orange.ngsi2.model.*;
 import org.junit.*;
@@ -25,14 +28,19 @@ import org.junit.*;
 import org.junit.rules.ExpectedException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.test.web.client.MockRestServiceServer;
 import org.springframework.web.client.AsyncRestTemplate;
 
 import java.net.URL;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import static org.junit.Assert.*;
 import static org.springframework.test.web.client.match.MockRestRequestMatchers.*;
@@ -84,6 +92,69 @@ public class Ngsi2ClientTest {
         ngsiClient.getV2().get();
     }
 
+    @Test
+    public void testGetV2_StacklessError() throws Exception {
+
+        mockServer.expect(requestTo(baseURL + "/v2"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withServerError().body(Utils.loadResource("json/error500Response.json")));
+
+        try {
+            ngsiClient.getV2().get();
+            fail();
+        } catch (Ngsi2Exception e) {
+            assertEquals(0, e.getStackTrace().length);
+            assertEquals("500", e.getError().getError());
+            assertEquals("Internal Server Error", e.getError().getDescription().get());
+        }
+    }
+
+    @Test
+    public void testGetV2_UndecodableError() throws Exception {
+        thrown.expect(Ngsi2Exception.class);
+        thrown.expectMessage("error: 502 | description: Bad Gateway | affectedItems: []");
+
+        mockServer.expect(requestTo(baseURL + "/v2"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withStatus(HttpStatus.BAD_GATEWAY).body("<html>proxy error</html>"));
+
+        ngsiClient.getV2().get();
+    }
+
+    @Test
+    public void testGetV2_UndecodableConflict() throws Exception {
+
+        mockServer.expect(requestTo(baseURL + "/v2"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withStatus(HttpStatus.CONFLICT).body("<html>conflict</html>"));
+
+        try {
+            ngsiClient.getV2().get();
+            fail();
+        } catch (ConflictingEntitiesException e) {
+            assertEquals(409, e.getStatusCode());
+            assertEquals("409", e.getError().getError());
+            assertEquals("Conflict", e.getError().getDescription().get());
+        }
+    }
+
+    @Test
+    public void testGetV2_UndecodableBadRequest() throws Exception {
+
+        mockServer.expect(requestTo(baseURL + "/v2"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withStatus(HttpStatus.BAD_REQUEST).body("not json"));
+
+        try {
+            ngsiClient.getV2().get();
+            fail();
+        } catch (InvalidatedSyntaxException e) {
+            assertEquals(400, e.getStatusCode());
+            assertEquals("400", e.getError().getError());
+            assertEquals("error: 400 | description: Bad Request | affectedItems: []", e.getMessage());
+        }
+    }
+
     @Test(expected = HttpMessageNotReadableException.class)
     public void testGetV2_SyntaxError() throws Exception {
 
@@ -107,6 +178,75 @@ public class Ngsi2ClientTest {
         assertNotNull("/v2/entities", endpoints.get("entities_url"));
     }
 
+    @Test
+    public void testWarmUp() throws Exception {
+
+        for (int i = 0; i < 2; i++) {
+            mockServer.expect(requestTo(baseURL + "/v2/"))
+                    .andExpect(method(HttpMethod.GET))
+                    .andRespond(withSuccess(Utils.loadResource("json/getV2Response.json"), MediaType.APPLICATION_JSON));
+        }
+        InMemoryClientMetrics metrics = new InMemoryClientMetrics();
+        ngsiClient.setMetrics(metrics);
+        ngsiClient.setRequestCoalescer(new RequestCoalescer());
+
+        Duration duration = ngsiClient.warmUp(2).get();
+        assertFalse(duration.isNegative());
+        mockServer.verify();
+        // Not coalesced nor recorded
+        assertNull(metrics.getOperation("getV2"));
+    }
+
+    @Test
+    public void testWarmUp_NoConnection() throws Exception {
+        assertFalse(ngsiClient.warmUp(0).get().isNegative());
+        mockServer.verify();
+    }
+
+    @Test
+    public void testWarmUp_ServerError() throws Exception {
+
+        mockServer.expect(requestTo(baseURL + "/v2/"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withServerError().body(Utils.loadResource("json/error500Response.json")));
+
+        try {
+            ngsiClient.warmUp(1).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof Ngsi2Exception);
+        }
+    }
+
+    @Test
+    public void testWarmUp_BypassesCircuitBreaker() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(2, 2, 1, Duration.ofMinutes(1));
+        ngsiClient.setCircuitBreaker(circuitBreaker);
+
+        for (int i = 0; i < 2; i++) {
+            mockServer.expect(requestTo(baseURL + "/v2"))
+                    .andExpect(method(HttpMethod.GET))
+                    .andRespond(withServerError().body(Utils.loadResource("json/error500Response.json")));
+        }
+        mockServer.expect(requestTo(baseURL + "/v2/"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withSuccess(Utils.loadResource("json/getV2Response.json"), MediaType.APPLICATION_JSON));
+        for (int i = 0; i < 2; i++) {
+            try {
+                ngsiClient.getV2().get();
+                fail("expected Ngsi2Exception");
+            } catch (Ngsi2Exception e) {
+                assertEquals(500, e.getStatusCode());
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(baseURL));
+
+        // Sent although the circuit is open
+        ngsiClient.warmUp(1).get();
+        mockServer.verify();
+        assertEquals(0, circuitBreaker.getRejected());
+    }
+
     /*
      * Entities requests
      */
@@ -132,6 +272,51 @@ public class Ngsi2ClientTest {
         assertEquals(0, entities.getTotal());
     }
 
+    @Test
+    public void testStreamEntities_OK() throws Exception {
+
+        mockServer.expect(requestTo(baseURL + "/v2/entities?type=Room&offset=10&limit=20"))
+                .andExpect(method(HttpMethod.GET))
+                .andExpect(header(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON_VALUE))
+                .andRespond(withSuccess(Utils.loadResource("json/getEntitiesResponse.json"), MediaType.APPLICATION_JSON));
+
+        List<Entity> entities = new ArrayList<>();
+        int received = ngsiClient.streamEntities(null, null, Collections.singletonList("Room"), null, null, null, null, 10, 20, entities::add).get();
+        assertEquals(3, received);
+        assertEquals(3, entities.size());
+        assertEquals("DC_S1-D41", entities.get(0).getId());
+        assertEquals(35.6, entities.get(0).getAttributes().get("temperature").getValue());
+        assertEquals("P-9873-K", entities.get(2).getId());
+    }
+
+    @Test
+    public void testStreamEntities_NotAnObject() throws Exception {
+
+        mockServer.expect(requestTo(baseURL + "/v2/entities"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withSuccess("[{\"id\":\"room1\",\"type\":\"Room\"},42,{\"id\":\"room2\",\"type\":\"Room\"}]", MediaType.APPLICATION_JSON));
+
+        List<Entity> entities = new ArrayList<>();
+        try {
+            ngsiClient.streamEntities(null, null, null, null, null, null, null, 0, 0, entities::add).get();
+            fail("expected a HttpMessageNotReadableException");
+        } catch (HttpMessageNotReadableException e) {
+            assertEquals(1, entities.size());
+        }
+    }
+
+    @Test
+    public void testStreamEntities_ClientError() throws Exception {
+        thrown.expect(Ngsi2Exception.class);
+        thrown.expectMessage("error: 400 | description: Bad Request | affectedItems: []");
+
+        mockServer.expect(requestTo(baseURL + "/v2/entities"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withBadRequest().body(Utils.loadResource("json/error400Response.json")));
+
+        ngsiClient.streamEntities(null, null, null, null, null, null, null, 0, 0, entity -> fail()).get();
+    }
+
     @Test
     public void testGetEntities_Paginated() throws Exception {
 
@@ -150,6 +335,95 @@ public class Ngsi2ClientTest {
         assertEquals(12, entities.getTotal());
     }
 
+    @Test
+    public void testGetEntities_KeyValues() throws Exception {
+
+        HttpHeaders responseHeader = new HttpHeaders();
+        responseHeader.add("X-Total-Count", "3");
+
+        mockServer.expect(requestTo(baseURL + "/v2/entities?type=Room&limit=10&options=keyValues,count"))
+                .andExpect(method(HttpMethod.GET))
+                .andExpect(header(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON_VALUE))
+                .andRespond(withSuccess(Utils.loadResource("json/getEntitiesKeyValuesResponse.json"), MediaType.APPLICATION_JSON)
+                        .headers(responseHeader));
+
+        Paginated<Room> rooms = ngsiClient.getEntities(Room.class, null, null, Collections.singletonList("Room"), null, null, null, null, 0, 10, true).get();
+        assertEquals(3, rooms.getTotal());
+        assertEquals(3, rooms.getItems().size());
+        assertEquals("DC_S1-D41", rooms.getItems().get(0).id);
+        assertEquals("Room", rooms.getItems().get(0).type);
+        assertEquals(35.6, rooms.getItems().get(0).temperature, 0.0);
+        assertEquals(18.0, rooms.getItems().get(2).temperature, 0.0);
+    }
+
+    @Test
+    public void testGetEntity_KeyValues() throws Exception {
+
+        mockServer.expect(requestTo(baseURL + "/v2/entities/DC_S1-D41?type=Room&attrs=temperature&options=keyValues"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withSuccess(Utils.loadResource("json/getEntityKeyValuesResponse.json"), MediaType.APPLICATION_JSON));
+
+        Room room = ngsiClient.getEntity(Room.class, "DC_S1-D41", "Room", Collections.singletonList("temperature")).get();
+        assertEquals("DC_S1-D41", room.id);
+        assertEquals(35.6, room.temperature, 0.0);
+    }
+
+    @Test
+    public void testBulkQuery_KeyValues() throws Exception {
+
+        mockServer.expect(requestTo(baseURL + "/v2/op/query?limit=10&options=keyValues"))
+                .andExpect(method(HttpMethod.POST))
+                .andExpect(jsonPath("$.attributes[0]").value("temperature"))
+                .andRespond(withSuccess(Utils.loadResource("json/getEntitiesKeyValuesResponse.json"), MediaType.APPLICATION_JSON));
+
+        BulkQueryRequest request = new BulkQueryRequest();
+        request.setAttributes(Collections.singletonList("temperature"));
+
+        Paginated<Room> rooms = ngsiClient.bulkQuery(Room.class, request, null, 0, 10, false).get();
+        assertEquals(3, rooms.getItems().size());
+        assertEquals("Boe-Idearium", rooms.getItems().get(1).id);
+        assertEquals(22.5, rooms.getItems().get(1).temperature, 0.0);
+    }
+
+    @Test
+    public void testPublishEntities() throws Exception {
+
+        HttpHeaders responseHeader = new HttpHeaders();
+        responseHeader.add("X-Total-Count", "3");
+
+        mockServer.expect(requestTo(baseURL + "/v2/entities?limit=10&options=count"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withSuccess(Utils.loadResource("json/getEntitiesResponse.json"), MediaType.APPLICATION_JSON)
+                        .headers(responseHeader));
+
+        List<Entity> entities = new ArrayList<>();
+        boolean[] completed = new boolean[1];
+        ngsiClient.publishEntities(null, null, null, null, null, null, null, 1, 10).subscribe(new PaginatedPublisher.Subscriber<Entity>() {
+            @Override
+            public void onSubscribe(PaginatedPublisher.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(Entity entity) {
+                entities.add(entity);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                fail(throwable.getMessage());
+            }
+
+            @Override
+            public void onComplete() {
+                completed[0] = true;
+            }
+        });
+        assertEquals(3, entities.size());
+        assertTrue(completed[0]);
+        mockServer.verify();
+    }
+
     @Test
     public void testGetEntities_AllParams() throws Exception {
 
@@ -173,6 +447,124 @@ public class Ngsi2ClientTest {
         ngsiClient.getEntities(ids, idPattern, types, params, query, geoQuery, orderBy, 2, 10, false).get();
     }
 
+    @Test
+    public void testGetAllEntities_Prefetch() throws Exception {
+
+        HttpHeaders responseHeader = new HttpHeaders();
+        responseHeader.add("X-Total-Count", "5");
+
+        mockServer.expect(requestTo(baseURL + "/v2/entities?type=Room&limit=3&options=count"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withSuccess(Utils.loadResource("json/getEntitiesResponse.json"), MediaType.APPLICATION_JSON)
+                        .headers(responseHeader));
+        mockServer.expect(requestTo(baseURL + "/v2/entities?type=Room&offset=3&limit=3"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withSuccess(Utils.loadResource("json/getEntitiesResponse.json"), MediaType.APPLICATION_JSON));
+
+        PaginatedIterator<Entity> entities = ngsiClient.getAllEntities(null, null, Collections.singletonList("Room"), null, null, null, null, 3, 1);
+        assertEquals(6, entities.stream().count());
+        mockServer.verify();
+    }
+
+    @Test
+    public void testGetEntity_Coalesced() throws Exception {
+
+        mockServer.expect(requestTo(baseURL + "/v2/entities/DC_S1-D41?type=Room"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withSuccess(Utils.loadResource("json/getEntityResponse.json"), MediaType.APPLICATION_JSON));
+
+        ngsiClient.setRequestCoalescer(new RequestCoalescer());
+        Entity entity = ngsiClient.getEntity("DC_S1-D41", "Room", null).get();
+        assertEquals("DC_S1-D41", entity.getId());
+        assertEquals(1, ngsiClient.getRequestCoalescer().getIssuedRequests());
+    }
+
+    @Test
+    public void testGetEntity_Cached() throws Exception {
+
+        mockServer.expect(requestTo(baseURL + "/v2/entities/DC_S1-D41?type=Room"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withSuccess(Utils.loadResource("json/getEntityResponse.json"), MediaType.APPLICATION_JSON));
+        mockServer.expect(requestTo(baseURL + "/v2/entities/DC_S1-D41/attrs/temperature?type=Room"))
+                .andExpect(method(HttpMethod.PUT))
+                .andRespond(withNoContent());
+        mockServer.expect(requestTo(baseURL + "/v2/entities/DC_S1-D41?type=Room"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withSuccess(Utils.loadResource("json/getEntityResponse.json"), MediaType.APPLICATION_JSON));
+
+        ngsiClient.setEntityCache(new EntityCache(Duration.ofMinutes(1), 1 << 20));
+        Entity entity = ngsiClient.getEntity("DC_S1-D41", "Room", null).get();
+        assertSame(entity, ngsiClient.getEntity("DC_S1-D41", "Room", null).get());
+        assertEquals(1, ngsiClient.getEntityCache().getHits());
+
+        // the update invalidates the cached entity
+        ngsiClient.updateAttribute("DC_S1-D41", "Room", "temperature", new Attribute(20.0)).get();
+        assertNotSame(entity, ngsiClient.getEntity("DC_S1-D41", "Room", null).get());
+        mockServer.verify();
+    }
+
+    @Test
+    public void testGetEntity_Retried() throws Exception {
+
+        HttpHeaders retryAfter = new HttpHeaders();
+        retryAfter.set("Retry-After", "0");
+        mockServer.expect(requestTo(baseURL + "/v2/entities/DC_S1-D41?type=Room"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withStatus(HttpStatus.SERVICE_UNAVAILABLE).headers(retryAfter));
+        mockServer.expect(requestTo(baseURL + "/v2/entities/DC_S1-D41?type=Room"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withSuccess(Utils.loadResource("json/getEntityResponse.json"), MediaType.APPLICATION_JSON));
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            ngsiClient.setRetryPolicy(new RetryPolicy(scheduler, 2, Duration.ofSeconds(10), Duration.ofSeconds(10)));
+            assertEquals("DC_S1-D41", ngsiClient.getEntity("DC_S1-D41", "Room", null).get().getId());
+            assertEquals(1, ngsiClient.getRetryPolicy().getRetries());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testResourcePath() {
+        assertEquals("/v2/entities", Ngsi2Client.resourcePath(baseURL + "/v2/entities?type=Room&limit=10"));
+        assertEquals("/v2/entities/{}", Ngsi2Client.resourcePath(baseURL + "/v2/entities/DC_S1-D41?type=Room"));
+        assertEquals("/v2/entities/{}/attrs/{}/value", Ngsi2Client.resourcePath(baseURL + "/v2/entities/DC_S1-D41/attrs/temperature/value"));
+        assertEquals("/v2/types/{}", Ngsi2Client.resourcePath(baseURL + "/v2/types/Room"));
+        assertEquals("/v2/op/query", Ngsi2Client.resourcePath(baseURL + "/v2/op/query?limit=10"));
+    }
+
+    @Test
+    public void testAddEntity_Metrics() throws Exception {
+
+        mockServer.expect(requestTo(baseURL + "/v2/entities"))
+                .andExpect(method(HttpMethod.POST))
+                .andExpect(header("Content-Type", MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(jsonPath("$.id").value("DC_S1-D41"))
+                .andExpect(jsonPath("$.temperature.value").value(35.6))
+                .andRespond(withNoContent());
+        mockServer.expect(requestTo(baseURL + "/v2/entities"))
+                .andExpect(method(HttpMethod.POST))
+                .andRespond(withServerError().body(Utils.loadResource("json/error500Response.json")));
+
+        InMemoryClientMetrics metrics = new InMemoryClientMetrics();
+        ngsiClient.setMetrics(metrics);
+        Entity e = new Entity("DC_S1-D41", "Room", Collections.singletonMap("temperature", new Attribute(35.6)));
+        ngsiClient.addEntity(e).get();
+        try {
+            ngsiClient.addEntity(e).get();
+            fail();
+        } catch (Ngsi2Exception ex) {
+            // expected
+        }
+
+        InMemoryClientMetrics.OperationMetrics addEntity = metrics.getOperation("addEntity");
+        assertEquals(2, addEntity.getCount());
+        assertEquals(0, addEntity.getInFlight());
+        assertTrue(addEntity.getRequestBytes() > 0);
+        assertEquals(Long.valueOf(1), addEntity.getErrors().get("Ngsi2Exception"));
+    }
+
     @Test
     public void testAddEntity_OK() throws Exception {
 
@@ -336,6 +728,97 @@ public class Ngsi2ClientTest {
         assertEquals("some random text", result);
     }
 
+    @Test
+    public void testForTenant() throws Exception {
+        Ngsi2Client tenant = ngsiClient.forTenant("smartcity", "/parking");
+
+        mockServer.expect(requestTo(baseURL + "/v2/entities/room1/attrs/text/value?type=Room"))
+                .andExpect(method(HttpMethod.GET))
+                .andExpect(header(HttpHeaders.ACCEPT, MediaType.TEXT_PLAIN_VALUE))
+                .andExpect(header("Fiware-Service", "smartcity"))
+                .andExpect(header("Fiware-ServicePath", "/parking"))
+                .andRespond(withSuccess("some random text", MediaType.TEXT_PLAIN));
+        mockServer.expect(requestTo(baseURL + "/v2/entities/DC_S1-D41"))
+                .andExpect(method(HttpMethod.GET))
+                .andExpect(header(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(header("Fiware-Service", "smartcity"))
+                .andRespond(withSuccess(Utils.loadResource("json/getEntityResponse.json"), MediaType.APPLICATION_JSON));
+
+        assertEquals("some random text", tenant.getAttributeValueAsString("room1", "Room", "text").get());
+        assertEquals("DC_S1-D41", tenant.getEntity("DC_S1-D41", null, null).get().getId());
+        mockServer.verify();
+
+        // The root client is not affected
+        assertNull(ngsiClient.getHttpHeaders().getFirst("Fiware-Service"));
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(2, 2, 1, Duration.ofMinutes(1));
+        ngsiClient.setCircuitBreaker(circuitBreaker);
+
+        for (int i = 0; i < 2; i++) {
+            mockServer.expect(requestTo(baseURL + "/v2"))
+                    .andExpect(method(HttpMethod.GET))
+                    .andRespond(withServerError().body(Utils.loadResource("json/error500Response.json")));
+        }
+        for (int i = 0; i < 2; i++) {
+            try {
+                ngsiClient.getV2().get();
+                fail("expected Ngsi2Exception");
+            } catch (Ngsi2Exception e) {
+                assertEquals(500, e.getStatusCode());
+            }
+        }
+        try {
+            ngsiClient.getV2().get();
+            fail("expected CircuitBreakerOpenException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CircuitBreakerOpenException);
+        }
+        mockServer.verify();
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(baseURL));
+        assertEquals(1, circuitBreaker.getRejected());
+
+        // The streamed requests fail fast too
+        try {
+            ngsiClient.streamEntities(null, null, null, null, null, null, null, 0, 0, entity -> fail()).get();
+            fail("expected CircuitBreakerOpenException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CircuitBreakerOpenException);
+        }
+        assertEquals(2, circuitBreaker.getRejected());
+    }
+
+    @Test
+    public void testStreamEntities_CircuitBreaker() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(2, 2, 1, Duration.ofMinutes(1));
+        circuitBreaker.setPerOperation(true);
+        ngsiClient.setCircuitBreaker(circuitBreaker);
+
+        for (int i = 0; i < 2; i++) {
+            mockServer.expect(requestTo(baseURL + "/v2/entities"))
+                    .andExpect(method(HttpMethod.GET))
+                    .andRespond(withServerError().body(Utils.loadResource("json/error500Response.json")));
+        }
+        for (int i = 0; i < 2; i++) {
+            try {
+                ngsiClient.streamEntities(null, null, null, null, null, null, null, 0, 0, entity -> fail()).get();
+                fail("expected Ngsi2Exception");
+            } catch (Ngsi2Exception e) {
+                assertEquals(500, e.getStatusCode());
+            }
+        }
+        mockServer.verify();
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(baseURL + " streamEntities"));
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(baseURL + " getEntities"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testForTenant_ReadOnlyHeaders() {
+        ngsiClient.forTenant("smartcity", null).getHttpHeaders().add("Fiware-ServicePath", "/parking");
+    }
+
     /*
      * Entity types requests
      */
@@ -739,6 +1222,27 @@ public class Ngsi2ClientTest {
         assertEquals(35.6, results.getItems().get(0).getAttributes().get("temperature").getValue());
     }
 
+    @Test
+    public void testStreamBulkQuery_OK() throws Exception {
+
+        mockServer.expect(requestTo(baseURL + "/v2/op/query?offset=20&limit=40&orderBy=temp"))
+                .andExpect(method(HttpMethod.POST))
+                .andExpect(header("Content-Type", MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(jsonPath("$.entities[0].id").value("room1"))
+                .andExpect(jsonPath("$.attributes[0]").value("temp"))
+                .andRespond(withSuccess(Utils.loadResource("json/postQueryResponse.json"), MediaType.APPLICATION_JSON));
+
+        SubjectEntity subjectEntity = new SubjectEntity();
+        subjectEntity.setId(Optional.of("room1"));
+        BulkQueryRequest request = new BulkQueryRequest();
+        request.setEntities(Collections.singletonList(subjectEntity));
+        request.setAttributes(Collections.singletonList("temp"));
+
+        List<Entity> entities = new ArrayList<>();
+        assertEquals(3, (int) ngsiClient.streamBulkQuery(request, Collections.singletonList("temp"), 20, 40, entities::add).get());
+        assertEquals(35.6, entities.get(0).getAttributes().get("temperature").getValue());
+    }
+
     @Test
     public void testBulkRegister_Create() throws Exception {
 
@@ -856,4 +1360,16 @@ public class Ngsi2ClientTest {
         assertEquals("http://localhost:1234", results.getItems().get(0).getCallback().toString());
         assertEquals("PT1M", results.getItems().get(0).getDuration());
     }
+
+    /**
+     * Entity in the keyValues representation
+     */
+    public static class Room {
+
+        public String id;
+
+        public String type;
+
+        public double temperature;
+    }
 }
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.orange.ngsi2.model.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.AsyncRestTemplate;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for Ngsi2LocalReplica
+ */
+public class Ngsi2LocalReplicaTest {
+
+    private final List<BulkQueryRequest> queries = new CopyOnWriteArrayList<>();
+
+    /**
+     * Responses to the pages requested, one page per load
+     */
+    private final List<Runnable> loads = new CopyOnWriteArrayList<>();
+
+    private volatile List<Entity> serverEntities = Arrays.asList(entity("Room1", 20.0, 720), entity("Room2", 21.0, 710));
+
+    private volatile long timesSent;
+
+    private final List<String> deletedSubscriptions = new CopyOnWriteArrayList<>();
+
+    private final Ngsi2Client client = new Ngsi2Client(new AsyncRestTemplate(), "http://localhost:8080") {
+        @Override
+        public ListenableFuture<String> addSubscription(Subscription subscription) {
+            return done("sub1");
+        }
+
+        @Override
+        public ListenableFuture<Subscription> getSubscription(String subscriptionId) {
+            Notification notification = new Notification();
+            notification.setTimesSent(timesSent);
+            Subscription subscription = new Subscription();
+            subscription.setNotification(notification);
+            return done(subscription);
+        }
+
+        @Override
+        public ListenableFuture<Void> deleteSubscription(String subscriptionId) {
+            deletedSubscriptions.add(subscriptionId);
+            return done(null);
+        }
+
+        @Override
+        public ListenableFuture<Paginated<Entity>> bulkQuery(BulkQueryRequest bulkQueryRequest, Collection<String> orderBy, int offset, int limit, boolean count) {
+            queries.add(bulkQueryRequest);
+            List<Entity> items = serverEntities;
+            SettableListenableFuture<Paginated<Entity>> page = new SettableListenableFuture<>();
+            loads.add(() -> page.set(new Paginated<>(items, offset, limit, items.size())));
+            return page;
+        }
+    };
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Sequence of the last notification read by the receiver
+     */
+    private volatile long sequence;
+
+    private long lastMessage;
+
+    private NotificationReceiver receiver;
+
+    private Ngsi2LocalReplica replica;
+
+    @Before
+    public void setUp() throws IOException {
+        receiver = new NotificationReceiver(client, new InetSocketAddress("localhost", 0), 1, 10) {
+            @Override
+            public long getSequence() {
+                return sequence;
+            }
+        };
+        replica = new Ngsi2LocalReplica(client, receiver, scheduler, subscription(Notification.Format.normalized));
+    }
+
+    @After
+    public void tearDown() {
+        replica.close();
+        receiver.close();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void startTest() throws Exception {
+        ListenableFuture<Void> started = replica.start(null, null);
+        assertFalse(started.isDone());
+        assertEquals(1, queries.size());
+        assertEquals("Room", queries.get(0).getEntities().get(0).getType().get());
+        assertEquals(Arrays.asList("temperature", "pressure"), queries.get(0).getAttributes());
+        // Not visible until the load completes
+        assertNull(replica.getEntity("Room1", "Room"));
+
+        loads.get(0).run();
+        started.get();
+        assertEquals("sub1", replica.getSubscriptionId());
+        assertEquals(2, replica.size());
+        assertEquals(20.0, replica.getAttributeValue("Room1", "Room", "temperature"));
+        assertEquals(710, replica.getAttributeValue("Room2", null, "pressure"));
+        assertNull(replica.getEntity("Room3", "Room"));
+        assertEquals(1, replica.getLoads());
+        assertNotNull(replica.getLastLoad());
+
+        replica.close();
+        assertEquals(Collections.singletonList("sub1"), deletedSubscriptions);
+    }
+
+    @Test
+    public void notificationTest() throws Exception {
+        ListenableFuture<Void> started = replica.start(null, null);
+        loads.get(0).run();
+        started.get();
+
+        replica.onNotification(message("[{\"id\":\"Room1\",\"type\":\"Room\",\"temperature\":{\"value\":25.5,\"type\":\"Float\"}}," +
+                "{\"id\":\"Room3\",\"type\":\"Room\",\"temperature\":{\"value\":18.0,\"type\":\"Float\"}}]"));
+        assertEquals(25.5, replica.getAttributeValue("Room1", "Room", "temperature"));
+        // The attributes not notified are kept
+        assertEquals(720, replica.getAttributeValue("Room1", "Room", "pressure"));
+        assertEquals(3, replica.size());
+        assertEquals(1, replica.getNotifications());
+    }
+
+    @Test
+    public void notificationDuringLoadTest() throws Exception {
+        ListenableFuture<Void> started = replica.start(null, null);
+        loads.get(0).run();
+        started.get();
+
+        serverEntities = Collections.singletonList(entity("Room1", 20.0, 720));
+        ListenableFuture<Void> loaded = replica.load();
+        replica.onNotification(message("[{\"id\":\"Room1\",\"type\":\"Room\",\"temperature\":{\"value\":30.0,\"type\":\"Float\"}}]"));
+        assertEquals(30.0, replica.getAttributeValue("Room1", "Room", "temperature"));
+        loads.get(1).run();
+        loaded.get();
+
+        // The notification is applied again on top of the load, and the deleted entity is removed
+        assertEquals(30.0, replica.getAttributeValue("Room1", "Room", "temperature"));
+        assertEquals(1, replica.size());
+    }
+
+    @Test
+    public void outOfOrderNotificationsTest() throws Exception {
+        ListenableFuture<Void> started = replica.start(null, null);
+        loads.get(0).run();
+        started.get();
+
+        replica.onNotification(message("[{\"id\":\"Room1\",\"type\":\"Room\",\"temperature\":{\"value\":26.0,\"type\":\"Float\"}}]", 3));
+        // Read before the previous one by the receiver, but handled after it
+        replica.onNotification(message("[{\"id\":\"Room1\",\"type\":\"Room\",\"temperature\":{\"value\":24.0,\"type\":\"Float\"}," +
+                "\"pressure\":{\"value\":700,\"type\":\"Integer\"}}]", 2));
+        assertEquals(26.0, replica.getAttributeValue("Room1", "Room", "temperature"));
+        assertEquals(720, replica.getAttributeValue("Room1", "Room", "pressure"));
+        assertEquals(1, replica.getStale());
+        assertEquals(2, replica.getNotifications());
+    }
+
+    @Test
+    public void staleNotificationReplayTest() throws Exception {
+        ListenableFuture<Void> started = replica.start(null, null);
+        loads.get(0).run();
+        started.get();
+
+        // Room2 deleted and Room1 updated twice on the server before the page is requested
+        serverEntities = Collections.singletonList(entity("Room1", 31.0, 720));
+        sequence = 5;
+        ListenableFuture<Void> loaded = replica.load();
+        // Read by the receiver before the page was requested, handled during the load
+        replica.onNotification(message("[{\"id\":\"Room1\",\"type\":\"Room\",\"temperature\":{\"value\":25.0,\"type\":\"Float\"}}," +
+                "{\"id\":\"Room2\",\"type\":\"Room\",\"temperature\":{\"value\":22.0,\"type\":\"Float\"}}]", 4));
+        // Read after the page was requested
+        replica.onNotification(message("[{\"id\":\"Room1\",\"type\":\"Room\",\"pressure\":{\"value\":800,\"type\":\"Integer\"}}]", 6));
+        assertEquals(25.0, replica.getAttributeValue("Room1", "Room", "temperature"));
+        loads.get(1).run();
+        loaded.get();
+
+        // The older notification is not replayed on top of the page, the newer one is
+        assertEquals(31.0, replica.getAttributeValue("Room1", "Room", "temperature"));
+        assertEquals(800, replica.getAttributeValue("Room1", "Room", "pressure"));
+        assertNull(replica.getEntity("Room2", "Room"));
+        assertEquals(1, replica.size());
+    }
+
+    @Test
+    public void missedNotificationsTest() throws Exception {
+        ListenableFuture<Void> started = replica.start(null, null);
+        loads.get(0).run();
+        started.get();
+
+        timesSent = 2;
+        replica.onNotification(message("[]"));
+        // One notification may still be in flight
+        replica.check();
+        assertEquals(1, queries.size());
+        // Still missing at the next check
+        replica.check();
+        assertEquals(2, queries.size());
+        loads.get(1).run();
+        // Recovered by the load
+        replica.check();
+        replica.check();
+        assertEquals(2, queries.size());
+    }
+
+    @Test
+    public void periodicLoadTest() throws Exception {
+        ListenableFuture<Void> started = replica.start(null, java.time.Duration.ofMillis(10));
+        loads.get(0).run();
+        started.get();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queries.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(queries.size() >= 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void keyValuesFormatTest() throws Exception {
+        new Ngsi2LocalReplica(client, receiver, scheduler, subscription(Notification.Format.keyValues));
+    }
+
+    private NotificationReceiver.Message message(String data) throws IOException {
+        return message(data, Math.max(lastMessage, sequence) + 1);
+    }
+
+    private NotificationReceiver.Message message(String data, long sequence) throws IOException {
+        lastMessage = Math.max(lastMessage, sequence);
+        JsonNode node = client.getObjectMapper().readTree(data);
+        return new NotificationReceiver.Message(client.getObjectMapper(), "sub1", Notification.Format.normalized, Collections.emptyMap(), node,
+                sequence);
+    }
+
+    private static Subscription subscription(Notification.Format format) throws IOException {
+        SubjectEntity subjectEntity = new SubjectEntity();
+        subjectEntity.setIdPattern(Optional.of("Room.*"));
+        subjectEntity.setType(Optional.of("Room"));
+        Condition condition = new Condition();
+        condition.setAttributes(Collections.singletonList("temperature"));
+        Notification notification = new Notification(Arrays.asList("temperature", "pressure"), new URL("http://localhost:1234/notify"));
+        notification.setAttrsFormat(Optional.of(format));
+        return new Subscription(null, new SubjectSubscription(Collections.singletonList(subjectEntity), condition), notification, null, null);
+    }
+
+    private static Entity entity(String id, double temperature, int pressure) {
+        Map<String, Attribute> attributes = new LinkedHashMap<>();
+        attributes.put("temperature", new Attribute(temperature));
+        attributes.put("pressure", new Attribute(pressure));
+        return new Entity(id, "Room", attributes);
+    }
+
+    private static <T> ListenableFuture<T> done(T value) {
+        SettableListenableFuture<T> future = new SettableListenableFuture<>();
+        future.set(value);
+        return future;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.orange.ngsi2.client;
+
+import org.junit.Test;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for Ngsi2UriTemplate: URIs must be the same as the ones built with UriComponentsBuilder
+ */
+public class Ngsi2UriTemplateTest {
+
+    private final static List<String> baseURLs = Arrays.asList("http://localhost:8080", "http://localhost:8080/",
+            "https://user@broker.example.com/orion/", "http://localhost:8080/base?tenant=a b");
+
+    private final static List<String> values = Arrays.asList("Room", "temp>10", "a b&c=d", "été#1", "near;maxDistance:1000.0",
+            "-10.5,30.5;-15.5,35.5", "temp,!humidity", "50%+/?@~'()*", "");
+
+    @Test
+    public void encodedUriTest() {
+        for (String baseURL : baseURLs) {
+            Ngsi2UriTemplate template = new Ngsi2UriTemplate(baseURL, "v2/entities");
+            assertEquals(UriComponentsBuilder.fromHttpUrl(baseURL).path("v2/entities").toUriString(), template.toUriString());
+            for (String value : values) {
+                UriComponentsBuilder expected = UriComponentsBuilder.fromHttpUrl(baseURL).path("v2/entities")
+                        .queryParam("query", value).queryParam("limit", 10);
+                String actual = template.builder().queryParam("query", value).queryParam("limit", 10).toUriString();
+                assertEquals(expected.toUriString(), actual);
+            }
+        }
+    }
+
+    @Test
+    public void expandedUriTest() {
+        for (String baseURL : baseURLs) {
+            Ngsi2UriTemplate template = new Ngsi2UriTemplate(baseURL, "v2/entities/{entityId}/attrs/{attributeName}");
+            for (String value : values) {
+                UriComponentsBuilder expected = UriComponentsBuilder.fromHttpUrl(baseURL).path("v2/entities/{entityId}/attrs/{attributeName}")
+                        .queryParam("type", value);
+                String actual = template.expand(value, "temperature").queryParam("type", value).toUriString();
+                assertEquals(expected.buildAndExpand(value, "temperature").toUriString(), actual);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingVariableTest() {
+        new Ngsi2UriTemplate("http://localhost:8080", "v2/entities/{entityId}/attrs/{attributeName}").expand("Room");
+    }
+}
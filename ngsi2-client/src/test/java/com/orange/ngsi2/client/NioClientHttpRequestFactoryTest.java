@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.Utils;
+import com.orange.ngsi2.exception.Ngsi2Exception;
+import com.orange.ngsi2.model.Attribute;
+import com.orange.ngsi2.model.Entity;
+import com.orange.ngsi2.model.Paginated;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.StreamUtils;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for NioClientHttpRequestFactory against an embedded HTTP server
+ */
+public class NioClientHttpRequestFactoryTest {
+
+    private HttpServer server;
+
+    private ExecutorService serverExecutor;
+
+    private NioClientHttpRequestFactory requestFactory;
+
+    private Ngsi2Client ngsiClient;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+        requestFactory = new NioClientHttpRequestFactory(2);
+        ngsiClient = new Ngsi2Client(requestFactory, "http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    @After
+    public void tearDown() {
+        requestFactory.close();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testGetEntity_KeepAlive() throws Exception {
+        String json = Utils.loadResource("json/getEntityResponse.json");
+        server.createContext("/v2/entities/DC_S1-D41", exchange -> respond(exchange, 200, json, false));
+
+        Entity entity = ngsiClient.getEntity("DC_S1-D41", null, null).get();
+        assertEquals("DC_S1-D41", entity.getId());
+        entity = ngsiClient.getEntity("DC_S1-D41", null, null).get();
+        assertEquals("Room", entity.getType());
+
+        assertEquals(1, requestFactory.getOpenConnections());
+        assertEquals(1, requestFactory.getIdleConnections());
+        assertEquals(1, requestFactory.getReusedConnections());
+    }
+
+    @Test
+    public void testGetEntities_Chunked() throws Exception {
+        String json = Utils.loadResource("json/getEntitiesResponse.json");
+        server.createContext("/v2/entities", exchange -> {
+            exchange.getResponseHeaders().add("X-Total-Count", "3");
+            respond(exchange, 200, json, true);
+        });
+
+        Paginated<Entity> entities = ngsiClient.getEntities(null, null, null, null, 0, 0, true).get();
+        assertEquals(3, entities.getItems().size());
+        assertEquals(3, entities.getTotal());
+    }
+
+    @Test
+    public void testAddEntity_Body() throws Exception {
+        AtomicReference<String> received = new AtomicReference<>();
+        server.createContext("/v2/entities", exchange -> {
+            received.set(StreamUtils.copyToString(exchange.getRequestBody(), StandardCharsets.UTF_8));
+            exchange.getResponseHeaders().add("Location", "/v2/entities/room1");
+            exchange.sendResponseHeaders(201, -1);
+            exchange.close();
+        });
+
+        Entity entity = new Entity("room1", "Room", Collections.singletonMap("temperature", new Attribute(21)));
+        ngsiClient.addEntity(entity).get();
+        assertTrue(received.get().contains("\"id\":\"room1\""));
+        assertTrue(received.get().contains("\"temperature\""));
+    }
+
+    @Test
+    public void testGetEntity_NotFound() throws Exception {
+        String json = "{\"error\":\"NotFound\",\"description\":\"The requested entity has not been found\",\"affectedItems\":[]}";
+        server.createContext("/v2/entities/room2", exchange -> respond(exchange, 404, json, false));
+
+        try {
+            ngsiClient.getEntity("room2", null, null).get();
+            fail("expected a Ngsi2Exception");
+        } catch (Ngsi2Exception e) {
+            assertEquals(404, e.getStatusCode());
+        }
+        // The error response was fully read, the connection is reusable
+        assertEquals(1, requestFactory.getIdleConnections());
+    }
+
+    @Test
+    public void testPoolSize() throws Exception {
+        String json = Utils.loadResource("json/getEntityResponse.json");
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicInteger maxConcurrent = new AtomicInteger();
+        server.createContext("/v2/entities/DC_S1-D41", exchange -> {
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            concurrent.decrementAndGet();
+            respond(exchange, 200, json, false);
+        });
+
+        List<ListenableFuture<Entity>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(ngsiClient.getEntity("DC_S1-D41", null, null));
+        }
+        for (ListenableFuture<Entity> future : futures) {
+            assertEquals("DC_S1-D41", future.get().getId());
+        }
+        assertTrue(maxConcurrent.get() <= 2);
+        assertEquals(2, requestFactory.getOpenConnections());
+        assertEquals(6, requestFactory.getReusedConnections());
+    }
+
+    @Test
+    public void testNoKeepAlive() throws Exception {
+        String json = Utils.loadResource("json/getEntityResponse.json");
+        server.createContext("/v2/entities/DC_S1-D41", exchange -> respond(exchange, 200, json, false));
+        requestFactory.setKeepAlive(Duration.ZERO);
+
+        ngsiClient.getEntity("DC_S1-D41", null, null).get();
+        ngsiClient.getEntity("DC_S1-D41", null, null).get();
+        assertEquals(0, requestFactory.getReusedConnections());
+        assertEquals(0, requestFactory.getOpenConnections());
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+        server.createContext("/v2/entities/slow", exchange -> {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200, "{}", false);
+        });
+        requestFactory.setReadTimeout(Duration.ofMillis(100));
+
+        try {
+            ngsiClient.getEntity("slow", null, null).get();
+            fail("expected an ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+        assertEquals(0, requestFactory.getOpenConnections());
+    }
+
+    @Test
+    public void testStreamedBody() throws Exception {
+        CountDownLatch firstPartRead = new CountDownLatch(1);
+        server.createContext("/large", exchange -> {
+            exchange.sendResponseHeaders(200, 2000);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(new byte[1000]);
+                out.flush();
+                firstPartRead.await(5, TimeUnit.SECONDS);
+                out.write(new byte[1000]);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        // The response is available before the end of its body is sent
+        ClientHttpResponse response = get("/large");
+        InputStream body = response.getBody();
+        byte[] buffer = new byte[4096];
+        int read = 0;
+        while (read < 1000) {
+            read += body.read(buffer);
+        }
+        assertEquals(1000, read);
+        firstPartRead.countDown();
+        int count;
+        while ((count = body.read(buffer)) >= 0) {
+            read += count;
+        }
+        assertEquals(2000, read);
+        response.close();
+        assertEquals(1, requestFactory.getIdleConnections());
+    }
+
+    @Test
+    public void testBodyBackPressure() throws Exception {
+        int size = 4 * 1024 * 1024;
+        server.createContext("/large", exchange -> {
+            exchange.sendResponseHeaders(200, size);
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int i = 0; i < size / 8192; i++) {
+                    out.write(new byte[8192]);
+                }
+            }
+        });
+
+        ClientHttpResponse response = get("/large");
+        Thread.sleep(200);
+        // The connection stopped reading while the body was not consumed
+        InputStream body = response.getBody();
+        assertTrue(body.available() <= 256 * 1024 + 16 * 1024);
+        assertEquals(size, StreamUtils.copyToByteArray(body).length);
+        response.close();
+        assertEquals(1, requestFactory.getIdleConnections());
+    }
+
+    @Test
+    public void testClosedBeforeEnd() throws Exception {
+        server.createContext("/large", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int i = 0; i < 1024; i++) {
+                    out.write(new byte[8192]);
+                }
+            } catch (IOException e) {
+                // closed by the client
+            }
+        });
+
+        ClientHttpResponse response = get("/large");
+        response.getBody().read();
+        response.close();
+        // More than 256 KB remained, the connection is closed rather than drained
+        long deadline = System.currentTimeMillis() + 5000;
+        while (requestFactory.getOpenConnections() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, requestFactory.getOpenConnections());
+    }
+
+    @Test
+    public void testCallbacksNotOnEventLoop() throws Exception {
+        String json = Utils.loadResource("json/getEntityResponse.json");
+        server.createContext("/v2/entities/DC_S1-D41", exchange -> {
+            try {
+                // Respond once the callback is registered
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200, json, false);
+        });
+
+        CompletableFuture<String> callbackThread = new CompletableFuture<>();
+        ngsiClient.getEntity("DC_S1-D41", null, null).addCallback(entity -> callbackThread.complete(Thread.currentThread().getName()),
+                callbackThread::completeExceptionally);
+        String name = callbackThread.get(5, TimeUnit.SECONDS);
+        assertTrue(name, name.matches("ngsi2-nio-[0-9]+-callback-[0-9]+"));
+    }
+
+    @Test
+    public void testBoundedCallbackThreads() throws Exception {
+        String json = Utils.loadResource("json/getEntityResponse.json");
+        server.createContext("/v2/entities/DC_S1-D41", exchange -> respond(exchange, 200, json, false));
+
+        // Slow consumers do not get a thread each: the default executor has one thread per connection
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            ngsiClient.getEntity("DC_S1-D41", null, null).addCallback(entity -> {
+                // A callback added to a completed future runs on the calling thread
+                if (Thread.currentThread().getName().matches("ngsi2-nio-[0-9]+-callback-[0-9]+")) {
+                    threads.add(Thread.currentThread().getName());
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }, ex -> done.countDown());
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(threads.isEmpty());
+        assertTrue(threads.toString(), threads.size() <= 2);
+    }
+
+    @Test(expected = IOException.class)
+    public void testHttpsNotSupported() throws Exception {
+        requestFactory.createAsyncRequest(URI.create("https://localhost:8443/v2"), HttpMethod.GET);
+    }
+
+    @Test
+    public void testBodyReadOnEventLoop() throws Exception {
+        CountDownLatch failed = new CountDownLatch(1);
+        server.createContext("/v2/entities/slow", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            try {
+                // Respond once the callback is registered
+                Thread.sleep(100);
+                exchange.sendResponseHeaders(200, 2);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.flush();
+                    failed.await(5, TimeUnit.SECONDS);
+                    out.write("{}".getBytes(StandardCharsets.UTF_8));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        requestFactory.setCallbackExecutor(Runnable::run);
+
+        // Waiting for the body on the event loop would block it forever
+        CompletableFuture<Entity> result = new CompletableFuture<>();
+        ngsiClient.getEntity("slow", null, null).addCallback(result::complete, result::completeExceptionally);
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail("expected an ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("event loop"));
+        } finally {
+            failed.countDown();
+        }
+    }
+
+    private ClientHttpResponse get(String path) throws Exception {
+        URI uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path);
+        return requestFactory.createAsyncRequest(uri, HttpMethod.GET).executeAsync().get(5, TimeUnit.SECONDS);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body, boolean chunked) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, chunked ? 0 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
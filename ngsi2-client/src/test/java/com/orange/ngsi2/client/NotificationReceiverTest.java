@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.Utils;
+import com.orange.ngsi2.model.Entity;
+import com.orange.ngsi2.model.Notification;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.client.AsyncRestTemplate;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for NotificationReceiver, sending the notifications over HTTP
+ */
+public class NotificationReceiverTest {
+
+    private final Ngsi2Client client = new Ngsi2Client(new AsyncRestTemplate(), "http://localhost:8080");
+
+    private final BlockingQueue<NotificationReceiver.Message> messages = new LinkedBlockingQueue<>();
+
+    private NotificationReceiver receiver;
+
+    @Before
+    public void setUp() throws IOException {
+        receiver = new NotificationReceiver(client, new InetSocketAddress("localhost", 0), 2, 10);
+        receiver.register("12345", messages::add);
+    }
+
+    @After
+    public void tearDown() {
+        receiver.close();
+    }
+
+    @Test
+    public void normalizedTest() throws Exception {
+        assertEquals(204, post(Utils.loadResource("json/notificationNormalized.json"), "normalized"));
+        NotificationReceiver.Message message = messages.poll(5, TimeUnit.SECONDS);
+        assertNotNull(message);
+        assertEquals("12345", message.getSubscriptionId());
+        assertEquals(1, message.getSequence());
+        assertEquals(1, receiver.getSequence());
+        assertEquals(Notification.Format.normalized, message.getFormat());
+        assertEquals("smartcity", message.getHeader("Fiware-Service"));
+        List<Entity> entities = message.getEntities();
+        assertEquals(1, entities.size());
+        assertEquals("Room1", entities.get(0).getId());
+        assertEquals(720, entities.get(0).getAttributes().get("pressure").getValue());
+        assertEquals(1, receiver.getReceived());
+    }
+
+    @Test
+    public void keyValuesTest() throws Exception {
+        assertEquals(204, post(Utils.loadResource("json/notificationKeyValues.json"), null));
+        NotificationReceiver.Message message = messages.poll(5, TimeUnit.SECONDS);
+        assertNotNull(message);
+        assertEquals(Notification.Format.keyValues, message.getFormat());
+        List<Map<String, Object>> keyValues = message.getKeyValues();
+        assertEquals(2, keyValues.size());
+        assertEquals(710, keyValues.get(1).get("pressure"));
+        List<Ngsi2ClientTest.Room> rooms = message.getData(Ngsi2ClientTest.Room.class);
+        assertEquals("Room2", rooms.get(1).id);
+        assertEquals(19.0, rooms.get(1).temperature, 0.0);
+    }
+
+    @Test
+    public void valuesTest() throws Exception {
+        assertEquals(204, post(Utils.loadResource("json/notificationValues.json"), null));
+        NotificationReceiver.Message message = messages.poll(5, TimeUnit.SECONDS);
+        assertNotNull(message);
+        assertEquals(Notification.Format.values, message.getFormat());
+        List<List<Object>> values = message.getValues();
+        assertEquals(2, values.size());
+        assertEquals(720, values.get(0).get(1));
+    }
+
+    @Test
+    public void unroutedTest() throws Exception {
+        receiver.unregister("12345");
+        assertEquals(204, post(Utils.loadResource("json/notificationValues.json"), null));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (receiver.getUnrouted() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, receiver.getUnrouted());
+
+        receiver.setDefaultHandler(messages::add);
+        assertEquals(204, post(Utils.loadResource("json/notificationValues.json"), null));
+        assertNotNull(messages.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void backpressureTest() throws Exception {
+        receiver.close();
+        receiver = new NotificationReceiver(client, new InetSocketAddress("localhost", 0), 1, 1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        receiver.register("12345", message -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        String notification = Utils.loadResource("json/notificationValues.json");
+        assertEquals(204, post(notification, null));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        // The worker is busy and the queue holds one notification
+        assertEquals(204, post(notification, null));
+        assertEquals(429, post(notification, null));
+        assertEquals(1, receiver.getRejected());
+        release.countDown();
+    }
+
+    @Test
+    public void pipelinedRequestsTest() throws Exception {
+        byte[] body = Utils.loadResource("json/notificationValues.json").getBytes(StandardCharsets.UTF_8);
+        String head = "POST /notify HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\nContent-Length: " + body.length + "\r\n\r\n";
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            requests.write(head.getBytes(StandardCharsets.US_ASCII));
+            requests.write(body);
+        }
+        try (Socket socket = new Socket("localhost", receiver.getPort())) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(requests.toByteArray());
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            for (int i = 0; i < 3; i++) {
+                assertEquals("HTTP/1.1 204 No Content", reader.readLine());
+                assertEquals("", reader.readLine());
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(messages.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void orderedTest() throws Exception {
+        receiver.close();
+        receiver = new NotificationReceiver(client, new InetSocketAddress("localhost", 0), 4, 100);
+        List<Integer> sequence = Collections.synchronizedList(new ArrayList<>());
+        receiver.register("12345", message -> {
+            int n = message.getData().path(0).path(0).asInt();
+            // The first notifications are the slowest, they would be overtaken if handled in parallel
+            try {
+                Thread.sleep(n < 4 ? 20 : 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sequence.add(n);
+        });
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        for (int i = 0; i < 20; i++) {
+            byte[] body = ("{\"data\":[[" + i + "]],\"subscriptionId\":\"12345\"}").getBytes(StandardCharsets.UTF_8);
+            requests.write(("POST /notify HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            requests.write(body);
+        }
+        try (Socket socket = new Socket("localhost", receiver.getPort())) {
+            socket.getOutputStream().write(requests.toByteArray());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (sequence.size() < 20 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, sequence);
+    }
+
+    @Test
+    public void subscriptionIdTest() {
+        assertEquals("12345", receiver.subscriptionId("{\"data\":[{\"id\":\"Room1\",\"a\":{\"value\":[1]}}],\"subscriptionId\":\"12345\"}"
+                .getBytes(StandardCharsets.UTF_8)));
+        assertNull(receiver.subscriptionId("{\"subscriptionId\":12345}".getBytes(StandardCharsets.UTF_8)));
+        assertNull(receiver.subscriptionId("[]".getBytes(StandardCharsets.UTF_8)));
+        assertNull(receiver.subscriptionId("{\"data\":".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void methodNotAllowedTest() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + receiver.getPort() + "/notify").openConnection();
+        assertEquals(405, connection.getResponseCode());
+    }
+
+    private int post(String body, String format) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + receiver.getPort() + "/notify").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setRequestProperty("Fiware-Service", "smartcity");
+        if (format != null) {
+            connection.setRequestProperty(NotificationReceiver.attrsFormatHeader, format);
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return connection.getResponseCode();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.exception.Ngsi2Exception;
+import com.orange.ngsi2.model.Paginated;
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for PaginatedIterator
+ */
+public class PaginatedIteratorTest {
+
+    @Test
+    public void allPagesTest() {
+        FakePages pages = new FakePages(25, false);
+        PaginatedIterator<Integer> iterator = new PaginatedIterator<>(pages, 0, 10, 1);
+        List<Integer> items = iterator.stream().collect(Collectors.toList());
+        assertEquals(25, items.size());
+        assertEquals(Integer.valueOf(24), items.get(24));
+        assertEquals(3, pages.requests.size());
+        assertEquals("0/10/count", pages.requests.get(0));
+        assertEquals("10/10", pages.requests.get(1));
+        assertEquals("20/10", pages.requests.get(2));
+    }
+
+    @Test
+    public void prefetchDepthTest() {
+        FakePages pages = new FakePages(100, false);
+        PaginatedIterator<Integer> iterator = new PaginatedIterator<>(pages, 0, 10, 3);
+        assertEquals(1, pages.requests.size());
+        assertEquals(Integer.valueOf(0), iterator.next());
+        // first page consumed, 3 pages requested in advance
+        assertEquals(4, pages.requests.size());
+        for (int i = 1; i < 10; i++) {
+            iterator.next();
+        }
+        assertEquals(4, pages.requests.size());
+        iterator.next();
+        assertEquals(5, pages.requests.size());
+    }
+
+    @Test
+    public void noPrefetchTest() {
+        FakePages pages = new FakePages(100, false);
+        PaginatedIterator<Integer> iterator = new PaginatedIterator<>(pages, 0, 10, 0);
+        assertEquals(Integer.valueOf(0), iterator.next());
+        assertEquals(1, pages.requests.size());
+        for (int i = 1; i < 11; i++) {
+            iterator.next();
+        }
+        assertEquals(2, pages.requests.size());
+    }
+
+    @Test
+    public void withoutTotalCountTest() {
+        FakePages pages = new FakePages(20, 0, false);
+        PaginatedIterator<Integer> iterator = new PaginatedIterator<>(pages, 0, 10, 0);
+        assertEquals(20, iterator.stream().count());
+        // the third page is empty and ends the iteration
+        assertEquals(3, pages.requests.size());
+    }
+
+    @Test
+    public void emptyTest() {
+        FakePages pages = new FakePages(0, false);
+        PaginatedIterator<Integer> iterator = new PaginatedIterator<>(pages, 0, 10, 2);
+        assertFalse(iterator.hasNext());
+        assertEquals(1, pages.requests.size());
+    }
+
+    @Test
+    public void closeCancelsPendingPagesTest() {
+        FakePages pages = new FakePages(100, false) {
+            @Override
+            public ListenableFuture<Paginated<Integer>> request(int offset, int limit, boolean count) {
+                if (offset == 0) {
+                    return super.request(offset, limit, count);
+                }
+                SettableListenableFuture<Paginated<Integer>> future = new SettableListenableFuture<>();
+                requested.add(future);
+                return future;
+            }
+        };
+        PaginatedIterator<Integer> iterator = new PaginatedIterator<>(pages, 0, 10, 2);
+        iterator.next();
+        iterator.close();
+        assertTrue(pages.requested.get(1).isCancelled());
+        assertTrue(pages.requested.get(2).isCancelled());
+    }
+
+    @Test(expected = Ngsi2Exception.class)
+    public void errorTest() {
+        PaginatedIterator<Integer> iterator = new PaginatedIterator<>((offset, limit, count) -> {
+            SettableListenableFuture<Paginated<Integer>> future = new SettableListenableFuture<>();
+            future.setException(new Ngsi2Exception("500", "Internal Server Error", null));
+            return future;
+        }, 0, 10, 1);
+        iterator.hasNext();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.orange.ngsi2.client;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for PaginatedPublisher
+ */
+public class PaginatedPublisherTest {
+
+    private static class RecordingSubscriber implements PaginatedPublisher.Subscriber<Integer> {
+
+        final List<Integer> items = new ArrayList<>();
+
+        PaginatedPublisher.Subscription subscription;
+
+        Throwable error;
+
+        boolean completed;
+
+        @Override
+        public void onSubscribe(PaginatedPublisher.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Integer item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    /**
+     * Same shape as the org.reactivestreams interfaces
+     */
+    public interface ReactiveStreams {
+
+        interface Publisher<T> {
+            void subscribe(Subscriber<? super T> subscriber);
+        }
+
+        interface Subscriber<T> {
+            void onSubscribe(Subscription subscription);
+
+            void onNext(T item);
+
+            void onError(Throwable throwable);
+
+            void onComplete();
+        }
+
+        interface Subscription {
+            void request(long n);
+
+            void cancel();
+        }
+    }
+
+    @Test
+    public void demandDrivenPagesTest() {
+        FakePages pages = new FakePages(25, false);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        new PaginatedPublisher<>(pages, 0, 2, 20).subscribe(subscriber);
+        assertTrue(pages.requests.isEmpty());
+
+        subscriber.subscription.request(3);
+        assertEquals(Arrays.asList(0, 1, 2), subscriber.items);
+        assertEquals(Arrays.asList("0/3/count"), pages.requests);
+
+        subscriber.subscription.request(1);
+        assertEquals(Arrays.asList("0/3/count", "3/2"), pages.requests);
+        assertEquals(4, subscriber.items.size());
+
+        subscriber.subscription.request(100);
+        assertEquals(25, subscriber.items.size());
+        assertEquals(Integer.valueOf(24), subscriber.items.get(24));
+        assertEquals(Arrays.asList("0/3/count", "3/2", "5/20"), pages.requests);
+        assertTrue(subscriber.completed);
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    public void singlePageInFlightTest() {
+        FakePages pages = new FakePages(100, true);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        new PaginatedPublisher<>(pages, 10, 5, 10).subscribe(subscriber);
+
+        subscriber.subscription.request(30);
+        subscriber.subscription.request(30);
+        assertEquals(Arrays.asList("10/10/count"), pages.requests);
+
+        pages.complete(10, 10);
+        assertEquals(10, subscriber.items.size());
+        assertEquals(Integer.valueOf(10), subscriber.items.get(0));
+        assertEquals(Arrays.asList("10/10/count", "20/10"), pages.requests);
+        assertFalse(subscriber.completed);
+    }
+
+    @Test
+    public void errorTest() {
+        FakePages pages = new FakePages(100, true);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        new PaginatedPublisher<>(pages, 0, 5, 10).subscribe(subscriber);
+
+        subscriber.subscription.request(10);
+        IllegalStateException failure = new IllegalStateException("failed");
+        pages.pending.get(0).setException(failure);
+        assertSame(failure, subscriber.error);
+        assertFalse(subscriber.completed);
+    }
+
+    @Test
+    public void cancelTest() {
+        FakePages pages = new FakePages(100, true);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        new PaginatedPublisher<>(pages, 0, 5, 10).subscribe(subscriber);
+
+        subscriber.subscription.request(10);
+        subscriber.subscription.cancel();
+        assertTrue(pages.pending.get(0).isCancelled());
+        subscriber.subscription.request(10);
+        assertEquals(1, pages.requests.size());
+        assertNull(subscriber.error);
+        assertFalse(subscriber.completed);
+    }
+
+    @Test
+    public void invalidRequestTest() {
+        FakePages pages = new FakePages(100, false);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        new PaginatedPublisher<>(pages, 0, 5, 10).subscribe(subscriber);
+
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertTrue(pages.requests.isEmpty());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void adaptedPublisherTest() {
+        FakePages pages = new FakePages(25, false);
+        ReactiveStreams.Publisher<Integer> publisher = new PaginatedPublisher<>(pages, 0, 5, 10).as(ReactiveStreams.Publisher.class);
+        List<Integer> items = new ArrayList<>();
+        List<ReactiveStreams.Subscription> subscriptions = new ArrayList<>();
+        boolean[] completed = new boolean[1];
+        publisher.subscribe(new ReactiveStreams.Subscriber<Integer>() {
+            @Override
+            public void onSubscribe(ReactiveStreams.Subscription subscription) {
+                subscriptions.add(subscription);
+            }
+
+            @Override
+            public void onNext(Integer item) {
+                items.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                fail(throwable.toString());
+            }
+
+            @Override
+            public void onComplete() {
+                completed[0] = true;
+            }
+        });
+
+        subscriptions.get(0).request(7);
+        assertEquals(7, items.size());
+        assertEquals(Arrays.asList("0/7/count"), pages.requests);
+        subscriptions.get(0).request(Long.MAX_VALUE);
+        assertEquals(25, items.size());
+        assertTrue(completed[0]);
+        assertEquals(subscriptions.get(0), subscriptions.get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void adaptedPublisherInvalidTypeTest() {
+        new PaginatedPublisher<>(new FakePages(25, false), 0, 5, 10).as(Runnable.class);
+    }
+}
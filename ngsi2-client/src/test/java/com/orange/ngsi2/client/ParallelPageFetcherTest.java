@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.model.Paginated;
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ParallelPageFetcher
+ */
+public class ParallelPageFetcherTest {
+
+    @Test
+    public void orderedTest() throws Exception {
+        FakePages pages = new FakePages(45, true);
+        List<Integer> items = new ArrayList<>();
+        ListenableFuture<Integer> result = new ParallelPageFetcher<>(pages, 0, 10, 2).fetch(true, items::add);
+
+        assertEquals(Collections.singletonList("0/10/count"), pages.requests);
+        pages.complete(0, 10);
+        assertEquals(Arrays.asList("0/10/count", "10/10", "20/10"), pages.requests);
+
+        // Out of order completion is buffered
+        pages.complete(20, 10);
+        assertEquals(10, items.size());
+        assertEquals(Arrays.asList("0/10/count", "10/10", "20/10", "30/10"), pages.requests);
+        pages.complete(10, 10);
+        assertEquals(30, items.size());
+        pages.complete(30, 10);
+        pages.complete(40, 10);
+        assertTrue(result.isDone());
+        assertEquals(Integer.valueOf(45), result.get());
+        for (int i = 0; i < 45; i++) {
+            assertEquals(Integer.valueOf(i), items.get(i));
+        }
+        assertEquals(5, pages.requests.size());
+    }
+
+    @Test
+    public void unorderedTest() throws Exception {
+        FakePages pages = new FakePages(30, true);
+        List<Integer> items = new ArrayList<>();
+        ListenableFuture<Integer> result = new ParallelPageFetcher<>(pages, 0, 10, 4).fetch(false, items::add);
+
+        pages.complete(0, 10);
+        assertEquals(3, pages.requests.size());
+        pages.complete(20, 10);
+        assertEquals(Integer.valueOf(20), items.get(10));
+        pages.complete(10, 10);
+        // The last page was full, check that no entity was added after the count
+        assertFalse(result.isDone());
+        assertEquals("30/10", pages.requests.get(3));
+        pages.complete(30, 10);
+        assertEquals(Integer.valueOf(30), result.get());
+        assertEquals(30, new HashSet<>(items).size());
+    }
+
+    @Test
+    public void addedDuringScanTest() throws Exception {
+        FakePages pages = new FakePages(20, true);
+        List<Integer> items = new ArrayList<>();
+        ListenableFuture<Integer> result = new ParallelPageFetcher<>(pages, 0, 10, 4).fetch(true, items::add);
+
+        pages.complete(0, 10);
+        pages.size = 25;
+        pages.complete(10, 10);
+        // The last page was full, the pages after the count are requested one at a time
+        assertEquals(Arrays.asList("0/10/count", "10/10", "20/10"), pages.requests);
+        pages.complete(20, 10);
+        assertTrue(result.isDone());
+        assertEquals(Integer.valueOf(25), result.get());
+        assertEquals(Integer.valueOf(24), items.get(24));
+    }
+
+    @Test
+    public void failureTest() throws Exception {
+        FakePages pages = new FakePages(50, true);
+        ListenableFuture<Integer> result = new ParallelPageFetcher<>(pages, 0, 10, 2).fetch(true, item -> {});
+
+        pages.complete(0, 10);
+        SettableListenableFuture<Paginated<Integer>> other = pages.pending.get(20);
+        pages.pending.get(10).setException(new IllegalStateException("failed"));
+        assertTrue(other.isCancelled());
+        try {
+            result.get();
+            fail("expected a failure");
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        } catch (java.util.concurrent.ExecutionException e) {
+            assertEquals("failed", e.getCause().getMessage());
+        }
+        assertEquals(3, pages.requests.size());
+    }
+
+    @Test
+    public void cancelTest() {
+        FakePages pages = new FakePages(50, true);
+        ListenableFuture<Integer> result = new ParallelPageFetcher<>(pages, 0, 10, 2).fetch(false, item -> {});
+
+        pages.complete(0, 10);
+        result.cancel(true);
+        assertTrue(pages.pending.get(10).isCancelled());
+        assertTrue(pages.pending.get(20).isCancelled());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.orange.ngsi2.client;
+
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for RequestCoalescer
+ */
+public class RequestCoalescerTest {
+
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+
+    private final List<SettableListenableFuture<ResponseEntity<String>>> sent = new ArrayList<>();
+
+    private ListenableFuture<ResponseEntity<String>> request(HttpMethod method, String uri, HttpHeaders httpHeaders) {
+        return coalescer.request(method, uri, httpHeaders, String.class, () -> {
+            SettableListenableFuture<ResponseEntity<String>> future = new SettableListenableFuture<>();
+            sent.add(future);
+            return future;
+        });
+    }
+
+    private HttpHeaders headers(MediaType accept) {
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.setAccept(Collections.singletonList(accept));
+        return httpHeaders;
+    }
+
+    @Test
+    public void identicalRequestsTest() throws ExecutionException, InterruptedException {
+        ListenableFuture<ResponseEntity<String>> first = request(HttpMethod.GET, "http://localhost/v2/entities/Room1", headers(MediaType.APPLICATION_JSON));
+        ListenableFuture<ResponseEntity<String>> second = request(HttpMethod.GET, "http://localhost/v2/entities/Room1", headers(MediaType.APPLICATION_JSON));
+        assertEquals(1, sent.size());
+        assertEquals(1, coalescer.getInFlightRequests());
+
+        sent.get(0).set(new ResponseEntity<>("room", HttpStatus.OK));
+        assertEquals("room", first.get().getBody());
+        assertEquals("room", second.get().getBody());
+        assertEquals(1, coalescer.getIssuedRequests());
+        assertEquals(1, coalescer.getCoalescedRequests());
+        assertEquals(0, coalescer.getInFlightRequests());
+
+        // once completed, a new request is sent
+        request(HttpMethod.GET, "http://localhost/v2/entities/Room1", headers(MediaType.APPLICATION_JSON));
+        assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void differentRequestsTest() {
+        request(HttpMethod.GET, "http://localhost/v2/entities/Room1", headers(MediaType.APPLICATION_JSON));
+        request(HttpMethod.GET, "http://localhost/v2/entities/Room2", headers(MediaType.APPLICATION_JSON));
+        request(HttpMethod.GET, "http://localhost/v2/entities/Room1", headers(MediaType.TEXT_PLAIN));
+        request(HttpMethod.DELETE, "http://localhost/v2/entities/Room1", headers(MediaType.APPLICATION_JSON));
+        request(HttpMethod.DELETE, "http://localhost/v2/entities/Room1", headers(MediaType.APPLICATION_JSON));
+        assertEquals(5, sent.size());
+        assertEquals(3, coalescer.getIssuedRequests());
+        assertEquals(0, coalescer.getCoalescedRequests());
+    }
+
+    @Test
+    public void failureTest() throws InterruptedException {
+        ListenableFuture<ResponseEntity<String>> first = request(HttpMethod.GET, "http://localhost/v2/entities/Room1", headers(MediaType.APPLICATION_JSON));
+        ListenableFuture<ResponseEntity<String>> second = request(HttpMethod.GET, "http://localhost/v2/entities/Room1", headers(MediaType.APPLICATION_JSON));
+        sent.get(0).setException(new IllegalStateException("failed"));
+        for (ListenableFuture<ResponseEntity<String>> future : Arrays.asList(first, second)) {
+            try {
+                future.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertEquals("failed", e.getCause().getMessage());
+            }
+        }
+        assertEquals(0, coalescer.getInFlightRequests());
+    }
+
+    @Test
+    public void cancelTest() throws ExecutionException, InterruptedException {
+        ListenableFuture<ResponseEntity<String>> first = request(HttpMethod.GET, "http://localhost/v2/entities/Room1", headers(MediaType.APPLICATION_JSON));
+        ListenableFuture<ResponseEntity<String>> second = request(HttpMethod.GET, "http://localhost/v2/entities/Room1", headers(MediaType.APPLICATION_JSON));
+        first.cancel(true);
+        assertFalse(sent.get(0).isCancelled());
+        sent.get(0).set(new ResponseEntity<>("room", HttpStatus.OK));
+        assertEquals("room", second.get().getBody());
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import com.orange.ngsi2.exception.Ngsi2Exception;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for RetryPolicy
+ */
+public class RetryPolicyTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private final List<SettableListenableFuture<String>> sent = new CopyOnWriteArrayList<>();
+
+    private final RetryPolicy retryPolicy = new RetryPolicy(scheduler, 3, Duration.ofMillis(1), Duration.ofSeconds(1));
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private ListenableFuture<String> execute(HttpMethod method) {
+        return execute(method.name(), method);
+    }
+
+    private ListenableFuture<String> execute(String operation, HttpMethod method) {
+        return retryPolicy.execute(operation, method, () -> {
+            SettableListenableFuture<String> future = new SettableListenableFuture<>();
+            sent.add(future);
+            return future;
+        });
+    }
+
+    private SettableListenableFuture<String> awaitSent(int index) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (sent.size() <= index && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        return sent.get(index);
+    }
+
+    private static Ngsi2Exception error(int statusCode) {
+        return new Ngsi2Exception(String.valueOf(statusCode), "error", null, statusCode);
+    }
+
+    @Test
+    public void retryTest() throws Exception {
+        ListenableFuture<String> result = execute(HttpMethod.GET);
+        awaitSent(0).setException(error(503));
+        awaitSent(1).setException(new ResourceAccessException("I/O error"));
+        awaitSent(2).set("ok");
+        assertEquals("ok", result.get(1, TimeUnit.SECONDS));
+        assertEquals(2, retryPolicy.getRetries());
+    }
+
+    @Test
+    public void maxAttemptsTest() throws Exception {
+        ListenableFuture<String> result = execute(HttpMethod.PUT);
+        for (int i = 0; i < 3; i++) {
+            awaitSent(i).setException(error(500));
+        }
+        try {
+            result.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(500, ((Ngsi2Exception) e.getCause()).getStatusCode());
+        }
+        assertEquals(3, sent.size());
+    }
+
+    @Test
+    public void notRetryableTest() throws Exception {
+        ListenableFuture<String> badRequest = execute(HttpMethod.GET);
+        sent.get(0).setException(error(400));
+        ListenableFuture<String> post = execute(HttpMethod.POST);
+        sent.get(1).setException(error(503));
+        // the response of a successful DELETE may be lost, its retry would fail with a 404
+        ListenableFuture<String> delete = execute(HttpMethod.DELETE);
+        sent.get(2).setException(error(503));
+        for (ListenableFuture<String> result : new ListenableFuture[] {badRequest, post, delete}) {
+            try {
+                result.get(1, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof Ngsi2Exception);
+            }
+        }
+        assertEquals(3, sent.size());
+        assertEquals(0, retryPolicy.getRetries());
+    }
+
+    @Test
+    public void localRejectionNotRetriedTest() throws Exception {
+        ListenableFuture<String> result = execute(HttpMethod.GET);
+        RejectedExecutionException rejected = new RejectedExecutionException("Too many requests in flight");
+        sent.get(0).setException(rejected);
+        try {
+            result.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(rejected, e.getCause());
+        }
+        assertEquals(1, sent.size());
+        assertFalse(RetryPolicy.isRetryable(rejected));
+    }
+
+    @Test
+    public void retryAfterTooLongTest() throws Exception {
+        ListenableFuture<String> result = execute(HttpMethod.GET);
+        Ngsi2Exception error = error(429);
+        error.setRetryAfter("120");
+        sent.get(0).setException(error);
+        try {
+            result.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(error, e.getCause());
+        }
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    public void parseRetryAfterTest() {
+        assertEquals(TimeUnit.SECONDS.toNanos(2), RetryPolicy.parseRetryAfter("2"));
+        String date = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now().plusSeconds(30));
+        long delay = RetryPolicy.parseRetryAfter(date);
+        assertTrue(delay > TimeUnit.SECONDS.toNanos(25) && delay <= TimeUnit.SECONDS.toNanos(30));
+        assertEquals(-1, RetryPolicy.parseRetryAfter("soon"));
+    }
+
+    @Test
+    public void hedgingTest() throws Exception {
+        retryPolicy.setHedging(true, Duration.ofMillis(1));
+        // learn the latency
+        for (int i = 0; i < 20; i++) {
+            execute(HttpMethod.GET);
+            sent.get(i).set("ok");
+        }
+        assertNotNull(retryPolicy.getLatencyP95("GET"));
+
+        ListenableFuture<String> result = execute(HttpMethod.GET);
+        SettableListenableFuture<String> first = sent.get(20);
+        awaitSent(21).set("hedged");
+        assertEquals("hedged", result.get(1, TimeUnit.SECONDS));
+        assertTrue(first.isCancelled());
+        assertEquals(1, retryPolicy.getHedges());
+    }
+
+    @Test
+    public void hedgingPerOperationTest() throws Exception {
+        retryPolicy.setHedging(true, Duration.ofMillis(1));
+        for (int i = 0; i < 20; i++) {
+            execute("getEntities", HttpMethod.GET);
+            sent.get(i).set("ok");
+        }
+        assertNotNull(retryPolicy.getLatencyP95("getEntities"));
+        assertNull(retryPolicy.getLatencyP95("getEntity"));
+
+        // no latency learnt for this operation: not hedged
+        execute("getEntity", HttpMethod.GET);
+        Thread.sleep(20);
+        assertEquals(21, sent.size());
+        assertEquals(0, retryPolicy.getHedges());
+    }
+}
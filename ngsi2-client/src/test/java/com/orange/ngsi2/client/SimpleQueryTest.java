@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.client;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for SimpleQuery
+ */
+public class SimpleQueryTest {
+
+    @Test
+    public void operatorsTest() {
+        assertEquals("color=='red'", SimpleQuery.builder().equal("color", "red").build());
+        assertEquals("color!='red'", SimpleQuery.builder().notEqual("color", "red").build());
+        assertEquals("temperature>20", SimpleQuery.builder().greaterThan("temperature", 20).build());
+        assertEquals("temperature>=20", SimpleQuery.builder().greaterOrEqual("temperature", 20).build());
+        assertEquals("temperature<20", SimpleQuery.builder().lessThan("temperature", 20).build());
+        assertEquals("temperature<=20", SimpleQuery.builder().lessOrEqual("temperature", 20).build());
+        assertEquals("pressure==900..1000", SimpleQuery.builder().between("pressure", 900, 1000).build());
+        assertEquals("pressure!=900..1000", SimpleQuery.builder().notBetween("pressure", 900, 1000).build());
+        assertEquals("color=='blue','red'", SimpleQuery.builder().in("color", "red", "blue").build());
+        assertEquals("color!='blue','red'", SimpleQuery.builder().notIn("color", "red", "blue").build());
+        assertEquals("humidity", SimpleQuery.builder().exists("humidity").build());
+        assertEquals("!humidity", SimpleQuery.builder().notExists("humidity").build());
+        assertEquals("open==true", SimpleQuery.builder().equal("open", true).build());
+        assertEquals("dateModified>2016-04-05T14:00:00Z",
+                SimpleQuery.builder().greaterThan("dateModified", Instant.parse("2016-04-05T14:00:00Z")).build());
+    }
+
+    @Test
+    public void canonicalTest() {
+        String query = SimpleQuery.builder().greaterThan("temperature", 20.0).in("color", "red", "blue", "red").exists("humidity").build();
+        assertEquals("color=='blue','red';humidity;temperature>20", query);
+        // Same predicates in another order and spelling
+        assertEquals(query, SimpleQuery.builder().exists("humidity").in("color", "blue", "red").greaterThan("temperature", 20L)
+                .exists("humidity").build());
+        assertEquals(query, SimpleQuery.builder().greaterThan("temperature", new BigDecimal("2.0E1")).in("color", "blue", "red")
+                .exists("humidity").build());
+    }
+
+    @Test
+    public void numbersTest() {
+        assertEquals("t==0.5", SimpleQuery.builder().equal("t", 0.50).build());
+        assertEquals("t==0", SimpleQuery.builder().equal("t", -0.0).build());
+        assertEquals("t==1000000", SimpleQuery.builder().equal("t", 1e6).build());
+        assertEquals("t==-1.25", SimpleQuery.builder().equal("t", -1.25f).build());
+    }
+
+    @Test
+    public void cachedTest() {
+        String query = SimpleQuery.builder().lessThan("temperature", 12).equal("type", "Room").build();
+        assertSame(query, SimpleQuery.builder().lessThan("temperature", 12).equal("type", "Room").build());
+        assertSame(SimpleQuery.parse("temperature<12;type==Room"), SimpleQuery.parse("temperature<12;type==Room"));
+    }
+
+    @Test
+    public void cachedWhateverTheOrderTest() {
+        String query = SimpleQuery.builder().lessThan("temperature", 13).equal("type", "Room").build();
+        assertSame(query, SimpleQuery.builder().equal("type", "Room").lessThan("temperature", 13).build());
+        assertSame(query, SimpleQuery.builder().equal("type", "Room").lessThan("temperature", 13).equal("type", "Room").build());
+    }
+
+    @Test
+    public void leastRecentlyUsedEvictedTest() {
+        String query = SimpleQuery.builder().equal("type", "Street").build();
+        for (int i = 0; i < 2000; i++) {
+            SimpleQuery.builder().equal("index", i).build();
+            if (i % 100 == 0) {
+                assertSame(query, SimpleQuery.builder().equal("type", "Street").build());
+            }
+        }
+        assertSame(query, SimpleQuery.builder().equal("type", "Street").build());
+    }
+
+    @Test
+    public void parseTest() {
+        assertEquals("color=='red';temperature>20", SimpleQuery.parse("temperature>20.0;color==red"));
+        assertEquals("color=='blue','red'", SimpleQuery.parse("color=='red',blue,red"));
+        assertEquals("pressure==900..1000", SimpleQuery.parse("pressure==900.0..1e3"));
+        assertEquals("!humidity;temperature", SimpleQuery.parse("temperature;!humidity"));
+        assertEquals("name=='a;b,c..d'", SimpleQuery.parse("name=='a;b,c..d'"));
+        assertEquals("dateModified>=2016-04-05T14:00:00.000Z", SimpleQuery.parse("dateModified>=2016-04-05T14:00:00.000Z"));
+        assertEquals("open==true", SimpleQuery.parse("open==true"));
+    }
+
+    @Test
+    public void rejectedTest() {
+        assertRejected(() -> SimpleQuery.builder().build());
+        assertRejected(() -> SimpleQuery.builder().equal("temp erature", 20));
+        assertRejected(() -> SimpleQuery.builder().equal("a;b", 20));
+        assertRejected(() -> SimpleQuery.builder().equal("name", "it's"));
+        assertRejected(() -> SimpleQuery.builder().equal("temperature", Double.NaN));
+        assertRejected(() -> SimpleQuery.builder().equal("temperature", new Object()));
+        assertRejected(() -> SimpleQuery.builder().equal("temperature", null));
+        assertRejected(() -> SimpleQuery.builder().in("color"));
+        assertRejected(() -> SimpleQuery.builder().between("pressure", 1000, 900));
+        assertRejected(() -> SimpleQuery.builder().between("pressure", 900, "1000"));
+        assertRejected(() -> SimpleQuery.builder().between("open", false, true));
+        assertRejected(() -> SimpleQuery.builder().between("dateModified", Instant.parse("2016-04-05T14:00:00.500Z"),
+                Instant.parse("2016-04-05T14:00:00Z")));
+        assertRejected(() -> SimpleQuery.parse(""));
+        assertRejected(() -> SimpleQuery.parse("temperature>20;"));
+        assertRejected(() -> SimpleQuery.parse("temperature=20"));
+        assertRejected(() -> SimpleQuery.parse("temperature=>20"));
+        assertRejected(() -> SimpleQuery.parse("temperature>"));
+        assertRejected(() -> SimpleQuery.parse("temperature>1,2"));
+        assertRejected(() -> SimpleQuery.parse("name=='red"));
+        assertRejected(() -> SimpleQuery.parse("pressure==1..2..3"));
+        assertRejected(() -> SimpleQuery.parse("!=20"));
+    }
+
+    private static void assertRejected(Runnable runnable) {
+        try {
+            runnable.run();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.loadgen;
+
+import com.orange.ngsi2.model.*;
+import com.orange.ngsi2.server.Ngsi2BaseController;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Controller of the in-process target, keeping the entities and subscriptions in memory.
+ * It exercises the request handling of Ngsi2BaseController, not a broker: the queries and geo queries
+ * are parsed but not evaluated, and the subscriptions never notify.
+ */
+@RestController
+@RequestMapping("/v2")
+public class InMemoryNgsi2Controller extends Ngsi2BaseController {
+
+    private final ConcurrentMap<String, Entity> entities = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    private final AtomicLong subscriptionIds = new AtomicLong();
+
+    /**
+     * Endpoint post /v2/op/update, missing from Ngsi2BaseController
+     * @param bulkUpdateRequest the bulk update
+     * @return http status 204 (no content)
+     */
+    @RequestMapping(method = RequestMethod.POST, value = "/op/update", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity bulkUpdateEndpoint(@RequestBody BulkUpdateRequest bulkUpdateRequest) {
+        for (Entity entity : bulkUpdateRequest.getEntities()) {
+            switch (bulkUpdateRequest.getActionType()) {
+                case DELETE:
+                    entities.remove(entity.getId());
+                    break;
+                case UPDATE:
+                    updateExistingEntityAttributes(entity.getId(), entity.getAttributes());
+                    break;
+                default:
+                    if (entities.putIfAbsent(entity.getId(), entity) != null) {
+                        updateOrAppendEntity(entity.getId(), entity.getAttributes());
+                    }
+            }
+        }
+        return new ResponseEntity(HttpStatus.NO_CONTENT);
+    }
+
+    @Override
+    protected Map<String, String> listResources() {
+        Map<String, String> resources = new LinkedHashMap<>();
+        resources.put("entities_url", "/v2/entities");
+        resources.put("types_url", "/v2/types");
+        resources.put("subscriptions_url", "/v2/subscriptions");
+        resources.put("registrations_url", "/v2/registrations");
+        return resources;
+    }
+
+    @Override
+    protected Paginated<Entity> listEntities(Optional<String> ids, Optional<String> types, Optional<String> idPattern,
+            Optional<Integer> limit, Optional<Integer> offset, Optional<String> attrs, Optional<String> query,
+            Optional<GeoQuery> geoQuery, Optional<Collection<String>> orderBy) throws Exception {
+        Stream<Entity> stream = entities.values().stream();
+        if (ids.isPresent()) {
+            Set<String> idSet = new HashSet<>(Arrays.asList(ids.get().split(",")));
+            stream = stream.filter(entity -> idSet.contains(entity.getId()));
+        }
+        if (types.isPresent()) {
+            Set<String> typeSet = new HashSet<>(Arrays.asList(types.get().split(",")));
+            stream = stream.filter(entity -> typeSet.contains(entity.getType()));
+        }
+        if (idPattern.isPresent()) {
+            Pattern pattern = Pattern.compile(idPattern.get());
+            stream = stream.filter(entity -> pattern.matcher(entity.getId()).matches());
+        }
+        List<Entity> matching = stream.collect(Collectors.toList());
+        int from = Math.min(offset.orElse(0), matching.size());
+        int to = Math.min(from + limit.orElse(20), matching.size());
+        return new Paginated<>(new ArrayList<>(matching.subList(from, to)), offset.orElse(0), limit.orElse(20), matching.size());
+    }
+
+    @Override
+    protected void createEntity(Entity entity) {
+        entities.put(entity.getId(), entity);
+    }
+
+    @Override
+    protected Entity retrieveEntity(String entityId, Optional<String> attrs) {
+        return entity(entityId);
+    }
+
+    @Override
+    protected void updateOrAppendEntity(String entityId, Map<String, Attribute> attributes) {
+        entities.computeIfPresent(entityId, (id, entity) -> merge(entity, attributes));
+    }
+
+    @Override
+    protected void updateExistingEntityAttributes(String entityId, Map<String, Attribute> attributes) {
+        entities.compute(entityId, (id, entity) -> {
+            if (entity == null) {
+                throw new IllegalArgumentException("unknown entity " + entityId);
+            }
+            return merge(entity, attributes);
+        });
+    }
+
+    @Override
+    protected void replaceAllEntityAttributes(String entityId, Map<String, Attribute> attributes) {
+        entities.computeIfPresent(entityId, (id, entity) -> new Entity(id, entity.getType(), attributes));
+    }
+
+    @Override
+    protected void removeEntity(String entityId) {
+        entities.remove(entityId);
+    }
+
+    @Override
+    protected Attribute retrieveAttributeByEntityId(String entityId, String attrName, Optional<String> type) {
+        return entity(entityId).getAttributes().get(attrName);
+    }
+
+    @Override
+    protected Object retrieveAttributeValue(String entityId, String attrName, Optional<String> type) {
+        Attribute attribute = retrieveAttributeByEntityId(entityId, attrName, type);
+        return attribute == null ? null : attribute.getValue();
+    }
+
+    @Override
+    protected Paginated<Subscription> listSubscriptions(Optional<Integer> limit, Optional<Integer> offset) {
+        List<Subscription> all = new ArrayList<>(subscriptions.values());
+        int from = Math.min(offset.orElse(0), all.size());
+        int to = Math.min(from + limit.orElse(20), all.size());
+        return new Paginated<>(new ArrayList<>(all.subList(from, to)), offset.orElse(0), limit.orElse(20), all.size());
+    }
+
+    @Override
+    protected void createSubscription(Subscription subscription) {
+        subscription.setId(Long.toHexString(subscriptionIds.incrementAndGet()));
+        subscriptions.put(subscription.getId(), subscription);
+    }
+
+    @Override
+    protected Subscription retrieveSubscription(String subscriptionId) {
+        Subscription subscription = subscriptions.get(subscriptionId);
+        if (subscription == null) {
+            throw new IllegalArgumentException("unknown subscription " + subscriptionId);
+        }
+        return subscription;
+    }
+
+    @Override
+    protected void removeSubscription(String subscriptionId) {
+        subscriptions.remove(subscriptionId);
+    }
+
+    private Entity entity(String entityId) {
+        Entity entity = entities.get(entityId);
+        if (entity == null) {
+            throw new IllegalArgumentException("unknown entity " + entityId);
+        }
+        return entity;
+    }
+
+    private static Entity merge(Entity entity, Map<String, Attribute> attributes) {
+        Map<String, Attribute> merged = new LinkedHashMap<>();
+        if (entity.getAttributes() != null) {
+            merged.putAll(entity.getAttributes());
+        }
+        if (attributes != null) {
+            merged.putAll(attributes);
+        }
+        return new Entity(entity.getId(), entity.getType(), merged);
+    }
+}
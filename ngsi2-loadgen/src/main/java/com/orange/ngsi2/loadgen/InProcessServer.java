@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.loadgen;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Embedded Tomcat serving an InMemoryNgsi2Controller, the target of the load when no server is given (e.g. in CI)
+ */
+public class InProcessServer implements AutoCloseable {
+
+    @Configuration
+    @EnableAutoConfiguration
+    static class ServerConfiguration {
+
+        @Bean
+        public InMemoryNgsi2Controller inMemoryNgsi2Controller() {
+            return new InMemoryNgsi2Controller();
+        }
+
+        @Bean
+        public MappingJackson2HttpMessageConverter jsonV2Converter(ObjectMapper objectMapper) {
+            objectMapper.registerModule(new Jdk8Module());
+            return new MappingJackson2HttpMessageConverter(objectMapper);
+        }
+    }
+
+    private final ConfigurableApplicationContext context;
+
+    private final int port;
+
+    /**
+     * Start the server
+     * @param port the listening port, 0 for any free port
+     */
+    public InProcessServer(int port) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("server.port", port);
+        properties.put("logging.level.org.springframework", "WARN");
+        properties.put("logging.level.org.apache", "WARN");
+        SpringApplication application = new SpringApplication(ServerConfiguration.class);
+        application.setShowBanner(false);
+        application.setLogStartupInfo(false);
+        application.setDefaultProperties(properties);
+        context = application.run();
+        this.port = ((EmbeddedWebApplicationContext) context).getEmbeddedServletContainer().getPort();
+    }
+
+    /**
+     * @return the base URL of the server
+     */
+    public String getBaseURL() {
+        return "http://localhost:" + port;
+    }
+
+    /**
+     * Stop the server
+     */
+    @Override
+    public void close() {
+        context.close();
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.loadgen;
+
+import com.orange.ngsi2.client.BulkUpdateSubmitter;
+import com.orange.ngsi2.client.InMemoryClientMetrics;
+import com.orange.ngsi2.client.Ngsi2Client;
+import com.orange.ngsi2.client.NioClientHttpRequestFactory;
+import com.orange.ngsi2.model.*;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.io.PrintStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator sending a mix of operations through a Ngsi2Client at a fixed arrival rate.
+ *
+ * The load is an open model: the requests are started at their scheduled time whatever the number of requests in flight,
+ * and the latency of a request is measured from its scheduled time, not from the time it was actually sent.
+ * A slow server therefore shows up in the percentiles instead of slowing down the load (no coordinated omission).
+ * Above a maximum number of requests in flight, the scheduled requests are dropped and counted.
+ *
+ * Run with --help for the command line options. Without --target, the load is sent to an InProcessServer.
+ */
+public class LoadGenerator {
+
+    private final static String usage = "Usage: java -jar loadgen.jar [options]\n" +
+            "  --target <url>          base URL of the NGSI v2 server (default: an in-process server)\n" +
+            "  --rate <n>              requests per second (default: 100)\n" +
+            "  --duration <seconds>    measured duration (default: 30)\n" +
+            "  --warmup <seconds>      duration of the load not measured, before the measured one (default: 5)\n" +
+            "  --mix <op=weight,...>   operations among " + Arrays.toString(Operation.values()) + "\n" +
+            "                          (default: " + OperationMix.defaultMix + ")\n" +
+            "  --entities <n>          number of entities created before the load, read and updated by it (default: 1000)\n" +
+            "  --connections <n>       maximum number of connections to the server (default: 64)\n" +
+            "  --max-in-flight <n>     maximum number of requests in flight, the requests above are dropped (default: 10000)\n" +
+            "  --service <name>        Fiware-Service of the requests\n" +
+            "  --service-path <path>   Fiware-ServicePath of the requests\n";
+
+    private final static String entityType = "LoadRoom";
+
+    private final static int bulkUpdateSize = 10;
+
+    private final static int queryLimit = 20;
+
+    private final Ngsi2Client client;
+
+    private final OperationMix mix;
+
+    private final double rate;
+
+    private final int entityCount;
+
+    private final int maxInFlight;
+
+    /**
+     * Prefix of the entities created by the load, distinct for each run
+     */
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicLong created = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final InMemoryClientMetrics metrics = new InMemoryClientMetrics();
+
+    private final InMemoryClientMetrics warmUpMetrics = new InMemoryClientMetrics();
+
+    private final Subscription subscription;
+
+    /**
+     * @param client the client sending the requests
+     * @param mix the operations to send
+     * @param rate the number of requests started per second
+     * @param entityCount the number of entities read and updated by the load
+     * @param maxInFlight the maximum number of requests in flight
+     */
+    public LoadGenerator(Ngsi2Client client, OperationMix mix, double rate, int entityCount, int maxInFlight) {
+        if (rate <= 0 || entityCount <= 0 || maxInFlight <= 0) {
+            throw new IllegalArgumentException("rate, entities and maxInFlight must be positive");
+        }
+        this.client = client;
+        this.mix = mix;
+        this.rate = rate;
+        this.entityCount = entityCount;
+        this.maxInFlight = maxInFlight;
+        this.subscription = subscription();
+    }
+
+    /**
+     * Create or update the entities used by the load
+     * @return the result of the bulk updates
+     */
+    public ListenableFuture<BulkUpdateSubmitter.Result> populate() {
+        List<Entity> entities = new ArrayList<>(entityCount);
+        Random random = ThreadLocalRandom.current();
+        for (int i = 0; i < entityCount; i++) {
+            entities.add(entity(entityId(i), random, true));
+        }
+        BulkUpdateSubmitter submitter = new BulkUpdateSubmitter(client, 100, 1024 * 1024, 4);
+        return submitter.submit(new BulkUpdateRequest(BulkUpdateRequest.Action.APPEND, entities));
+    }
+
+    /**
+     * Send the load, blocking the calling thread until all the requests completed (or 30 seconds after the end of the load)
+     * @param warmUp the duration of the load not measured
+     * @param duration the measured duration
+     * @return the metrics of the measured requests by operation, the latencies being measured from the scheduled times
+     */
+    public InMemoryClientMetrics run(Duration warmUp, Duration duration) throws InterruptedException {
+        double nanosPerRequest = TimeUnit.SECONDS.toNanos(1) / rate;
+        Random random = ThreadLocalRandom.current();
+        long start = System.nanoTime();
+        long measureStart = start + warmUp.toNanos();
+        long end = measureStart + duration.toNanos();
+        for (long i = 0; ; i++) {
+            long scheduled = start + (long) (i * nanosPerRequest);
+            if (scheduled - end >= 0) {
+                break;
+            }
+            long delay;
+            while ((delay = scheduled - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            send(mix.next(random), scheduled, scheduled - measureStart < 0 ? warmUpMetrics : metrics, random);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (inFlight.get() > 0 && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the number of measured requests dropped because too many requests were in flight
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of requests still in flight
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Print the throughput and latency percentiles of each operation
+     * @param out the output
+     * @param duration the measured duration
+     */
+    public void report(PrintStream out, Duration duration) {
+        double seconds = duration.toNanos() / 1e9;
+        out.printf("%-14s %9s %8s %10s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "errors", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        long total = 0;
+        Map<String, Long> errors = new TreeMap<>();
+        for (Operation operation : Operation.values()) {
+            InMemoryClientMetrics.OperationMetrics operationMetrics = metrics.getOperation(operation.name());
+            if (operationMetrics == null) {
+                continue;
+            }
+            long count = operationMetrics.getCount();
+            long failed = 0;
+            for (Map.Entry<String, Long> error : operationMetrics.getErrors().entrySet()) {
+                failed += error.getValue();
+                errors.put(operation.name() + " " + error.getKey(), error.getValue());
+            }
+            total += count;
+            out.printf("%-14s %9d %8d %10.1f %10.2f %10.2f %10.2f %10.2f %10.2f%n", operation.name(), count, failed, count / seconds,
+                    millis(operationMetrics.getLatencyP50()), millis(operationMetrics.getLatency(90)),
+                    millis(operationMetrics.getLatencyP99()), millis(operationMetrics.getLatencyP999()),
+                    millis(operationMetrics.getLatency(100)));
+        }
+        out.printf("%-14s %9d %8s %10.1f   (target %.1f req/s, %d dropped, %d still in flight)%n",
+                "total", total, "", total / seconds, rate, dropped.get(), inFlight.get());
+        errors.forEach((error, count) -> out.printf("  %s: %d%n", error, count));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options;
+        try {
+            options = parseOptions(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(usage);
+            System.exit(2);
+            return;
+        }
+        if (options.containsKey("help")) {
+            System.out.print(usage);
+            return;
+        }
+        InProcessServer server = null;
+        String target = options.get("target");
+        if (target == null) {
+            server = new InProcessServer(0);
+            target = server.getBaseURL();
+        }
+        try (NioClientHttpRequestFactory requestFactory = new NioClientHttpRequestFactory(intOption(options, "connections", 64))) {
+            Ngsi2Client client = new Ngsi2Client(requestFactory, target);
+            if (options.containsKey("service") || options.containsKey("service-path")) {
+                client = client.forTenant(options.get("service"), options.get("service-path"));
+            }
+            LoadGenerator generator = new LoadGenerator(client, OperationMix.parse(options.getOrDefault("mix", OperationMix.defaultMix)),
+                    Double.parseDouble(options.getOrDefault("rate", "100")), intOption(options, "entities", 1000),
+                    intOption(options, "max-in-flight", 10000));
+            Duration warmUp = Duration.ofSeconds(intOption(options, "warmup", 5));
+            Duration duration = Duration.ofSeconds(intOption(options, "duration", 30));
+
+            int connections = intOption(options, "connections", 64);
+            Duration warmedUp = client.warmUp(connections).get();
+            System.out.printf("Warmed up %d connections to %s in %d ms%n", connections, target, warmedUp.toMillis());
+            System.out.printf("Creating %d entities on %s%n", generator.entityCount, target);
+            BulkUpdateSubmitter.Result populated = generator.populate().get();
+            if (!populated.isSuccess()) {
+                System.err.println("Failed to create the entities: " + populated.getFailures());
+                System.exit(1);
+            }
+            System.out.printf("Sending %.1f req/s for %ds after a %ds warm-up%n", generator.rate, duration.getSeconds(), warmUp.getSeconds());
+            generator.run(warmUp, duration);
+            generator.report(System.out, duration);
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    private void send(Operation operation, long scheduled, InMemoryClientMetrics recorder, Random random) {
+        if (inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            if (recorder == metrics) {
+                dropped.incrementAndGet();
+            }
+            return;
+        }
+        String name = operation.name();
+        recorder.requestStarted(name);
+        ListenableFuture<?> future;
+        try {
+            future = execute(operation, random);
+        } catch (RuntimeException e) {
+            inFlight.decrementAndGet();
+            recorder.requestFailed(name, System.nanoTime() - scheduled, 0, e);
+            return;
+        }
+        future.addCallback(result -> {
+            inFlight.decrementAndGet();
+            recorder.requestCompleted(name, System.nanoTime() - scheduled, 0, 0);
+        }, ex -> {
+            inFlight.decrementAndGet();
+            recorder.requestFailed(name, System.nanoTime() - scheduled, 0, ex);
+        });
+    }
+
+    private ListenableFuture<?> execute(Operation operation, Random random) {
+        switch (operation) {
+            case create:
+                return client.addEntity(entity(entityType + "-" + runId + "-" + created.incrementAndGet(), random, true));
+            case update:
+                return client.updateEntity(randomEntityId(random), entityType, entity(null, random, false).getAttributes(), false);
+            case read:
+                return client.getEntity(randomEntityId(random), entityType, null);
+            case query:
+                return client.getEntities(null, null, Collections.singletonList(entityType), null,
+                        "temperature>" + random.nextInt(30), null, null, 0, queryLimit, false);
+            case geoQuery:
+                GeoQuery geoQuery = new GeoQuery(GeoQuery.Modifier.maxDistance, 1000, GeoQuery.Geometry.point,
+                        Collections.singletonList(randomCoordinate(random)));
+                return client.getEntities(null, null, Collections.singletonList(entityType), null,
+                        null, geoQuery, null, 0, queryLimit, false);
+            case bulkUpdate:
+                List<Entity> entities = new ArrayList<>(bulkUpdateSize);
+                for (int i = 0; i < bulkUpdateSize; i++) {
+                    entities.add(entity(randomEntityId(random), random, false));
+                }
+                return client.bulkUpdate(new BulkUpdateRequest(BulkUpdateRequest.Action.UPDATE, entities));
+            default:
+                return subscriptionChurn();
+        }
+    }
+
+    /**
+     * Create a subscription then delete it
+     */
+    private ListenableFuture<Void> subscriptionChurn() {
+        SettableListenableFuture<Void> done = new SettableListenableFuture<>();
+        client.addSubscription(subscription).addCallback(id -> {
+            try {
+                client.deleteSubscription(id).addCallback(done::set, done::setException);
+            } catch (RuntimeException e) {
+                done.setException(e);
+            }
+        }, done::setException);
+        return done;
+    }
+
+    private String entityId(int index) {
+        return entityType + index;
+    }
+
+    private String randomEntityId(Random random) {
+        return entityId(random.nextInt(entityCount));
+    }
+
+    /**
+     * @param id the entity ID, null for an update
+     * @param withLocation true to add the location attribute
+     */
+    private static Entity entity(String id, Random random, boolean withLocation) {
+        Map<String, Attribute> attributes = new LinkedHashMap<>();
+        Attribute temperature = new Attribute(Math.round(random.nextDouble() * 400) / 10.0);
+        temperature.setType(Optional.of("Float"));
+        attributes.put("temperature", temperature);
+        Attribute pressure = new Attribute(900 + random.nextInt(200));
+        pressure.setType(Optional.of("Integer"));
+        attributes.put("pressure", pressure);
+        if (withLocation) {
+            Coordinate coordinate = randomCoordinate(random);
+            Attribute location = new Attribute(coordinate.getLatitude() + ", " + coordinate.getLongitude());
+            location.setType(Optional.of("geo:point"));
+            attributes.put("location", location);
+        }
+        return new Entity(id, entityType, attributes);
+    }
+
+    /**
+     * @return a point in a square of about 20 km around Barcelona
+     */
+    private static Coordinate randomCoordinate(Random random) {
+        return new Coordinate(41.3 + random.nextDouble() * 0.2, 2.05 + random.nextDouble() * 0.25);
+    }
+
+    private static Subscription subscription() {
+        SubjectEntity subjectEntity = new SubjectEntity();
+        subjectEntity.setIdPattern(Optional.of(entityType + ".*"));
+        subjectEntity.setType(Optional.of(entityType));
+        Condition condition = new Condition();
+        condition.setAttributes(Collections.singletonList("temperature"));
+        URL callback;
+        try {
+            callback = new URL("http://localhost:1028/accumulate");
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+        Notification notification = new Notification(Arrays.asList("temperature", "pressure"), callback);
+        return new Subscription(null, new SubjectSubscription(Collections.singletonList(subjectEntity), condition), notification, null, null);
+    }
+
+    private static double millis(Duration duration) {
+        return duration.toNanos() / 1e6;
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid --" + name + ": " + value);
+        }
+    }
+
+    /**
+     * @return the options by name without the leading --, given as "--name value" or "--name=value"
+     */
+    static Map<String, String> parseOptions(String[] args) {
+        Set<String> known = new HashSet<>(Arrays.asList("target", "rate", "duration", "warmup", "mix", "entities",
+                "connections", "max-in-flight", "service", "service-path"));
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--help") || arg.equals("-h")) {
+                options.put("help", "");
+                continue;
+            }
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("unexpected argument: " + arg);
+            }
+            String name = arg.substring(2);
+            String value;
+            int equals = name.indexOf('=');
+            if (equals >= 0) {
+                value = name.substring(equals + 1);
+                name = name.substring(0, equals);
+            } else if (i + 1 < args.length) {
+                value = args[++i];
+            } else {
+                throw new IllegalArgumentException("missing value of " + arg);
+            }
+            if (!known.contains(name)) {
+                throw new IllegalArgumentException("unknown option: " + arg);
+            }
+            options.put(name, value);
+        }
+        return options;
+    }
+}
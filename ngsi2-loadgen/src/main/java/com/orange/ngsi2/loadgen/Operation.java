@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.loadgen;
+
+/**
+ * Operations of the load, each one being a single request except the subscription churn
+ */
+public enum Operation {
+
+    /**
+     * Create a new entity
+     */
+    create,
+
+    /**
+     * Update the temperature of an existing entity
+     */
+    update,
+
+    /**
+     * Read an existing entity
+     */
+    read,
+
+    /**
+     * List entities filtered by a Simple Query Language query
+     */
+    query,
+
+    /**
+     * List the entities near a point
+     */
+    geoQuery,
+
+    /**
+     * Update several existing entities in a single request
+     */
+    bulkUpdate,
+
+    /**
+     * Create a subscription then delete it
+     */
+    subscription
+}
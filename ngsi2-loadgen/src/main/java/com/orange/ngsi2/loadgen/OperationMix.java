@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.loadgen;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Weighted random choice of the operations of the load
+ */
+public class OperationMix {
+
+    /**
+     * Mostly reads and updates, as seen by a broker serving dashboards fed by devices
+     */
+    public final static String defaultMix = "create=5,update=35,read=35,query=10,geoQuery=5,bulkUpdate=5,subscription=5";
+
+    private final Operation[] operations;
+
+    private final int[] cumulativeWeights;
+
+    private final int totalWeight;
+
+    /**
+     * @param weights the weight of each operation, the operations absent or of weight 0 are never chosen
+     */
+    public OperationMix(Map<Operation, Integer> weights) {
+        Map<Operation, Integer> used = new EnumMap<>(Operation.class);
+        weights.forEach((operation, weight) -> {
+            if (weight < 0) {
+                throw new IllegalArgumentException("negative weight for " + operation);
+            }
+            if (weight > 0) {
+                used.put(operation, weight);
+            }
+        });
+        if (used.isEmpty()) {
+            throw new IllegalArgumentException("the mix has no operation");
+        }
+        operations = new Operation[used.size()];
+        cumulativeWeights = new int[used.size()];
+        int i = 0;
+        int total = 0;
+        for (Map.Entry<Operation, Integer> entry : used.entrySet()) {
+            total += entry.getValue();
+            operations[i] = entry.getKey();
+            cumulativeWeights[i++] = total;
+        }
+        totalWeight = total;
+    }
+
+    /**
+     * @param mix the weights as a comma separated list of operation=weight, e.g. "read=80,update=20"
+     * @return the mix
+     */
+    public static OperationMix parse(String mix) {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        for (String item : mix.split(",")) {
+            String[] pair = item.trim().split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("invalid mix item: " + item);
+            }
+            try {
+                weights.put(Operation.valueOf(pair[0].trim()), Integer.parseInt(pair[1].trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid weight: " + item);
+            }
+        }
+        return new OperationMix(weights);
+    }
+
+    /**
+     * @param random the random generator
+     * @return the next operation
+     */
+    public Operation next(Random random) {
+        int value = random.nextInt(totalWeight);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (value < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+        return operations[operations.length - 1];
+    }
+}
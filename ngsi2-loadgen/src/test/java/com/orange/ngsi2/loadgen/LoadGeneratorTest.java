@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.loadgen;
+
+import com.orange.ngsi2.client.InMemoryClientMetrics;
+import com.orange.ngsi2.client.Ngsi2Client;
+import com.orange.ngsi2.client.NioClientHttpRequestFactory;
+import com.orange.ngsi2.model.Entity;
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.AsyncRestTemplate;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for LoadGenerator, against a fake client then an InProcessServer
+ */
+public class LoadGeneratorTest {
+
+    /**
+     * Responses of the reads, completed by the tests
+     */
+    private final List<SettableListenableFuture<Entity>> reads = new CopyOnWriteArrayList<>();
+
+    private volatile boolean completeReads = true;
+
+    private final Ngsi2Client client = new Ngsi2Client(new AsyncRestTemplate(), "http://localhost:8080") {
+        @Override
+        public ListenableFuture<Entity> getEntity(String entityId, String type, Collection<String> attrs) {
+            SettableListenableFuture<Entity> read = new SettableListenableFuture<>();
+            if (completeReads) {
+                read.set(new Entity(entityId, type, null));
+            } else {
+                reads.add(read);
+            }
+            return read;
+        }
+    };
+
+    @Test
+    public void arrivalRateTest() throws InterruptedException {
+        LoadGenerator generator = new LoadGenerator(client, OperationMix.parse("read=1"), 1000, 10, 100);
+        long start = System.nanoTime();
+        InMemoryClientMetrics metrics = generator.run(Duration.ofMillis(100), Duration.ofMillis(200));
+        long elapsed = System.nanoTime() - start;
+
+        // One request per millisecond, the warm-up ones are not measured
+        assertEquals(200, metrics.getOperation("read").getCount());
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(295));
+        assertEquals(0, generator.getDropped());
+        assertEquals(0, generator.getInFlight());
+    }
+
+    @Test
+    public void droppedTest() throws InterruptedException {
+        completeReads = false;
+        LoadGenerator generator = new LoadGenerator(client, OperationMix.parse("read=1"), 1000, 10, 5);
+        // Complete the reads in flight once all the requests were scheduled
+        Thread completer = new Thread(() -> {
+            while (reads.size() + generator.getDropped() < 100) {
+                Thread.yield();
+            }
+            reads.forEach(read -> read.set(null));
+        });
+        completer.start();
+        InMemoryClientMetrics metrics = generator.run(Duration.ZERO, Duration.ofMillis(100));
+        completer.join();
+
+        assertEquals(5, reads.size());
+        assertEquals(95, generator.getDropped());
+        assertEquals(5, metrics.getOperation("read").getCount());
+        // The latency is measured from the scheduled time: the first requests waited for the last ones to be scheduled
+        assertTrue(metrics.getOperation("read").getLatency(100).toMillis() >= 90);
+    }
+
+    @Test
+    public void inProcessServerTest() throws Exception {
+        try (InProcessServer server = new InProcessServer(0);
+             NioClientHttpRequestFactory requestFactory = new NioClientHttpRequestFactory(8)) {
+            Ngsi2Client client = new Ngsi2Client(requestFactory, server.getBaseURL());
+            client.warmUp(2).get();
+            LoadGenerator generator = new LoadGenerator(client, OperationMix.parse(OperationMix.defaultMix), 200, 20, 1000);
+            assertTrue(generator.populate().get().isSuccess());
+            InMemoryClientMetrics metrics = generator.run(Duration.ZERO, Duration.ofMillis(500));
+
+            long count = 0;
+            for (Map.Entry<String, InMemoryClientMetrics.OperationMetrics> operation : metrics.getOperations().entrySet()) {
+                assertEquals(operation.getKey(), 0, operation.getValue().getErrors().size());
+                count += operation.getValue().getCount();
+            }
+            assertEquals(100, count);
+            assertEquals(0, generator.getDropped());
+        }
+    }
+
+    @Test
+    public void parseOptionsTest() {
+        Map<String, String> options = LoadGenerator.parseOptions(new String[] { "--rate", "50", "--mix=read=1", "--help" });
+        assertEquals("50", options.get("rate"));
+        assertEquals("read=1", options.get("mix"));
+        assertTrue(options.containsKey("help"));
+        try {
+            LoadGenerator.parseOptions(new String[] { "--unknown", "1" });
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            LoadGenerator.parseOptions(new String[] { "--rate" });
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.orange.ngsi2.loadgen;
+
+import org.junit.Test;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for OperationMix
+ */
+public class OperationMixTest {
+
+    @Test
+    public void weightsTest() {
+        OperationMix mix = OperationMix.parse("read=3, update=1,create=0");
+        // Every value of the random generator is drawn once: each operation is chosen as many times as its weight
+        Map<Operation, Integer> counts = draw(mix, new CyclingRandom(), 4 * 100);
+        assertEquals(Integer.valueOf(300), counts.get(Operation.read));
+        assertEquals(Integer.valueOf(100), counts.get(Operation.update));
+        assertNull(counts.get(Operation.create));
+    }
+
+    @Test
+    public void defaultMixTest() {
+        Map<Operation, Integer> counts = draw(OperationMix.parse(OperationMix.defaultMix), new CyclingRandom(), 100);
+        assertEquals(Integer.valueOf(5), counts.get(Operation.create));
+        assertEquals(Integer.valueOf(35), counts.get(Operation.update));
+        assertEquals(Integer.valueOf(35), counts.get(Operation.read));
+        assertEquals(Integer.valueOf(10), counts.get(Operation.query));
+        assertEquals(Integer.valueOf(5), counts.get(Operation.geoQuery));
+        assertEquals(Integer.valueOf(5), counts.get(Operation.bulkUpdate));
+        assertEquals(Integer.valueOf(5), counts.get(Operation.subscription));
+    }
+
+    @Test
+    public void randomTest() {
+        Map<Operation, Integer> counts = draw(OperationMix.parse("read=80,update=20"), new Random(42), 100000);
+        assertEquals(80000, counts.get(Operation.read), 1000);
+        assertEquals(20000, counts.get(Operation.update), 1000);
+    }
+
+    @Test
+    public void invalidTest() {
+        assertInvalid("read");
+        assertInvalid("read=x");
+        assertInvalid("reads=1");
+        assertInvalid("read=-1");
+        assertInvalid("read=0,update=0");
+    }
+
+    private static Map<Operation, Integer> draw(OperationMix mix, Random random, int draws) {
+        Map<Operation, Integer> counts = new EnumMap<>(Operation.class);
+        for (int i = 0; i < draws; i++) {
+            counts.merge(mix.next(random), 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    private static void assertInvalid(String mix) {
+        try {
+            OperationMix.parse(mix);
+            fail("expected IllegalArgumentException for " + mix);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Returns 0, 1, ... bound - 1 then starts again
+     */
+    private static class CyclingRandom extends Random {
+
+        private int next;
+
+        @Override
+        public int nextInt(int bound) {
+            int value = next % bound;
+            next++;
+            return value;
+        }
+    }
+}
@@ -33,6 +33,7 @@ import org.springframework.web.bind.annotation.*;
 
 import javax.servlet.http.HttpServletRequest;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -43,6 +44,11 @@ public abstract class Ngsi2BaseController {
 
     private static Logger logger = LoggerFactory.getLogger(Ngsi2BaseController.class);
 
+    /**
+     * JSON bodies of the errors whose message does not depend on the request, by message
+     */
+    private static final Map<String, byte[]> serializedErrors = new ConcurrentHashMap<>();
+
     /* Field allowed characters are the ones in the plain ASCII set except the following ones: control characters,
        whitespace, &, ?, / and #.
      */
@@ -444,13 +450,18 @@ public abstract class Ngsi2BaseController {
     /**
      * Endpoint post /v2/subscriptions
      * @param subscription
-     * @return http status 201 (created)
+     * @return http status 201 (created) and location header /v2/subscriptions/{subscriptionId} if the implementation set the ID
      */
     @RequestMapping(method = RequestMethod.POST, value = "/subscriptions", consumes = MediaType.APPLICATION_JSON_VALUE)
     final public ResponseEntity createSubscriptionEndpoint(@RequestBody Subscription subscription) {
 
         validateSyntax(subscription);
         createSubscription(subscription);
+        if (subscription.getId() != null) {
+            HttpHeaders headers = new HttpHeaders();
+            headers.put("Location", Collections.singletonList("/v2/subscriptions/" + subscription.getId()));
+            return new ResponseEntity(headers, HttpStatus.CREATED);
+        }
         return new ResponseEntity(HttpStatus.CREATED);
     }
 
@@ -503,61 +514,37 @@ public abstract class Ngsi2BaseController {
     @ExceptionHandler({UnsupportedOperationException.class})
     public ResponseEntity<Object> unsupportedOperation(UnsupportedOperationException exception, HttpServletRequest request) {
         logger.error("Unsupported operation: {}", exception.getMessage());
-        HttpStatus httpStatus = HttpStatus.NOT_IMPLEMENTED;
-        if (request.getHeader("Accept").contains(MediaType.TEXT_PLAIN_VALUE)) {
-            return new ResponseEntity<>(exception.getError().toString(), httpStatus);
-        }
-        return new ResponseEntity<>(exception.getError(), httpStatus);
+        return errorResponse(exception, HttpStatus.NOT_IMPLEMENTED, request);
     }
 
     @ExceptionHandler({BadRequestException.class})
     public ResponseEntity<Object> incompatibleParameter(BadRequestException exception, HttpServletRequest request) {
-        logger.error("Bad request: {}", exception.getMessage());
-        HttpStatus httpStatus = HttpStatus.BAD_REQUEST;
-        if (request.getHeader("Accept").contains(MediaType.TEXT_PLAIN_VALUE)) {
-            return new ResponseEntity<>(exception.getError().toString(), httpStatus);
-        }
-        return new ResponseEntity<>(exception.getError(), httpStatus);
+        logger.debug("Bad request: {}", exception.getMessage());
+        return errorResponse(exception, HttpStatus.BAD_REQUEST, request);
     }
 
     @ExceptionHandler({IncompatibleParameterException.class})
     public ResponseEntity<Object> incompatibleParameter(IncompatibleParameterException exception, HttpServletRequest request) {
-        logger.error("Incompatible parameter: {}", exception.getMessage());
-        HttpStatus httpStatus = HttpStatus.BAD_REQUEST;
-        if (request.getHeader("Accept").contains(MediaType.TEXT_PLAIN_VALUE)) {
-            return new ResponseEntity<>(exception.getError().toString(), httpStatus);
-        }
-        return new ResponseEntity<>(exception.getError(), httpStatus);
+        logger.debug("Incompatible parameter: {}", exception.getMessage());
+        return errorResponse(exception, HttpStatus.BAD_REQUEST, request);
     }
 
     @ExceptionHandler({InvalidatedSyntaxException.class})
     public ResponseEntity<Object> invalidSyntax(InvalidatedSyntaxException exception, HttpServletRequest request) {
-        logger.error("Invalid syntax: {}", exception.getMessage());
-        HttpStatus httpStatus = HttpStatus.BAD_REQUEST;
-        if (request.getHeader("Accept").contains(MediaType.TEXT_PLAIN_VALUE)) {
-            return new ResponseEntity<>(exception.getError().toString(), httpStatus);
-        }
-        return new ResponseEntity<>(exception.getError(), httpStatus);
+        logger.debug("Invalid syntax: {}", exception.getMessage());
+        return errorResponse(exception, HttpStatus.BAD_REQUEST, request);
     }
 
     @ExceptionHandler({ConflictingEntitiesException.class})
     public ResponseEntity<Object> conflictingEntities(ConflictingEntitiesException exception, HttpServletRequest request) {
-        logger.error("ConflictingEntities: {}", exception.getMessage());
-        HttpStatus httpStatus = HttpStatus.CONFLICT;
-        if (request.getHeader("Accept").contains(MediaType.TEXT_PLAIN_VALUE)) {
-            return new ResponseEntity<>(exception.getError().toString(), httpStatus);
-        }
-        return new ResponseEntity<>(exception.getError(), httpStatus);
+        logger.debug("ConflictingEntities: {}", exception.getMessage());
+        return errorResponse(exception, HttpStatus.CONFLICT, request);
     }
 
     @ExceptionHandler({NotAcceptableException.class})
     public ResponseEntity<Object> notAcceptable(NotAcceptableException exception, HttpServletRequest request) {
-        logger.error("Not Acceptable: {}", exception.getMessage());
-        HttpStatus httpStatus = HttpStatus.NOT_ACCEPTABLE;
-        if (request.getHeader("Accept").contains(MediaType.TEXT_PLAIN_VALUE)) {
-            return new ResponseEntity<>(exception.getError().toString(), httpStatus);
-        }
-        return new ResponseEntity<>(exception.getError(), httpStatus);
+        logger.debug("Not Acceptable: {}", exception.getMessage());
+        return errorResponse(exception, HttpStatus.NOT_ACCEPTABLE, request);
     }
 
     @ExceptionHandler({IllegalArgumentException.class})
@@ -570,6 +557,31 @@ public abstract class Ngsi2BaseController {
         return new ResponseEntity<>(exception.getMessage(), httpStatus);
     }
 
+    /**
+     * Error response in text or JSON, the JSON body of the fixed errors being serialized only once
+     */
+    private ResponseEntity<Object> errorResponse(Ngsi2Exception exception, HttpStatus httpStatus, HttpServletRequest request) {
+        String accept = request.getHeader("Accept");
+        if (accept != null && accept.contains(MediaType.TEXT_PLAIN_VALUE)) {
+            return new ResponseEntity<>(exception.getError().toString(), httpStatus);
+        }
+        if (exception instanceof NotAcceptableException || exception instanceof UnsupportedOperationException) {
+            byte[] body = serializedErrors.computeIfAbsent(exception.getMessage(), message -> {
+                try {
+                    return objectMapper.writeValueAsBytes(exception.getError());
+                } catch (JsonProcessingException e) {
+                    return null;
+                }
+            });
+            if (body != null) {
+                HttpHeaders headers = new HttpHeaders();
+                headers.setContentType(MediaType.APPLICATION_JSON);
+                return new ResponseEntity<>(body, headers, httpStatus);
+            }
+        }
+        return new ResponseEntity<>(exception.getError(), httpStatus);
+    }
+
     /*
      * Methods overridden by child classes to handle the NGSI v2 requests
      */
@@ -791,7 +803,7 @@ public abstract class Ngsi2BaseController {
 
     /**
      * Create a new subscription
-     * @param subscription the subscription to create
+     * @param subscription the subscription to create, whose ID can be set to return it in the location header
      */
     protected void createSubscription(Subscription subscription){
         throw new UnsupportedOperationException("Create Subscription");
@@ -164,7 +164,9 @@ public class FakeNgsi2ControllerHelper extends Ngsi2BaseController {
     }
 
     @Override
-    protected void createSubscription(Subscription subscription){ }
+    protected void createSubscription(Subscription subscription){
+        subscription.setId("abcdef");
+    }
 
     @Override
     protected Subscription retrieveSubscription(String subscriptionId) {
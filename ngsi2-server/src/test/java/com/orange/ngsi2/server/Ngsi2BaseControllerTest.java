@@ -1071,6 +1071,7 @@ public class Ngsi2BaseControllerTest {
         mockMvc.perform(
                 post("/v2/i/subscriptions").content(json(jsonV2Converter, createSubscriptionReference())).contentType(MediaType.APPLICATION_JSON)
                         .header("Host", "localhost").accept(MediaType.APPLICATION_JSON))
+                .andExpect(header().string("Location", "/v2/subscriptions/abcdef"))
                 .andExpect(status().isCreated());
     }
 
@@ -1178,6 +1179,47 @@ public class Ngsi2BaseControllerTest {
                 .andExpect(status().isNoContent());
     }
 
+    @Test
+    public void checkErrorJsonBody() throws Exception {
+        // The body of a fixed error is serialized once then reused
+        for (int i = 0; i < 2; i++) {
+            mockMvc.perform(
+                    get("/v2/ni/entities").contentType(MediaType.APPLICATION_JSON).header("Host", "localhost").accept(MediaType.APPLICATION_JSON))
+                    .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                    .andExpect(MockMvcResultMatchers.jsonPath("$.error").value("501"))
+                    .andExpect(MockMvcResultMatchers.jsonPath("$.description").value("this operation 'List Entities' is not implemented"))
+                    .andExpect(status().isNotImplemented());
+        }
+    }
+
+    @Test
+    public void checkErrorTextPlainBody() throws Exception {
+        mockMvc.perform(
+                get("/v2/ni/entities").header("Host", "localhost").accept(MediaType.TEXT_PLAIN))
+                .andExpect(content().string("error: 501 | description: this operation 'List Entities' is not implemented | affectedItems: []"))
+                .andExpect(status().isNotImplemented());
+        mockMvc.perform(
+                get("/v2/i/entities/Boe-Idearium").param("attrs", "temperature").header("Host", "localhost").accept(MediaType.TEXT_PLAIN))
+                .andExpect(content().string("error: 409 | description: Too many results. There are several results that match with the Boe-Idearium used in the request. Instead of, you can use GET /v2/entities?id=Boe-Idearium&attrs=temperature | affectedItems: []"))
+                .andExpect(status().isConflict());
+    }
+
+    @Test
+    public void checkErrorWithoutAccept() throws Exception {
+        // A request without Accept header gets a JSON error instead of failing
+        mockMvc.perform(
+                get("/v2/ni/entities").header("Host", "localhost"))
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.error").value("501"))
+                .andExpect(status().isNotImplemented());
+        mockMvc.perform(
+                get("/v2/i/entities").param("id", "Boe_Idearium?").header("Host", "localhost"))
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.error").value("400"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.description").value("The incoming request is invalid in this context. Boe_Idearium? has a bad syntax."))
+                .andExpect(status().isBadRequest());
+    }
+
     @Test
     public void checkPattern() {
         assertTrue(Pattern.matches("[\\x21\\x22\\x24\\x25\\x27-\\x2E\\x30-\\x3E\\x40-\\x7E]*", "Bcn_Welt"));